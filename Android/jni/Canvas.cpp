@@ -112,6 +112,13 @@ Canvas::Canvas()
     m_indexVBO = 0;
 #endif
     m_worldColor.SetWhite();
+    m_buildCount = 0;
+    memset(&m_frameStats, 0, sizeof(m_frameStats));
+    m_target = &m_streams;
+    m_buildingList = NULL;
+    m_batchMode = false;
+    m_batchVBO = 0;
+    m_batchVBOAllocated = 0;
 }
 
 /*static*/
@@ -135,6 +142,14 @@ Canvas::~Canvas()
 {
     DLog( "Canvas::~Canvas start." );
     DoContextLost();
+    for (int i = m_lists.GetSize()-1; i >= 0; i--) {
+        delete m_lists[i];
+    }
+    m_lists.SetSize(0);
+    for (int i = m_fonts.GetSize()-1; i >= 0; i--) {
+        delete m_fonts[i];
+    }
+    m_fonts.SetSize(0);
     DLog( "Canvas::~Canvas end." );
 }
 
@@ -164,6 +179,35 @@ void Canvas::DoContextLost()
             delete texture;
         }
     }
+    m_textureIndex.SetSize(0);
+
+    // The glyph pages went with the textures; the fonts stay defined
+    for (i = 0; i < m_fonts.GetSize(); i++) {
+        Font *font = m_fonts[i];
+        for (int j = 0; j < Font::kLatinSize; j++) {
+            font->latin[j].loaded = false;
+            font->latin[j].page = NULL;
+        }
+        font->others.SetSize(0);
+    }
+
+    m_batchMode = false;
+    m_batchVBO = 0;
+    m_batchVBOAllocated = 0;
+    m_batchDraws.SetSize(0);
+
+    // Keep the display lists' commands, their buffers are gone with the
+    // context and get rebuilt once it's back
+    for (i = 0; i < m_lists.GetSize(); i++) {
+        DisplayList *list = m_lists[i];
+        for (int j = 0; j < list->streams.GetSize(); j++) {
+            list->streams[j]->vboVertexID = 0;
+            list->streams[j]->nVBOAllocated = 0;
+            list->streams[j]->Reset();
+        }
+        list->nStreams = 0;
+        list->dirty = true;
+    }
 
     DLog( "Canvas::DoContextLost end." );
 }
@@ -211,21 +255,53 @@ void Canvas::AddTexture(int id, int glID, int width, int height)
     if (img) {
         DLog( "Canvas::AddTexture id=%d glID=%d width=%d height=%d", id, glID, width, height );
         m_textures.Append(&img, 1);
+        IndexTexture(img);
     }
     if ( id == -1 ) {
         m_textStream.texture = img;
     }
+    InvalidateLists(id);
     DLog( "Leaving AddTexture" );
 }
 
-bool Canvas::AddPngTexture(const unsigned char *buffer, long size, int id, unsigned int *pWidth, unsigned int *pHeight)
+void Canvas::AddTextureRegion(int id, int glID, int pageWidth, int pageHeight, int x, int y)
+{
+    Texture *img = new Texture (id, glID, pageWidth, pageHeight, x, y, false);
+    if (img) {
+        DLog( "Canvas::AddTextureRegion id=%d glID=%d page=%dx%d at %d,%d", id, glID, pageWidth, pageHeight, x, y );
+        m_textures.Append(&img, 1);
+        IndexTexture(img);
+    }
+    InvalidateLists(id);
+}
+
+/*static*/
+unsigned char *Canvas::DecodePngTexture(const unsigned char *buffer, long size, unsigned int *pWidth, unsigned int *pHeight)
 {
-    bool success = false;
     unsigned char *textureDataRGBA = NULL;
     unsigned int error = lodepng_decode32(&textureDataRGBA, pWidth, pHeight, buffer, (size_t)size);
     if(error) {
-        DLog( "Canvas::AddPngTexture Error %d: %s", error, lodepng_error_text(error));
-    } else {
+        DLog( "Canvas::DecodePngTexture Error %d: %s", error, lodepng_error_text(error));
+        FreeTextureData(textureDataRGBA);
+        return NULL;
+    }
+    return textureDataRGBA;
+}
+
+/*static*/
+void Canvas::FreeTextureData(unsigned char *data)
+{
+    // lodepng allocates with malloc
+    if (data) {
+        free(data);
+    }
+}
+
+bool Canvas::AddPngTexture(const unsigned char *buffer, long size, int id, unsigned int *pWidth, unsigned int *pHeight)
+{
+    bool success = false;
+    unsigned char *textureDataRGBA = DecodePngTexture(buffer, size, pWidth, pHeight);
+    if (textureDataRGBA) {
         GLuint glID;
         glGenTextures(1, &glID);
         glBindTexture(GL_TEXTURE_2D, glID);
@@ -255,9 +331,7 @@ bool Canvas::AddPngTexture(const unsigned char *buffer, long size, int id, unsig
         success = true;
     }
 
-    if (textureDataRGBA) {
-        free(textureDataRGBA);
-    }
+    FreeTextureData(textureDataRGBA);
 
     return success;
 }
@@ -271,6 +345,24 @@ void Canvas::RemoveTexture(int id)
             int glID = img->GetGlID();
             DLog( "Canvas::RemoveTexture id=%d glID=%d width=%d height=%d", id, glID, m_textures[i]->GetWidth(), m_textures[i]->GetHeight() );
             m_textures.RemoveAt(i);
+            if ( id >= 0 && id < m_textureIndex.GetSize() && m_textureIndex[id] == img ) {
+                m_textureIndex[id] = ScanTexture( id );
+            }
+            // A glyph page takes its glyphs with it
+            for ( int f = 0; f < m_fonts.GetSize(); f++) {
+                Font *font = m_fonts[f];
+                for ( int j = 0; j < Font::kLatinSize; j++) {
+                    if ( font->latin[j].page == img ) {
+                        font->latin[j].loaded = false;
+                        font->latin[j].page = NULL;
+                    }
+                }
+                for ( int j = font->others.GetSize() - 1; j >= 0; j--) {
+                    if ( font->others[j].page == img ) {
+                        font->others.RemoveAt(j);
+                    }
+                }
+            }
             // Reset up any streams using this texture
             for ( int j = 0; j < m_streams.GetSize(); j++) {
                 Stream *stream = m_streams[j];
@@ -278,8 +370,12 @@ void Canvas::RemoveTexture(int id)
                     stream->Reset();
                 }
             }
-            // Delete the texture off the card
-            glDeleteTextures(1, (const GLuint *)(&glID));
+            InvalidateLists(id);
+            // Delete the texture off the card, unless it's an atlas page
+            // that other regions still use
+            if (img->OwnsGlID()) {
+                glDeleteTextures(1, (const GLuint *)(&glID));
+            }
 
             delete img;
             break;
@@ -288,6 +384,66 @@ void Canvas::RemoveTexture(int id)
     DLog( "Leaving Canvas::RemoveTexture" );
 }
 
+void Canvas::DefineFont(int fontID, float ascent, float descent)
+{
+    Font *font = FindFont(fontID);
+    if (!font) {
+        font = new Font(fontID);
+        m_fonts.Append(&font, 1);
+    }
+    font->ascent = ascent;
+    font->descent = descent;
+}
+
+void Canvas::AddGlyph(int fontID, int codePoint, int pageID, int x, int y, int width, int height,
+                      float left, float top, float advance)
+{
+    Font *font = FindFont(fontID);
+    Texture *page = pageID != 0 ? FindTexture(pageID) : NULL;
+    if (!font || (pageID != 0 && !page)) {
+        DLog( "Canvas::AddGlyph font %d code point %d: no such font or page %d", fontID, codePoint, pageID );
+        return;
+    }
+    Glyph *glyph = FindGlyph(font, codePoint, true);
+    glyph->loaded = true;
+    glyph->page = page;
+    glyph->x = (float)x;
+    glyph->y = (float)y;
+    glyph->width = (float)width;
+    glyph->height = (float)height;
+    glyph->left = left;
+    glyph->top = top;
+    glyph->advance = advance;
+
+    for (int i = 0; i < m_lists.GetSize(); i++) {
+        DisplayList *list = m_lists[i];
+        if (list->missingGlyphs) {
+            list->nStreams = 0;
+            list->dirty = true;
+        }
+    }
+}
+
+int Canvas::GetMissingGlyphs(int *pairs, int maxGlyphs) const
+{
+    int size = m_missingGlyphs.GetSize() / 2;
+    int n = size < maxGlyphs ? size : maxGlyphs;
+    if (n > 0) {
+        memcpy(pairs, m_missingGlyphs.GetData(), n * 2 * sizeof(int));
+    }
+    return size;
+}
+
+int Canvas::GetUsedTextures(int *ids, int maxIDs) const
+{
+    int size = m_usedTextures.GetSize();
+    int n = size < maxIDs ? size : maxIDs;
+    if (n > 0) {
+        memcpy(ids, m_usedTextures.GetData(), n * sizeof(int));
+    }
+    return size;
+}
+
 void Canvas::EnsureIndex( int nIndex )
 {
 #ifdef USE_INDEX_BUFFER
@@ -431,10 +587,296 @@ void Canvas::Render(const char *renderCommands, int length)
     if (m_contextLost) return;
 
     m_worldColor.SetWhite();
+    memset(&m_frameStats, 0, sizeof(m_frameStats));
+    m_missingGlyphs.SetSize(0);
+    RebuildLists();
     if (length > 0) {
         m_messages++;
+        m_batchMode = false;
+        BuildStreamsTimed(renderCommands, NULL, length);
+    }
+    DrawStreams();
+}
+
+void Canvas::RenderBuffer(const unsigned char *renderBuffer, int length)
+{
+    // Render thread can hit this during destruction
+    if (m_contextLost) return;
+
+    m_worldColor.SetWhite();
+    memset(&m_frameStats, 0, sizeof(m_frameStats));
+    m_missingGlyphs.SetSize(0);
+    RebuildLists();
+    if (renderBuffer && length > 0) {
+        m_messages++;
+        m_batchMode = false;
+        BuildStreamsTimed(NULL, renderBuffer, length);
+    }
+    DrawStreams();
+}
+
+void Canvas::RenderBatch(const unsigned char *vertices, int vertexCount,
+                         const int *draws, int drawCount, const float *listTransforms,
+                         const int *usedIDs, int usedCount)
+{
+    // Render thread can hit this during destruction
+    if (m_contextLost) return;
+
+    memset(&m_frameStats, 0, sizeof(m_frameStats));
+    m_missingGlyphs.SetSize(0);
+    RebuildLists();
+    m_messages++;
+
+    // All of the frame's vertices go up in one buffer
+    int bytes = vertexCount * sizeof(Vertex2);
+    if (m_batchVBO == 0) {
+        glGenBuffers(1, &m_batchVBO);
+    }
+    glBindBuffer(GL_ARRAY_BUFFER, m_batchVBO);
+    if (m_batchVBOAllocated < bytes) {
+        m_batchVBOAllocated = bytes;
+        glBufferData(GL_ARRAY_BUFFER, bytes, vertices, GL_DYNAMIC_DRAW);
+    } else if (bytes > 0) {
+        glBufferSubData(GL_ARRAY_BUFFER, 0, bytes, vertices);
+    }
+    m_frameStats.uploadBytes = bytes;
+
+    m_batchDraws.SetSize(0);
+    m_batchDraws.Append(draws, drawCount * BATCH_DRAW_INTS);
+    int nLists = 0;
+    for (int i = 0; i < drawCount; i++) {
+        if (draws[i * BATCH_DRAW_INTS + 3] & BATCH_LIST) {
+            nLists++;
+        }
+    }
+    m_batchTransforms.SetSize(0);
+    m_batchTransforms.Append(listTransforms, nLists * 6);
+    m_batchMode = true;
+
+    m_buildCount++;
+    m_usedTextures.SetSize(0);
+    m_usedTextures.Append(usedIDs, usedCount);
+    for (int i = 0; i < drawCount; i++) {
+        const int *draw = draws + i * BATCH_DRAW_INTS;
+        DisplayList *list = (draw[3] & BATCH_LIST) ? FindList(draw[0]) : NULL;
+        if (list) {
+            for (int j = 0; j < list->textureIDs.GetSize(); j++) {
+                int textureID = list->textureIDs[j];
+                NoteTextureUsed(textureID, FindTexture(textureID));
+            }
+        }
+    }
+
+    DrawStreams();
+}
+
+void Canvas::DefineList(int id, const char *renderCommands, int length)
+{
+    DisplayList *list = FindList(id);
+    if (!list) {
+        list = new DisplayList(id);
+        m_lists.Append(&list, 1);
+    }
+    list->binary = false;
+    list->commands.SetSize(0);
+    list->commands.Append((const unsigned char *)renderCommands, length);
+    unsigned char terminator = 0;
+    list->commands.Append(&terminator, 1);
+    list->textureIDs.SetSize(0);
+    list->nStreams = 0;
+    list->dirty = true;
+}
+
+void Canvas::DefineListBuffer(int id, const unsigned char *renderBuffer, int length)
+{
+    DisplayList *list = FindList(id);
+    if (!list) {
+        list = new DisplayList(id);
+        m_lists.Append(&list, 1);
+    }
+    list->binary = true;
+    list->commands.SetSize(0);
+    list->commands.Append(renderBuffer, length);
+    list->textureIDs.SetSize(0);
+    list->nStreams = 0;
+    list->dirty = true;
+}
+
+void Canvas::RemoveList(int id)
+{
+    for (int i = 0; i < m_lists.GetSize(); i++) {
+        DisplayList *list = m_lists[i];
+        if (list->id != id) {
+            continue;
+        }
+        m_lists.RemoveAt(i);
+        for (int j = 0; j < m_streams.GetSize(); j++) {
+            if (m_streams[j]->list == list) {
+                m_streams[j]->Reset();
+            }
+        }
+        if (!m_contextLost) {
+            for (int j = 0; j < list->streams.GetSize(); j++) {
+                GLuint vboID = list->streams[j]->vboVertexID;
+                if (vboID) {
+                    glDeleteBuffers(1, &vboID);
+                }
+            }
+        }
+        delete list;
+        return;
+    }
+}
+
+void Canvas::SetLayer(int listID, int z, bool visible, const float *transform)
+{
+    Layer layer;
+    layer.listID = listID;
+    layer.z = z;
+    layer.visible = visible;
+    layer.transform.a = transform[0];
+    layer.transform.b = transform[1];
+    layer.transform.c = transform[2];
+    layer.transform.d = transform[3];
+    layer.transform.tx = transform[4];
+    layer.transform.ty = transform[5];
+
+    int i;
+    for (i = 0; i < m_layers.GetSize(); i++) {
+        if (m_layers[i].listID == listID) {
+            if (m_layers[i].z == z) {
+                m_layers[i] = layer;
+                return;
+            }
+            m_layers.RemoveAt(i);
+            break;
+        }
+    }
+    // after the layers with the same z
+    for (i = 0; i < m_layers.GetSize() && m_layers[i].z <= z; i++) {
+    }
+    m_layers.Append(&layer, 1);
+    for (int j = m_layers.GetSize() - 1; j > i; j--) {
+        m_layers[j] = m_layers[j - 1];
+    }
+    m_layers[i] = layer;
+}
+
+void Canvas::RemoveLayer(int listID)
+{
+    for (int i = 0; i < m_layers.GetSize(); i++) {
+        if (m_layers[i].listID == listID) {
+            m_layers.RemoveAt(i);
+            return;
+        }
+    }
+}
+
+int Canvas::GetListBuilds(int id)
+{
+    DisplayList *list = FindList(id);
+    return list ? list->builds : -1;
+}
+
+DisplayList::~DisplayList()
+{
+    for (int i = 0; i < streams.GetSize(); i++) {
+        delete streams[i];
+    }
+}
+
+DisplayList *Canvas::FindList(int id)
+{
+    for (int i = 0; i < m_lists.GetSize(); i++) {
+        if (m_lists[i]->id == id) {
+            return m_lists[i];
+        }
+    }
+    return NULL;
+}
+
+// Builds the list's streams from its commands, starting from the identity
+// transform and full alpha. The frame's own state is left as it was.
+void Canvas::BuildList(DisplayList *list)
+{
+    Transform transform = m_transform;
+    DynArray<Transform> transformStack;
+    transformStack.Append(m_transformStack.GetData(), m_transformStack.GetSize());
+    Color worldColor = m_worldColor;
+
+    m_transform = Transform();
+    m_transformStack.SetSize(0);
+    m_worldColor.SetWhite();
+    m_target = &list->streams;
+    m_buildingList = list;
+    list->missingGlyphs = false;
+
+    int length = list->commands.GetSize();
+    if (list->binary) {
+        BuildStreamsBinary(list->commands.GetData(), length);
+    } else {
+        BuildStreams((const char *)list->commands.GetData(), length - 1);
+    }
+
+    m_target = &m_streams;
+    m_buildingList = NULL;
+    m_transform = transform;
+    m_transformStack.SetSize(0);
+    m_transformStack.Append(transformStack.GetData(), transformStack.GetSize());
+    m_worldColor = worldColor;
+
+    // The streams used are the ones given a texture
+    int n = 0;
+    while (n < list->streams.GetSize() && list->streams[n]->texture) {
+        n++;
+    }
+    list->nStreams = n;
+    list->dirty = false;
+    list->builds++;
+}
+
+void Canvas::RebuildLists()
+{
+    for (int i = 0; i < m_lists.GetSize(); i++) {
+        if (m_lists[i]->dirty) {
+            BuildList(m_lists[i]);
+        }
+    }
+}
+
+// Lists drawing the texture get rebuilt before the next frame. Until then
+// they draw nothing, their streams may point at a texture that's gone.
+void Canvas::InvalidateLists(int textureID)
+{
+    for (int i = 0; i < m_lists.GetSize(); i++) {
+        DisplayList *list = m_lists[i];
+        for (int j = 0; j < list->textureIDs.GetSize(); j++) {
+            if (list->textureIDs[j] == textureID) {
+                list->nStreams = 0;
+                list->dirty = true;
+                break;
+            }
+        }
+    }
+}
+
+void Canvas::BuildStreamsTimed(const char *renderCommands, const unsigned char *renderBuffer, int length)
+{
+    struct timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    if (renderBuffer) {
+        BuildStreamsBinary(renderBuffer, length);
+    } else {
         BuildStreams(renderCommands, length);
     }
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    long micros = (end.tv_sec - start.tv_sec) * 1000000L + (end.tv_nsec - start.tv_nsec) / 1000;
+    // a build never takes 0us as far as the stats are concerned
+    m_frameStats.buildMicros = micros > 0 ? (int)micros : 1;
+}
+
+void Canvas::DrawStreams()
+{
 #ifdef DEBUG
     UpdateFrameRate();
 #endif
@@ -450,10 +892,26 @@ void Canvas::Render(const char *renderCommands, int length)
 
     glColor4f(1, 1, 1, 1);
 
+    DrawLayers(false);
+
+    if (m_batchMode) {
+        DrawBatch();
+        DrawLayers(true);
+        ProcessCaptures();
+        return;
+    }
+
     const int size = m_streams.GetSize();
     int quads=0;
     for( int i=0; i<size; ++i ) {
         // How many indices do we need? 6 indices per quad.
+        const DisplayList *list = m_streams[i]->list;
+        if ( list ) {
+            for ( int j = 0; j < list->nStreams; ++j ) {
+                EnsureIndex( list->streams[j]->nVertex * 6 / 4 );
+            }
+            continue;
+        }
         int nVertex = m_streams[i]->nVertex;
         int nIndex = nVertex * 6 / 4;
         quads += nIndex * 4 / 6;
@@ -465,37 +923,68 @@ void Canvas::Render(const char *renderCommands, int length)
 #endif
     for ( int i = 0; i <= size; ++i) {
         Stream *stream = (i==size) ? &m_textStream : m_streams[i];
-        if ( !stream || !stream->texture ) {
+        if ( stream && stream->list ) {
+            const Transform &t = stream->listTransform;
+            GLfloat matrix[16] = {
+                t.a,  t.b,  0, 0,
+                t.c,  t.d,  0, 0,
+                0,    0,    1, 0,
+                t.tx, t.ty, 0, 1
+            };
+            glPushMatrix();
+            glMultMatrixf( matrix );
+            for ( int j = 0; j < stream->list->nStreams; ++j ) {
+                DrawStream( stream->list->streams[j] );
+            }
+            glPopMatrix();
             continue;
         }
-        glBindBuffer(GL_ARRAY_BUFFER, stream->vboVertexID );
-#ifdef USE_INDEX_BUFFER
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, m_indexVBO);
-#endif
-        glBindTexture( GL_TEXTURE_2D, stream->texture->GetGlID() );
+        DrawStream( stream );
+    }
 
-        glVertexPointer(2, GL_FLOAT, sizeof(Vertex2), (const void*)(0) );               // position
-        glTexCoordPointer(2, GL_FLOAT, sizeof(Vertex2), (const void*)(sizeof(Vector2)) ); // texture
-        // This actually makes a difference on some mobile devices. Changes performance from 36 to 51 FPS.
-        if (stream->usesColor) {
-            glEnableClientState(GL_COLOR_ARRAY);
-            glColorPointer( 4, GL_UNSIGNED_BYTE, sizeof(Vertex2), (const void*)(sizeof(Vector2)+sizeof(Vector2)) );
-        }
+    DrawLayers(true);
+    ProcessCaptures();
+}
 
-        int nVertex = stream->nVertex;
-#ifdef USE_INDEX_BUFFER
-        int nIndex = nVertex * 6 / 4;
-        ASSERT( nIndex <= m_indices.GetSize() );
-        glDrawElements( GL_TRIANGLES, nIndex, GL_UNSIGNED_SHORT, 0 );
-#else
-        ASSERT( nVertex % 6 == 0 );
-        glDrawArrays( GL_TRIANGLES, 0, nVertex );
-#endif
-        if (stream->usesColor) {
-            glDisableClientState(GL_COLOR_ARRAY);
+// The layers under the frame (z < 0), or the ones over it. Their textures
+// count as used by the frame.
+void Canvas::DrawLayers(bool above)
+{
+    for ( int i = 0; i < m_layers.GetSize(); ++i ) {
+        const Layer &layer = m_layers[i];
+        if ( !layer.visible || (layer.z >= 0) != above ) {
+            continue;
+        }
+        const DisplayList *list = FindList( layer.listID );
+        if ( !list ) {
+            continue;
+        }
+        for ( int j = 0; j < list->textureIDs.GetSize(); ++j ) {
+            int textureID = list->textureIDs[j];
+            NoteTextureUsed( textureID, FindTexture( textureID ) );
         }
+        for ( int j = 0; j < list->nStreams; ++j ) {
+            EnsureIndex( list->streams[j]->nVertex * 6 / 4 );
+        }
+        const Transform &t = layer.transform;
+        GLfloat matrix[16] = {
+            t.a,  t.b,  0, 0,
+            t.c,  t.d,  0, 0,
+            0,    0,    1, 0,
+            t.tx, t.ty, 0, 1
+        };
+        glPushMatrix();
+        glMultMatrixf( matrix );
+        for ( int j = 0; j < list->nStreams; ++j ) {
+            DrawStream( list->streams[j] );
+        }
+        glPopMatrix();
     }
+}
 
+// Capture requests and the end of the frame, after everything was drawn
+void Canvas::ProcessCaptures()
+{
     //process any capture requests
     int i = 0;
     while(!m_capParams.IsEmpty()) {
@@ -518,36 +1007,167 @@ void Canvas::Render(const char *renderCommands, int length)
     CHECK_GLERROR;
 }
 
+void Canvas::DrawBatch()
+{
+    const int size = m_batchDraws.GetSize() / BATCH_DRAW_INTS;
+    for ( int i = 0; i < size; ++i ) {
+        const int *draw = &m_batchDraws[i * BATCH_DRAW_INTS];
+        if ( !(draw[3] & BATCH_LIST) ) {
+            EnsureIndex( draw[2] * 6 / 4 );
+        }
+    }
 
-void Canvas::BuildStreams( const char *renderCommands, int length )
+    for ( int i = 0; i < size; ++i ) {
+        const int *draw = &m_batchDraws[i * BATCH_DRAW_INTS];
+        if ( draw[3] & BATCH_LIST ) {
+            const DisplayList *list = FindList( draw[0] );
+            if ( !list ) {
+                continue;
+            }
+            for ( int j = 0; j < list->nStreams; ++j ) {
+                EnsureIndex( list->streams[j]->nVertex * 6 / 4 );
+            }
+            const float *t = &m_batchTransforms[draw[1] * 6];
+            GLfloat matrix[16] = {
+                t[0], t[1], 0, 0,
+                t[2], t[3], 0, 0,
+                0,    0,    1, 0,
+                t[4], t[5], 0, 1
+            };
+            glPushMatrix();
+            glMultMatrixf( matrix );
+            for ( int j = 0; j < list->nStreams; ++j ) {
+                DrawStream( list->streams[j] );
+            }
+            glPopMatrix();
+            continue;
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, m_batchVBO );
+#ifdef USE_INDEX_BUFFER
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, m_indexVBO);
+#endif
+        glBindTexture( GL_TEXTURE_2D, draw[0] );
+
+        // Each draw starts at its own offset into the frame's buffer
+        const char *base = (const char *)(size_t)(draw[1] * sizeof(Vertex2));
+        glVertexPointer(2, GL_FLOAT, sizeof(Vertex2), base );
+        glTexCoordPointer(2, GL_FLOAT, sizeof(Vertex2), base + sizeof(Vector2) );
+        if ( draw[3] & BATCH_COLOR ) {
+            glEnableClientState(GL_COLOR_ARRAY);
+            glColorPointer( 4, GL_UNSIGNED_BYTE, sizeof(Vertex2), base + sizeof(Vector2)+sizeof(Vector2) );
+        }
+
+        int nVertex = draw[2];
+        m_frameStats.drawCalls++;
+        m_frameStats.quads += nVertex / 4;
+#ifdef USE_INDEX_BUFFER
+        int nIndex = nVertex * 6 / 4;
+        ASSERT( nIndex <= m_indices.GetSize() );
+        glDrawElements( GL_TRIANGLES, nIndex, GL_UNSIGNED_SHORT, 0 );
+#else
+        ASSERT( nVertex % 6 == 0 );
+        glDrawArrays( GL_TRIANGLES, 0, nVertex );
+#endif
+        if ( draw[3] & BATCH_COLOR ) {
+            glDisableClientState(GL_COLOR_ARRAY);
+        }
+    }
+}
+
+void Canvas::DrawStream( const Stream *stream )
 {
-    int size = m_streams.GetSize();
+    if ( !stream || !stream->texture ) {
+        return;
+    }
+    glBindBuffer(GL_ARRAY_BUFFER, stream->vboVertexID );
+#ifdef USE_INDEX_BUFFER
+    glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, m_indexVBO);
+#endif
+    glBindTexture( GL_TEXTURE_2D, stream->texture->GetGlID() );
+
+    glVertexPointer(2, GL_FLOAT, sizeof(Vertex2), (const void*)(0) );               // position
+    glTexCoordPointer(2, GL_FLOAT, sizeof(Vertex2), (const void*)(sizeof(Vector2)) ); // texture
+    // This actually makes a difference on some mobile devices. Changes performance from 36 to 51 FPS.
+    if (stream->usesColor) {
+        glEnableClientState(GL_COLOR_ARRAY);
+        glColorPointer( 4, GL_UNSIGNED_BYTE, sizeof(Vertex2), (const void*)(sizeof(Vector2)+sizeof(Vector2)) );
+    }
+
+    int nVertex = stream->nVertex;
+    m_frameStats.drawCalls++;
+    m_frameStats.quads += nVertex / 4;
+#ifdef USE_INDEX_BUFFER
+    int nIndex = nVertex * 6 / 4;
+    ASSERT( nIndex <= m_indices.GetSize() );
+    glDrawElements( GL_TRIANGLES, nIndex, GL_UNSIGNED_SHORT, 0 );
+#else
+    ASSERT( nVertex % 6 == 0 );
+    glDrawArrays( GL_TRIANGLES, 0, nVertex );
+#endif
+    if (stream->usesColor) {
+        glDisableClientState(GL_COLOR_ARRAY);
+    }
+}
+
+
+void Canvas::BeginStreams( int length )
+{
+    DynArray<Stream *> &streams = *m_target;
+    int size = streams.GetSize();
     for ( int i = 0; i < size; i++) {
-        Stream *stream = m_streams[i];
+        Stream *stream = streams[i];
         if (stream) {
             stream->Reset();
         }
     }
 
-    Clip clip;
-    int n = -1;
     m_vertexBuffer.SetSize(0);
+    if (m_buildingList) {
+        m_buildingList->textureIDs.SetSize(0);
+        return;
+    }
     m_msgLen += length;
-    const char* p = renderCommands;
-    const char* end = renderCommands + length;
 
-    while ( *p ) {
-        ASSERT( p < end );
-        if ( p >= end ) {
-            break;
-        }
-        if ( IsCmd( p, "t" )) {
-            // setTransform
-            p ++;
-            p = ParseSetTransform( p, SET_XFORM, false, m_transform, &m_transform);
-        } else  if ( IsCmd( p, "f" )) {
-            // transform
-            p ++;
+    m_buildCount++;
+    m_usedTextures.SetSize(0);
+}
+
+void Canvas::EndStreams( int n )
+{
+    // Flush the last stream, unless it's a display list reference
+    DynArray<Stream *> &streams = *m_target;
+    if ( n >= 0 && !streams[n]->list ) {
+        ASSERT( n < streams.GetSize() );
+        Stream* stream = streams[n];
+        ASSERT( stream );
+        ASSERT( stream->texture );
+        stream->VBOUpload( m_vertexBuffer );
+        m_frameStats.uploadBytes += m_vertexBuffer.GetSize() * sizeof(Vertex2);
+    }
+}
+
+void Canvas::BuildStreams( const char *renderCommands, int length )
+{
+    BeginStreams( length );
+
+    Clip clip;
+    int n = -1;
+    const char* p = renderCommands;
+    const char* end = renderCommands + length;
+
+    while ( *p ) {
+        ASSERT( p < end );
+        if ( p >= end ) {
+            break;
+        }
+        if ( IsCmd( p, "t" )) {
+            // setTransform
+            p ++;
+            p = ParseSetTransform( p, SET_XFORM, false, m_transform, &m_transform);
+        } else  if ( IsCmd( p, "f" )) {
+            // transform
+            p ++;
             p = ParseSetTransform( p, SET_XFORM, true, m_transform, &m_transform);
         } else  if ( IsCmd( p, "m" )) {
             // resetTransform
@@ -587,62 +1207,641 @@ void Canvas::BuildStreams( const char *renderCommands, int length )
             p++;
             // Load the clip
             p = ParseDrawImage(p, &clip );
+            DoDrawImage( clip, &n );
+        } else if ( IsCmd( p, "D" )) {
+            // drawImages
+            p++;
+            p = ParseDrawImages( p, &n );
+        } else if ( IsCmd( p, "T" )) {
+            // fillText
+            p++;
+            p = ParseFillText( p, &n );
+        } else if ( IsCmd( p, "L" )) {
+            // drawList
+            p++;
+            int id;
+            float x, y;
+            p = ParseDrawList( p, &id, &x, &y );
+            DoDrawList( id, x, y, &n );
+        } else {
+            p = ParseUnknown(p);
+        }
+    }
+    EndStreams( n );
+    //__android_log_write(ANDROID_LOG_ERROR, "Canvas::BuildStreams", "End");
+}
+
+// Binary counterpart of BuildStreams. Each command is a one byte opcode,
+// using the same letters as the text protocol, followed by a fixed number
+// of little-endian float32 operands ('d' starts with an int32 texture ID,
+// 'L' with an int32 display list ID). 'D' is the only variable length
+// command: int32 texture ID, flags, frame count and sprite count, then the
+// frames (cx, cy, cw, ch) and the sprites as float32. So is 'T': int32 font
+// ID, color and flags, float32 x and y, int32 count and the code points.
+void Canvas::BuildStreamsBinary( const unsigned char *renderBuffer, int length )
+{
+    BeginStreams( length );
 
-            // Find the texture with ID == clip.textureID
-            const Texture *img = NULL;
-            size = m_textures.GetSize();
-            for ( int j = 0; j < size; j++) {
-                if ( m_textures[j]->GetTextureID() == clip.textureID) {
-                    img = m_textures[j];
-                    break;
+    Clip clip;
+    int n = -1;
+    float tokens[6];
+    const unsigned char* p = renderBuffer;
+    const unsigned char* end = renderBuffer + length;
+
+    while ( p < end ) {
+        unsigned char op = *p++;
+        int nFloats = 0;
+        switch ( op ) {
+        case 't':
+        case 'f':
+            nFloats = 6;
+            break;
+        case 'k':
+        case 'l':
+        case 'L':
+            nFloats = 2;
+            break;
+        case 'r':
+        case 'a':
+            nFloats = 1;
+            break;
+        case 'd':
+            nFloats = 8;
+            break;
+        case 'D':
+        case 'T':
+            nFloats = 0;
+            break;
+        case 'm':
+        case 'v':
+        case 'e':
+            break;
+        default:
+            DLog( "Canvas::BuildStreamsBinary unknown opcode %d", (int)op );
+            p = end;
+            continue;
+        }
+
+        int nBytes = nFloats * (int)sizeof(float) + ( op == 'd' || op == 'L' ? (int)sizeof(int) : 0 );
+        if ( op == 'D' ) {
+            nBytes = 4 * (int)sizeof(int);
+            if ( p + nBytes <= end ) {
+                int frameCount = ReadInt( p + 2*sizeof(int) );
+                int spriteCount = ReadInt( p + 3*sizeof(int) );
+                int stride = SpriteStride( ReadInt( p + sizeof(int) ) );
+                if ( frameCount < 0 || spriteCount < 0
+                        || (long long)frameCount * 4 + (long long)spriteCount * stride
+                            > ( end - p - nBytes ) / (int)sizeof(float) ) {
+                    nBytes = (int)( end - p ) + 1;
+                } else {
+                    nBytes += ( frameCount * 4 + spriteCount * stride ) * (int)sizeof(float);
                 }
             }
-
-            // Use the current stream or advance to the next if dealing with a different textureID
-            // Create a new stream if necessary
-            if (img) {
-                // Can we continue with the current stream?
-                if (    n >= 0
-                        && n < m_streams.GetSize()
-                        && m_streams[n]->texture == img ) {
+        } else if ( op == 'T' ) {
+            nBytes = 6 * (int)sizeof(int);
+            if ( p + nBytes <= end ) {
+                int count = ReadInt( p + 5*sizeof(int) );
+                if ( count < 0 || count > ( end - p - nBytes ) / (int)sizeof(int) ) {
+                    nBytes = (int)( end - p ) + 1;
                 } else {
-                    // Switching streams. Flush the current one if needed:
-                    if ( n >= 0 && n < m_streams.GetSize() ) {
-                        m_streams[n]->VBOUpload( m_vertexBuffer );
-                    }
+                    nBytes += count * (int)sizeof(int);
+                }
+            }
+        }
+        if ( p + nBytes > end ) {
+            DLog( "Canvas::BuildStreamsBinary truncated command %c", op );
+            break;
+        }
 
-                    ++n;
-                    if ( n == m_streams.GetSize() ) {
-                        Stream* s = new Stream( img );
-                        m_streams.Append( &s, 1 );
-                    } else {
-                        ASSERT( n < m_streams.GetSize() );
-                        m_streams[n]->texture = img;
-                    }
+        switch ( op ) {
+        case 't':
+        case 'f':
+            for ( int i = 0; i < 6; ++i ) {
+                tokens[i] = ReadFloat( p + i*sizeof(float) );
+            }
+            ApplyTransform( tokens, SET_XFORM, op == 'f', m_transform, &m_transform );
+            break;
+        case 'm':
+            ApplyTransform( tokens, IDENTITY, false, m_transform, &m_transform );
+            break;
+        case 'k':
+        case 'l':
+            tokens[0] = ReadFloat( p );
+            tokens[1] = ReadFloat( p + sizeof(float) );
+            ApplyTransform( tokens, op == 'k' ? SCALE : TRANSLATE, true, m_transform, &m_transform );
+            break;
+        case 'r':
+            tokens[0] = ReadFloat( p );
+            ApplyTransform( tokens, ROTATE, true, m_transform, &m_transform );
+            break;
+        case 'v':
+            m_transformStack.Append( &m_transform, 1 );
+            break;
+        case 'e':
+            if ( m_transformStack.GetSize() > 0 ) {
+                m_transform = m_transformStack[m_transformStack.GetSize()-1];
+                m_transformStack.SetSize( m_transformStack.GetSize()-1 );
+            }
+            break;
+        case 'a':
+            m_worldColor.a = (int)(255.0*ReadFloat( p )+0.5f);
+            break;
+        case 'd': {
+            const unsigned char *q = p + sizeof(int);
+            clip.textureID = ReadInt( p );
+            clip.cx = ReadFloat( q );
+            clip.cy = ReadFloat( q + 1*sizeof(float) );
+            clip.cw = ReadFloat( q + 2*sizeof(float) );
+            clip.ch = ReadFloat( q + 3*sizeof(float) );
+            clip.px = ReadFloat( q + 4*sizeof(float) );
+            clip.py = ReadFloat( q + 5*sizeof(float) );
+            clip.pw = ReadFloat( q + 6*sizeof(float) );
+            clip.ph = ReadFloat( q + 7*sizeof(float) );
+            DoDrawImage( clip, &n );
+        }
+        break;
+        case 'L':
+            DoDrawList( ReadInt( p ), ReadFloat( p + sizeof(int) ),
+                    ReadFloat( p + sizeof(int) + sizeof(float) ), &n );
+            break;
+        case 'D': {
+            // One copy to align the operands, no parsing
+            int count = ( nBytes - 4 * (int)sizeof(int) ) / (int)sizeof(float);
+            int frameCount = ReadInt( p + 2*sizeof(int) );
+            m_spriteData.SetSize( count );
+            if ( count > 0 ) {
+                memcpy( m_spriteData.GetData(), p + 4*sizeof(int), count * sizeof(float) );
+            }
+            const float *data = m_spriteData.GetData();
+            DoDrawImages( ReadInt( p ), ReadInt( p + sizeof(int) ), data, frameCount,
+                    data + frameCount * 4, ReadInt( p + 3*sizeof(int) ), &n );
+        }
+        break;
+        case 'T': {
+            int count = ReadInt( p + 5*sizeof(int) );
+            m_textData.SetSize( count );
+            if ( count > 0 ) {
+                memcpy( m_textData.GetData(), p + 6*sizeof(int), count * sizeof(int) );
+            }
+            DoFillText( ReadInt( p ), ReadInt( p + sizeof(int) ), ReadInt( p + 2*sizeof(int) ),
+                    ReadFloat( p + 3*sizeof(int) ), ReadFloat( p + 4*sizeof(int) ),
+                    m_textData.GetData(), count, &n );
+        }
+        break;
+        }
+        p += nBytes;
+    }
+    EndStreams( n );
+}
+
+Texture *Canvas::FindTexture( int id )
+{
+    if ( id >= 0 && id < kTextureIndexSize ) {
+        return id < m_textureIndex.GetSize() ? m_textureIndex[id] : NULL;
+    }
+    return ScanTexture( id );
+}
+
+// The first texture added with the ID, as FindTexture always returned
+Texture *Canvas::ScanTexture( int id )
+{
+    int size = m_textures.GetSize();
+    for ( int j = 0; j < size; j++) {
+        if ( m_textures[j]->GetTextureID() == id) {
+            return m_textures[j];
+        }
+    }
+    return NULL;
+}
+
+void Canvas::IndexTexture( Texture *img )
+{
+    int id = img->GetTextureID();
+    if ( id < 0 || id >= kTextureIndexSize ) {
+        return;
+    }
+    int size = m_textureIndex.GetSize();
+    if ( id >= size ) {
+        // SetSize only zeroes memory it allocates
+        m_textureIndex.SetSize( id + 1 );
+        for ( int j = size; j <= id; j++) {
+            m_textureIndex[j] = NULL;
+        }
+    }
+    if ( !m_textureIndex[id] ) {
+        m_textureIndex[id] = img;
+    }
+}
+
+// Remember which textures this frame needs, so unused ones can be
+// evicted and missing ones reloaded
+void Canvas::NoteTextureUsed( int id, Texture *img )
+{
+    if (img) {
+        if (img->GetLastBuild() != m_buildCount) {
+            img->SetLastBuild(m_buildCount);
+            m_usedTextures.Append(&id, 1);
+        }
+    } else {
+        for ( int j = m_usedTextures.GetSize() - 1; j >= 0; j--) {
+            if (m_usedTextures[j] == id) {
+                return;
+            }
+        }
+        m_usedTextures.Append(&id, 1);
+    }
+}
+
+// Notes textureID as used and makes *pStream a stream drawing img, the
+// texture with that ID, starting a new one if needed. Returns img, NULL if
+// the texture isn't loaded.
+Texture *Canvas::SelectStream( int textureID, Texture *img, int *pStream )
+{
+    int n = *pStream;
+    DynArray<Stream *> &streams = *m_target;
+
+    if (m_buildingList) {
+        // A list remembers its textures instead, the frames drawing it
+        // note them as used
+        DynArray<int> &ids = m_buildingList->textureIDs;
+        bool known = false;
+        for ( int j = ids.GetSize() - 1; j >= 0; j--) {
+            if (ids[j] == textureID) {
+                known = true;
+                break;
+            }
+        }
+        if (!known) {
+            ids.Append(&textureID, 1);
+        }
+    } else {
+        NoteTextureUsed( textureID, img );
+    }
+
+    // Use the current stream or advance to the next if dealing with a different GL texture.
+    // Regions of the same atlas page share a stream.
+    // Create a new stream if necessary
+    if (img) {
+        // Can we continue with the current stream?
+        if (    n >= 0
+                && n < streams.GetSize()
+                && streams[n]->texture
+                && streams[n]->texture->GetGlID() == img->GetGlID() ) {
+        } else {
+            // Switching streams. Flush the current one if needed:
+            if ( n >= 0 && n < streams.GetSize() && !streams[n]->list ) {
+                streams[n]->VBOUpload( m_vertexBuffer );
+                m_frameStats.uploadBytes += m_vertexBuffer.GetSize() * sizeof(Vertex2);
+            }
+
+            ++n;
+            if ( n == streams.GetSize() ) {
+                Stream* s = new Stream( img );
+                streams.Append( &s, 1 );
+            } else {
+                ASSERT( n < streams.GetSize() );
+                streams[n]->texture = img;
+            }
 #ifdef DEBUG
-                    Stream* stream = m_streams[n];
-                    ASSERT( stream );
-                    ASSERT( stream->texture );
-                    ASSERT( stream->texture->GetTextureID() == clip.textureID );
+            Stream* stream = streams[n];
+            ASSERT( stream );
+            ASSERT( stream->texture );
+            ASSERT( stream->texture->GetTextureID() == textureID );
 #endif
-                    m_vertexBuffer.SetSize(0);
-                }
-                DoPushQuad( m_streams[n], m_transform, clip);
-            }
+            m_vertexBuffer.SetSize(0);
+        }
+    }
+    *pStream = n;
+    return img;
+}
+
+// A quad entirely outside the viewport is only noted as used: it takes no
+// vertices and doesn't switch streams, so the quads around it can still
+// share one. Lists are drawn with any transform and keep all of theirs.
+void Canvas::DoDrawImage( const Clip &clip, int *pStream )
+{
+    DoDrawClip( clip, FindTexture( clip.textureID ), pStream );
+}
+
+// DoDrawImage with the texture already looked up, fillText draws its
+// glyphs this way
+void Canvas::DoDrawClip( const Clip &clip, Texture *img, int *pStream )
+{
+    Quad q;
+    QuadPositions( m_transform, clip, &q );
+    if ( !m_buildingList && IsCulled( q.vertexArr, Quad::kQuadArrSize ) ) {
+        NoteTextureUsed( clip.textureID, img );
+        m_frameStats.culledQuads++;
+        return;
+    }
+    img = SelectStream( clip.textureID, img, pStream );
+    if (img) {
+        DoPushQuad( (*m_target)[*pStream], img, q, clip);
+    }
+}
+
+// True if the floored positions all lie on one side of the ortho
+// viewport, which is known once SetOrtho or OnSurfaceChanged ran
+bool Canvas::IsCulled( const Vertex2 *v, int count )
+{
+    if ( m_orthoWidth <= 0 || m_orthoHeight <= 0 ) {
+        return false;
+    }
+    float minX = v[0].pos.x, maxX = minX;
+    float minY = v[0].pos.y, maxY = minY;
+    for ( int i = 1; i < count; i++ ) {
+        if ( v[i].pos.x < minX ) minX = v[i].pos.x;
+        if ( v[i].pos.x > maxX ) maxX = v[i].pos.x;
+        if ( v[i].pos.y < minY ) minY = v[i].pos.y;
+        if ( v[i].pos.y > maxY ) maxY = v[i].pos.y;
+    }
+    return maxX <= 0 || maxY <= 0 || minX >= m_orthoWidth || minY >= m_orthoHeight;
+}
+
+// A run of glyphs of fontID, each a quad of its glyph page, in color
+// (RGBA, from the high byte down) times globalAlpha. flags has the
+// TEXT_ALIGN and TEXT_BASELINE of the text; x is where it aligns and y
+// where its baseline goes. Kerning isn't applied, pens advance by the
+// glyph advances alone.
+//
+// A string with a glyph that isn't in the cache yet isn't drawn at all,
+// rather than with holes: its glyphs are noted for GetMissingGlyphs, and a
+// list it is in is built again once AddGlyph brought them.
+void Canvas::DoFillText( int fontID, int color, int flags, float x, float y,
+                         const int *codePoints, int count, int *pStream )
+{
+    Font *font = FindFont( fontID );
+    if ( !font || count <= 0 ) {
+        return;
+    }
+
+    bool missing = false;
+    float width = 0;
+    for ( int i = 0; i < count; i++ ) {
+        Glyph *glyph = FindGlyph( font, codePoints[i], false );
+        if ( glyph && glyph->loaded ) {
+            m_frameStats.glyphHits++;
+            width += glyph->advance;
         } else {
-            p = ParseUnknown(p);
+            m_frameStats.glyphMisses++;
+            NoteGlyphMissing( fontID, codePoints[i] );
+            missing = true;
         }
     }
-    // Flush the last stream.
-    if ( n >= 0 ) {
-        ASSERT( n < m_streams.GetSize() );
-        Stream* stream = m_streams[n];
-        ASSERT( stream );
-        ASSERT( stream->texture );
-        ASSERT( stream->texture->GetTextureID() == clip.textureID );
-        stream->VBOUpload( m_vertexBuffer );
+    if ( missing ) {
+        if ( m_buildingList ) {
+            m_buildingList->missingGlyphs = true;
+        }
+        return;
     }
-    //__android_log_write(ANDROID_LOG_ERROR, "Canvas::BuildStreams", "End");
+
+    switch ( flags & 3 ) {
+    case TEXT_ALIGN_CENTER:
+        x -= width / 2;
+        break;
+    case TEXT_ALIGN_RIGHT:
+        x -= width;
+        break;
+    }
+    switch ( flags & ( 3 << 2 ) ) {
+    case TEXT_BASELINE_TOP:
+        y += font->ascent;
+        break;
+    case TEXT_BASELINE_MIDDLE:
+        y += ( font->ascent - font->descent ) / 2;
+        break;
+    case TEXT_BASELINE_BOTTOM:
+        y -= font->descent;
+        break;
+    }
+
+    Color worldColor = m_worldColor;
+    m_worldColor.r = (unsigned char)( ( color >> 24 ) & 0xff );
+    m_worldColor.g = (unsigned char)( ( color >> 16 ) & 0xff );
+    m_worldColor.b = (unsigned char)( ( color >> 8 ) & 0xff );
+    m_worldColor.a = (unsigned char)( ( ( color & 0xff ) * worldColor.a + 127 ) / 255 );
+
+    Clip clip;
+    float pen = x;
+    for ( int i = 0; i < count; i++ ) {
+        Glyph *glyph = FindGlyph( font, codePoints[i], false );
+        if ( glyph->page ) {
+            clip.textureID = glyph->page->GetTextureID();
+            clip.cx = glyph->x;
+            clip.cy = glyph->y;
+            clip.cw = glyph->width;
+            clip.ch = glyph->height;
+            clip.px = pen + glyph->left;
+            clip.py = y - glyph->top;
+            clip.pw = glyph->width;
+            clip.ph = glyph->height;
+            DoDrawClip( clip, glyph->page, pStream );
+        }
+        pen += glyph->advance;
+    }
+    m_worldColor = worldColor;
+}
+
+Font *Canvas::FindFont( int id )
+{
+    for ( int i = m_fonts.GetSize() - 1; i >= 0; i-- ) {
+        if ( m_fonts[i]->id == id ) {
+            return m_fonts[i];
+        }
+    }
+    return NULL;
+}
+
+// The glyph of codePoint, NULL if the font never had it. With add, an
+// unloaded entry is made for it instead.
+Glyph *Canvas::FindGlyph( Font *font, int codePoint, bool add )
+{
+    if ( codePoint >= 0 && codePoint < Font::kLatinSize ) {
+        return &font->latin[codePoint];
+    }
+    DynArray<Glyph> &others = font->others;
+    for ( int i = others.GetSize() - 1; i >= 0; i-- ) {
+        if ( others[i].codePoint == codePoint ) {
+            return &others[i];
+        }
+    }
+    if ( !add ) {
+        return NULL;
+    }
+    Glyph glyph;
+    memset( &glyph, 0, sizeof(glyph) );
+    glyph.codePoint = codePoint;
+    others.Append( &glyph, 1 );
+    return &others[others.GetSize() - 1];
+}
+
+void Canvas::NoteGlyphMissing( int fontID, int codePoint )
+{
+    for ( int j = m_missingGlyphs.GetSize() - 2; j >= 0; j -= 2 ) {
+        if ( m_missingGlyphs[j] == fontID && m_missingGlyphs[j+1] == codePoint ) {
+            return;
+        }
+    }
+    int pair[2] = { fontID, codePoint };
+    m_missingGlyphs.Append( pair, 2 );
+}
+
+// Many sprites of one texture. frames holds frameCount source rectangles
+// (cx, cy, cw, ch); each sprite is x, y, frame index and the optional
+// rotation, scale and alpha asked for by flags (see SpriteStride). A sprite
+// is its frame centered on x, y, rotated and scaled about its center, and
+// drawn with the current transform; its alpha multiplies globalAlpha.
+// Sprites with an unknown frame are skipped, and like drawImage quads,
+// sprites outside the viewport.
+//
+// Same vertices as DoPushQuad, written straight into the vertex buffer in
+// one loop.
+void Canvas::DoDrawImages( int textureID, int flags, const float *frames, int frameCount,
+                           const float *sprites, int spriteCount, int *pStream )
+{
+    Texture *img = SelectStream( textureID, FindTexture( textureID ), pStream );
+    if (!img || spriteCount <= 0) {
+        return;
+    }
+    Stream *stream = (*m_target)[*pStream];
+
+#ifdef USE_INDEX_BUFFER
+    const int verticesPerSprite = Quad::kQuadArrSize;
+#else
+    const int verticesPerSprite = Quad::kQuadArrSize + 2;
+#endif
+    int first = m_vertexBuffer.GetSize();
+    m_vertexBuffer.SetSize( first + spriteCount * verticesPerSprite );
+    Vertex2 *v = m_vertexBuffer.GetData() + first;
+
+    const int stride = SpriteStride( flags );
+    const bool rotation = ( flags & SPRITE_ROTATION ) != 0;
+    const bool scale = ( flags & SPRITE_SCALE ) != 0;
+    const int alphaIndex = 3 + ( rotation ? 1 : 0 ) + ( scale ? 1 : 0 );
+    const bool alpha = ( flags & SPRITE_ALPHA ) != 0;
+
+    const Transform &t = m_transform;
+    const float width = (float)img->GetWidth();
+    const float height = (float)img->GetHeight();
+    const float ox = (float)img->GetX();
+    const float oy = (float)img->GetY();
+    Color color = m_worldColor;
+    bool usesColor = !color.isWhite();
+    const bool cull = !m_buildingList;
+
+    const float *s = sprites;
+    for ( int i = 0; i < spriteCount; i++, s += stride ) {
+        int frame = (int)s[2];
+        if ( frame < 0 || frame >= frameCount ) {
+            continue;
+        }
+        const float *f = frames + frame * 4;
+
+        // Sprite axes in canvas space: the transform times the sprite's
+        // rotation and scale
+        float ax = t.a, ay = t.b, bx = t.c, by = t.d;
+        if ( rotation || scale ) {
+            float k = scale ? s[rotation ? 4 : 3] : 1.0f;
+            float cs = k, sn = 0;
+            if ( rotation ) {
+                cs = k * cosf( s[3] );
+                sn = k * sinf( s[3] );
+            }
+            ax = t.a * cs + t.c * sn;
+            ay = t.b * cs + t.d * sn;
+            bx = t.c * cs - t.a * sn;
+            by = t.d * cs - t.b * sn;
+        }
+        float hw = f[2] * 0.5f;
+        float hh = f[3] * 0.5f;
+        float px = t.a * s[0] + t.c * s[1] + t.tx;
+        float py = t.b * s[0] + t.d * s[1] + t.ty;
+
+        v[0].pos.x = floorf( px - ax * hw - bx * hh );
+        v[0].pos.y = floorf( py - ay * hw - by * hh );
+        v[1].pos.x = floorf( px + ax * hw - bx * hh );
+        v[1].pos.y = floorf( py + ay * hw - by * hh );
+        v[2].pos.x = floorf( px + ax * hw + bx * hh );
+        v[2].pos.y = floorf( py + ay * hw + by * hh );
+        v[3].pos.x = floorf( px - ax * hw + bx * hh );
+        v[3].pos.y = floorf( py - ay * hw + by * hh );
+        if ( cull && IsCulled( v, Quad::kQuadArrSize ) ) {
+            m_frameStats.culledQuads++;
+            continue;
+        }
+
+        // Texture, offset into the atlas page for regions
+        float u0 = ( f[0] + ox ) / width;
+        float v0 = ( f[1] + oy ) / height;
+        float u1 = ( f[0] + ox + f[2] ) / width;
+        float v1 = ( f[1] + oy + f[3] ) / height;
+        v[0].tex.x = u0;
+        v[0].tex.y = v0;
+        v[1].tex.x = u1;
+        v[1].tex.y = v0;
+        v[2].tex.x = u1;
+        v[2].tex.y = v1;
+        v[3].tex.x = u0;
+        v[3].tex.y = v1;
+
+        if ( alpha ) {
+            float a = m_worldColor.a * s[alphaIndex];
+            color.a = a <= 0 ? 0 : a >= 255 ? 255 : (unsigned char)( a + 0.5f );
+            usesColor = usesColor || color.a != 0xff;
+        }
+        v[0].color = color;
+        v[1].color = color;
+        v[2].color = color;
+        v[3].color = color;
+#ifndef USE_INDEX_BUFFER
+        v[4] = v[0];
+        v[5] = v[2];
+#endif
+        v += verticesPerSprite;
+    }
+    m_vertexBuffer.SetSize( (int)( v - m_vertexBuffer.GetData() ) );
+    if (usesColor) {
+        stream->usesColor = true;
+    }
+}
+
+// A display list drawn with the current transform, translated by x, y.
+// It takes a stream of its own, drawn in order with the others.
+void Canvas::DoDrawList( int id, float x, float y, int *pStream )
+{
+    if (m_buildingList) {
+        DLog( "Canvas::DoDrawList list %d can't be drawn from list %d", id, m_buildingList->id );
+        return;
+    }
+    DisplayList *list = FindList( id );
+    if (!list) {
+        return;
+    }
+    for ( int j = 0; j < list->textureIDs.GetSize(); j++) {
+        int textureID = list->textureIDs[j];
+        NoteTextureUsed( textureID, FindTexture( textureID ) );
+    }
+
+    int n = *pStream;
+    if ( n >= 0 && n < m_streams.GetSize() && !m_streams[n]->list ) {
+        m_streams[n]->VBOUpload( m_vertexBuffer );
+        m_frameStats.uploadBytes += m_vertexBuffer.GetSize() * sizeof(Vertex2);
+    }
+    m_vertexBuffer.SetSize(0);
+
+    ++n;
+    if ( n == m_streams.GetSize() ) {
+        Stream* s = new Stream();
+        m_streams.Append( &s, 1 );
+    }
+    Stream *stream = m_streams[n];
+    stream->texture = NULL;
+    stream->list = list;
+    Transform &t = stream->listTransform;
+    t = m_transform;
+    t.tx = m_transform.a * x + m_transform.c * y + m_transform.tx;
+    t.ty = m_transform.b * x + m_transform.d * y + m_transform.ty;
+    *pStream = n;
 }
 
 // From the current position, past semicolon or to end
@@ -664,6 +1863,20 @@ const char* Canvas::ParseSetTransform( const char *p,
         if ( *p == ',' ) ++p;
     }
 
+    ApplyTransform( tokens, parseMode, concat, transIn, transOut );
+
+    if ( *p == ';' ) ++p;
+    return p;
+}
+
+// Builds the transform described by parseMode from the tokens and
+// either replaces or concatenates it onto the current transform
+void Canvas::ApplyTransform( const float *tokens,
+                             int parseMode,
+                             bool concat,
+                             const Transform &transIn,
+                             Transform *transOut )
+{
     Transform t;
     switch( parseMode ) {
     case IDENTITY:
@@ -701,18 +1914,29 @@ const char* Canvas::ParseSetTransform( const char *p,
         break;
     }
 
-    if ( concat ) {
-        transOut->a  = transIn.a*t.a  + transIn.b*t.c;
-        transOut->b  = transIn.a*t.b  + transIn.b*t.d;
-        transOut->c  = transIn.c*t.a  + transIn.d*t.c;
-        transOut->d  = transIn.c*t.b  + transIn.d*t.d;
-        transOut->tx = transIn.a*t.tx + transIn.b*t.ty + transIn.tx;
-        transOut->ty = transIn.c*t.tx + transIn.d*t.ty + transIn.ty;
+    if ( concat && parseMode == TRANSLATE ) {
+        // The common case, no need to touch the rest of the matrix
+        float tx = t.tx, ty = t.ty;
+        transOut->a  = transIn.a;
+        transOut->b  = transIn.b;
+        transOut->c  = transIn.c;
+        transOut->d  = transIn.d;
+        transOut->tx = transIn.a*tx + transIn.b*ty + transIn.tx;
+        transOut->ty = transIn.c*tx + transIn.d*ty + transIn.ty;
+    } else if ( concat && t.a == 1 && t.b == 0 && t.c == 0 && t.d == 1 && t.tx == 0 && t.ty == 0 ) {
+        // Concatenating the identity, scale(1, 1) or rotate(0)
+        *transOut = transIn;
+    } else if ( concat ) {
+        Transform in = transIn;
+        transOut->a  = in.a*t.a  + in.b*t.c;
+        transOut->b  = in.a*t.b  + in.b*t.d;
+        transOut->c  = in.c*t.a  + in.d*t.c;
+        transOut->d  = in.c*t.b  + in.d*t.d;
+        transOut->tx = in.a*t.tx + in.b*t.ty + in.tx;
+        transOut->ty = in.c*t.tx + in.d*t.ty + in.ty;
     } else {
         *transOut = t;
     }
-    if ( *p == ';' ) ++p;
-    return p;
 }
 
 // From the current position, past semicolon or to end
@@ -749,6 +1973,102 @@ const char* Canvas::ParseDrawImage( const char* p, Clip *clipOut)
     return p;
 }
 
+// From the current position, past semicolon or to end
+// D<id>,<flags>,<frameCount>,<spriteCount>,<frames...>,<sprites...>;
+// Only the frames and sprites actually given are drawn.
+const char* Canvas::ParseDrawImages( const char* p, int *pStream )
+{
+    int header[4] = { 0, 0, 0, 0 };
+    int iToken = 0;
+
+    m_spriteData.SetSize(0);
+    while ( *p && *p != ';' ) {
+        if ( iToken < 4 ) {
+            header[iToken] = FastInt( p );
+        } else {
+            float value = FastFloat( p );
+            m_spriteData.Append( &value, 1 );
+        }
+        iToken++;
+        while ( *p && (*p != ',' && *p != ';') ) {
+            ++p;
+        }
+        if ( *p == ',' ) ++p;
+    }
+
+    int count = m_spriteData.GetSize();
+    int stride = SpriteStride( header[1] );
+    int frameCount = header[2] < 0 ? 0 : header[2] < count / 4 ? header[2] : count / 4;
+    int spriteCount = ( count - frameCount * 4 ) / stride;
+    if ( header[3] < spriteCount ) {
+        spriteCount = header[3] < 0 ? 0 : header[3];
+    }
+    const float *data = m_spriteData.GetData();
+    DoDrawImages( header[0], header[1], data, frameCount, data + frameCount * 4, spriteCount, pStream );
+
+    if ( *p == ';' ) ++p;
+    return p;
+}
+
+// From the current position, past semicolon or to end
+// T<font>,<color>,<flags>,<x>,<y>,<code points...>;
+const char* Canvas::ParseFillText( const char* p, int *pStream )
+{
+    int header[3] = { 0, 0, 0 };
+    float position[2] = { 0, 0 };
+    int iToken = 0;
+
+    m_textData.SetSize(0);
+    while ( *p && *p != ';' ) {
+        if ( iToken < 3 ) {
+            // the color is a signed RGBA int
+            header[iToken] = (int)strtol( p, NULL, 10 );
+        } else if ( iToken < 5 ) {
+            position[iToken-3] = FastFloat( p );
+        } else {
+            int codePoint = FastInt( p );
+            m_textData.Append( &codePoint, 1 );
+        }
+        iToken++;
+        while ( *p && (*p != ',' && *p != ';') ) {
+            ++p;
+        }
+        if ( *p == ',' ) ++p;
+    }
+
+    DoFillText( header[0], header[1], header[2], position[0], position[1],
+                m_textData.GetData(), m_textData.GetSize(), pStream );
+
+    if ( *p == ';' ) ++p;
+    return p;
+}
+
+// From the current position, past semicolon or to end
+// L<id>[,x,y];
+const char* Canvas::ParseDrawList( const char* p, int *pID, float *pX, float *pY )
+{
+    float tokens[2] = { 0, 0 };
+    int iToken = 0;
+
+    *pID = 0;
+    while ( *p && *p != ';' && iToken < 3 ) {
+        if ( iToken == 0 ) {
+            *pID = FastInt( p );
+        } else {
+            tokens[iToken-1] = FastFloat( p );
+        }
+        iToken++;
+        while ( *p && (*p != ',' && *p != ';') ) {
+            ++p;
+        }
+        if ( *p == ',' ) ++p;
+    }
+    *pX = tokens[0];
+    *pY = tokens[1];
+
+    return ParseUnknown( p );
+}
+
 // From the current position, past semicolon or to end
 const char* Canvas::ParseUnknown( const char* p )
 {
@@ -759,39 +2079,62 @@ const char* Canvas::ParseUnknown( const char* p )
     return p;
 }
 
-void Canvas::DoPushQuad (Stream *stream, const Transform &transform, const Clip &clip)
+// The floored corners of clip's destination rectangle
+void Canvas::QuadPositions( const Transform &transform, const Clip &clip, Quad *q )
 {
-    ASSERT( stream );
-    Quad q;
+    Vertex2 *v = q->vertexArr;
+    if ( transform.a == 1 && transform.b == 0 && transform.c == 0 && transform.d == 1 ) {
+        // Translation only: the same values as below, without the products
+        float x0 = floorf( clip.px + transform.tx );
+        float y0 = floorf( clip.py + transform.ty );
+        float x1 = floorf( (clip.px+clip.pw) + transform.tx );
+        float y1 = floorf( (clip.py+clip.ph) + transform.ty );
+        v[0].pos.x = x0;
+        v[0].pos.y = y0;
+        v[1].pos.x = x1;
+        v[1].pos.y = y0;
+        v[2].pos.x = x1;
+        v[2].pos.y = y1;
+        v[3].pos.x = x0;
+        v[3].pos.y = y1;
+        return;
+    }
 
-    // Vertex
-    q.vertexArr[0].pos.x = floor(transform.a*clip.px            + transform.c*clip.py           + transform.tx);
-    q.vertexArr[0].pos.y = floor(transform.b*clip.px            + transform.d*clip.py           + transform.ty);
+    v[0].pos.x = floor(transform.a*clip.px            + transform.c*clip.py           + transform.tx);
+    v[0].pos.y = floor(transform.b*clip.px            + transform.d*clip.py           + transform.ty);
 
-    q.vertexArr[1].pos.x = floor(transform.a*(clip.px+clip.pw)  + transform.c*clip.py           + transform.tx);
-    q.vertexArr[1].pos.y = floor(transform.b*(clip.px+clip.pw)  + transform.d*clip.py           + transform.ty);
+    v[1].pos.x = floor(transform.a*(clip.px+clip.pw)  + transform.c*clip.py           + transform.tx);
+    v[1].pos.y = floor(transform.b*(clip.px+clip.pw)  + transform.d*clip.py           + transform.ty);
 
-    q.vertexArr[2].pos.x = floor(transform.a*(clip.px+clip.pw)  + transform.c*(clip.py+clip.ph) + transform.tx);
-    q.vertexArr[2].pos.y = floor(transform.b*(clip.px+clip.pw)  + transform.d*(clip.py+clip.ph) + transform.ty);
+    v[2].pos.x = floor(transform.a*(clip.px+clip.pw)  + transform.c*(clip.py+clip.ph) + transform.tx);
+    v[2].pos.y = floor(transform.b*(clip.px+clip.pw)  + transform.d*(clip.py+clip.ph) + transform.ty);
 
-    q.vertexArr[3].pos.x = floor(transform.a*clip.px            + transform.c*(clip.py+clip.ph) + transform.tx);
-    q.vertexArr[3].pos.y = floor(transform.b*clip.px            + transform.d*(clip.py+clip.ph) + transform.ty);
+    v[3].pos.x = floor(transform.a*clip.px            + transform.c*(clip.py+clip.ph) + transform.tx);
+    v[3].pos.y = floor(transform.b*clip.px            + transform.d*(clip.py+clip.ph) + transform.ty);
+}
+
+// q has its positions from QuadPositions
+void Canvas::DoPushQuad (Stream *stream, const Texture *img, Quad &q, const Clip &clip)
+{
+    ASSERT( stream );
 
-    // Texture
-    float width  = (float)stream->texture->GetWidth();
-    float height = (float)stream->texture->GetHeight();
+    // Texture, offset into the atlas page for regions
+    float width  = (float)img->GetWidth();
+    float height = (float)img->GetHeight();
+    float cx = clip.cx + img->GetX();
+    float cy = clip.cy + img->GetY();
 
-    q.vertexArr[0].tex.x = clip.cx           / width;
-    q.vertexArr[0].tex.y = clip.cy           / height;
+    q.vertexArr[0].tex.x = cx                / width;
+    q.vertexArr[0].tex.y = cy                / height;
 
-    q.vertexArr[1].tex.x = (clip.cx+clip.cw) / width;
-    q.vertexArr[1].tex.y = clip.cy           / height;
+    q.vertexArr[1].tex.x = (cx+clip.cw)      / width;
+    q.vertexArr[1].tex.y = cy                / height;
 
-    q.vertexArr[2].tex.x = (clip.cx+clip.cw) / width;
-    q.vertexArr[2].tex.y = (clip.cy+clip.ch) / height;
+    q.vertexArr[2].tex.x = (cx+clip.cw)      / width;
+    q.vertexArr[2].tex.y = (cy+clip.ch)      / height;
 
-    q.vertexArr[3].tex.x = clip.cx           / width;
-    q.vertexArr[3].tex.y = (clip.cy+clip.ch) / height;
+    q.vertexArr[3].tex.x = cx                / width;
+    q.vertexArr[3].tex.y = (cy+clip.ch)      / height;
 
     q.vertexArr[0].color = m_worldColor;
     q.vertexArr[1].color = m_worldColor;
@@ -163,6 +163,23 @@ struct Clip {
     int textureID;
 };
 
+// -----------------------------------------------------------
+// --    drawImages sprite layout
+// --    Every sprite is x, y, frame, followed by the optional
+// --    values its flags ask for, in this order
+// -----------------------------------------------------------
+enum {
+    SPRITE_ROTATION = 1,
+    SPRITE_SCALE = 2,
+    SPRITE_ALPHA = 4
+};
+
+inline int SpriteStride( int flags ) {
+    return 3 + ( flags & SPRITE_ROTATION ? 1 : 0 )
+             + ( flags & SPRITE_SCALE ? 1 : 0 )
+             + ( flags & SPRITE_ALPHA ? 1 : 0 );
+}
+
 // -----------------------------------------------------------
 // --    Transform utility class
 // --    Used by Canvas.setTransform
@@ -176,15 +193,22 @@ struct Transform {
 // -----------------------------------------------------------
 // --    Texture utility class
 // --    Used by loadTexture
+// --    A texture can also be a region of an atlas page, in which
+// --    case width and height are the page size, x and y the
+// --    region offset, and the page GL texture is shared.
 // -----------------------------------------------------------
 class Texture
 {
 public:
-    Texture (int textureID, int glID, int w, int h) {
+    Texture (int textureID, int glID, int w, int h, int x = 0, int y = 0, bool ownsGlID = true) {
         m_textureID = textureID;
         m_glID = glID;
         m_Width = w;
         m_Height = h;
+        m_x = x;
+        m_y = y;
+        m_ownsGlID = ownsGlID;
+        m_lastBuild = -1;
     }
 
     int GetTextureID () const {
@@ -199,12 +223,32 @@ public:
     int GetHeight () const {
         return m_Height;
     }
+    int GetX () const {
+        return m_x;
+    }
+    int GetY () const {
+        return m_y;
+    }
+    bool OwnsGlID () const {
+        return m_ownsGlID;
+    }
+    // The last stream build that drew this texture
+    int GetLastBuild () const {
+        return m_lastBuild;
+    }
+    void SetLastBuild (int build) {
+        m_lastBuild = build;
+    }
 
 private:
     int m_textureID;
     int m_glID;
     int m_Width;
     int m_Height;
+    int m_x;
+    int m_y;
+    bool m_ownsGlID;
+    int m_lastBuild;
 };
 
 
@@ -259,14 +303,21 @@ struct Quad {
 // to the VBO. No local copy is kept.
 // -----------------------------------------------------------
 
+struct DisplayList;
+
 class Stream
 {
 public:
 
     const Texture *texture; // We don't own this, we're just using it.
+    // Instead of a texture and vertices, a stream can stand for a display
+    // list drawn with a transform. We don't own the list either.
+    const DisplayList *list;
+    Transform listTransform;
 
     Stream( const Texture* img=0 ) {
         texture = img;
+        list = NULL;
         vboVertexID = 0;
         nVBOAllocated = 0;
         nVertex = 0;
@@ -275,6 +326,7 @@ public:
 
     void Reset() {
         texture = NULL;
+        list = NULL;
         usesColor=false;
     }
 
@@ -285,6 +337,123 @@ public:
     int	nVertex;
     bool		usesColor;
 };
+
+// -----------------------------------------------------------
+// --    DisplayList struct
+//
+//  Render commands recorded once and kept on the GPU as streams,
+//  then drawn by reference ('L') from any number of frames. The
+//  commands are kept too, so the streams can be rebuilt when a
+//  texture they use changes or the context is lost.
+// -----------------------------------------------------------
+struct DisplayList {
+    DisplayList(int listID) : id(listID), binary(false), dirty(true), nStreams(0), builds(0), missingGlyphs(false) {}
+    ~DisplayList();
+
+    int id;
+    bool binary;
+    // Text commands are NUL terminated
+    DynArray<unsigned char> commands;
+    DynArray<Stream *> streams;
+    // Texture IDs drawn by the list, loaded or not
+    DynArray<int> textureIDs;
+    // Streams need rebuilding before the list is drawn
+    bool dirty;
+    // Streams used by the last build
+    int nStreams;
+    // Times the streams were built
+    int builds;
+    // Text was left out for want of glyphs, rebuild when glyphs arrive
+    bool missingGlyphs;
+};
+
+// -----------------------------------------------------------
+// --    Glyph and Font structs
+//
+//  Glyphs rasterized by FastCanvasGlyphCache into shared
+//  pages, which are ordinary textures. A glyph without ink
+//  (a space) has no page, only an advance. left and top place
+//  the glyph's rectangle relative to the pen on the baseline,
+//  top counting upwards.
+// -----------------------------------------------------------
+struct Glyph {
+    bool loaded;
+    int codePoint;
+    Texture *page;
+    float x, y, width, height;
+    float left, top, advance;
+};
+
+struct Font {
+    Font(int fontID) : id(fontID), ascent(0), descent(0) {
+        latin.SetSize(kLatinSize);
+    }
+
+    enum { kLatinSize = 256 };
+
+    int id;
+    // Both positive, above and below the baseline
+    float ascent;
+    float descent;
+    // Code points below kLatinSize by index, the rest in no order
+    DynArray<Glyph> latin;
+    DynArray<Glyph> others;
+};
+
+// -----------------------------------------------------------
+// --    Layer struct
+//
+//  A display list drawn by every frame with a transform of its
+//  own: under the frame's streams if z is negative, over them
+//  otherwise. Its streams are only rebuilt when the list is
+//  defined again, like any list.
+// -----------------------------------------------------------
+struct Layer {
+    int listID;
+    int z;
+    bool visible;
+    Transform transform;
+};
+
+// Layout of the draws passed to Canvas::RenderBatch, shared with
+// FastCanvasFrameBatch
+enum {
+    BATCH_DRAW_INTS = 4,
+    BATCH_COLOR = 1,
+    BATCH_LIST = 2
+};
+
+// -----------------------------------------------------------
+// --    FrameStats struct
+//
+//  What the last Render or RenderBuffer call did, for the
+//  stats reported to JS. Cheap enough to always collect.
+// -----------------------------------------------------------
+struct FrameStats {
+    int buildMicros;    // time spent building streams, 0 if reused
+    int uploadBytes;    // vertex data sent to VBOs
+    int drawCalls;
+    int quads;
+    int culledQuads;    // drawImage quads outside the ortho viewport, skipped
+    int glyphHits;      // fillText glyphs found in the glyph table
+    int glyphMisses;    // and not found, see GetMissingGlyphs
+};
+
+// -----------------------------------------------------------
+// --    fillText flags
+// --    Text alignment in the low two bits, the baseline in the
+// --    next two
+// -----------------------------------------------------------
+enum {
+    TEXT_ALIGN_LEFT = 0,
+    TEXT_ALIGN_CENTER = 1,
+    TEXT_ALIGN_RIGHT = 2,
+    TEXT_BASELINE_ALPHABETIC = 0 << 2,
+    TEXT_BASELINE_TOP = 1 << 2,
+    TEXT_BASELINE_MIDDLE = 2 << 2,
+    TEXT_BASELINE_BOTTOM = 3 << 2
+};
+
 // -----------------------------------------------------------
 // --    CaptureParams struct
 //
@@ -340,9 +509,52 @@ public:
     void SetBackgroundColor(float red, float green, float blue);
     void SetOrtho(int width, int height);
     void AddTexture(int id, int glID, int width, int height);
+    // A region of a shared atlas page. Removing it leaves the page alone.
+    void AddTextureRegion(int id, int glID, int pageWidth, int pageHeight, int x, int y);
     bool AddPngTexture(const unsigned char *buffer, long size, int id, unsigned int *pWidth, unsigned int *pHeight);
+    // Decoding doesn't touch GL and can run on any thread.
+    // The result must be released with FreeTextureData.
+    static unsigned char *DecodePngTexture(const unsigned char *buffer, long size, unsigned int *pWidth, unsigned int *pHeight);
+    static void FreeTextureData(unsigned char *data);
     void RemoveTexture(int id);
+    // Font metrics for fillText. Defining a font again keeps its glyphs.
+    void DefineFont(int fontID, float ascent, float descent);
+    // A glyph of a defined font. pageID is a loaded texture, or 0 for a
+    // glyph without ink. Removing the page removes its glyphs.
+    void AddGlyph(int fontID, int codePoint, int pageID, int x, int y, int width, int height,
+                  float left, float top, float advance);
+    // Glyphs fillText needed since the last Render, RenderBuffer or
+    // RenderBatch but didn't find, as font ID and code point pairs, each
+    // once. Copies up to maxGlyphs of them and returns how many there are.
+    int GetMissingGlyphs(int *pairs, int maxGlyphs) const;
+    // Texture IDs drawn by the last render, including IDs that aren't
+    // loaded. Copies up to maxIDs of them and returns how many there are.
+    int GetUsedTextures(int *ids, int maxIDs) const;
+    const FrameStats& GetFrameStats() const {
+        return m_frameStats;
+    }
     void Render(const char *renderCommands, int length);
+    void RenderBuffer(const unsigned char *renderBuffer, int length);
+    // Records commands as display list id, replacing any list with that id
+    void DefineList(int id, const char *renderCommands, int length);
+    void DefineListBuffer(int id, const unsigned char *renderBuffer, int length);
+    void RemoveList(int id);
+    // Draws list id as a layer in z order; layers with the same z are
+    // drawn in the order they were added. transform is a, b, c, d, tx, ty.
+    void SetLayer(int listID, int z, bool visible, const float *transform);
+    // The list stays until RemoveList
+    void RemoveLayer(int listID);
+    // How many times list id was built, -1 if there is no such list
+    int GetListBuilds(int id);
+    // Draws a frame built off the GL thread (FastCanvasFrameBuilder).
+    // vertices holds vertexCount Vertex2 for all draws. Each draw is
+    // BATCH_DRAW_INTS ints: GL texture ID, first vertex, vertex count and
+    // flags; with BATCH_LIST set the first two are the display list ID and
+    // the index of its transform (6 floats) in listTransforms instead.
+    // usedIDs are the texture IDs the frame draws.
+    void RenderBatch(const unsigned char *vertices, int vertexCount,
+                     const int *draws, int drawCount, const float *listTransforms,
+                     const int *usedIDs, int usedCount);
     void QueueCaptureGLLayer(int x, int y, int w, int h, const char * callbackID, const char * fn);
     const unsigned char* CaptureGLLayerDirect();
 
@@ -359,6 +571,14 @@ private:
     ~Canvas(); // Called by Release()
 
     void    BuildStreams(const char *renderCommands, int length);
+    void    BuildStreamsBinary(const unsigned char *renderBuffer, int length);
+    void    BuildStreamsTimed(const char *renderCommands, const unsigned char *renderBuffer, int length);
+    void    BeginStreams(int length);
+    void    EndStreams(int n);
+    void    DrawStreams();
+    void    DrawBatch();
+    void    DrawLayers(bool above);
+    void    ProcessCaptures();
     void	DoSetOrtho(int width, int height);
     void	DoContextLost();
 
@@ -381,15 +601,50 @@ private:
         NUM_PARSE_MODES
     };
 
+    // loadTexture hands out small increasing IDs; these are looked up
+    // directly, any others by a scan. Below DynArray's sanity limit.
+    enum { kTextureIndexSize = 8192 };
+
     const char* ParseSetTransform( const char *renderCommands,
                                    int parseMode,               // what to read: IDENTITY, FULL_XFORM, etc.
                                    bool concat,                 // if true, concatenate, else replace.
                                    Transform transIn,           // the current xform
                                    Transform *transOut);        // where to write the new xform
 
+    void    ApplyTransform( const float *tokens,
+                                int parseMode,
+                                bool concat,
+                                const Transform &transIn,
+                                Transform *transOut);
+
     const char* ParseDrawImage( const char *renderCommands, Clip *clipOut);
+    const char* ParseDrawList( const char *renderCommands, int *pID, float *pX, float *pY );
+    const char* ParseDrawImages( const char *renderCommands, int *pStream );
     const char* ParseUnknown( const char *renderCommands );
-    void    DoPushQuad( Stream* stream, const Transform &transform, const Clip &clip);
+    const char* ParseFillText( const char *renderCommands, int *pStream );
+    Texture *SelectStream( int textureID, Texture *img, int *pStream );
+    void    DoDrawImage( const Clip &clip, int *pStream );
+    void    DoDrawClip( const Clip &clip, Texture *img, int *pStream );
+    void    DoFillText( int fontID, int color, int flags, float x, float y,
+                        const int *codePoints, int count, int *pStream );
+    Font   *FindFont( int id );
+    Glyph  *FindGlyph( Font *font, int codePoint, bool add );
+    void    NoteGlyphMissing( int fontID, int codePoint );
+    void    DoDrawImages( int textureID, int flags, const float *frames, int frameCount,
+                          const float *sprites, int spriteCount, int *pStream );
+    void    DoDrawList( int id, float x, float y, int *pStream );
+    void    DrawStream( const Stream *stream );
+    Texture *FindTexture( int id );
+    Texture *ScanTexture( int id );
+    void    IndexTexture( Texture *img );
+    void    NoteTextureUsed( int id, Texture *img );
+    DisplayList *FindList( int id );
+    void    BuildList( DisplayList *list );
+    void    RebuildLists();
+    void    InvalidateLists( int textureID );
+    void    QuadPositions( const Transform &transform, const Clip &clip, Quad *q );
+    bool    IsCulled( const Vertex2 *v, int count );
+    void    DoPushQuad( Stream* stream, const Texture *img, Quad &q, const Clip &clip);
     void    RenderText( const char* format, ... );
 
     float   FastFloat( const char *str )    {
@@ -398,6 +653,17 @@ private:
     int FastInt( const char *str )      {
         return atoi( str );
     }
+    // Binary operands are little-endian and may be unaligned.
+    float   ReadFloat( const unsigned char *p ) {
+        float f;
+        memcpy( &f, p, sizeof(float) );
+        return f;
+    }
+    int ReadInt( const unsigned char *p ) {
+        int i;
+        memcpy( &i, p, sizeof(int) );
+        return i;
+    }
     void UpdateFrameRate();
 
     // Members
@@ -436,9 +702,40 @@ private:
 
     // Local scratch buffer for building streams.
     DynArray<Vertex2> m_vertexBuffer;
+    // drawImages frames and sprites, copied out of the commands
+    DynArray<float> m_spriteData;
+    // fillText code points, likewise
+    DynArray<int> m_textData;
 
     DynArray<Stream *> m_streams;
+    // Where BuildStreams puts its streams: m_streams, or the streams of
+    // m_buildingList while a display list is built
+    DynArray<Stream *> *m_target;
+    DisplayList *m_buildingList;
+    DynArray<DisplayList *> m_lists;
+    // In z order
+    DynArray<Layer> m_layers;
     DynArray<Texture *> m_textures;
+    // m_textures by ID, for the IDs below kTextureIndexSize; slots past
+    // the end or NULL mean not loaded
+    DynArray<Texture *> m_textureIndex;
+    // IDs referenced by the last BuildStreams, each once
+    DynArray<int> m_usedTextures;
+    DynArray<Font *> m_fonts;
+    // Font ID and code point pairs, see GetMissingGlyphs
+    DynArray<int> m_missingGlyphs;
+    int m_buildCount;
+
+    FrameStats m_frameStats;
+
+    // The last RenderBatch frame, drawn instead of m_streams while
+    // m_batchMode is set
+    bool m_batchMode;
+    unsigned int m_batchVBO;
+    int m_batchVBOAllocated;
+    DynArray<int> m_batchDraws;
+    DynArray<float> m_batchTransforms;
+
     DynArray<CaptureParams *> m_capParams;
     DynArray<Callback *> m_callbacks;
 
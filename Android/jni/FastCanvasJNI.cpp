@@ -49,6 +49,15 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addTexture
     }
 }
 
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addTextureRegion
+  (JNIEnv *je, jclass jc, jint id, jint glID, jint pageWidth, jint pageHeight, jint x, jint y)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->AddTextureRegion(id, glID, pageWidth, pageHeight, x, y);
+    }
+}
+
 JNIEXPORT jboolean JNICALL Java_com_adobe_plugins_FastCanvasJNI_addPngTexture
   (JNIEnv *je, jclass jc, jobject assetManager, jstring path, jint id, jobject dim)
 {
@@ -81,11 +90,85 @@ JNIEXPORT jboolean JNICALL Java_com_adobe_plugins_FastCanvasJNI_addPngTexture
 			je->SetIntField(dim, wID, (int)width);
 			jfieldID hID = je->GetFieldID(cls, "height", "I");
 			je->SetIntField(dim, hID, (int)height);
+			// width and height are the padded texture size here
+			jfieldID bID = je->GetFieldID(cls, "gpuBytes", "I");
+			je->SetIntField(dim, bID, (int)(width * height * 4));
 		}
     }
 	return success;
 }
 
+JNIEXPORT jobject JNICALL Java_com_adobe_plugins_FastCanvasJNI_decodePngTexture
+  (JNIEnv *je, jclass jc, jobject assetManager, jstring path, jobject dim)
+{
+	// No GL and no canvas here, this runs on the texture loader threads
+	AAssetManager* mgr = AAssetManager_fromJava(je, assetManager);
+	if (mgr == NULL) return NULL;
+
+	const char *p = je->GetStringUTFChars(path, 0);
+	AAsset* asset = AAssetManager_open(mgr, p, AASSET_MODE_BUFFER);
+	je->ReleaseStringUTFChars(path, p);
+	if (asset == NULL) return NULL;
+
+	long size = AAsset_getLength(asset);
+	const unsigned char* buffer = (const unsigned char*) AAsset_getBuffer(asset);
+	if (buffer == NULL) {
+		AAsset_close(asset);
+		return NULL;
+	}
+
+	unsigned int width;
+	unsigned int height;
+	unsigned char *pixels = Canvas::DecodePngTexture(buffer, size, &width, &height);
+	AAsset_close(asset);
+	if (pixels == NULL) return NULL;
+
+	jobject result = je->NewDirectByteBuffer(pixels, (jlong)width * height * 4);
+	if (result == NULL) {
+		Canvas::FreeTextureData(pixels);
+		return NULL;
+	}
+
+	jclass cls = je->GetObjectClass(dim);
+	jfieldID wID = je->GetFieldID(cls, "width", "I");
+	je->SetIntField(dim, wID, (int)width);
+	jfieldID hID = je->GetFieldID(cls, "height", "I");
+	je->SetIntField(dim, hID, (int)height);
+	return result;
+}
+
+JNIEXPORT jobject JNICALL Java_com_adobe_plugins_FastCanvasJNI_decodePngData
+  (JNIEnv *je, jclass jc, jobject data, jint length, jobject dim)
+{
+	// Like decodePngTexture, but the PNG is already in a direct buffer
+	const unsigned char* buffer = (const unsigned char*) je->GetDirectBufferAddress(data);
+	if (buffer == NULL || length <= 0 || length > je->GetDirectBufferCapacity(data)) return NULL;
+
+	unsigned int width;
+	unsigned int height;
+	unsigned char *pixels = Canvas::DecodePngTexture(buffer, length, &width, &height);
+	if (pixels == NULL) return NULL;
+
+	jobject result = je->NewDirectByteBuffer(pixels, (jlong)width * height * 4);
+	if (result == NULL) {
+		Canvas::FreeTextureData(pixels);
+		return NULL;
+	}
+
+	jclass cls = je->GetObjectClass(dim);
+	jfieldID wID = je->GetFieldID(cls, "width", "I");
+	je->SetIntField(dim, wID, (int)width);
+	jfieldID hID = je->GetFieldID(cls, "height", "I");
+	je->SetIntField(dim, hID, (int)height);
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_freeTextureData
+  (JNIEnv *je, jclass jc, jobject data)
+{
+	Canvas::FreeTextureData((unsigned char *)je->GetDirectBufferAddress(data));
+}
+
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeTexture
   (JNIEnv *je, jclass jc, jint id)
 {
@@ -95,6 +178,67 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeTexture
     }
 }
 
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getUsedTextures
+  (JNIEnv *je, jclass jc, jintArray ids)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (!theCanvas) {
+        return 0;
+    }
+    jint maxIDs = je->GetArrayLength(ids);
+    jint *p = je->GetIntArrayElements(ids, NULL);
+    int count = theCanvas->GetUsedTextures((int *)p, maxIDs);
+    je->ReleaseIntArrayElements(ids, p, 0);
+    return count;
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineFont
+  (JNIEnv *je, jclass jc, jint id, jfloat ascent, jfloat descent)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->DefineFont(id, ascent, descent);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addGlyph
+  (JNIEnv *je, jclass jc, jint fontID, jint codePoint, jint pageID, jint x, jint y, jint width, jint height,
+   jfloat left, jfloat top, jfloat advance)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->AddGlyph(fontID, codePoint, pageID, x, y, width, height, left, top, advance);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getMissingGlyphs
+  (JNIEnv *je, jclass jc, jintArray glyphs)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (!theCanvas) {
+        return 0;
+    }
+    jint maxGlyphs = je->GetArrayLength(glyphs) / 2;
+    jint *p = je->GetIntArrayElements(glyphs, NULL);
+    int count = theCanvas->GetMissingGlyphs((int *)p, maxGlyphs);
+    je->ReleaseIntArrayElements(glyphs, p, 0);
+    return count;
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_getFrameStats
+  (JNIEnv *je, jclass jc, jintArray stats)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (!theCanvas || je->GetArrayLength(stats) < 4) {
+        return;
+    }
+    const FrameStats& frameStats = theCanvas->GetFrameStats();
+    jint values[7] = { frameStats.buildMicros, frameStats.uploadBytes, frameStats.drawCalls, frameStats.quads,
+                       frameStats.culledQuads, frameStats.glyphHits, frameStats.glyphMisses };
+    int count = je->GetArrayLength(stats) < 7 ? je->GetArrayLength(stats) : 7;
+    je->SetIntArrayRegion(stats, 0, count, values);
+}
+
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_render
   (JNIEnv *je, jclass jc, jstring renderCommands)
 {
@@ -111,6 +255,119 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_render
     }
 }
 
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_renderBuffer
+  (JNIEnv *je, jclass jc, jobject renderBuffer, jint length)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        // Read straight out of the direct buffer, no copy
+        const unsigned char *rb = renderBuffer ? (const unsigned char *)je->GetDirectBufferAddress(renderBuffer) : NULL;
+        if (rb && length > je->GetDirectBufferCapacity(renderBuffer)) {
+            length = (jint)je->GetDirectBufferCapacity(renderBuffer);
+        }
+        theCanvas->RenderBuffer(rb, rb ? length : 0);
+
+		//send all callbacks, for now only capture callbacks
+		ExecuteCallbacks(je);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_renderBatch
+  (JNIEnv *je, jclass jc, jobject vertices, jint vertexCount, jintArray draws, jint drawCount,
+   jfloatArray listTransforms, jintArray usedIDs, jint usedCount)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        const unsigned char *v = (const unsigned char *)je->GetDirectBufferAddress(vertices);
+        // The arrays are copied by RenderBatch, no need to write them back
+        jint *d = je->GetIntArrayElements(draws, NULL);
+        jfloat *t = je->GetFloatArrayElements(listTransforms, NULL);
+        jint *u = je->GetIntArrayElements(usedIDs, NULL);
+        if (v && d && t && u) {
+            theCanvas->RenderBatch(v, vertexCount, d, drawCount, t, u, usedCount);
+        }
+        if (u) je->ReleaseIntArrayElements(usedIDs, u, JNI_ABORT);
+        if (t) je->ReleaseFloatArrayElements(listTransforms, t, JNI_ABORT);
+        if (d) je->ReleaseIntArrayElements(draws, d, JNI_ABORT);
+
+		//send all callbacks, for now only capture callbacks
+		ExecuteCallbacks(je);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineList
+  (JNIEnv *je, jclass jc, jint id, jstring renderCommands)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        const char *rc = je->GetStringUTFChars(renderCommands, 0);
+        int length = je->GetStringUTFLength(renderCommands);
+        theCanvas->DefineList(id, rc, length);
+        je->ReleaseStringUTFChars(renderCommands, rc);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineListBuffer
+  (JNIEnv *je, jclass jc, jint id, jobject renderBuffer, jint length)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        const unsigned char *rb = renderBuffer ? (const unsigned char *)je->GetDirectBufferAddress(renderBuffer) : NULL;
+        if (rb && length > je->GetDirectBufferCapacity(renderBuffer)) {
+            length = (jint)je->GetDirectBufferCapacity(renderBuffer);
+        }
+        theCanvas->DefineListBuffer(id, rb, rb ? length : 0);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeList
+  (JNIEnv *je, jclass jc, jint id)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->RemoveList(id);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_setLayer
+  (JNIEnv *je, jclass jc, jint listID, jint z, jboolean visible, jfloatArray transform)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas && je->GetArrayLength(transform) >= 6) {
+        jfloat t[6];
+        je->GetFloatArrayRegion(transform, 0, 6, t);
+        theCanvas->SetLayer(listID, z, visible == JNI_TRUE, t);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeLayer
+  (JNIEnv *je, jclass jc, jint listID)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->RemoveLayer(listID);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getListBuilds
+  (JNIEnv *je, jclass jc, jint id)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    return theCanvas ? theCanvas->GetListBuilds(id) : -1;
+}
+
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_redraw
+  (JNIEnv *je, jclass jc)
+{
+    Canvas *theCanvas = Canvas::GetCanvas();
+    if (theCanvas) {
+        theCanvas->Render(NULL, 0);
+
+		//send all callbacks, for now only capture callbacks
+		ExecuteCallbacks(je);
+    }
+}
+
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_surfaceChanged
   (JNIEnv *, jclass, jint width, jint height )
   {
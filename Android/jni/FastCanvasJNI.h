@@ -31,6 +31,14 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_setOrtho
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addTexture
   (JNIEnv *, jclass, jint, jint, jint, jint);
 
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    addTextureRegion
+ * Signature: (IIIIII)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addTextureRegion
+  (JNIEnv *, jclass, jint, jint, jint, jint, jint, jint);
+
 /*
  * Class:     com_adobe_plugins_FastCanvasJNI
  * Method:    addPngTexture
@@ -39,6 +47,30 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addTexture
 JNIEXPORT jboolean JNICALL Java_com_adobe_plugins_FastCanvasJNI_addPngTexture
   (JNIEnv *, jclass, jobject, jstring, jint, jobject);
 
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    decodePngTexture
+ * Signature: (Ljava/lang/Object;Ljava/lang/String;Lcom/adobe/plugins/FastCanvasTextureDimension;)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_com_adobe_plugins_FastCanvasJNI_decodePngTexture
+  (JNIEnv *, jclass, jobject, jstring, jobject);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    decodePngData
+ * Signature: (Ljava/nio/ByteBuffer;ILcom/adobe/plugins/FastCanvasTextureDimension;)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_com_adobe_plugins_FastCanvasJNI_decodePngData
+  (JNIEnv *, jclass, jobject, jint, jobject);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    freeTextureData
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_freeTextureData
+  (JNIEnv *, jclass, jobject);
+
 /*
  * Class:     com_adobe_plugins_FastCanvasJNI
  * Method:    removeTexture
@@ -47,6 +79,46 @@ JNIEXPORT jboolean JNICALL Java_com_adobe_plugins_FastCanvasJNI_addPngTexture
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeTexture
   (JNIEnv *, jclass, jint);
 
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    getUsedTextures
+ * Signature: ([I)I
+ */
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getUsedTextures
+  (JNIEnv *, jclass, jintArray);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    defineFont
+ * Signature: (IFF)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineFont
+  (JNIEnv *, jclass, jint, jfloat, jfloat);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    addGlyph
+ * Signature: (IIIIIIIFFF)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_addGlyph
+  (JNIEnv *, jclass, jint, jint, jint, jint, jint, jint, jint, jfloat, jfloat, jfloat);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    getMissingGlyphs
+ * Signature: ([I)I
+ */
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getMissingGlyphs
+  (JNIEnv *, jclass, jintArray);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    getFrameStats
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_getFrameStats
+  (JNIEnv *, jclass, jintArray);
+
 /*
  * Class:     com_adobe_plugins_FastCanvasJNI
  * Method:    render
@@ -55,6 +127,78 @@ JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeTexture
 JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_render
   (JNIEnv *, jclass, jstring);
 
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    renderBuffer
+ * Signature: (Ljava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_renderBuffer
+  (JNIEnv *, jclass, jobject, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    defineList
+ * Signature: (ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineList
+  (JNIEnv *, jclass, jint, jstring);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    defineListBuffer
+ * Signature: (ILjava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_defineListBuffer
+  (JNIEnv *, jclass, jint, jobject, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    removeList
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeList
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    setLayer
+ * Signature: (IIZ[F)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_setLayer
+  (JNIEnv *, jclass, jint, jint, jboolean, jfloatArray);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    removeLayer
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_removeLayer
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    getListBuilds
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_com_adobe_plugins_FastCanvasJNI_getListBuilds
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    renderBatch
+ * Signature: (Ljava/nio/ByteBuffer;I[II[F[II)V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_renderBatch
+  (JNIEnv *, jclass, jobject, jint, jintArray, jint, jfloatArray, jintArray, jint);
+
+/*
+ * Class:     com_adobe_plugins_FastCanvasJNI
+ * Method:    redraw
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_adobe_plugins_FastCanvasJNI_redraw
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_adobe_plugins_FastCanvasJNI
  * Method:    surfaceChanged
@@ -24,6 +24,8 @@ import org.json.JSONException;
 
 import android.app.Activity;
 import android.util.Log;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -48,7 +50,21 @@ public class FastCanvas extends CordovaPlugin {
         activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                FrameLayout layout = new FrameLayout(activity);
+                // The layout sees input before the WebView on top, so the
+                // input channel can take it first
+                FrameLayout layout = new FrameLayout(activity) {
+                    @Override
+                    public boolean dispatchTouchEvent(MotionEvent event) {
+                        return fastView.captureTouch(event)
+                                || super.dispatchTouchEvent(event);
+                    }
+
+                    @Override
+                    public boolean dispatchKeyEvent(KeyEvent event) {
+                        return fastView.captureKey(event)
+                                || super.dispatchKeyEvent(event);
+                    }
+                };
                 layout.setLayoutParams(new FrameLayout.LayoutParams(
                         FrameLayout.LayoutParams.MATCH_PARENT,
                         FrameLayout.LayoutParams.MATCH_PARENT));
@@ -0,0 +1,155 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+// A named group of textures packed into shared pages, so that drawImage
+// calls using any of them end up in the same stream and draw call.
+//
+// Each texture becomes a texture region of the backend
+// (FastCanvasBackend.addTextureRegion) and keeps its own ID; the backend
+// offsets the UVs. Pages are created and filled through the backend too. A
+// page is deleted when its last region is removed. GL thread only.
+public class FastCanvasAtlas {
+
+    // Images larger than this in either direction get their own texture
+    public static final int MAX_REGION_SIZE = 256;
+    public static final int PAGE_SIZE = 1024;
+    private static final int PADDING = 2;
+
+    private static class Page {
+        int handle;
+        FastCanvasAtlasPacker packer;
+        int regions;
+    }
+
+    public final String name;
+    private final FastCanvasBackend backend;
+    private final FastCanvasTextureTable table;
+    private final int pageSize;
+    private final List<Page> pages = new ArrayList<Page>();
+    private final Map<Integer, Page> regions = new HashMap<Integer, Page>();
+    private final Map<Integer, FastCanvasAtlasPacker.Region> placements = new HashMap<Integer, FastCanvasAtlasPacker.Region>();
+
+    // Regions are mirrored into table along with the backend. Pages are
+    // PAGE_SIZE square, or maxTextureSize if that is smaller.
+    public FastCanvasAtlas(String name, FastCanvasBackend backend,
+            FastCanvasTextureTable table, int maxTextureSize) {
+        this.name = name;
+        this.backend = backend;
+        this.table = table;
+        this.pageSize = maxTextureSize > 0 ? Math.min(PAGE_SIZE,
+                maxTextureSize) : PAGE_SIZE;
+    }
+
+    // True for textures small enough to be packed
+    public static boolean accepts(int width, int height) {
+        return width <= MAX_REGION_SIZE && height <= MAX_REGION_SIZE;
+    }
+
+    // Copies the pixels into a page and registers id as a region of it.
+    // The texture must not be padded (textureWidth == width).
+    public void add(int id, FastCanvasDecodedTexture texture) {
+        FastCanvasAtlasPacker.Region region = null;
+        Page page = null;
+        for (int i = 0; i < pages.size() && region == null; i++) {
+            page = pages.get(i);
+            region = page.packer.insert(texture.width, texture.height);
+        }
+        if (region == null) {
+            page = newPage();
+            region = page.packer.insert(texture.width, texture.height);
+            if (region == null) {
+                throw new IllegalStateException(texture.width + "x"
+                        + texture.height + " doesn't fit an atlas page");
+            }
+        }
+
+        backend.updatePage(page.handle, region.x, region.y, region.width,
+                region.height, texture.getPixels());
+
+        backend.addTextureRegion(id, page.handle, page.packer.getWidth(),
+                page.packer.getHeight(), region.x, region.y);
+        table.addRegion(id, page.handle, page.packer.getWidth(),
+                page.packer.getHeight(), region.x, region.y);
+        page.regions++;
+        regions.put(id, page);
+        placements.put(id, region);
+        Log.i(TAG, name + ": texture " + id + " at " + region + " page "
+                + page.handle + " occupancy " + page.packer.getOccupancy());
+    }
+
+    // Forgets id after its native region was removed. Returns false if id
+    // wasn't in this atlas.
+    public boolean remove(int id) {
+        Page page = regions.remove(id);
+        if (page == null) {
+            return false;
+        }
+        placements.remove(id);
+        if (--page.regions == 0) {
+            // nothing left to draw from it, its space can't be reused anyway
+            Log.i(TAG, name + ": delete page " + page.handle);
+            backend.deletePage(page.handle);
+            pages.remove(page);
+        }
+        return true;
+    }
+
+    // Replaces a width x height rectangle at x,y within the region of id
+    public void update(int id, int x, int y, int width, int height,
+            ByteBuffer pixels) {
+        Page page = regions.get(id);
+        FastCanvasAtlasPacker.Region region = placements.get(id);
+        if (page == null) {
+            throw new IllegalArgumentException("texture " + id
+                    + " is not in atlas " + name);
+        }
+        backend.updatePage(page.handle, region.x + x, region.y + y, width,
+                height, pixels);
+    }
+
+    // The GL context is gone and the pages with it
+    public void contextLost() {
+        pages.clear();
+        regions.clear();
+        placements.clear();
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    private Page newPage() {
+        Page page = new Page();
+        page.packer = new FastCanvasAtlasPacker(pageSize, pageSize, PADDING);
+        // cleared, so the padding between regions is transparent
+        page.handle = backend.createPage(pageSize, pageSize);
+        pages.add(page);
+        Log.i(TAG, name + ": new page " + page.handle + " " + pageSize + "x"
+                + pageSize);
+        return page;
+    }
+
+    private static final String TAG = "FastCanvasAtlas";
+}
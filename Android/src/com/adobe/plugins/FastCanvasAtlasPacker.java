@@ -0,0 +1,220 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+// Skyline rectangle packer for one atlas page. No GL, no Android.
+//
+// The skyline is the top edge of everything packed so far, kept as a list of
+// horizontal segments from left to right. A rectangle goes where its top ends
+// up lowest (bottom-left rule), preferring the narrower segment on ties. Space
+// under the skyline is never reused, which keeps inserts cheap; pages are
+// reset rather than defragmented.
+public class FastCanvasAtlasPacker {
+
+    public static class Region {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        Region(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + x + "," + y;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int padding;
+
+    // skyline segments, sorted by x and covering the full width
+    private int[] nodeX = new int[16];
+    private int[] nodeY = new int[16];
+    private int[] nodeWidth = new int[16];
+    private int nodeCount;
+
+    private long usedArea;
+    private int regionCount;
+
+    // padding pixels are left between regions so linear filtering doesn't
+    // bleed one image into the next
+    public FastCanvasAtlasPacker(int width, int height, int padding) {
+        if (width <= 0 || height <= 0 || padding < 0) {
+            throw new IllegalArgumentException("invalid atlas size " + width
+                    + "x" + height + " padding " + padding);
+        }
+        this.width = width;
+        this.height = height;
+        this.padding = padding;
+        reset();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void reset() {
+        nodeCount = 1;
+        nodeX[0] = 0;
+        nodeY[0] = 0;
+        nodeWidth[0] = width;
+        usedArea = 0;
+        regionCount = 0;
+    }
+
+    // Places a w x h rectangle, or returns null if it doesn't fit
+    public Region insert(int w, int h) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("invalid region size " + w
+                    + "x" + h);
+        }
+        // the gutter isn't needed against the page edge
+        int pw = Math.min(w + padding, width);
+        int ph = Math.min(h + padding, height);
+        if (w > width || h > height) {
+            return null;
+        }
+
+        int bestIndex = -1;
+        int bestTop = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+        int bestY = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int y = fit(i, pw, ph);
+            if (y < 0) {
+                continue;
+            }
+            int top = y + ph;
+            if (top < bestTop || (top == bestTop && nodeWidth[i] < bestWidth)) {
+                bestIndex = i;
+                bestTop = top;
+                bestWidth = nodeWidth[i];
+                bestY = y;
+            }
+        }
+        if (bestIndex < 0) {
+            return null;
+        }
+
+        Region region = new Region(nodeX[bestIndex], bestY, w, h);
+        addLevel(bestIndex, region.x, bestY + ph, pw);
+        usedArea += (long) w * h;
+        regionCount++;
+        return region;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    // Pixels covered by regions, excluding padding
+    public long getUsedArea() {
+        return usedArea;
+    }
+
+    // Fraction of the page covered by regions, 0 to 1
+    public float getOccupancy() {
+        return (float) usedArea / ((long) width * height);
+    }
+
+    // y at which a w x h rectangle starting at node i fits, or -1
+    private int fit(int i, int w, int h) {
+        int x = nodeX[i];
+        if (x + w > width) {
+            return -1;
+        }
+        int y = 0;
+        int remaining = w;
+        for (int j = i; remaining > 0; j++) {
+            y = Math.max(y, nodeY[j]);
+            if (y + h > height) {
+                return -1;
+            }
+            remaining -= nodeWidth[j];
+        }
+        return y;
+    }
+
+    private void addLevel(int index, int x, int y, int w) {
+        insertNode(index, x, y, w);
+
+        // shrink or drop the segments now covered by the new one
+        int end = x + w;
+        int i = index + 1;
+        while (i < nodeCount && nodeX[i] < end) {
+            int shrink = end - nodeX[i];
+            if (nodeWidth[i] <= shrink) {
+                removeNode(i);
+            } else {
+                nodeX[i] += shrink;
+                nodeWidth[i] -= shrink;
+                break;
+            }
+        }
+
+        // merge neighbours at the same height
+        for (int j = 0; j < nodeCount - 1;) {
+            if (nodeY[j] == nodeY[j + 1]) {
+                nodeWidth[j] += nodeWidth[j + 1];
+                removeNode(j + 1);
+            } else {
+                j++;
+            }
+        }
+    }
+
+    private void insertNode(int index, int x, int y, int w) {
+        if (nodeCount == nodeX.length) {
+            int capacity = nodeCount * 2;
+            nodeX = grow(nodeX, capacity);
+            nodeY = grow(nodeY, capacity);
+            nodeWidth = grow(nodeWidth, capacity);
+        }
+        int move = nodeCount - index;
+        System.arraycopy(nodeX, index, nodeX, index + 1, move);
+        System.arraycopy(nodeY, index, nodeY, index + 1, move);
+        System.arraycopy(nodeWidth, index, nodeWidth, index + 1, move);
+        nodeX[index] = x;
+        nodeY[index] = y;
+        nodeWidth[index] = w;
+        nodeCount++;
+    }
+
+    private void removeNode(int index) {
+        int move = nodeCount - index - 1;
+        System.arraycopy(nodeX, index + 1, nodeX, index, move);
+        System.arraycopy(nodeY, index + 1, nodeY, index, move);
+        System.arraycopy(nodeWidth, index + 1, nodeWidth, index, move);
+        nodeCount--;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
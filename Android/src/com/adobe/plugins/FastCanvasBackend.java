@@ -0,0 +1,92 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+
+// What draws the render commands: FastCanvasGLBackend on a device, or
+// FastCanvasSoftwareBackend anywhere else. The methods are the drawing half
+// of FastCanvasJNI and behave the same; image decoding isn't part of it.
+//
+// Texture handles are whatever the backend draws from: GL texture names for
+// GL, pages added with FastCanvasSoftwareBackend.addPage for software.
+public interface FastCanvasBackend {
+
+    // 0 to 255 each
+    void setBackgroundColor(int red, int green, int blue);
+
+    void setOrtho(int width, int height);
+
+    void surfaceChanged(int width, int height);
+
+    void addTexture(int id, int handle, int width, int height);
+
+    void addTextureRegion(int id, int handle, int pageWidth, int pageHeight,
+            int x, int y);
+
+    void removeTexture(int id);
+
+    // A page of transparent pixels that textures are packed into, e.g. by
+    // FastCanvasAtlas. Returns its handle for addTexture and
+    // addTextureRegion.
+    int createPage(int width, int height);
+
+    // Replaces width x height pixels at x, y of a page with RGBA pixels,
+    // rows from the top and tightly packed, read from the position of rgba
+    void updatePage(int handle, int x, int y, int width, int height,
+            ByteBuffer rgba);
+
+    void deletePage(int handle);
+
+    // See FastCanvasJNI.getUsedTextures
+    int getUsedTextures(int[] ids);
+
+    // See FastCanvasJNI.getMissingGlyphs
+    int getMissingGlyphs(int[] glyphs);
+
+    // See FastCanvasJNI.getFrameStats
+    void getFrameStats(int[] stats);
+
+    void render(String renderCommands);
+
+    void renderBuffer(ByteBuffer renderBuffer, int length);
+
+    void renderBatch(ByteBuffer vertices, int vertexCount, int[] draws,
+            int drawCount, float[] listTransforms, int[] usedIDs,
+            int usedCount);
+
+    void redraw();
+
+    void defineList(int id, String renderCommands);
+
+    void defineListBuffer(int id, ByteBuffer renderBuffer, int length);
+
+    void removeList(int id);
+
+    // See FastCanvasJNI.setLayer
+    void setLayer(int listID, int z, boolean visible, float[] transform);
+
+    void removeLayer(int listID);
+
+    int getListBuilds(int id);
+
+    // RGBA, bottom row first like glReadPixels
+    byte[] captureGLLayerDirect(int width, int height);
+
+    void contextLost();
+
+    void release();
+}
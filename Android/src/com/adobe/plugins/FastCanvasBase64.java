@@ -0,0 +1,102 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+
+// Base64 decoding straight from the String Cordova hands over into a
+// ByteBuffer, so large payloads (ArrayBuffer arguments, data: URLs) don't go
+// through intermediate byte arrays. Whitespace is skipped, decoding stops at
+// the first '='.
+public class FastCanvasBase64 {
+
+    private static final byte[] VALUES = new byte[128];
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        // URL safe variant
+        VALUES['-'] = 62;
+        VALUES['_'] = 63;
+    }
+
+    // Decoded size of the characters from start on, exact unless they
+    // contain whitespace, in which case it's an upper bound
+    public static int decodedLength(String s, int start) {
+        int end = s.length();
+        while (end > start && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        return (int) ((long) (end - start) * 3 / 4);
+    }
+
+    // Decodes the characters from start on into out, from its position.
+    // Returns the number of bytes written.
+    public static int decode(String s, int start, ByteBuffer out) {
+        byte[] chunk = new byte[Math.min(8192, decodedLength(s, start) + 3)];
+        int n = 0;
+        int written = 0;
+        int bits = 0;
+        int count = 0;
+        int length = s.length();
+        for (int i = start; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            int value = c < 128 ? VALUES[c] : -1;
+            if (value < 0) {
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                    continue;
+                }
+                throw new IllegalArgumentException("invalid base64 character "
+                        + (int) c + " at " + i);
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                if (n + 3 > chunk.length) {
+                    out.put(chunk, 0, n);
+                    written += n;
+                    n = 0;
+                }
+                chunk[n++] = (byte) (bits >> 16);
+                chunk[n++] = (byte) (bits >> 8);
+                chunk[n++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (n + 2 > chunk.length) {
+            out.put(chunk, 0, n);
+            written += n;
+            n = 0;
+        }
+        if (count == 3) {
+            chunk[n++] = (byte) (bits >> 10);
+            chunk[n++] = (byte) (bits >> 2);
+        } else if (count == 2) {
+            chunk[n++] = (byte) (bits >> 4);
+        } else if (count == 1) {
+            throw new IllegalArgumentException("truncated base64 data");
+        }
+        out.put(chunk, 0, n);
+        return written + n;
+    }
+}
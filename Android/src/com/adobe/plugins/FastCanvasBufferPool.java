@@ -0,0 +1,101 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+// Direct buffers for pixel data, reused instead of allocated per texture.
+//
+// Buffers come in power of two size classes from 4KB up, so a buffer can be
+// reused by any request of its class. Up to a few free buffers are kept per
+// class, within a total byte limit; anything beyond that is left to the
+// garbage collector. Any thread.
+public class FastCanvasBufferPool {
+
+    private static final int MIN_CLASS = 12; // 4KB
+    private static final int MAX_CLASS = 30;
+    private static final int PER_CLASS = 2;
+
+    // free buffers by size class, null below MIN_CLASS
+    private final List<List<ByteBuffer>> free =
+            new ArrayList<List<ByteBuffer>>(MAX_CLASS + 1);
+    private final long maxPooledBytes;
+    private long pooledBytes;
+
+    public FastCanvasBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            free.add(i < MIN_CLASS ? null
+                    : new ArrayList<ByteBuffer>(PER_CLASS));
+        }
+    }
+
+    // A native order buffer with position 0 and limit size. Its capacity
+    // is the size class, possibly larger than size.
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            return ByteBuffer.allocateDirect(size).order(
+                    ByteOrder.nativeOrder());
+        }
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            List<ByteBuffer> list = free.get(sizeClass);
+            if (!list.isEmpty()) {
+                buffer = list.remove(list.size() - 1);
+                pooledBytes -= buffer.capacity();
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass).order(
+                    ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    // Hands a buffer from acquire() back. It must not be used afterwards.
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass > MAX_CLASS || 1 << sizeClass != capacity) {
+            return;
+        }
+        synchronized (this) {
+            List<ByteBuffer> list = free.get(sizeClass);
+            if (list.size() < PER_CLASS
+                    && pooledBytes + capacity <= maxPooledBytes) {
+                list.add(buffer);
+                pooledBytes += capacity;
+            }
+        }
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_CLASS) {
+            return MIN_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.cordova.CallbackContext;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES10;
+import android.util.Base64;
+import android.util.Log;
+
+// Reads back the frame buffer and encodes it off the GL thread.
+//
+// The GL thread only does the glReadPixels, into a direct buffer taken from a
+// small pool. Flipping, downscaling and PNG/JPEG/WebP encoding happen on a
+// single worker thread, which then sends the data URL (or the name of the file
+// it wrote) to the request's callback and gives the buffer back to the pool.
+public class FastCanvasCapture implements
+        FastCanvasCaptureQueue.Reader<FastCanvasCapture.Request> {
+
+    public static class Request {
+        // Area to read, in frame buffer pixels from the top left. A width
+        // or height of -1 reads to the edge of the viewport.
+        public int x;
+        public int y;
+        public int width = -1;
+        public int height = -1;
+        // Size to scale the image to before encoding, 0 to keep the read
+        // size. If only one is set the aspect ratio is kept.
+        public int outWidth;
+        public int outHeight;
+        public String mimeType;
+        // 0 to 100, ignored by PNG
+        public int quality = 100;
+        // If set, the image is written here and the callback gets the path
+        public File file;
+        public CallbackContext callback;
+
+        Bitmap.CompressFormat getFormat() {
+            if ("image/jpeg".equals(mimeType) || "image/jpg".equals(mimeType)) {
+                return Bitmap.CompressFormat.JPEG;
+            }
+            if ("image/webp".equals(mimeType)) {
+                return Bitmap.CompressFormat.WEBP;
+            }
+            return Bitmap.CompressFormat.PNG;
+        }
+
+        // The type actually produced, as with canvas.toDataURL anything
+        // unsupported falls back to PNG
+        String getMimeType() {
+            switch (getFormat()) {
+            case JPEG:
+                return "image/jpeg";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/png";
+            }
+        }
+    }
+
+    // Free readback buffers kept around for the next capture
+    private static final int POOL_SIZE = 2;
+
+    private final List<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+    private final ExecutorService encoder = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FastCanvasCapture");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+    // Encoder thread only, reused while the capture size doesn't change
+    private Bitmap source;
+
+    // GL thread, after the frame to capture was drawn. Reads the pixels and
+    // queues the encoding; the callback is called from the encoder thread.
+    public void read(final Request request) {
+        int[] viewport = new int[4];
+        GLES10.glGetIntegerv(GLES10.GL_VIEWPORT, viewport, 0);
+        int viewWidth = viewport[2];
+        int viewHeight = viewport[3];
+
+        int x = Math.max(0, request.x);
+        int y = Math.max(0, request.y);
+        int width = request.width < 0 ? viewWidth - x : request.width;
+        int height = request.height < 0 ? viewHeight - y : request.height;
+        width = Math.min(width, viewWidth - x);
+        height = Math.min(height, viewHeight - y);
+        if (width <= 0 || height <= 0) {
+            request.callback.error("capture area " + request.x + ","
+                    + request.y + " " + request.width + "x" + request.height
+                    + " is outside the " + viewWidth + "x" + viewHeight
+                    + " canvas");
+            return;
+        }
+
+        final ByteBuffer pixels = acquire(width * height * 4);
+        // GL's origin is the bottom left, the rows come out upside down
+        GLES10.glReadPixels(x, viewHeight - y - height, width, height,
+                GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, pixels);
+
+        final int w = width;
+        final int h = height;
+        encoder.execute(new Runnable() {
+            public void run() {
+                try {
+                    encode(request, pixels, w, h);
+                } catch (Exception e) {
+                    Log.e(TAG, "capture failed", e);
+                    request.callback.error("capture failed: " + e.getMessage());
+                } catch (OutOfMemoryError e) {
+                    request.callback.error("out of memory encoding capture");
+                } finally {
+                    release(pixels);
+                }
+            }
+        });
+    }
+
+    private void encode(Request request, ByteBuffer pixels, int width,
+            int height) throws IOException {
+        long start = System.nanoTime();
+        if (source == null || source.getWidth() != width
+                || source.getHeight() != height) {
+            if (source != null) {
+                source.recycle();
+            }
+            source = Bitmap.createBitmap(width, height,
+                    Bitmap.Config.ARGB_8888);
+        }
+        // ARGB_8888 is stored as RGBA bytes, same as the readback
+        pixels.rewind();
+        source.copyPixelsFromBuffer(pixels);
+
+        int outWidth = request.outWidth;
+        int outHeight = request.outHeight;
+        if (outWidth <= 0 && outHeight <= 0) {
+            outWidth = width;
+            outHeight = height;
+        } else if (outWidth <= 0) {
+            outWidth = Math.max(1, width * outHeight / height);
+        } else if (outHeight <= 0) {
+            outHeight = Math.max(1, height * outWidth / width);
+        }
+
+        // flip and scale in one pass
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) outWidth / width, -(float) outHeight / height);
+        Bitmap image = Bitmap.createBitmap(source, 0, 0, width, height,
+                matrix, true);
+
+        try {
+            if (request.file != null) {
+                OutputStream out = new BufferedOutputStream(
+                        new FileOutputStream(request.file), 64 * 1024);
+                try {
+                    image.compress(request.getFormat(), request.quality, out);
+                } finally {
+                    out.close();
+                }
+                request.callback.success(request.file.getAbsolutePath());
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        outWidth * outHeight / 2);
+                image.compress(request.getFormat(), request.quality, out);
+                request.callback.success("data:" + request.getMimeType()
+                        + ";base64,"
+                        + Base64.encodeToString(out.toByteArray(),
+                                Base64.NO_WRAP));
+            }
+        } finally {
+            image.recycle();
+        }
+        Log.i(TAG, "captured " + width + "x" + height + " as " + outWidth
+                + "x" + outHeight + " " + request.getMimeType() + " in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    private ByteBuffer acquire(int size) {
+        synchronized (pool) {
+            for (int i = 0; i < pool.size(); i++) {
+                ByteBuffer buffer = pool.get(i);
+                if (buffer.capacity() >= size) {
+                    pool.remove(i);
+                    buffer.clear();
+                    buffer.limit(size);
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void release(ByteBuffer buffer) {
+        synchronized (pool) {
+            if (pool.size() < POOL_SIZE) {
+                pool.add(buffer);
+            } else {
+                // keep the larger buffers, they fit any capture
+                for (int i = 0; i < pool.size(); i++) {
+                    if (pool.get(i).capacity() < buffer.capacity()) {
+                        pool.set(i, buffer);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String TAG = "FastCanvasCapture";
+}
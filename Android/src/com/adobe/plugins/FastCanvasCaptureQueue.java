@@ -0,0 +1,56 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Capture requests waiting for a render pass to read them.
+//
+// A pass that has nothing to draw normally returns early, but not while
+// requests wait: before the app's first render it draws the cleared
+// background instead, as toDataURL on a canvas nothing was drawn to, so
+// every request gets its callback. GL thread only.
+public class FastCanvasCaptureQueue<R> {
+
+    public interface Reader<R> {
+        // Reads what the pass just drew for request
+        void read(R request);
+    }
+
+    private final List<R> pending = new ArrayList<R>();
+
+    public void add(R request) {
+        pending.add(request);
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    // After the pass drew. Requests added while reading wait for the next
+    // pass. The reader reports its own failures to the request.
+    public void readAll(Reader<R> reader) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<R> requests = new ArrayList<R>(pending);
+        pending.clear();
+        for (int i = 0; i < requests.size(); i++) {
+            reader.read(requests.get(i));
+        }
+    }
+}
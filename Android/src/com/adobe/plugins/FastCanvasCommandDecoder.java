@@ -0,0 +1,418 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+// Reads the binary command format written by FastCanvasCommandEncoder and
+// replays it into a FastCanvasCommandHandler. This is the Java mirror of
+// Canvas::BuildStreamsBinary; decodeText does the same for the text commands
+// read by Canvas::BuildStreams.
+public class FastCanvasCommandDecoder {
+
+    // Decodes the first length bytes of buffer (from index 0, ignoring the
+    // buffer position) and returns the number of commands decoded.
+    public static int decode(ByteBuffer buffer, int length,
+            FastCanvasCommandHandler handler) {
+        ByteBuffer in = buffer.duplicate();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        in.limit(length);
+        in.position(0);
+
+        int count = 0;
+        while (in.hasRemaining()) {
+            byte op = in.get();
+            int needed = operandBytes(op);
+            if (needed < 0) {
+                throw new IllegalArgumentException("unknown opcode " + op
+                        + " at " + (in.position() - 1));
+            }
+            if (op == FastCanvasCommandEncoder.DRAW_IMAGES
+                    && in.remaining() >= needed) {
+                needed += drawImagesBytes(in, in.position());
+            } else if (op == FastCanvasCommandEncoder.FILL_TEXT
+                    && in.remaining() >= needed) {
+                needed += fillTextBytes(in, in.position());
+            }
+            if (in.remaining() < needed) {
+                throw new IllegalArgumentException("truncated command "
+                        + (char) op + " at " + (in.position() - 1));
+            }
+
+            switch (op) {
+            case FastCanvasCommandEncoder.SET_TRANSFORM:
+                handler.setTransform(in.getFloat(), in.getFloat(),
+                        in.getFloat(), in.getFloat(), in.getFloat(),
+                        in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.TRANSFORM:
+                handler.transform(in.getFloat(), in.getFloat(),
+                        in.getFloat(), in.getFloat(), in.getFloat(),
+                        in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.RESET_TRANSFORM:
+                handler.resetTransform();
+                break;
+            case FastCanvasCommandEncoder.SCALE:
+                handler.scale(in.getFloat(), in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.ROTATE:
+                handler.rotate(in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.TRANSLATE:
+                handler.translate(in.getFloat(), in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.SAVE:
+                handler.save();
+                break;
+            case FastCanvasCommandEncoder.RESTORE:
+                handler.restore();
+                break;
+            case FastCanvasCommandEncoder.GLOBAL_ALPHA:
+                handler.setGlobalAlpha(in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.DRAW_IMAGE:
+                handler.drawImage(in.getInt(), in.getFloat(), in.getFloat(),
+                        in.getFloat(), in.getFloat(), in.getFloat(),
+                        in.getFloat(), in.getFloat(), in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.DRAW_LIST:
+                handler.drawList(in.getInt(), in.getFloat(), in.getFloat());
+                break;
+            case FastCanvasCommandEncoder.DRAW_IMAGES: {
+                int id = in.getInt();
+                int flags = in.getInt();
+                int frameCount = in.getInt();
+                int spriteCount = in.getInt();
+                int end = in.position() + needed - 16;
+                // views on the buffer, nothing is copied
+                FloatBuffer frames = in.slice()
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                frames.position(frameCount * 4);
+                FloatBuffer sprites = frames.slice();
+                frames.position(0);
+                handler.drawImages(id, flags, frames, frameCount, sprites,
+                        spriteCount);
+                in.position(end);
+                break;
+            }
+            case FastCanvasCommandEncoder.FILL_TEXT: {
+                int font = in.getInt();
+                int color = in.getInt();
+                int flags = in.getInt();
+                float x = in.getFloat();
+                float y = in.getFloat();
+                int textLength = in.getInt();
+                int end = in.position() + needed - 24;
+                IntBuffer codePoints = in.slice()
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                handler.fillText(font, color, flags, x, y, codePoints,
+                        textLength);
+                in.position(end);
+                break;
+            }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // Decodes text commands ("t1,0,0,1,10,20;d3,0,0,...;") and returns the
+    // number of commands decoded. As natively, missing operands are 0 and
+    // unknown commands are skipped.
+    public static int decodeText(String commands,
+            FastCanvasCommandHandler handler) {
+        float[] tokens = new float[8];
+        int[] next = new int[1];
+        int length = commands.length();
+        int count = 0;
+        int p = 0;
+        while (p < length) {
+            char op = commands.charAt(p);
+            int end = commands.indexOf(';', p);
+            if (end < 0) {
+                end = length;
+            }
+            int start = p + 1;
+            p = end + 1;
+
+            switch (op) {
+            case 't':
+                parseFloats(commands, start, end, tokens, 6);
+                handler.setTransform(tokens[0], tokens[1], tokens[2],
+                        tokens[3], tokens[4], tokens[5]);
+                break;
+            case 'f':
+                parseFloats(commands, start, end, tokens, 6);
+                handler.transform(tokens[0], tokens[1], tokens[2], tokens[3],
+                        tokens[4], tokens[5]);
+                break;
+            case 'm':
+                handler.resetTransform();
+                break;
+            case 'k':
+                parseFloats(commands, start, end, tokens, 2);
+                handler.scale(tokens[0], tokens[1]);
+                break;
+            case 'r':
+                parseFloats(commands, start, end, tokens, 1);
+                handler.rotate(tokens[0]);
+                break;
+            case 'l':
+                parseFloats(commands, start, end, tokens, 2);
+                handler.translate(tokens[0], tokens[1]);
+                break;
+            case 'v':
+                handler.save();
+                break;
+            case 'e':
+                handler.restore();
+                break;
+            case 'a':
+                parseFloats(commands, start, end, tokens, 1);
+                handler.setGlobalAlpha(tokens[0]);
+                break;
+            case 'd': {
+                int id = parseInt(commands, start, end, next);
+                parseFloats(commands, next[0], end, tokens, 8);
+                handler.drawImage(id, tokens[0], tokens[1], tokens[2],
+                        tokens[3], tokens[4], tokens[5], tokens[6], tokens[7]);
+                break;
+            }
+            case 'L': {
+                int id = parseInt(commands, start, end, next);
+                parseFloats(commands, next[0], end, tokens, 2);
+                handler.drawList(id, tokens[0], tokens[1]);
+                break;
+            }
+            case 'D':
+                decodeDrawImages(commands, start, end, handler);
+                break;
+            case 'T':
+                decodeFillText(commands, start, end, handler);
+                break;
+            default:
+                continue;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // D<id>,<flags>,<frameCount>,<spriteCount>,<frames...>,<sprites...>
+    // As natively, only the frames and sprites actually given are drawn.
+    private static void decodeDrawImages(String s, int start, int end,
+            FastCanvasCommandHandler handler) {
+        int[] header = new int[4];
+        int[] next = { start };
+        for (int i = 0; i < 4; i++) {
+            header[i] = next[0] < end ? parseInt(s, next[0], end, next) : 0;
+        }
+        int count = 0;
+        for (int p = next[0]; p < end; count++) {
+            int comma = s.indexOf(',', p);
+            p = comma < 0 || comma > end ? end : comma + 1;
+        }
+        float[] data = new float[count];
+        for (int i = 0, p = next[0]; i < count; i++) {
+            int comma = s.indexOf(',', p);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            data[i] = parseFloat(s, p, comma);
+            p = comma + 1;
+        }
+
+        int frameCount = Math.max(0, Math.min(header[2], count / 4));
+        int spriteCount = (count - frameCount * 4)
+                / FastCanvasCommandEncoder.spriteStride(header[1]);
+        if (header[3] < spriteCount) {
+            spriteCount = Math.max(0, header[3]);
+        }
+        FloatBuffer frames = FloatBuffer.wrap(data);
+        frames.position(frameCount * 4);
+        FloatBuffer sprites = frames.slice();
+        frames.position(0);
+        handler.drawImages(header[0], header[1], frames, frameCount,
+                sprites, spriteCount);
+    }
+
+    // T<font>,<color>,<flags>,<x>,<y>,<code points...>
+    private static void decodeFillText(String s, int start, int end,
+            FastCanvasCommandHandler handler) {
+        int[] header = new int[3];
+        float[] position = new float[2];
+        int[] next = { start };
+        for (int i = 0; i < 3; i++) {
+            header[i] = next[0] < end ? parseInt(s, next[0], end, next) : 0;
+        }
+        parseFloats(s, next[0], end, position, 2);
+        for (int i = 0; i < 2 && next[0] < end; i++) {
+            int comma = s.indexOf(',', next[0]);
+            next[0] = comma < 0 || comma > end ? end : comma + 1;
+        }
+        int count = 0;
+        for (int p = next[0]; p < end; count++) {
+            int comma = s.indexOf(',', p);
+            p = comma < 0 || comma > end ? end : comma + 1;
+        }
+        int[] codePoints = new int[count];
+        for (int i = 0; i < count; i++) {
+            codePoints[i] = parseInt(s, next[0], end, next);
+        }
+        handler.fillText(header[0], header[1], header[2], position[0],
+                position[1], IntBuffer.wrap(codePoints), count);
+    }
+
+    // Reads up to n comma separated numbers from start to end into tokens,
+    // zeroing the rest
+    private static void parseFloats(String s, int start, int end,
+            float[] tokens, int n) {
+        int p = start;
+        for (int i = 0; i < n; i++) {
+            if (p >= end) {
+                tokens[i] = 0;
+                continue;
+            }
+            int comma = s.indexOf(',', p);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            tokens[i] = parseFloat(s, p, comma);
+            p = comma + 1;
+        }
+    }
+
+    // Leading integer, like atoi. next[0] is set past the following comma.
+    private static int parseInt(String s, int start, int end, int[] next) {
+        int p = start;
+        boolean negative = p < end && s.charAt(p) == '-';
+        if (negative) {
+            p++;
+        }
+        int value = 0;
+        while (p < end) {
+            char c = s.charAt(p);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            p++;
+        }
+        int comma = s.indexOf(',', start);
+        next[0] = comma < 0 || comma > end ? end : comma + 1;
+        return negative ? -value : value;
+    }
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3,
+            1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+            1e16, 1e17, 1e18 };
+
+    // Plain decimals without going through a substring; anything else
+    // (exponents, very long numbers) falls back to Float.parseFloat. Not a
+    // number is 0, as with atof.
+    static float parseFloat(String s, int start, int end) {
+        int p = start;
+        boolean negative = p < end && s.charAt(p) == '-';
+        if (negative) {
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; p < end; p++) {
+            char c = s.charAt(p);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        if (p == end && digits <= 18) {
+            double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals]
+                    : mantissa;
+            return (float) (negative ? -value : value);
+        }
+        try {
+            return Float.parseFloat(s.substring(start, end).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Bytes of frames and sprites following the DRAW_IMAGES header at i,
+    // more than any buffer holds if the counts are negative or too large
+    private static int drawImagesBytes(ByteBuffer in, int i) {
+        int frameCount = in.getInt(i + 8);
+        int spriteCount = in.getInt(i + 12);
+        long bytes = 4L * (4L * frameCount + (long) spriteCount
+                * FastCanvasCommandEncoder.spriteStride(in.getInt(i + 4)));
+        if (frameCount < 0 || spriteCount < 0
+                || bytes > Integer.MAX_VALUE - 16) {
+            return Integer.MAX_VALUE - 16;
+        }
+        return (int) bytes;
+    }
+
+    // Bytes of code points following the FILL_TEXT header at i, likewise
+    private static int fillTextBytes(ByteBuffer in, int i) {
+        int count = in.getInt(i + 20);
+        if (count < 0 || count > (Integer.MAX_VALUE - 24) / 4) {
+            return Integer.MAX_VALUE - 24;
+        }
+        return count * 4;
+    }
+
+    // Number of operand bytes following op, or -1 for an unknown opcode.
+    // For DRAW_IMAGES and FILL_TEXT this is their header; the data they
+    // count follows.
+    public static int operandBytes(byte op) {
+        switch (op) {
+        case FastCanvasCommandEncoder.SET_TRANSFORM:
+        case FastCanvasCommandEncoder.TRANSFORM:
+            return 6 * 4;
+        case FastCanvasCommandEncoder.SCALE:
+        case FastCanvasCommandEncoder.TRANSLATE:
+            return 2 * 4;
+        case FastCanvasCommandEncoder.ROTATE:
+        case FastCanvasCommandEncoder.GLOBAL_ALPHA:
+            return 4;
+        case FastCanvasCommandEncoder.DRAW_IMAGE:
+            return 4 + 8 * 4;
+        case FastCanvasCommandEncoder.DRAW_LIST:
+            return 4 + 2 * 4;
+        case FastCanvasCommandEncoder.DRAW_IMAGES:
+            return 4 * 4;
+        case FastCanvasCommandEncoder.FILL_TEXT:
+            return 6 * 4;
+        case FastCanvasCommandEncoder.RESET_TRANSFORM:
+        case FastCanvasCommandEncoder.SAVE:
+        case FastCanvasCommandEncoder.RESTORE:
+            return 0;
+        default:
+            return -1;
+        }
+    }
+}
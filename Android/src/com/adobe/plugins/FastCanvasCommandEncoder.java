@@ -0,0 +1,206 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+// Writes render commands in the binary format read by
+// Canvas::BuildStreamsBinary and FastCanvasCommandDecoder.
+//
+// Every command is a one byte opcode, the same letter as the text protocol,
+// followed by its operands as little-endian float32 values. drawImage ('d')
+// starts with an int32 texture ID followed by its eight clip floats, drawList
+// ('L') with an int32 list ID followed by x and y. drawImages ('D') is a
+// variable length command: int32 texture ID, flags, frame count and sprite
+// count, then the frames and the sprites as float32. So is fillText ('T'):
+// int32 font ID, color and flags, float32 x and y, then an int32 count and
+// the int32 code points.
+public class FastCanvasCommandEncoder implements FastCanvasCommandHandler {
+
+    public static final byte SET_TRANSFORM = 't';
+    public static final byte TRANSFORM = 'f';
+    public static final byte RESET_TRANSFORM = 'm';
+    public static final byte SCALE = 'k';
+    public static final byte ROTATE = 'r';
+    public static final byte TRANSLATE = 'l';
+    public static final byte SAVE = 'v';
+    public static final byte RESTORE = 'e';
+    public static final byte GLOBAL_ALPHA = 'a';
+    public static final byte DRAW_IMAGE = 'd';
+    public static final byte DRAW_LIST = 'L';
+    public static final byte DRAW_IMAGES = 'D';
+    public static final byte FILL_TEXT = 'T';
+
+    // drawImages flags: the optional values following x, y and frame in
+    // each sprite, in this order
+    public static final int SPRITE_ROTATION = 1;
+    public static final int SPRITE_SCALE = 2;
+    public static final int SPRITE_ALPHA = 4;
+
+    // fillText flags, an alignment or'ed with a baseline
+    public static final int TEXT_ALIGN_LEFT = 0;
+    public static final int TEXT_ALIGN_CENTER = 1;
+    public static final int TEXT_ALIGN_RIGHT = 2;
+    public static final int TEXT_BASELINE_ALPHABETIC = 0;
+    public static final int TEXT_BASELINE_TOP = 1 << 2;
+    public static final int TEXT_BASELINE_MIDDLE = 2 << 2;
+    public static final int TEXT_BASELINE_BOTTOM = 3 << 2;
+
+    private ByteBuffer buffer;
+
+    public FastCanvasCommandEncoder() {
+        this(4096);
+    }
+
+    public FastCanvasCommandEncoder(int initialCapacity) {
+        buffer = allocate(initialCapacity);
+    }
+
+    // The encoded commands, from 0 to length()
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return buffer.position();
+    }
+
+    public void reset() {
+        buffer.clear();
+    }
+
+    public void setTransform(float a, float b, float c, float d, float tx,
+            float ty) {
+        ensure(1 + 6 * 4);
+        buffer.put(SET_TRANSFORM);
+        buffer.putFloat(a).putFloat(b).putFloat(c).putFloat(d)
+                .putFloat(tx).putFloat(ty);
+    }
+
+    public void transform(float a, float b, float c, float d, float tx,
+            float ty) {
+        ensure(1 + 6 * 4);
+        buffer.put(TRANSFORM);
+        buffer.putFloat(a).putFloat(b).putFloat(c).putFloat(d)
+                .putFloat(tx).putFloat(ty);
+    }
+
+    public void resetTransform() {
+        ensure(1);
+        buffer.put(RESET_TRANSFORM);
+    }
+
+    public void scale(float sx, float sy) {
+        ensure(1 + 2 * 4);
+        buffer.put(SCALE).putFloat(sx).putFloat(sy);
+    }
+
+    public void rotate(float angle) {
+        ensure(1 + 4);
+        buffer.put(ROTATE).putFloat(angle);
+    }
+
+    public void translate(float tx, float ty) {
+        ensure(1 + 2 * 4);
+        buffer.put(TRANSLATE).putFloat(tx).putFloat(ty);
+    }
+
+    public void save() {
+        ensure(1);
+        buffer.put(SAVE);
+    }
+
+    public void restore() {
+        ensure(1);
+        buffer.put(RESTORE);
+    }
+
+    public void setGlobalAlpha(float alpha) {
+        ensure(1 + 4);
+        buffer.put(GLOBAL_ALPHA).putFloat(alpha);
+    }
+
+    public void drawImage(int textureID, float cx, float cy, float cw,
+            float ch, float px, float py, float pw, float ph) {
+        ensure(1 + 4 + 8 * 4);
+        buffer.put(DRAW_IMAGE).putInt(textureID);
+        buffer.putFloat(cx).putFloat(cy).putFloat(cw).putFloat(ch);
+        buffer.putFloat(px).putFloat(py).putFloat(pw).putFloat(ph);
+    }
+
+    public void drawList(int listID, float x, float y) {
+        ensure(1 + 4 + 2 * 4);
+        buffer.put(DRAW_LIST).putInt(listID).putFloat(x).putFloat(y);
+    }
+
+    public void drawImages(int textureID, int flags, FloatBuffer frames,
+            int frameCount, FloatBuffer sprites, int spriteCount) {
+        int frameFloats = frameCount * 4;
+        int spriteFloats = spriteCount * spriteStride(flags);
+        ensure(1 + 4 * 4 + (frameFloats + spriteFloats) * 4);
+        buffer.put(DRAW_IMAGES).putInt(textureID).putInt(flags)
+                .putInt(frameCount).putInt(spriteCount);
+        FloatBuffer out = buffer.asFloatBuffer();
+        out.put(range(frames, frameFloats));
+        out.put(range(sprites, spriteFloats));
+        buffer.position(buffer.position() + out.position() * 4);
+    }
+
+    public void fillText(int fontID, int color, int flags, float x, float y,
+            IntBuffer codePoints, int count) {
+        ensure(1 + 6 * 4 + count * 4);
+        buffer.put(FILL_TEXT).putInt(fontID).putInt(color).putInt(flags)
+                .putFloat(x).putFloat(y).putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(codePoints.get(i));
+        }
+    }
+
+    // Floats per drawImages sprite
+    public static int spriteStride(int flags) {
+        return 3 + ((flags & SPRITE_ROTATION) != 0 ? 1 : 0)
+                + ((flags & SPRITE_SCALE) != 0 ? 1 : 0)
+                + ((flags & SPRITE_ALPHA) != 0 ? 1 : 0);
+    }
+
+    private static FloatBuffer range(FloatBuffer floats, int count) {
+        FloatBuffer range = floats.duplicate();
+        range.limit(count);
+        range.position(0);
+        return range;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int capacity = buffer.capacity() * 2;
+            while (capacity - buffer.position() < bytes) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(Math.max(capacity, 64)).order(
+                ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+// Receives render commands one at a time, in stream order. The methods map
+// one to one onto the commands of the render protocol (see Canvas::BuildStreams)
+public interface FastCanvasCommandHandler {
+
+    // t
+    void setTransform(float a, float b, float c, float d, float tx, float ty);
+
+    // f
+    void transform(float a, float b, float c, float d, float tx, float ty);
+
+    // m
+    void resetTransform();
+
+    // k
+    void scale(float sx, float sy);
+
+    // r
+    void rotate(float angle);
+
+    // l
+    void translate(float tx, float ty);
+
+    // v
+    void save();
+
+    // e
+    void restore();
+
+    // a
+    void setGlobalAlpha(float alpha);
+
+    // d
+    void drawImage(int textureID, float cx, float cy, float cw, float ch,
+            float px, float py, float pw, float ph);
+
+    // D, many sprites of one texture. frames holds frameCount source
+    // rectangles (cx, cy, cw, ch) and sprites spriteCount sprites of x, y,
+    // frame index and the optional values asked for by flags (see
+    // FastCanvasCommandEncoder.spriteStride), both from index 0. The buffers
+    // are only valid during the call.
+    void drawImages(int textureID, int flags, FloatBuffer frames,
+            int frameCount, FloatBuffer sprites, int spriteCount);
+
+    // L, a display list recorded with defineList
+    void drawList(int listID, float x, float y);
+
+    // T, count code points of text in font fontID (see
+    // FastCanvasJNI.defineFont) and color, RGBA from the high byte down.
+    // flags has the alignment and baseline (see FastCanvasCommandEncoder
+    // TEXT_ALIGN_ and TEXT_BASELINE_) placing it at x, y. codePoints is
+    // from index 0 and only valid during the call.
+    void fillText(int fontID, int color, int flags, float x, float y,
+            IntBuffer codePoints, int count);
+}
@@ -0,0 +1,324 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+// A GPU compressed texture read from a KTX (version 1) or PKM file, ready for
+// glCompressedTexImage2D.
+//
+// parse() only reads the header: each mip level is a slice of the buffer it
+// was given, usually a memory mapped asset, so nothing is copied. Only 2D
+// textures with compressed formats are accepted. Level sizes are checked
+// against the block size for ETC1, ETC2 and ASTC; other compressed formats
+// are taken as they are. Any thread.
+public class FastCanvasCompressedTexture {
+
+    // OES_compressed_ETC1_RGB8_texture
+    public static final int GL_ETC1_RGB8_OES = 0x8D64;
+    // ETC2 and EAC, GL ES 3.0
+    public static final int GL_COMPRESSED_R11_EAC = 0x9270;
+    public static final int GL_COMPRESSED_SIGNED_R11_EAC = 0x9271;
+    public static final int GL_COMPRESSED_RG11_EAC = 0x9272;
+    public static final int GL_COMPRESSED_SIGNED_RG11_EAC = 0x9273;
+    public static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+    public static final int GL_COMPRESSED_SRGB8_ETC2 = 0x9275;
+    public static final int GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9276;
+    public static final int GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9277;
+    public static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+    public static final int GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC = 0x9279;
+    // KHR_texture_compression_astc_ldr, 4x4 to 12x12 in the order of
+    // ASTC_BLOCKS, and their sRGB variants from 0x93D0
+    public static final int GL_COMPRESSED_RGBA_ASTC_4x4_KHR = 0x93B0;
+    public static final int GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4_KHR = 0x93D0;
+
+    private static final int[][] ASTC_BLOCKS = { { 4, 4 }, { 5, 4 },
+            { 5, 5 }, { 6, 5 }, { 6, 6 }, { 8, 5 }, { 8, 6 }, { 8, 8 },
+            { 10, 5 }, { 10, 6 }, { 10, 8 }, { 10, 10 }, { 12, 10 },
+            { 12, 12 } };
+
+    private static final byte[] KTX_IDENTIFIER = { (byte) 0xAB, 'K', 'T',
+            'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n', 0x1A, '\n' };
+    private static final int KTX_HEADER_BYTES = 64;
+    private static final int KTX_ENDIANNESS = 0x04030201;
+    private static final int PKM_HEADER_BYTES = 16;
+
+    // Size of the image itself
+    public final int width;
+    public final int height;
+    // Size of the top level; PKM rounds it up to whole blocks
+    public final int textureWidth;
+    public final int textureHeight;
+    // glCompressedTexImage2D internalformat
+    public final int format;
+    private final ByteBuffer[] levels;
+
+    private FastCanvasCompressedTexture(int format, int width, int height,
+            int textureWidth, int textureHeight, ByteBuffer[] levels) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.textureWidth = textureWidth;
+        this.textureHeight = textureHeight;
+        this.levels = levels;
+    }
+
+    // True for file names parse() can read
+    public static boolean accepts(String path) {
+        String lower = path.toLowerCase(Locale.US);
+        return lower.endsWith(".ktx") || lower.endsWith(".pkm");
+    }
+
+    // Reads a KTX or PKM file from the buffer's position to its limit
+    public static FastCanvasCompressedTexture parse(ByteBuffer file)
+            throws IOException {
+        ByteBuffer data = file.slice();
+        if (data.remaining() >= KTX_IDENTIFIER.length
+                && startsWith(data, KTX_IDENTIFIER)) {
+            return parseKTX(data);
+        }
+        if (data.remaining() >= 4 && data.get(0) == 'P'
+                && data.get(1) == 'K' && data.get(2) == 'M'
+                && data.get(3) == ' ') {
+            return parsePKM(data);
+        }
+        throw new IOException("not a KTX or PKM file");
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    // Level 0 is the full size texture
+    public ByteBuffer getLevel(int level) {
+        return levels[level].duplicate();
+    }
+
+    public int getLevelWidth(int level) {
+        return Math.max(1, textureWidth >> level);
+    }
+
+    public int getLevelHeight(int level) {
+        return Math.max(1, textureHeight >> level);
+    }
+
+    // Whether the file has every level down to 1x1, which GL ES needs to
+    // mipmap; otherwise only level 0 is of use
+    public boolean hasAllLevels() {
+        int size = Math.max(textureWidth, textureHeight);
+        return levels.length > 1
+                && levels.length == 32 - Integer.numberOfLeadingZeros(size);
+    }
+
+    // Bytes the upload sends to the GPU
+    public int getByteCount() {
+        int bytes = 0;
+        int count = hasAllLevels() ? levels.length : 1;
+        for (int i = 0; i < count; i++) {
+            bytes += levels[i].remaining();
+        }
+        return bytes;
+    }
+
+    // Bytes of one level of format, or -1 if the block size of format isn't
+    // known. Sizes past what a buffer can hold come out as
+    // Integer.MAX_VALUE, which no level in a file can match.
+    public static int levelBytes(int format, int width, int height) {
+        int blockWidth = 4, blockHeight = 4, blockBytes;
+        switch (format) {
+        case GL_ETC1_RGB8_OES:
+        case GL_COMPRESSED_R11_EAC:
+        case GL_COMPRESSED_SIGNED_R11_EAC:
+        case GL_COMPRESSED_RGB8_ETC2:
+        case GL_COMPRESSED_SRGB8_ETC2:
+        case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+        case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+            blockBytes = 8;
+            break;
+        case GL_COMPRESSED_RG11_EAC:
+        case GL_COMPRESSED_SIGNED_RG11_EAC:
+        case GL_COMPRESSED_RGBA8_ETC2_EAC:
+        case GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC:
+            blockBytes = 16;
+            break;
+        default:
+            int astc = format >= GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4_KHR ? format
+                    - GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4_KHR
+                    : format - GL_COMPRESSED_RGBA_ASTC_4x4_KHR;
+            if (astc < 0 || astc >= ASTC_BLOCKS.length) {
+                return -1;
+            }
+            blockWidth = ASTC_BLOCKS[astc][0];
+            blockHeight = ASTC_BLOCKS[astc][1];
+            blockBytes = 16;
+        }
+        long bytes = (((long) width + blockWidth - 1) / blockWidth)
+                * (((long) height + blockHeight - 1) / blockHeight)
+                * blockBytes;
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    private static FastCanvasCompressedTexture parseKTX(ByteBuffer data)
+            throws IOException {
+        if (data.remaining() < KTX_HEADER_BYTES) {
+            throw new IOException("KTX header truncated");
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        int endianness = data.getInt(12);
+        if (endianness != KTX_ENDIANNESS) {
+            data.order(ByteOrder.BIG_ENDIAN);
+            if (data.getInt(12) != KTX_ENDIANNESS) {
+                throw new IOException("KTX endianness "
+                        + Integer.toHexString(endianness));
+            }
+        }
+        int glType = data.getInt(16);
+        int glFormat = data.getInt(24);
+        int internalFormat = data.getInt(28);
+        int width = data.getInt(36);
+        int height = data.getInt(40);
+        int depth = data.getInt(44);
+        int arrayElements = data.getInt(48);
+        int faces = data.getInt(52);
+        int levelCount = Math.max(1, data.getInt(56));
+        int keyValueBytes = data.getInt(60);
+
+        if (glType != 0 || glFormat != 0) {
+            throw new IOException("KTX is not compressed");
+        }
+        if (depth != 0 || arrayElements != 0 || faces != 1 || width <= 0
+                || height <= 0) {
+            throw new IOException("KTX is not a 2D texture: " + width + "x"
+                    + height + "x" + depth + ", " + arrayElements
+                    + " elements, " + faces + " faces");
+        }
+        if (levelCount > 32 || keyValueBytes < 0) {
+            throw new IOException("KTX header is corrupt");
+        }
+
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        long offset = (long) KTX_HEADER_BYTES + keyValueBytes;
+        for (int i = 0; i < levelCount; i++) {
+            if (offset + 4 > data.limit()) {
+                throw new IOException("KTX level " + i + " truncated");
+            }
+            int size = data.getInt((int) offset);
+            offset += 4;
+            int w = Math.max(1, width >> i);
+            int h = Math.max(1, height >> i);
+            int expected = levelBytes(internalFormat, w, h);
+            if (size < 0 || (expected >= 0 && size != expected)) {
+                throw new IOException("KTX level " + i + " is " + size
+                        + " bytes, " + w + "x" + h + " of format 0x"
+                        + Integer.toHexString(internalFormat) + " is "
+                        + expected);
+            }
+            if (offset + size > data.limit()) {
+                throw new IOException("KTX level " + i + " truncated");
+            }
+            levels[i] = slice(data, (int) offset, size);
+            // levels are padded to 4 bytes
+            offset += (size + 3) & ~3;
+        }
+        return new FastCanvasCompressedTexture(internalFormat, width, height,
+                width, height, levels);
+    }
+
+    private static FastCanvasCompressedTexture parsePKM(ByteBuffer data)
+            throws IOException {
+        if (data.remaining() < PKM_HEADER_BYTES) {
+            throw new IOException("PKM header truncated");
+        }
+        // big endian throughout
+        data.order(ByteOrder.BIG_ENDIAN);
+        int version = data.getShort(4);
+        int type = data.getShort(6) & 0xffff;
+        int textureWidth = data.getShort(8) & 0xffff;
+        int textureHeight = data.getShort(10) & 0xffff;
+        int width = data.getShort(12) & 0xffff;
+        int height = data.getShort(14) & 0xffff;
+
+        int format;
+        if (version == ('1' << 8 | '0')) {
+            if (type != 0) {
+                throw new IOException("PKM 1.0 type " + type);
+            }
+            format = GL_ETC1_RGB8_OES;
+        } else if (version == ('2' << 8 | '0')) {
+            format = pkm2Format(type);
+        } else {
+            throw new IOException("PKM version "
+                    + (char) ((version >> 8) & 0xff) + (char) (version & 0xff));
+        }
+        if (width == 0 || height == 0 || textureWidth < width
+                || textureHeight < height || textureWidth % 4 != 0
+                || textureHeight % 4 != 0) {
+            throw new IOException("PKM size " + width + "x" + height + " in "
+                    + textureWidth + "x" + textureHeight);
+        }
+
+        int size = levelBytes(format, textureWidth, textureHeight);
+        if ((long) PKM_HEADER_BYTES + size > data.limit()) {
+            throw new IOException("PKM data truncated");
+        }
+        return new FastCanvasCompressedTexture(format, width, height,
+                textureWidth, textureHeight, new ByteBuffer[] { slice(data,
+                        PKM_HEADER_BYTES, size) });
+    }
+
+    // etcpack's format numbers
+    private static int pkm2Format(int type) throws IOException {
+        switch (type) {
+        case 0:
+            return GL_ETC1_RGB8_OES;
+        case 1:
+            return GL_COMPRESSED_RGB8_ETC2;
+        case 3:
+            return GL_COMPRESSED_RGBA8_ETC2_EAC;
+        case 4:
+            return GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2;
+        case 5:
+            return GL_COMPRESSED_R11_EAC;
+        case 6:
+            return GL_COMPRESSED_RG11_EAC;
+        case 7:
+            return GL_COMPRESSED_SIGNED_R11_EAC;
+        case 8:
+            return GL_COMPRESSED_SIGNED_RG11_EAC;
+        default:
+            throw new IOException("PKM 2.0 type " + type);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int size) {
+        ByteBuffer level = data.duplicate();
+        level.limit(offset + size);
+        level.position(offset);
+        return level.slice();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// RGBA pixels decoded off the GL thread, laid out exactly as they will be
+// handed to glTexImage2D: textureWidth x textureHeight, with the image in the
+// top left corner and the rest transparent, or the whole image resampled to
+// that size if it was scaled. A compressed texture holds the compressed
+// levels instead, see getCompressed().
+public class FastCanvasDecodedTexture {
+
+    // Size of the image itself
+    public final int width;
+    public final int height;
+
+    // Size of the GL texture
+    public final int textureWidth;
+    public final int textureHeight;
+
+    private ByteBuffer pixels;
+    private boolean nativeMemory;
+    private FastCanvasBufferPool pool;
+    private boolean scaled;
+    private FastCanvasCompressedTexture compressed;
+
+    // nativeMemory is true for buffers returned by
+    // FastCanvasJNI.decodePngTexture, which have to be freed explicitly
+    public FastCanvasDecodedTexture(ByteBuffer pixels, int width, int height,
+            boolean nativeMemory) {
+        this(pixels, width, height, width, height, nativeMemory);
+    }
+
+    // pixels came from pool.acquire() and go back to it on release()
+    public FastCanvasDecodedTexture(ByteBuffer pixels, int width, int height,
+            FastCanvasBufferPool pool) {
+        this(pixels, width, height, width, height, false);
+        this.pool = pool;
+    }
+
+    // A KTX or PKM texture. file is the buffer it was parsed from if that
+    // came from pool.acquire(), null if it is mapped.
+    public FastCanvasDecodedTexture(FastCanvasCompressedTexture compressed,
+            ByteBuffer file, FastCanvasBufferPool pool) {
+        this(file, compressed.width, compressed.height,
+                compressed.textureWidth, compressed.textureHeight, false);
+        this.pool = pool;
+        this.compressed = compressed;
+    }
+
+    private FastCanvasDecodedTexture(ByteBuffer pixels, int width, int height,
+            int textureWidth, int textureHeight, boolean nativeMemory) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.textureWidth = textureWidth;
+        this.textureHeight = textureHeight;
+        this.nativeMemory = nativeMemory;
+    }
+
+    // Pixels as they were before, e.g. mapped from FastCanvasTextureCache,
+    // sized and scaled as given. release() leaves them to the GC.
+    static FastCanvasDecodedTexture restore(ByteBuffer pixels, int width,
+            int height, int textureWidth, int textureHeight, boolean scaled) {
+        FastCanvasDecodedTexture decoded = new FastCanvasDecodedTexture(
+                pixels, width, height, textureWidth, textureHeight, false);
+        decoded.scaled = scaled;
+        return decoded;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    // Null unless this is a compressed texture, whose levels go to
+    // glCompressedTexImage2D as they are
+    public FastCanvasCompressedTexture getCompressed() {
+        return compressed;
+    }
+
+    // Bytes the upload sends to the GPU
+    public int getByteCount() {
+        if (compressed != null) {
+            return compressed.getByteCount();
+        }
+        return textureWidth * textureHeight * 4;
+    }
+
+    // The size drawImage clip coordinates are divided by to get texture
+    // coordinates: the texture size, unless the image was scaled to fit it
+    public int getUVWidth() {
+        return scaled ? width : textureWidth;
+    }
+
+    public int getUVHeight() {
+        return scaled ? height : textureHeight;
+    }
+
+    public boolean isPowerOfTwo() {
+        return textureWidth == nextPowerOfTwo(textureWidth)
+                && textureHeight == nextPowerOfTwo(textureHeight);
+    }
+
+    // Returns a texture with power of two dimensions holding these pixels,
+    // which is this one if the image already has them. A padded copy
+    // releases this one.
+    public FastCanvasDecodedTexture padToPowerOfTwo() {
+        int p2Width = nextPowerOfTwo(width);
+        int p2Height = nextPowerOfTwo(height);
+        if (textureWidth == p2Width && textureHeight == p2Height) {
+            return this;
+        }
+
+        ByteBuffer padded = ByteBuffer.allocateDirect(p2Width * p2Height * 4)
+                .order(ByteOrder.nativeOrder());
+        ByteBuffer row = pixels.duplicate();
+        int rowBytes = width * 4;
+        for (int y = 0; y < height; y++) {
+            row.limit(y * textureWidth * 4 + rowBytes);
+            row.position(y * textureWidth * 4);
+            padded.position(y * p2Width * 4);
+            padded.put(row);
+        }
+        padded.clear();
+
+        release();
+        return new FastCanvasDecodedTexture(padded, width, height, p2Width,
+                p2Height, false);
+    }
+
+    // Returns a texture with power of two dimensions no larger than the
+    // image, resampled bilinearly, which is this one if the image already
+    // has them. A scaled copy releases this one. Uses a quarter or less of
+    // the memory padding would, at the cost of detail.
+    public FastCanvasDecodedTexture scaleToPowerOfTwo() {
+        if (isPowerOfTwo()) {
+            return this;
+        }
+        int dstWidth = previousPowerOfTwo(width);
+        int dstHeight = previousPowerOfTwo(height);
+
+        byte[] src = new byte[width * height * 4];
+        ByteBuffer in = pixels.duplicate();
+        int stride = textureWidth * 4;
+        for (int y = 0; y < height; y++) {
+            in.limit(y * stride + width * 4);
+            in.position(y * stride);
+            in.get(src, y * width * 4, width * 4);
+        }
+
+        byte[] dst = new byte[dstWidth * dstHeight * 4];
+        float xRatio = (float) width / dstWidth;
+        float yRatio = (float) height / dstHeight;
+        int i = 0;
+        for (int y = 0; y < dstHeight; y++) {
+            float sy = Math.max(0, (y + 0.5f) * yRatio - 0.5f);
+            int y0 = Math.min((int) sy, height - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            for (int x = 0; x < dstWidth; x++) {
+                float sx = Math.max(0, (x + 0.5f) * xRatio - 0.5f);
+                int x0 = Math.min((int) sx, width - 1);
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+                int p00 = (y0 * width + x0) * 4;
+                int p10 = (y0 * width + x1) * 4;
+                int p01 = (y1 * width + x0) * 4;
+                int p11 = (y1 * width + x1) * 4;
+                for (int c = 0; c < 4; c++) {
+                    float top = (src[p00 + c] & 0xff) * (1 - fx)
+                            + (src[p10 + c] & 0xff) * fx;
+                    float bottom = (src[p01 + c] & 0xff) * (1 - fx)
+                            + (src[p11 + c] & 0xff) * fx;
+                    dst[i++] = (byte) (top * (1 - fy) + bottom * fy + 0.5f);
+                }
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocateDirect(dst.length).order(
+                ByteOrder.nativeOrder());
+        out.put(dst);
+        out.clear();
+
+        release();
+        FastCanvasDecodedTexture result = new FastCanvasDecodedTexture(out,
+                width, height, dstWidth, dstHeight, false);
+        result.scaled = true;
+        return result;
+    }
+
+    // Frees the pixels. Any thread, but only once the upload is done.
+    public void release() {
+        compressed = null;
+        if (pixels != null && nativeMemory) {
+            FastCanvasJNI.freeTextureData(pixels);
+        } else if (pixels != null && pool != null) {
+            pool.release(pixels);
+        }
+        pixels = null;
+    }
+
+    public static int previousPowerOfTwo(int size) {
+        return Math.max(2, Integer.highestOneBit(size));
+    }
+
+    // GL ES 1.1 wants power of two textures; 2 is the smallest the native
+    // loader ever used
+    public static int nextPowerOfTwo(int size) {
+        int p2 = 2;
+        while (p2 < size) {
+            p2 *= 2;
+        }
+        return p2;
+    }
+}
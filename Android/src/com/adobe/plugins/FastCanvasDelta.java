@@ -0,0 +1,88 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+// Text frames sent as changes to the previous frame.
+//
+// Each frame carries a sequence number. A keyframe holds the whole command
+// string; a delta names the frame it was made against and a patch: a flat
+// array of (offset, removed, inserted) triples, each replacing the removed
+// characters at offset in the base frame with the inserted string. Ranges are
+// in ascending order and don't overlap. The client lines them up with whole
+// commands, see FastCanvasDelta in FastCanvas.js.
+//
+// A delta whose base isn't the last frame seen (lost, reordered, or sent
+// before any keyframe) can't be applied; the client is then asked for a
+// keyframe. Any thread.
+public class FastCanvasDelta {
+
+    private int sequence = -1;
+    private String commands;
+
+    public synchronized void setKeyframe(int sequence, String commands) {
+        this.sequence = sequence;
+        this.commands = commands;
+    }
+
+    // The commands of frame sequence, or null if base isn't the last frame
+    public synchronized String apply(int base, int sequence, JSONArray patch)
+            throws JSONException {
+        if (commands == null || base != this.sequence) {
+            return null;
+        }
+        commands = apply(commands, patch);
+        this.sequence = sequence;
+        return commands;
+    }
+
+    public synchronized void reset() {
+        sequence = -1;
+        commands = null;
+    }
+
+    public static String apply(String base, JSONArray patch)
+            throws JSONException {
+        int count = patch.length();
+        if (count % 3 != 0) {
+            throw new JSONException("patch length " + count
+                    + " is not a multiple of 3");
+        }
+        int length = base.length();
+        int size = length;
+        for (int i = 0; i < count; i += 3) {
+            size += patch.getString(i + 2).length() - patch.getInt(i + 1);
+        }
+        StringBuilder out = new StringBuilder(Math.max(size, 0));
+        int position = 0;
+        for (int i = 0; i < count; i += 3) {
+            int offset = patch.getInt(i);
+            int removed = patch.getInt(i + 1);
+            if (offset < position || removed < 0 || offset + removed > length) {
+                throw new JSONException("patch range " + offset + "+"
+                        + removed + " out of order or outside the "
+                        + length + " character base frame");
+            }
+            out.append(base, position, offset);
+            out.append(patch.getString(i + 2));
+            position = offset + removed;
+        }
+        out.append(base, position, length);
+        return out.toString();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// A frame turned into vertices and draw calls by FastCanvasFrameBuilder,
+// ready for FastCanvasJNI.renderBatch.
+//
+// Vertices use the native Vertex2 layout: x, y, u, v as floats followed by
+// RGBA bytes. Each draw is DRAW_INTS ints, as read by Canvas::RenderBatch:
+// GL texture ID, first vertex, vertex count and flags. A draw with FLAG_LIST
+// set draws a display list instead, with the list ID and the index of its
+// transform (a, b, c, d, tx, ty) in the list transforms.
+//
+// Batches are reused from frame to frame; the arrays only grow.
+public class FastCanvasFrameBatch {
+
+    public static final int VERTEX_INTS = 5;
+    public static final int VERTEX_BYTES = VERTEX_INTS * 4;
+    public static final int DRAW_INTS = 4;
+    public static final int FLAG_COLOR = 1;
+    public static final int FLAG_LIST = 2;
+
+    int[] vertices = new int[1024 * VERTEX_INTS];
+    int vertexCount;
+    int[] draws = new int[64 * DRAW_INTS];
+    int drawCount;
+    float[] listTransforms = new float[8 * 6];
+    int listCount;
+    int[] used = new int[64];
+    int usedCount;
+    int culledCount;
+    // font ID and code point pairs, each once
+    int[] missingGlyphs = new int[2 * 16];
+    int missingCount;
+    int glyphHits;
+    int glyphMisses;
+
+    private ByteBuffer vertexBuffer;
+    private long sequence;
+    private long publishTime;
+    private long frameNumber;
+    private int commandBytes;
+    private long tableVersion;
+    private long buildNanos;
+
+    public void reset(FastCanvasFrameMailbox.Frame frame, long tableVersion) {
+        this.sequence = frame.getSequence();
+        this.publishTime = frame.getPublishTime();
+        this.frameNumber = frame.getFrameNumber();
+        this.commandBytes = frame.isEmpty() ? 0 : frame.isBinary() ? frame
+                .getBuffer().limit() : frame.getCommand().length();
+        this.tableVersion = tableVersion;
+        vertexCount = 0;
+        drawCount = 0;
+        listCount = 0;
+        usedCount = 0;
+        culledCount = 0;
+        missingCount = 0;
+        glyphHits = 0;
+        glyphMisses = 0;
+    }
+
+    void addMissingGlyph(int fontID, int codePoint) {
+        for (int i = missingCount * 2 - 2; i >= 0; i -= 2) {
+            if (missingGlyphs[i] == fontID && missingGlyphs[i + 1] == codePoint) {
+                return;
+            }
+        }
+        if (missingGlyphs.length < (missingCount + 1) * 2) {
+            int[] grown = new int[missingGlyphs.length * 2];
+            System.arraycopy(missingGlyphs, 0, grown, 0, missingCount * 2);
+            missingGlyphs = grown;
+        }
+        missingGlyphs[missingCount * 2] = fontID;
+        missingGlyphs[missingCount * 2 + 1] = codePoint;
+        missingCount++;
+    }
+
+    // Copies the vertices into the direct buffer handed to native code
+    void finish(long buildNanos) {
+        int bytes = vertexCount * VERTEX_BYTES;
+        if (vertexBuffer == null || vertexBuffer.capacity() < bytes) {
+            vertexBuffer = ByteBuffer.allocateDirect(
+                    Math.max(bytes, vertices.length * 4)).order(
+                    ByteOrder.nativeOrder());
+        }
+        vertexBuffer.clear();
+        vertexBuffer.asIntBuffer().put(vertices, 0, vertexCount * VERTEX_INTS);
+        vertexBuffer.limit(bytes);
+        this.buildNanos = buildNanos;
+    }
+
+    // Sequence of the frame the batch was built from. The frame itself may
+    // have been reused by the mailbox since.
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getPublishTime() {
+        return publishTime;
+    }
+
+    public long getFrameNumber() {
+        return frameNumber;
+    }
+
+    // Size of the frame's commands, in chars for text frames
+    public int getCommandBytes() {
+        return commandBytes;
+    }
+
+    // Version of the FastCanvasTextureTable the batch was built against
+    public long getTableVersion() {
+        return tableVersion;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public ByteBuffer getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int[] getDraws() {
+        return draws;
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    public float[] getListTransforms() {
+        return listTransforms;
+    }
+
+    // Texture IDs drawn, loaded or not, each once
+    public int[] getUsedTextures() {
+        return used;
+    }
+
+    public int getUsedCount() {
+        return usedCount;
+    }
+
+    // Quads drawn, not counting display lists
+    public int getQuadCount() {
+        return vertexCount / 4;
+    }
+
+    // Quads left out because they were outside the viewport
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    // Font ID and code point pairs of the glyphs fillText didn't find in
+    // the table, as FastCanvasJNI.getMissingGlyphs
+    public int[] getMissingGlyphs() {
+        return missingGlyphs;
+    }
+
+    public int getMissingGlyphCount() {
+        return missingCount;
+    }
+
+    // fillText glyphs found and not found
+    public int getGlyphHits() {
+        return glyphHits;
+    }
+
+    public int getGlyphMisses() {
+        return glyphMisses;
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+// Turns render commands into a FastCanvasFrameBatch without touching GL, so
+// it can run on a worker thread (see FastCanvasFramePipeline) or a desktop
+// JVM.
+//
+// This is the Java mirror of Canvas::BuildStreams and DoPushQuad: the same
+// transform math, the same rounding, and a new draw whenever the GL texture
+// changes. Textures come from a FastCanvasTextureTable snapshot; images that
+// aren't loaded are skipped but still reported as used. As natively, the
+// transform and alpha carry over from one frame to the next, quads outside
+// the viewport are counted instead of built, and text with a glyph that
+// isn't in the table is left out and reported in the batch.
+//
+// One thread at a time.
+public class FastCanvasFrameBuilder implements FastCanvasCommandHandler {
+
+    // Quads per draw, so the vertex indices fit the native unsigned short
+    // index buffer
+    static final int MAX_DRAW_QUADS = 16383;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final FastCanvasTextureTable table;
+    private FastCanvasTextureTable.Snapshot textures;
+    private FastCanvasFrameBatch batch;
+    private int build;
+
+    // current transform, x' = a*x + c*y + tx, y' = b*x + d*y + ty
+    private float a = 1, b, c, d = 1, tx, ty;
+    private float[] stack = new float[6 * 8];
+    private int stackSize;
+    private int alpha = 255;
+
+    // GL texture of the current draw, -1 before the first one
+    private int drawGlID;
+
+    // the ortho size, 0 to build everything
+    private int viewportWidth;
+    private int viewportHeight;
+
+    public FastCanvasFrameBuilder(FastCanvasTextureTable table) {
+        this.table = table;
+    }
+
+    // Builds the frame into batch, replacing its contents
+    public void build(FastCanvasFrameMailbox.Frame frame,
+            FastCanvasFrameBatch batch) {
+        long start = System.nanoTime();
+        begin(frame, batch);
+        if (frame.isBinary()) {
+            FastCanvasCommandDecoder.decode(frame.getBuffer(), frame
+                    .getBuffer().limit(), this);
+        } else {
+            FastCanvasCommandDecoder.decodeText(frame.getCommand(), this);
+        }
+        batch.finish(System.nanoTime() - start);
+        this.batch = null;
+    }
+
+    // Text commands, for tests and benchmarks
+    public void build(String commands, FastCanvasFrameBatch batch) {
+        FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+        frame.setCommand(commands);
+        build(frame, batch);
+    }
+
+    // Quads entirely outside 0, 0, width, height in canvas units are
+    // skipped, as Canvas::DoDrawImage does for the ortho viewport. 0 turns
+    // culling off, e.g. for display lists.
+    public void setViewport(int width, int height) {
+        this.viewportWidth = width;
+        this.viewportHeight = height;
+    }
+
+    private void begin(FastCanvasFrameMailbox.Frame frame,
+            FastCanvasFrameBatch batch) {
+        this.textures = table.snapshot();
+        this.batch = batch;
+        batch.reset(frame, textures.getVersion());
+        build++;
+        drawGlID = -1;
+        // the world color is reset every frame, the transform isn't
+        alpha = 255;
+    }
+
+    public void setTransform(float a, float b, float c, float d, float tx,
+            float ty) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.tx = tx;
+        this.ty = ty;
+    }
+
+    // Same concatenation as Canvas::ApplyTransform
+    public void transform(float ta, float tb, float tc, float td, float ttx,
+            float tty) {
+        if (ta == 1 && tb == 0 && tc == 0 && td == 1) {
+            // translate(), scale(1, 1) and the like leave a to d alone
+            float ntx = a * ttx + b * tty + tx;
+            float nty = c * ttx + d * tty + ty;
+            this.tx = ntx;
+            this.ty = nty;
+            return;
+        }
+        float na = a * ta + b * tc;
+        float nb = a * tb + b * td;
+        float nc = c * ta + d * tc;
+        float nd = c * tb + d * td;
+        float ntx = a * ttx + b * tty + tx;
+        float nty = c * ttx + d * tty + ty;
+        setTransform(na, nb, nc, nd, ntx, nty);
+    }
+
+    public void resetTransform() {
+        setTransform(1, 0, 0, 1, 0, 0);
+    }
+
+    public void scale(float sx, float sy) {
+        transform(sx, 0, 0, sy, 0, 0);
+    }
+
+    public void rotate(float angle) {
+        double ca = Math.cos(angle);
+        double sa = Math.sin(angle);
+        transform((float) ca, (float) sa, (float) -sa, (float) ca, 0, 0);
+    }
+
+    public void translate(float tx, float ty) {
+        transform(1, 0, 0, 1, tx, ty);
+    }
+
+    public void save() {
+        if (stack.length < (stackSize + 1) * 6) {
+            float[] grown = new float[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stack.length);
+            stack = grown;
+        }
+        int i = stackSize++ * 6;
+        stack[i] = a;
+        stack[i + 1] = b;
+        stack[i + 2] = c;
+        stack[i + 3] = d;
+        stack[i + 4] = tx;
+        stack[i + 5] = ty;
+    }
+
+    public void restore() {
+        if (stackSize > 0) {
+            int i = --stackSize * 6;
+            setTransform(stack[i], stack[i + 1], stack[i + 2], stack[i + 3],
+                    stack[i + 4], stack[i + 5]);
+        }
+    }
+
+    public void setGlobalAlpha(float alpha) {
+        // truncated to a byte like the native Color
+        this.alpha = (int) (255.0 * alpha + 0.5f) & 0xff;
+    }
+
+    public void drawImage(int textureID, float cx, float cy, float cw,
+            float ch, float px, float py, float pw, float ph) {
+        quad(textureID, textures.get(textureID), cx, cy, cw, ch, px, py, pw,
+                ph, alpha == 255 ? -1 : color(alpha));
+    }
+
+    // Same glyph placement as Canvas::DoFillText, each glyph a quad of its
+    // page in the text color
+    public void fillText(int fontID, int color, int flags, float x, float y,
+            IntBuffer codePoints, int count) {
+        FastCanvasTextureTable.Font font = textures.font(fontID);
+        if (font == null || count <= 0) {
+            return;
+        }
+
+        FastCanvasFrameBatch batch = this.batch;
+        boolean missing = false;
+        float width = 0;
+        for (int i = 0; i < count; i++) {
+            FastCanvasTextureTable.Glyph glyph = font.glyph(codePoints.get(i));
+            if (glyph != null) {
+                batch.glyphHits++;
+                width += glyph.advance;
+            } else {
+                batch.glyphMisses++;
+                batch.addMissingGlyph(fontID, codePoints.get(i));
+                missing = true;
+            }
+        }
+        if (missing) {
+            return;
+        }
+
+        switch (flags & 3) {
+        case FastCanvasCommandEncoder.TEXT_ALIGN_CENTER:
+            x -= width / 2;
+            break;
+        case FastCanvasCommandEncoder.TEXT_ALIGN_RIGHT:
+            x -= width;
+            break;
+        }
+        switch (flags & (3 << 2)) {
+        case FastCanvasCommandEncoder.TEXT_BASELINE_TOP:
+            y += font.ascent;
+            break;
+        case FastCanvasCommandEncoder.TEXT_BASELINE_MIDDLE:
+            y += (font.ascent - font.descent) / 2;
+            break;
+        case FastCanvasCommandEncoder.TEXT_BASELINE_BOTTOM:
+            y -= font.descent;
+            break;
+        }
+
+        int red = color >>> 24;
+        int green = (color >> 16) & 0xff;
+        int blue = (color >> 8) & 0xff;
+        int textAlpha = ((color & 0xff) * alpha + 127) / 255;
+        int vertexColor;
+        if ((red & green & blue & textAlpha) == 255) {
+            vertexColor = -1;
+        } else if (LITTLE_ENDIAN) {
+            vertexColor = textAlpha << 24 | blue << 16 | green << 8 | red;
+        } else {
+            vertexColor = red << 24 | green << 16 | blue << 8 | textAlpha;
+        }
+
+        float pen = x;
+        for (int i = 0; i < count; i++) {
+            FastCanvasTextureTable.Glyph glyph = font.glyph(codePoints.get(i));
+            if (glyph.pageID != 0) {
+                quad(glyph.pageID, textures.get(glyph.pageID), glyph.x,
+                        glyph.y, glyph.width, glyph.height, pen + glyph.left,
+                        y - glyph.top, glyph.width, glyph.height, vertexColor);
+            }
+            pen += glyph.advance;
+        }
+    }
+
+    // One drawImage quad in color, -1 for plain white
+    private void quad(int textureID, FastCanvasTextureTable.Entry texture,
+            float cx, float cy, float cw, float ch, float px, float py,
+            float pw, float ph, int color) {
+        use(textureID, texture);
+
+        // Floored like DoPushQuad, translation only without the products
+        float x0, y0, x1, y1, x2, y2, x3, y3;
+        if (a == 1 && b == 0 && c == 0 && d == 1) {
+            x0 = x3 = (float) Math.floor(px + tx);
+            y0 = y1 = (float) Math.floor(py + ty);
+            x1 = x2 = (float) Math.floor((px + pw) + tx);
+            y2 = y3 = (float) Math.floor((py + ph) + ty);
+        } else {
+            x0 = (float) Math.floor(a * px + c * py + tx);
+            y0 = (float) Math.floor(b * px + d * py + ty);
+            x1 = (float) Math.floor(a * (px + pw) + c * py + tx);
+            y1 = (float) Math.floor(b * (px + pw) + d * py + ty);
+            x2 = (float) Math.floor(a * (px + pw) + c * (py + ph) + tx);
+            y2 = (float) Math.floor(b * (px + pw) + d * (py + ph) + ty);
+            x3 = (float) Math.floor(a * px + c * (py + ph) + tx);
+            y3 = (float) Math.floor(b * px + d * (py + ph) + ty);
+        }
+        FastCanvasFrameBatch batch = this.batch;
+        if (culled(x0, y0, x1, y1, x2, y2, x3, y3)) {
+            batch.culledCount++;
+            return;
+        }
+        if (texture == null) {
+            return;
+        }
+
+        int draw = (batch.drawCount - 1) * FastCanvasFrameBatch.DRAW_INTS;
+        if (texture.glID != drawGlID
+                || batch.draws[draw + 2] >= MAX_DRAW_QUADS * 4) {
+            draw = addDraw(texture.glID, batch.vertexCount, 0);
+            drawGlID = texture.glID;
+        }
+        if (color != -1) {
+            batch.draws[draw + 3] |= FastCanvasFrameBatch.FLAG_COLOR;
+        }
+        batch.draws[draw + 2] += 4;
+
+        int needed = (batch.vertexCount + 4) * FastCanvasFrameBatch.VERTEX_INTS;
+        if (batch.vertices.length < needed) {
+            int[] grown = new int[Math.max(needed, batch.vertices.length * 2)];
+            System.arraycopy(batch.vertices, 0, grown, 0, batch.vertexCount
+                    * FastCanvasFrameBatch.VERTEX_INTS);
+            batch.vertices = grown;
+        }
+
+        // Texture, offset into the atlas page for regions
+        float width = texture.width;
+        float height = texture.height;
+        float x = cx + texture.x;
+        float y = cy + texture.y;
+        float u0 = x / width;
+        float v0 = y / height;
+        float u1 = (x + cw) / width;
+        float v1 = (y + ch) / height;
+
+        int[] v = batch.vertices;
+        int i = batch.vertexCount * FastCanvasFrameBatch.VERTEX_INTS;
+        i = vertex(v, i, x0, y0, u0, v0, color);
+        i = vertex(v, i, x1, y1, u1, v0, color);
+        i = vertex(v, i, x2, y2, u1, v1, color);
+        vertex(v, i, x3, y3, u0, v1, color);
+        batch.vertexCount += 4;
+    }
+
+    // Same vertices as Canvas::DoDrawImages: each sprite is its frame
+    // centered on x, y, rotated and scaled about its center
+    public void drawImages(int textureID, int flags, FloatBuffer frames,
+            int frameCount, FloatBuffer sprites, int spriteCount) {
+        FastCanvasTextureTable.Entry texture = textures.get(textureID);
+        use(textureID, texture);
+        if (texture == null || spriteCount <= 0) {
+            return;
+        }
+
+        FastCanvasFrameBatch batch = this.batch;
+        int draw = (batch.drawCount - 1) * FastCanvasFrameBatch.DRAW_INTS;
+        if (texture.glID != drawGlID) {
+            draw = addDraw(texture.glID, batch.vertexCount, 0);
+            drawGlID = texture.glID;
+        }
+        int needed = (batch.vertexCount + spriteCount * 4)
+                * FastCanvasFrameBatch.VERTEX_INTS;
+        if (batch.vertices.length < needed) {
+            int[] grown = new int[Math.max(needed, batch.vertices.length * 2)];
+            System.arraycopy(batch.vertices, 0, grown, 0, batch.vertexCount
+                    * FastCanvasFrameBatch.VERTEX_INTS);
+            batch.vertices = grown;
+        }
+
+        int stride = FastCanvasCommandEncoder.spriteStride(flags);
+        boolean rotation = (flags & FastCanvasCommandEncoder.SPRITE_ROTATION) != 0;
+        boolean scale = (flags & FastCanvasCommandEncoder.SPRITE_SCALE) != 0;
+        boolean perSpriteAlpha = (flags & FastCanvasCommandEncoder.SPRITE_ALPHA) != 0;
+        int rotationIndex = 3;
+        int scaleIndex = rotation ? 4 : 3;
+        int alphaIndex = scaleIndex + (scale ? 1 : 0);
+        float width = texture.width;
+        float height = texture.height;
+        int color = alpha == 255 ? -1 : color(alpha);
+        boolean usesColor = color != -1;
+
+        int[] v = batch.vertices;
+        int i = batch.vertexCount * FastCanvasFrameBatch.VERTEX_INTS;
+        for (int n = 0, s = 0; n < spriteCount; n++, s += stride) {
+            int frame = (int) sprites.get(s + 2);
+            if (frame < 0 || frame >= frameCount) {
+                continue;
+            }
+            if (batch.draws[draw + 2] >= MAX_DRAW_QUADS * 4) {
+                batch.vertexCount = i / FastCanvasFrameBatch.VERTEX_INTS;
+                draw = addDraw(texture.glID, batch.vertexCount, 0);
+            }
+
+            // sprite axes in canvas space
+            float ax = a, ay = b, bx = c, by = d;
+            if (rotation || scale) {
+                float k = scale ? sprites.get(s + scaleIndex) : 1;
+                float cs = k, sn = 0;
+                if (rotation) {
+                    float angle = sprites.get(s + rotationIndex);
+                    cs = k * (float) Math.cos(angle);
+                    sn = k * (float) Math.sin(angle);
+                }
+                ax = a * cs + c * sn;
+                ay = b * cs + d * sn;
+                bx = c * cs - a * sn;
+                by = d * cs - b * sn;
+            }
+            int f = frame * 4;
+            float cx = frames.get(f) + texture.x;
+            float cy = frames.get(f + 1) + texture.y;
+            float hw = frames.get(f + 2) * 0.5f;
+            float hh = frames.get(f + 3) * 0.5f;
+            float x = sprites.get(s);
+            float y = sprites.get(s + 1);
+            float px = a * x + c * y + tx;
+            float py = b * x + d * y + ty;
+            float u0 = cx / width;
+            float v0 = cy / height;
+            float u1 = (cx + frames.get(f + 2)) / width;
+            float v1 = (cy + frames.get(f + 3)) / height;
+
+            float x0 = (float) Math.floor(px - ax * hw - bx * hh);
+            float y0 = (float) Math.floor(py - ay * hw - by * hh);
+            float x1 = (float) Math.floor(px + ax * hw - bx * hh);
+            float y1 = (float) Math.floor(py + ay * hw - by * hh);
+            float x2 = (float) Math.floor(px + ax * hw + bx * hh);
+            float y2 = (float) Math.floor(py + ay * hw + by * hh);
+            float x3 = (float) Math.floor(px - ax * hw + bx * hh);
+            float y3 = (float) Math.floor(py - ay * hw + by * hh);
+            if (culled(x0, y0, x1, y1, x2, y2, x3, y3)) {
+                batch.culledCount++;
+                continue;
+            }
+
+            int spriteColor = color;
+            if (perSpriteAlpha) {
+                float scaled = alpha * sprites.get(s + alphaIndex);
+                int spriteAlpha = scaled <= 0 ? 0 : scaled >= 255 ? 255
+                        : (int) (scaled + 0.5f);
+                spriteColor = spriteAlpha == 255 ? -1 : color(spriteAlpha);
+                usesColor |= spriteColor != -1;
+            }
+            i = vertex(v, i, x0, y0, u0, v0, spriteColor);
+            i = vertex(v, i, x1, y1, u1, v0, spriteColor);
+            i = vertex(v, i, x2, y2, u1, v1, spriteColor);
+            i = vertex(v, i, x3, y3, u0, v1, spriteColor);
+            batch.draws[draw + 2] += 4;
+            if (usesColor) {
+                batch.draws[draw + 3] |= FastCanvasFrameBatch.FLAG_COLOR;
+            }
+        }
+        batch.vertexCount = i / FastCanvasFrameBatch.VERTEX_INTS;
+    }
+
+    // Display lists are built natively; the batch only says where
+    public void drawList(int listID, float x, float y) {
+        FastCanvasFrameBatch batch = this.batch;
+        int n = batch.listCount++;
+        if (batch.listTransforms.length < (n + 1) * 6) {
+            float[] grown = new float[batch.listTransforms.length * 2];
+            System.arraycopy(batch.listTransforms, 0, grown, 0, n * 6);
+            batch.listTransforms = grown;
+        }
+        float[] t = batch.listTransforms;
+        t[n * 6] = a;
+        t[n * 6 + 1] = b;
+        t[n * 6 + 2] = c;
+        t[n * 6 + 3] = d;
+        t[n * 6 + 4] = a * x + c * y + tx;
+        t[n * 6 + 5] = b * x + d * y + ty;
+        addDraw(listID, n, FastCanvasFrameBatch.FLAG_LIST);
+        drawGlID = -1;
+    }
+
+    // Same test as Canvas::IsCulled, on the floored corners
+    private boolean culled(float x0, float y0, float x1, float y1, float x2,
+            float y2, float x3, float y3) {
+        if (viewportWidth <= 0 || viewportHeight <= 0) {
+            return false;
+        }
+        return Math.max(Math.max(x0, x1), Math.max(x2, x3)) <= 0
+                || Math.max(Math.max(y0, y1), Math.max(y2, y3)) <= 0
+                || Math.min(Math.min(x0, x1), Math.min(x2, x3)) >= viewportWidth
+                || Math.min(Math.min(y0, y1), Math.min(y2, y3)) >= viewportHeight;
+    }
+
+    // A vertex already in canvas space and floored
+    private static int vertex(int[] v, int i, float x, float y, float u,
+            float w, int color) {
+        v[i] = Float.floatToRawIntBits(x);
+        v[i + 1] = Float.floatToRawIntBits(y);
+        v[i + 2] = Float.floatToRawIntBits(u);
+        v[i + 3] = Float.floatToRawIntBits(w);
+        v[i + 4] = color;
+        return i + FastCanvasFrameBatch.VERTEX_INTS;
+    }
+
+    private int addDraw(int id, int first, int flags) {
+        FastCanvasFrameBatch batch = this.batch;
+        int i = batch.drawCount++ * FastCanvasFrameBatch.DRAW_INTS;
+        if (batch.draws.length < i + FastCanvasFrameBatch.DRAW_INTS) {
+            int[] grown = new int[batch.draws.length * 2];
+            System.arraycopy(batch.draws, 0, grown, 0, i);
+            batch.draws = grown;
+        }
+        batch.draws[i] = id;
+        batch.draws[i + 1] = first;
+        batch.draws[i + 2] = 0;
+        batch.draws[i + 3] = flags;
+        return i;
+    }
+
+    private void use(int id, FastCanvasTextureTable.Entry texture) {
+        FastCanvasFrameBatch batch = this.batch;
+        if (texture != null) {
+            if (texture.lastBuild == build) {
+                return;
+            }
+            texture.lastBuild = build;
+        } else {
+            for (int i = batch.usedCount - 1; i >= 0; i--) {
+                if (batch.used[i] == id) {
+                    return;
+                }
+            }
+        }
+        if (batch.usedCount == batch.used.length) {
+            int[] grown = new int[batch.used.length * 2];
+            System.arraycopy(batch.used, 0, grown, 0, batch.usedCount);
+            batch.used = grown;
+        }
+        batch.used[batch.usedCount++] = id;
+    }
+
+    // White with the given alpha, as the RGBA bytes of a native int
+    private static int color(int alpha) {
+        return LITTLE_ENDIAN ? (alpha << 24) | 0xffffff : 0xffffff00 | alpha;
+    }
+}
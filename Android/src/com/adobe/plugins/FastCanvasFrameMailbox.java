@@ -0,0 +1,243 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free triple buffer handing render frames from one producer thread
+// (the Cordova bridge) to one consumer thread (the GL thread).
+//
+// The producer always owns one slot to write into, the consumer always owns
+// one slot to draw from, and the third slot holds the latest completed frame.
+// Publishing swaps the write slot with the latest slot; acquiring swaps the
+// latest slot with the read slot if a newer frame was published. Neither side
+// ever waits on the other, and the consumer always sees a whole frame.
+public class FastCanvasFrameMailbox {
+
+    public static class Frame {
+        private String command;
+        private ByteBuffer buffer;
+        private boolean binary;
+        private long sequence;
+        private long publishTime;
+        private long frameNumber;
+
+        // Text render commands for this frame
+        public void setCommand(String command) {
+            this.command = command;
+            this.binary = false;
+        }
+
+        // Binary render commands for this frame, copied into a direct
+        // buffer owned by the slot and reused by later frames
+        public void setBuffer(byte[] commands, int length) {
+            ByteBuffer out = prepareBuffer(length);
+            out.put(commands, 0, length);
+            out.flip();
+        }
+
+        // Binary render commands for this frame, written by the caller
+        // straight into the slot's buffer: it is cleared, holds at least
+        // capacity bytes and has to be flipped once written
+        public ByteBuffer prepareBuffer(int capacity) {
+            if (buffer == null || buffer.capacity() < capacity) {
+                int size = 4096;
+                while (size < capacity) {
+                    size *= 2;
+                }
+                buffer = ByteBuffer.allocateDirect(size).order(
+                        ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear();
+            this.command = null;
+            this.binary = true;
+            return buffer;
+        }
+
+        // Binary render commands for this frame, decoded from base64
+        // straight into the slot's buffer. Malformed base64 throws
+        // IllegalArgumentException and leaves the slot empty rather than
+        // half written.
+        public void setBase64(String commands) {
+            ByteBuffer out = prepareBuffer(FastCanvasBase64.decodedLength(
+                    commands, 0));
+            try {
+                FastCanvasBase64.decode(commands, 0, out);
+            } catch (IllegalArgumentException e) {
+                out.clear();
+                out.limit(0);
+                binary = false;
+                throw e;
+            }
+            out.flip();
+        }
+
+        public boolean isEmpty() {
+            return !binary && command == null;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        // Binary commands from 0 to limit()
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        // 1 for the first published frame, 0 before any frame was published
+        public long getSequence() {
+            return sequence;
+        }
+
+        // System.nanoTime() when the frame was published
+        public long getPublishTime() {
+            return publishTime;
+        }
+
+        // The FastCanvasFramePacer frame the commands were produced for, 0
+        // when the app isn't paced
+        public void setFrameNumber(long frameNumber) {
+            this.frameNumber = frameNumber;
+        }
+
+        public long getFrameNumber() {
+            return frameNumber;
+        }
+    }
+
+    // state layout: write slot in bits 0-1, latest slot in bits 2-3,
+    // read slot in bits 4-5, and FRESH when latest hasn't been acquired yet
+    private static final int WRITE_SHIFT = 0;
+    private static final int LATEST_SHIFT = 2;
+    private static final int READ_SHIFT = 4;
+    private static final int SLOT_MASK = 3;
+    private static final int FRESH = 1 << 6;
+
+    private final Frame[] slots = { new Frame(), new Frame(), new Frame() };
+    private final AtomicInteger state = new AtomicInteger((0 << WRITE_SHIFT)
+            | (1 << LATEST_SHIFT) | (2 << READ_SHIFT));
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+
+    // Consumer side only
+    private long builtSequence = -1;
+
+    // Producer: the slot to fill in before calling publish()
+    public Frame beginWrite() {
+        return slots[(state.get() >> WRITE_SHIFT) & SLOT_MASK];
+    }
+
+    // Producer: makes the frame returned by beginWrite() the latest frame.
+    // If the previous latest frame was never acquired it is dropped.
+    public long publish() {
+        Frame frame = beginWrite();
+        long sequence = published.incrementAndGet();
+        frame.sequence = sequence;
+        frame.publishTime = System.nanoTime();
+
+        while (true) {
+            int old = state.get();
+            int write = (old >> WRITE_SHIFT) & SLOT_MASK;
+            int latest = (old >> LATEST_SHIFT) & SLOT_MASK;
+            int read = (old >> READ_SHIFT) & SLOT_MASK;
+            int next = (latest << WRITE_SHIFT) | (write << LATEST_SHIFT)
+                    | (read << READ_SHIFT) | FRESH;
+            if (state.compareAndSet(old, next)) {
+                if ((old & FRESH) != 0) {
+                    dropped.incrementAndGet();
+                }
+                return sequence;
+            }
+        }
+    }
+
+    // Consumer: returns the most recently published frame. The same frame is
+    // returned again (and counted as duplicated) until a newer one arrives.
+    public Frame acquire() {
+        while (true) {
+            int old = state.get();
+            if ((old & FRESH) == 0) {
+                Frame frame = slots[(old >> READ_SHIFT) & SLOT_MASK];
+                if (!frame.isEmpty()) {
+                    duplicated.incrementAndGet();
+                }
+                return frame;
+            }
+            int write = (old >> WRITE_SHIFT) & SLOT_MASK;
+            int latest = (old >> LATEST_SHIFT) & SLOT_MASK;
+            int read = (old >> READ_SHIFT) & SLOT_MASK;
+            int next = (write << WRITE_SHIFT) | (read << LATEST_SHIFT)
+                    | (latest << READ_SHIFT);
+            if (state.compareAndSet(old, next)) {
+                return slots[latest];
+            }
+        }
+    }
+
+    // True if a frame was published since the last acquire(). Any thread.
+    public boolean hasNewFrame() {
+        return (state.get() & FRESH) != 0;
+    }
+
+    // Consumer: true if frame has not been turned into streams yet
+    public boolean needsBuild(Frame frame) {
+        return needsBuild(frame.sequence);
+    }
+
+    // Consumer: the same, by frame sequence
+    public boolean needsBuild(long sequence) {
+        return sequence != builtSequence;
+    }
+
+    // Consumer: frame has been turned into streams
+    public void markBuilt(Frame frame) {
+        markBuilt(frame.sequence);
+    }
+
+    public void markBuilt(long sequence) {
+        builtSequence = sequence;
+    }
+
+    // Consumer: the streams built from the last frame are no longer valid,
+    // e.g. after a context loss or a texture change
+    public void invalidate() {
+        builtSequence = -1;
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    // Frames replaced by a newer frame before the consumer acquired them
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Acquires that returned a frame which had already been acquired
+    public long getDuplicatedCount() {
+        return duplicated.get();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Paces frame production from the render thread's vsync instead of the
+// WebView's requestAnimationFrame.
+//
+// Every vsync the render thread calls vsync(). When the app has submitted
+// the last frame it was asked for, that starts a new frame: a number, and
+// the time it should reach the screen, one vsync to be drawn and another to
+// be presented. Submitted frames carry their number back, so present() can
+// tell whether a frame made its vsync, how long it took from begin to draw
+// and how many frames were superseded before being drawn.
+//
+// Times come from a Clock, System.nanoTime() unless another is given, so
+// the pacing can be driven by a simulated one. GL thread only, except
+// submitted().
+public class FastCanvasFramePacer {
+
+    // Where the pacer reads the time, in nanoseconds
+    public interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // vsyncs from begin to present: drawn at the next one, shown at the one
+    // after
+    static final int PRESENT_VSYNCS = 2;
+    // an app that doesn't submit for this many vsyncs is asked again
+    static final int STALL_VSYNCS = 8;
+
+    private static final long DEFAULT_PERIOD = 1000000000L / 60;
+    // frames whose begin is remembered, a power of two
+    private static final int HISTORY = 16;
+
+    private final Clock clock;
+
+    // last frame number the app submitted, any thread
+    private volatile long submitted;
+
+    private long vsyncs;
+    private long lastVsyncTime;
+    private long period = DEFAULT_PERIOD;
+
+    // the last frame handed out, and when the recent ones were
+    private long frame;
+    private final long[] beginTimes = new long[HISTORY];
+    private final long[] beginVsyncs = new long[HISTORY];
+    private long predictedPresentTime;
+
+    private long lastPresented;
+    // statistics, cleared by reset()
+    private long begun;
+    private long presented;
+    private long late;
+    private long dropped;
+    private long waits;
+    private long stalls;
+    private final FastCanvasHistogram latency = new FastCanvasHistogram();
+    private final FastCanvasHistogram lateness = new FastCanvasHistogram();
+
+    public FastCanvasFramePacer() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public FastCanvasFramePacer(Clock clock) {
+        this.clock = clock;
+    }
+
+    // A vsync, now. Returns the number of the frame the app should produce
+    // next, or 0 while it is still producing the last one.
+    public long vsync() {
+        long now = clock.nanoTime();
+        long delta = now - lastVsyncTime;
+        if (vsyncs > 0 && delta > period / 2 && delta < period * 3 / 2) {
+            // slow moving average; skipped and idle vsyncs are left out
+            period += (delta - period) / 16;
+        }
+        lastVsyncTime = now;
+        vsyncs++;
+
+        if (frame != 0 && submitted < frame) {
+            if (vsyncs - beginVsyncs[(int) frame & (HISTORY - 1)] < STALL_VSYNCS) {
+                waits++;
+                return 0;
+            }
+            // the app dropped the frame, ask again
+            stalls++;
+        }
+        frame++;
+        begun++;
+        beginTimes[(int) frame & (HISTORY - 1)] = now;
+        beginVsyncs[(int) frame & (HISTORY - 1)] = vsyncs;
+        predictedPresentTime = now + PRESENT_VSYNCS * period;
+        return frame;
+    }
+
+    // The app submitted its commands for frame. Any thread.
+    public void submitted(long frame) {
+        if (frame > submitted) {
+            submitted = frame;
+        }
+    }
+
+    // A frame produced for frameNumber was drawn just now, after the vsync()
+    // of the same render pass. Frames from before pacing started, or drawn
+    // again, are ignored.
+    public void present(long frameNumber) {
+        long now = clock.nanoTime();
+        if (frameNumber <= lastPresented || frameNumber > frame) {
+            return;
+        }
+        presented++;
+        if (lastPresented > 0) {
+            dropped += frameNumber - lastPresented - 1;
+        }
+        lastPresented = frameNumber;
+
+        if (frame - frameNumber >= HISTORY) {
+            // too old to say
+            return;
+        }
+        // it should be drawn at the vsync after the one it was begun at
+        int i = (int) frameNumber & (HISTORY - 1);
+        long lateBy = vsyncs - beginVsyncs[i] - 1;
+        if (lateBy > 0) {
+            late++;
+        }
+        lateness.record(lateBy);
+        latency.record((now - beginTimes[i]) / 1000);
+    }
+
+    // The frame handed out by the last vsync() that returned one
+    public long getFrame() {
+        return frame;
+    }
+
+    public long getPredictedPresentTime() {
+        return predictedPresentTime;
+    }
+
+    // Estimated vsync period
+    public long getPeriod() {
+        return period;
+    }
+
+    // Clears the statistics only. The frame numbers go on from where they
+    // were, as frames already begun come back with theirs and a number must
+    // not mean two frames; a frame still being produced is still waited
+    // for; and the period is the display's, not the session's.
+    public void reset() {
+        begun = 0;
+        presented = 0;
+        late = 0;
+        dropped = 0;
+        waits = 0;
+        stalls = 0;
+        latency.reset();
+        lateness.reset();
+    }
+
+    // { frames, presented, late, dropped, waits, stalls, periodMicros,
+    // latencyMicros: { p50, p90, p99, max, mean }, lateVsyncs: { ... } }
+    // with latency from begin to draw, all since the last reset()
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("frames", begun);
+        json.put("presented", presented);
+        json.put("late", late);
+        json.put("dropped", dropped);
+        json.put("waits", waits);
+        json.put("stalls", stalls);
+        json.put("periodMicros", period / 1000);
+        json.put("latencyMicros", summary(latency));
+        json.put("lateVsyncs", summary(lateness));
+        return json;
+    }
+
+    private static JSONObject summary(FastCanvasHistogram histogram)
+            throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("p50", histogram.getPercentile(50));
+        json.put("p90", histogram.getPercentile(90));
+        json.put("p99", histogram.getPercentile(99));
+        json.put("max", histogram.getMax());
+        json.put("mean", histogram.getMean());
+        return json;
+    }
+}
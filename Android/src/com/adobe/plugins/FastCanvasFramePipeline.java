@@ -0,0 +1,175 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+// Builds frames from the mailbox on a worker thread while the GL thread draws
+// the previous one.
+//
+// There are two batches: the one the GL thread is drawing and the one being
+// built or waiting to be drawn. The worker only starts on a new frame once
+// the GL thread has taken the waiting batch, so it is never more than one
+// frame ahead; frames published meanwhile replace each other in the mailbox
+// as before. The worker is the mailbox consumer, the GL thread only calls
+// take() and release().
+public class FastCanvasFramePipeline implements Runnable {
+
+    public interface Listener {
+        // A batch is waiting for the GL thread. Worker thread.
+        void batchReady();
+
+        // Building a frame threw, the frame is skipped. Worker thread.
+        void buildFailed(RuntimeException e);
+    }
+
+    private final FastCanvasFrameMailbox frames;
+    private final FastCanvasFrameBuilder builder;
+    private final Listener listener;
+    private final FastCanvasFrameBatch[] batches = { new FastCanvasFrameBatch(),
+            new FastCanvasFrameBatch() };
+    private final Thread thread;
+
+    // guarded by this
+    private FastCanvasFrameBatch ready;
+    private FastCanvasFrameBatch inUse;
+    private boolean building;
+    private boolean rebuild;
+    private boolean stopped;
+    private int viewportWidth;
+    private int viewportHeight;
+
+    public FastCanvasFramePipeline(FastCanvasFrameMailbox frames,
+            FastCanvasTextureTable textures, Listener listener) {
+        this.frames = frames;
+        this.builder = new FastCanvasFrameBuilder(textures);
+        this.listener = listener;
+        this.thread = new Thread(this, "FastCanvasFrameBuilder");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Ends the worker after the frame it is building, if any, and waits for
+    // it, so the caller can consume the mailbox again
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The viewport quads are culled against, from the next build on. See
+    // FastCanvasFrameBuilder.setViewport.
+    public synchronized void setViewport(int width, int height) {
+        viewportWidth = width;
+        viewportHeight = height;
+    }
+
+    // Producer: a frame was published
+    public synchronized void frameAvailable() {
+        notifyAll();
+    }
+
+    // GL thread: the next batch to draw, or null if none is ready. With
+    // rebuild set, e.g. when the textures or the GL context changed, the
+    // latest frame is built again and this waits for it unless a newer batch
+    // is already waiting. The batch must be handed back with release().
+    public synchronized FastCanvasFrameBatch take(boolean rebuild) {
+        if (ready == null && rebuild && !stopped) {
+            this.rebuild = true;
+            notifyAll();
+            boolean interrupted = false;
+            while ((this.rebuild || building) && ready == null && !stopped) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        FastCanvasFrameBatch batch = ready;
+        ready = null;
+        inUse = batch;
+        if (batch != null) {
+            // a batch built since supersedes the rebuild; room to build the
+            // next one
+            this.rebuild = false;
+            notifyAll();
+        }
+        return batch;
+    }
+
+    // GL thread: done drawing batch
+    public synchronized void release(FastCanvasFrameBatch batch) {
+        if (inUse == batch) {
+            inUse = null;
+        }
+    }
+
+    public void run() {
+        while (true) {
+            FastCanvasFrameBatch batch;
+            synchronized (this) {
+                while (!stopped
+                        && (ready != null || !(rebuild || frames.hasNewFrame()))) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only stop() ends the worker
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                rebuild = false;
+                building = true;
+                batch = batches[0] != inUse ? batches[0] : batches[1];
+                builder.setViewport(viewportWidth, viewportHeight);
+            }
+
+            boolean built = false;
+            try {
+                FastCanvasFrameMailbox.Frame frame = frames.acquire();
+                if (!frame.isEmpty()) {
+                    builder.build(frame, batch);
+                    built = true;
+                }
+            } catch (RuntimeException e) {
+                listener.buildFailed(e);
+            }
+
+            synchronized (this) {
+                building = false;
+                if (built) {
+                    ready = batch;
+                }
+                notifyAll();
+            }
+            if (built) {
+                listener.batchReady();
+            }
+        }
+    }
+}
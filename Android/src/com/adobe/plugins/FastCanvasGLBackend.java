@@ -0,0 +1,142 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES10;
+
+// The native GLES1 canvas. GL thread only.
+public class FastCanvasGLBackend implements FastCanvasBackend {
+
+    public void setBackgroundColor(int red, int green, int blue) {
+        FastCanvasJNI.setBackgroundColor(red, green, blue);
+    }
+
+    public void setOrtho(int width, int height) {
+        FastCanvasJNI.setOrtho(width, height);
+    }
+
+    public void surfaceChanged(int width, int height) {
+        FastCanvasJNI.surfaceChanged(width, height);
+    }
+
+    public void addTexture(int id, int handle, int width, int height) {
+        FastCanvasJNI.addTexture(id, handle, width, height);
+    }
+
+    public void addTextureRegion(int id, int handle, int pageWidth,
+            int pageHeight, int x, int y) {
+        FastCanvasJNI.addTextureRegion(id, handle, pageWidth, pageHeight, x, y);
+    }
+
+    public void removeTexture(int id) {
+        FastCanvasJNI.removeTexture(id);
+    }
+
+    public int createPage(int width, int height) {
+        int[] glID = new int[1];
+        GLES10.glGenTextures(1, glID, 0);
+        GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, glID[0]);
+        GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_LINEAR);
+        GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
+        GLES10.glTexImage2D(GLES10.GL_TEXTURE_2D, 0, GLES10.GL_RGBA, width,
+                height, 0, GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE,
+                ByteBuffer.allocateDirect(width * height * 4));
+        return glID[0];
+    }
+
+    public void updatePage(int handle, int x, int y, int width, int height,
+            ByteBuffer rgba) {
+        GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, handle);
+        GLES10.glTexSubImage2D(GLES10.GL_TEXTURE_2D, 0, x, y, width, height,
+                GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, rgba);
+    }
+
+    public void deletePage(int handle) {
+        GLES10.glDeleteTextures(1, new int[] { handle }, 0);
+    }
+
+    public int getUsedTextures(int[] ids) {
+        return FastCanvasJNI.getUsedTextures(ids);
+    }
+
+    public int getMissingGlyphs(int[] glyphs) {
+        return FastCanvasJNI.getMissingGlyphs(glyphs);
+    }
+
+    public void getFrameStats(int[] stats) {
+        FastCanvasJNI.getFrameStats(stats);
+    }
+
+    public void render(String renderCommands) {
+        FastCanvasJNI.render(renderCommands);
+    }
+
+    public void renderBuffer(ByteBuffer renderBuffer, int length) {
+        FastCanvasJNI.renderBuffer(renderBuffer, length);
+    }
+
+    public void renderBatch(ByteBuffer vertices, int vertexCount,
+            int[] draws, int drawCount, float[] listTransforms, int[] usedIDs,
+            int usedCount) {
+        FastCanvasJNI.renderBatch(vertices, vertexCount, draws, drawCount,
+                listTransforms, usedIDs, usedCount);
+    }
+
+    public void redraw() {
+        FastCanvasJNI.redraw();
+    }
+
+    public void defineList(int id, String renderCommands) {
+        FastCanvasJNI.defineList(id, renderCommands);
+    }
+
+    public void defineListBuffer(int id, ByteBuffer renderBuffer, int length) {
+        FastCanvasJNI.defineListBuffer(id, renderBuffer, length);
+    }
+
+    public void removeList(int id) {
+        FastCanvasJNI.removeList(id);
+    }
+
+    public void setLayer(int listID, int z, boolean visible,
+            float[] transform) {
+        FastCanvasJNI.setLayer(listID, z, visible, transform);
+    }
+
+    public void removeLayer(int listID) {
+        FastCanvasJNI.removeLayer(listID);
+    }
+
+    public int getListBuilds(int id) {
+        return FastCanvasJNI.getListBuilds(id);
+    }
+
+    public byte[] captureGLLayerDirect(int width, int height) {
+        return FastCanvasJNI.captureGLLayerDirect(width, height);
+    }
+
+    public void contextLost() {
+        FastCanvasJNI.contextLost();
+    }
+
+    public void release() {
+        FastCanvasJNI.release();
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.opengl.GLES10;
+import android.util.Log;
+
+// The glyphs fillText draws, rasterized on demand into a few shared pages.
+//
+// Frames ask for nothing up front: text whose glyphs aren't cached yet is
+// left out of the frame and reported (FastCanvasJNI.getMissingGlyphs, or the
+// batch), request() rasterizes those glyphs on a background thread, and
+// update() packs the results into the pages and hands them to the native
+// canvas and the texture table, after which the frame is built again.
+//
+// Pages are PAGE_SIZE squares, ordinary textures with IDs counting down from
+// FIRST_PAGE_ID, and there are at most maxPages of them. Like an atlas page
+// the packer can't free a single glyph, so when they are full the least
+// recently drawn page that the last frame didn't use is cleared as a whole,
+// and its glyphs are rasterized again when next needed. Glyphs are white
+// with straight alpha; the text color is the vertex color.
+//
+// GL thread only, except where noted.
+public class FastCanvasGlyphCache {
+
+    public static final int PAGE_SIZE = 512;
+    public static final int MAX_PAGES = 4;
+    // -1 is the native debug text
+    static final int FIRST_PAGE_ID = -2;
+    private static final int PADDING = 1;
+    // glyphs queued for rasterizing at most, the rest are asked for again
+    static final int MAX_PENDING = 1024;
+
+    // Called on the rasterizer thread when glyphs are ready for update()
+    public interface Listener {
+        void onGlyphsReady();
+    }
+
+    private static class Font {
+        final int id;
+        final float size;
+        final String family;
+        final int style;
+        final float ascent;
+        final float descent;
+        // rasterizer thread only, once defined
+        final Paint paint;
+
+        Font(int id, float size, String family, int style) {
+            this.id = id;
+            this.size = size;
+            this.family = family;
+            this.style = style;
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setTextSize(size);
+            paint.setTypeface(Typeface.create(family, style));
+            paint.setColor(0xffffffff);
+            Paint.FontMetrics metrics = paint.getFontMetrics();
+            ascent = -metrics.ascent;
+            descent = metrics.descent;
+        }
+    }
+
+    private static class Page {
+        final int id;
+        int glID;
+        final FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(
+                PAGE_SIZE, PAGE_SIZE, PADDING);
+        int glyphs;
+        // the use() the page was last drawn in
+        long lastUsed;
+
+        Page(int id) {
+            this.id = id;
+        }
+    }
+
+    // A rasterized glyph on its way to update()
+    private static class Raster {
+        Font font;
+        int codePoint;
+        long generation;
+        int width;
+        int height;
+        float left;
+        float top;
+        float advance;
+        // RGBA, null for a glyph without ink
+        ByteBuffer pixels;
+    }
+
+    private final FastCanvasTextureTable table;
+    private final int maxPages;
+    private final Map<Integer, Font> fonts = new HashMap<Integer, Font>();
+    private final List<Page> pages = new ArrayList<Page>();
+    // font ID and code point of the glyphs being rasterized
+    private final Set<Long> pending = new HashSet<Long>();
+    private final Queue<Raster> ready = new ConcurrentLinkedQueue<Raster>();
+    private ExecutorService executor;
+    private volatile Listener listener;
+    // bumped with every lost context, older rasters are dropped
+    private long generation;
+    private long uses;
+
+    private int glyphs;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long dropped;
+
+    public FastCanvasGlyphCache(FastCanvasTextureTable table) {
+        this(table, MAX_PAGES);
+    }
+
+    public FastCanvasGlyphCache(FastCanvasTextureTable table, int maxPages) {
+        this.table = table;
+        this.maxPages = Math.max(1, maxPages);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // size in pixels, family as for Typeface.create (null for the default)
+    // and style one of Typeface.NORMAL, BOLD, ITALIC or BOLD_ITALIC. An ID
+    // names one font for good: defining it again the same way does nothing,
+    // any other way is an error.
+    public void defineFont(int id, float size, String family, int style) {
+        Font font = fonts.get(id);
+        if (font != null) {
+            if (font.size != size || font.style != style
+                    || (family == null ? font.family != null : !family
+                            .equals(font.family))) {
+                throw new IllegalArgumentException("font " + id
+                        + " is already defined");
+            }
+            return;
+        }
+        font = new Font(id, size, family, style);
+        fonts.put(id, font);
+        FastCanvasJNI.defineFont(id, font.ascent, font.descent);
+        table.defineFont(id, font.ascent, font.descent);
+    }
+
+    // Rasterizes the glyphs of count font ID and code point pairs, unless
+    // they are already on their way
+    public void request(int[] glyphPairs, int count) {
+        for (int i = 0; i < count; i++) {
+            int fontID = glyphPairs[i * 2];
+            int codePoint = glyphPairs[i * 2 + 1];
+            final Font font = fonts.get(fontID);
+            Long key = key(fontID, codePoint);
+            if (font == null || codePoint < 0
+                    || codePoint > Character.MAX_CODE_POINT
+                    || pending.contains(key)) {
+                continue;
+            }
+            if (pending.size() >= MAX_PENDING) {
+                return;
+            }
+            pending.add(key);
+            final int glyph = codePoint;
+            final long rasterGeneration = generation;
+            executor().execute(new Runnable() {
+                public void run() {
+                    ready.add(rasterize(font, glyph, rasterGeneration));
+                    Listener listener = FastCanvasGlyphCache.this.listener;
+                    if (listener != null) {
+                        listener.onGlyphsReady();
+                    }
+                }
+            });
+        }
+    }
+
+    // Packs the rasterized glyphs into the pages and adds them natively and
+    // to the table. Returns how many were added, the frames drawing them
+    // need building again.
+    public int update() {
+        int added = 0;
+        Raster raster;
+        while ((raster = ready.poll()) != null) {
+            pending.remove(key(raster.font.id, raster.codePoint));
+            if (raster.generation != generation
+                    || fonts.get(raster.font.id) != raster.font) {
+                continue;
+            }
+            int pageID = 0;
+            int x = 0;
+            int y = 0;
+            if (raster.pixels != null) {
+                Page page = null;
+                FastCanvasAtlasPacker.Region region = null;
+                for (int i = 0; i < pages.size() && region == null; i++) {
+                    page = pages.get(i);
+                    region = page.packer.insert(raster.width, raster.height);
+                }
+                if (region == null) {
+                    page = freePage();
+                    region = page != null ? page.packer.insert(raster.width,
+                            raster.height) : null;
+                }
+                if (region == null) {
+                    // larger than a page, or every page is on screen
+                    dropped++;
+                    continue;
+                }
+                GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, page.glID);
+                GLES10.glTexSubImage2D(GLES10.GL_TEXTURE_2D, 0, region.x,
+                        region.y, raster.width, raster.height,
+                        GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE,
+                        raster.pixels);
+                page.glyphs++;
+                pageID = page.id;
+                x = region.x;
+                y = region.y;
+            }
+            FastCanvasJNI.addGlyph(raster.font.id, raster.codePoint, pageID,
+                    x, y, raster.width, raster.height, raster.left,
+                    raster.top, raster.advance);
+            table.addGlyph(raster.font.id, raster.codePoint, pageID, x, y,
+                    raster.width, raster.height, raster.left, raster.top,
+                    raster.advance);
+            glyphs++;
+            added++;
+        }
+        return added;
+    }
+
+    // The texture IDs the frame drew, pages among them stay until a later
+    // frame stops drawing them
+    public void use(int[] ids, int count) {
+        uses++;
+        for (int i = 0; i < count; i++) {
+            int index = FIRST_PAGE_ID - ids[i];
+            if (index >= 0 && index < pages.size()) {
+                pages.get(index).lastUsed = uses;
+            }
+        }
+    }
+
+    // fillText glyphs a frame found and didn't find
+    public void record(int frameHits, int frameMisses) {
+        hits += frameHits;
+        misses += frameMisses;
+    }
+
+    // The pages went with the GL context and the glyphs with them. Native
+    // fonts may have gone with a released canvas, they are defined again.
+    public void contextLost() {
+        pages.clear();
+        pending.clear();
+        ready.clear();
+        glyphs = 0;
+        generation++;
+        for (Font font : fonts.values()) {
+            FastCanvasJNI.defineFont(font.id, font.ascent, font.descent);
+            table.defineFont(font.id, font.ascent, font.descent);
+        }
+    }
+
+    // { fonts, pages, maxPages, pageSize, occupancy, glyphs, hits, misses,
+    // hitRate, evictions, pending, dropped }
+    public JSONObject toJSON() throws JSONException {
+        float occupancy = 0;
+        for (Page page : pages) {
+            occupancy += page.packer.getOccupancy();
+        }
+        JSONObject json = new JSONObject();
+        json.put("fonts", fonts.size());
+        json.put("pages", pages.size());
+        json.put("maxPages", maxPages);
+        json.put("pageSize", PAGE_SIZE);
+        json.put("occupancy", pages.isEmpty() ? 0 : occupancy / pages.size());
+        json.put("glyphs", glyphs);
+        json.put("hits", hits);
+        json.put("misses", misses);
+        json.put("hitRate", hits + misses == 0 ? 0 : (double) hits
+                / (hits + misses));
+        json.put("evictions", evictions);
+        json.put("pending", pending.size());
+        json.put("dropped", dropped);
+        return json;
+    }
+
+    // A new page while there is room for one, otherwise the least recently
+    // drawn page the last frame didn't draw, emptied. Null if there is none.
+    private Page freePage() {
+        if (pages.size() < maxPages) {
+            Page page = new Page(FIRST_PAGE_ID - pages.size());
+            newTexture(page);
+            pages.add(page);
+            Log.i(TAG, "new page " + page.id);
+            return page;
+        }
+        Page lru = null;
+        for (Page page : pages) {
+            if (page.lastUsed != uses
+                    && (lru == null || page.lastUsed < lru.lastUsed)) {
+                lru = page;
+            }
+        }
+        if (lru == null) {
+            return null;
+        }
+        Log.i(TAG, "evict page " + lru.id + " with " + lru.glyphs
+                + " glyphs, occupancy " + lru.packer.getOccupancy());
+        // deletes the texture and its glyphs, lists drawing them are rebuilt
+        FastCanvasJNI.removeTexture(lru.id);
+        table.remove(lru.id);
+        glyphs -= lru.glyphs;
+        lru.glyphs = 0;
+        lru.packer.reset();
+        newTexture(lru);
+        evictions++;
+        return lru;
+    }
+
+    private void newTexture(Page page) {
+        int[] glID = new int[1];
+        GLES10.glGenTextures(1, glID, 0);
+        page.glID = glID[0];
+        GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, page.glID);
+        GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_LINEAR);
+        GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
+        // cleared, so the padding between glyphs is transparent
+        GLES10.glTexImage2D(GLES10.GL_TEXTURE_2D, 0, GLES10.GL_RGBA,
+                PAGE_SIZE, PAGE_SIZE, 0, GLES10.GL_RGBA,
+                GLES10.GL_UNSIGNED_BYTE,
+                ByteBuffer.allocateDirect(PAGE_SIZE * PAGE_SIZE * 4));
+        FastCanvasJNI.addTexture(page.id, page.glID, PAGE_SIZE, PAGE_SIZE);
+        table.add(page.id, page.glID, PAGE_SIZE, PAGE_SIZE);
+    }
+
+    // Rasterizer thread. The ink with a pixel of margin, placed relative
+    // to the pen on the baseline.
+    private static Raster rasterize(Font font, int codePoint, long generation) {
+        Raster raster = new Raster();
+        raster.font = font;
+        raster.codePoint = codePoint;
+        raster.generation = generation;
+
+        char[] chars = Character.toChars(codePoint);
+        Paint paint = font.paint;
+        Rect bounds = new Rect();
+        paint.getTextBounds(chars, 0, chars.length, bounds);
+        raster.advance = paint.measureText(chars, 0, chars.length);
+        if (bounds.width() <= 0 || bounds.height() <= 0) {
+            return raster;
+        }
+
+        int width = bounds.width() + 2;
+        int height = bounds.height() + 2;
+        Bitmap bitmap = Bitmap.createBitmap(width, height,
+                Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawText(chars, 0, chars.length, 1 - bounds.left,
+                1 - bounds.top, paint);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+        bitmap.copyPixelsToBuffer(pixels);
+        bitmap.recycle();
+        // premultiplied white is the alpha in every channel; the canvas
+        // blends straight alpha
+        for (int i = 0; i < width * height * 4; i += 4) {
+            pixels.put(i, (byte) 0xff);
+            pixels.put(i + 1, (byte) 0xff);
+            pixels.put(i + 2, (byte) 0xff);
+        }
+        pixels.rewind();
+
+        raster.width = width;
+        raster.height = height;
+        raster.left = bounds.left - 1;
+        raster.top = 1 - bounds.top;
+        raster.pixels = pixels;
+        return raster;
+    }
+
+    private static Long key(int fontID, int codePoint) {
+        return Long.valueOf((long) fontID << 32 | (codePoint & 0xffffffffL));
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FastCanvasGlyphCache");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static final String TAG = "FastCanvasGlyphCache";
+}
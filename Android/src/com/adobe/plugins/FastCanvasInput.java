@@ -0,0 +1,120 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+// Touches and keys collected between two frames, handed to the app as one
+// batch per frame instead of one WebView event each.
+//
+// Every event is STRIDE doubles: kind, action, pointer ID or key code, x or
+// meta state, y or unicode character, and the time in milliseconds on the
+// System.nanoTime() clock, the one frame callbacks use. Actions share the
+// values of MotionEvent and KeyEvent: DOWN, UP, MOVE and CANCEL.
+//
+// Without history, a pointer's moves between two other events are coalesced
+// into its latest position, at the end of the batch so it stays in time
+// order. A batch holds at most MAX_EVENTS; beyond that
+// moves are coalesced regardless where they can be, and the rest dropped.
+// The UI thread adds, the GL thread drains.
+public class FastCanvasInput {
+
+    public static final int TOUCH = 1;
+    public static final int KEY = 2;
+
+    public static final int DOWN = 0;
+    public static final int UP = 1;
+    public static final int MOVE = 2;
+    public static final int CANCEL = 3;
+
+    public static final int STRIDE = 6;
+    static final int MAX_EVENTS = 1024;
+
+    private final double[] events = new double[MAX_EVENTS * STRIDE];
+    private int count;
+    private boolean history = true;
+    private int dropped;
+
+    public synchronized void setHistory(boolean history) {
+        this.history = history;
+    }
+
+    public synchronized void touch(int action, int pointerID, float x,
+            float y, double time) {
+        if (action == MOVE && (!history || count == MAX_EVENTS)) {
+            // take out the pointer's last move, if only moves came since,
+            // and add this one at the end: replacing it where it was would
+            // put it ahead of other pointers' later moves
+            for (int i = (count - 1) * STRIDE; i >= 0; i -= STRIDE) {
+                if (events[i] != TOUCH || events[i + 1] != MOVE) {
+                    break;
+                }
+                if (events[i + 2] == pointerID) {
+                    System.arraycopy(events, i + STRIDE, events, i, count
+                            * STRIDE - i - STRIDE);
+                    count--;
+                    break;
+                }
+            }
+        }
+        add(TOUCH, action, pointerID, x, y, time);
+    }
+
+    public synchronized void key(int action, int keyCode, int meta,
+            int unicode, double time) {
+        add(KEY, action, keyCode, meta, unicode, time);
+    }
+
+    // The events since the last drain in native byte order, ready to be
+    // read as a Float64Array, or null if there were none
+    public synchronized byte[] drain() {
+        if (count == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[count * STRIDE * 8];
+        DoubleBuffer out = ByteBuffer.wrap(bytes)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        out.put(events, 0, count * STRIDE);
+        count = 0;
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    // Events dropped because a batch was full, since the start
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    private void add(int kind, int action, int id, double a, double b,
+            double time) {
+        if (count == MAX_EVENTS) {
+            dropped++;
+            return;
+        }
+        int i = count++ * STRIDE;
+        events[i] = kind;
+        events[i + 1] = action;
+        events[i + 2] = id;
+        events[i + 3] = a;
+        events[i + 4] = b;
+        events[i + 5] = time;
+    }
+}
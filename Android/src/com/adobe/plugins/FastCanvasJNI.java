@@ -15,6 +15,8 @@
 
 package com.adobe.plugins;
 
+import java.nio.ByteBuffer;
+
 public class FastCanvasJNI {
     // Native methods
 
@@ -25,15 +27,101 @@ public class FastCanvasJNI {
     // id's must be from 0 to numTextures-1
     public static native void addTexture(int id, int glID, int width, int height);
 
+    // id is drawn from the region of the atlas page glID starting at x, y.
+    // The page isn't deleted when the region is removed.
+    public static native void addTextureRegion(int id, int glID,
+            int pageWidth, int pageHeight, int x, int y);
+
     // id's must be from 0 to numTextures-1
     public static native boolean addPngTexture(Object mgr, String path, int id,
             FastCanvasTextureDimension dim);
 
+    // Decodes a PNG asset into RGBA pixels without touching GL, so it can run
+    // on any thread. Returns null on failure. The buffer is native memory and
+    // must be passed to freeTextureData.
+    public static native ByteBuffer decodePngTexture(Object mgr, String path,
+            FastCanvasTextureDimension dim);
+
+    // Same as decodePngTexture for a PNG held in the first length bytes of
+    // a direct buffer
+    public static native ByteBuffer decodePngData(ByteBuffer data, int length,
+            FastCanvasTextureDimension dim);
+
+    public static native void freeTextureData(ByteBuffer data);
+
     // id must have been passed to addTexture in the past
     public static native void removeTexture(int id);
 
+    // Copies the texture IDs drawn by the last render or renderBuffer,
+    // loaded or not, into ids. Returns how many there are, which can be more
+    // than ids.length.
+    public static native int getUsedTextures(int[] ids);
+
+    // Metrics of font id for fillText, in pixels: ascent and descent, both
+    // positive. Defining a font again keeps its glyphs.
+    public static native void defineFont(int id, float ascent, float descent);
+
+    // The glyph of codePoint in font fontID: the x, y, width, height
+    // rectangle of glyph page pageID (a texture added before, or 0 for a
+    // glyph without ink), placed left and top (upwards) of the pen on the
+    // baseline, then the pen advances. Lists missing glyphs are rebuilt.
+    // Removing the page removes its glyphs.
+    public static native void addGlyph(int fontID, int codePoint,
+            int pageID, int x, int y, int width, int height, float left,
+            float top, float advance);
+
+    // Copies the font ID and code point pairs fillText didn't find in the
+    // last render, renderBuffer or renderBatch into glyphs, each pair once.
+    // Returns how many pairs there are, which can be more than fit.
+    public static native int getMissingGlyphs(int[] glyphs);
+
+    // Fills stats with what the last render, renderBuffer or redraw did:
+    // build time in microseconds (0 if the streams were reused), VBO upload
+    // bytes, draw calls, quads, quads culled outside the viewport, and
+    // fillText glyphs found and missing. Fills as many as stats has room
+    // for.
+    public static native void getFrameStats(int[] stats);
+
     public static native void render(String renderCommands);
 
+    // renderBuffer must be a direct buffer holding length bytes of binary
+    // commands, see FastCanvasCommandEncoder
+    public static native void renderBuffer(ByteBuffer renderBuffer, int length);
+
+    // Uploads and draws a frame built by FastCanvasFrameBuilder, see
+    // FastCanvasFrameBatch for the layout. vertices must be a direct buffer.
+    public static native void renderBatch(ByteBuffer vertices,
+            int vertexCount, int[] draws, int drawCount,
+            float[] listTransforms, int[] usedIDs, int usedCount);
+
+    // draws the streams built by the last render or renderBuffer, or the
+    // last renderBatch frame, again
+    public static native void redraw();
+
+    // Records render commands as display list id, drawn by 'L' commands.
+    // Replaces any list with that id. The list is built before the next
+    // frame, and rebuilt whenever one of its textures is added or removed.
+    public static native void defineList(int id, String renderCommands);
+
+    // defineList for length bytes of binary commands in a direct buffer.
+    // The commands are copied, the buffer can be reused.
+    public static native void defineListBuffer(int id, ByteBuffer renderBuffer,
+            int length);
+
+    public static native void removeList(int id);
+
+    // Draws display list listID on every frame with transform (a, b, c, d,
+    // tx, ty): under the frame's own commands if z is negative, over them
+    // otherwise, in z order. Replaces the layer's previous settings.
+    public static native void setLayer(int listID, int z, boolean visible,
+            float[] transform);
+
+    // Stops drawing the layer; the list itself stays
+    public static native void removeLayer(int listID);
+
+    // How many times list id was built, -1 if there is no such list
+    public static native int getListBuilds(int id);
+
     public static native void surfaceChanged(int width, int height);
 
     // captures the current contents of the GL layer and writes to a temporary
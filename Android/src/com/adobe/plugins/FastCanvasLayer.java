@@ -0,0 +1,110 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+
+// A named layer: a display list of its own, drawn by every frame with its
+// own transform and z, and only rebuilt when the app submits it again.
+//
+// The layer keeps its last submission so it can be defined again when the
+// backend lost its lists. GL thread only.
+public class FastCanvasLayer {
+
+    public final String name;
+    // The display list backing the layer
+    public final int listID;
+
+    private int z;
+    private boolean visible = true;
+    private final float[] transform = { 1, 0, 0, 1, 0, 0 };
+    private int submissions;
+
+    // Either or neither is set
+    private String commands;
+    private ByteBuffer buffer;
+    private FastCanvasBufferPool pool;
+
+    public FastCanvasLayer(String name, int listID) {
+        this.name = name;
+        this.listID = listID;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public int getSubmissions() {
+        return submissions;
+    }
+
+    // transform is a, b, c, d, tx, ty
+    public void set(FastCanvasBackend backend, int z, boolean visible,
+            float[] transform) {
+        this.z = z;
+        this.visible = visible;
+        System.arraycopy(transform, 0, this.transform, 0, 6);
+        backend.setLayer(listID, z, visible, this.transform);
+    }
+
+    public void submit(FastCanvasBackend backend, String commands) {
+        releaseBuffer();
+        this.commands = commands;
+        submissions++;
+        backend.defineList(listID, commands);
+    }
+
+    // buffer came from pool.acquire() and is kept until the next
+    // submission
+    public void submit(FastCanvasBackend backend, ByteBuffer buffer,
+            FastCanvasBufferPool pool) {
+        releaseBuffer();
+        this.commands = null;
+        this.buffer = buffer;
+        this.pool = pool;
+        submissions++;
+        backend.defineListBuffer(listID, buffer, buffer.limit());
+    }
+
+    // Defines the list and layer again, e.g. after the backend was released
+    public void restore(FastCanvasBackend backend) {
+        if (commands != null) {
+            backend.defineList(listID, commands);
+        } else if (buffer != null) {
+            backend.defineListBuffer(listID, buffer, buffer.limit());
+        }
+        backend.setLayer(listID, z, visible, transform);
+    }
+
+    public void remove(FastCanvasBackend backend) {
+        backend.removeLayer(listID);
+        backend.removeList(listID);
+        releaseBuffer();
+        commands = null;
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+// Decides when the GL surface draws.
+//
+// In MODE_CONTINUOUS the surface draws every vsync, optionally capped to a
+// maximum frame rate. In MODE_DIRTY it only draws when invalidate() is
+// called: a new frame arrived, a texture finished loading or unloading, or
+// the surface changed.
+public class FastCanvasRenderScheduler {
+
+    public static final int MODE_CONTINUOUS = 0;
+    public static final int MODE_DIRTY = 1;
+
+    // What the scheduler drives, a GLSurfaceView in the plugin
+    public interface Target {
+        void setContinuous(boolean continuous);
+
+        void requestRender();
+    }
+
+    private final Target target;
+    private volatile int mode = MODE_CONTINUOUS;
+    private volatile long minFrameNanos;
+
+    // GL thread only
+    private long nextFrameTime;
+
+    public FastCanvasRenderScheduler(Target target) {
+        this.target = target;
+    }
+
+    // maxFps <= 0 removes the cap. The cap only applies to MODE_CONTINUOUS.
+    public void setMode(int mode, int maxFps) {
+        if (mode != MODE_CONTINUOUS && mode != MODE_DIRTY) {
+            throw new IllegalArgumentException("unknown render mode " + mode);
+        }
+        this.minFrameNanos = maxFps > 0 ? 1000000000L / maxFps : 0;
+        this.mode = mode;
+        target.setContinuous(mode == MODE_CONTINUOUS);
+        // draw once so the surface reflects anything that changed meanwhile
+        target.requestRender();
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    // Something visible changed. Any thread.
+    public void invalidate() {
+        if (mode == MODE_DIRTY) {
+            target.requestRender();
+        }
+    }
+
+    // GL thread, before drawing: nanoseconds to wait so the frame rate stays
+    // under the cap, 0 to draw right away.
+    public long frameDelay(long now) {
+        long min = minFrameNanos;
+        if (mode != MODE_CONTINUOUS || min == 0) {
+            return 0;
+        }
+        return Math.max(0, nextFrameTime - now);
+    }
+
+    // GL thread, once the frame has been drawn.
+    public void frameDrawn(long now) {
+        long min = minFrameNanos;
+        if (min == 0) {
+            nextFrameTime = now;
+            return;
+        }
+        // keep a steady cadence, but don't try to catch up after a long frame
+        nextFrameTime = Math.max(nextFrameTime + min, now + min / 2);
+    }
+}
@@ -0,0 +1,730 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Draws render commands into an int[] of ARGB pixels without a GPU, for
+// rendering on a server and for comparing frames against reference images.
+//
+// Frames go through FastCanvasFrameBuilder, so the transforms, rounding and
+// texture coordinates are the same as on the device. The quads are then
+// rasterized like GL would with the plugin's state: pixel centers, nearest
+// texel modulated by the vertex color (globalAlpha, fillText colors),
+// blended over the background.
+// Images are ARGB pages added with addPage; the page handle takes the place
+// of the GL texture name in addTexture and addTextureRegion. fillText draws
+// the glyphs given to defineFont and addGlyph, rasterized by the caller.
+//
+// Layers are built with their transform whenever their list, transform or
+// textures change, and kept until then.
+//
+// Large outputs are rasterized in horizontal bands in parallel; each band
+// draws every quad in order, so the result doesn't depend on the split. One
+// thread at a time calls in.
+public class FastCanvasSoftwareBackend implements FastCanvasBackend {
+
+    // Outputs with fewer pixels are drawn on the calling thread
+    private static final int PARALLEL_PIXELS = 256 * 256;
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static class Page {
+        final int[] pixels;
+        final int width;
+        final int height;
+
+        Page(int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static class Layer {
+        final int listID;
+        int z;
+        boolean visible;
+        final float[] transform = new float[6];
+        final FastCanvasFrameBatch batch = new FastCanvasFrameBatch();
+        // the list the batch was built from, null to rebuild
+        FastCanvasFrameMailbox.Frame built;
+
+        Layer(int listID) {
+            this.listID = listID;
+        }
+    }
+
+    private final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+    private int nextHandle = 1;
+    private final FastCanvasTextureTable textures = new FastCanvasTextureTable();
+    private final FastCanvasFrameBuilder builder = new FastCanvasFrameBuilder(
+            textures);
+    private final FastCanvasFrameBuilder listBuilder = new FastCanvasFrameBuilder(
+            textures);
+    private final FastCanvasFrameBatch batch = new FastCanvasFrameBatch();
+    private final Map<Integer, FastCanvasFrameMailbox.Frame> lists = new HashMap<Integer, FastCanvasFrameMailbox.Frame>();
+    private final Map<Integer, Integer> listBuilds = new HashMap<Integer, Integer>();
+    // in z order
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private final int threads;
+    private ExecutorService executor;
+
+    private int width;
+    private int height;
+    private int[] pixels = new int[0];
+    private int orthoWidth;
+    private int orthoHeight;
+    private int background = 0xff000000;
+
+    // The last frame, as handed to renderBatch
+    private int[] vertices = new int[0];
+    private int[] draws = new int[0];
+    private int drawCount;
+    private final List<FastCanvasFrameBatch> listBatches = new ArrayList<FastCanvasFrameBatch>();
+    private int[] used = new int[64];
+    private int usedCount;
+    private final int[] frameStats = new int[7];
+    // the batch of the last render or renderBuffer, null after renderBatch
+    private FastCanvasFrameBatch built;
+
+    public FastCanvasSoftwareBackend(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    // threads <= 1 rasterizes on the calling thread only
+    public FastCanvasSoftwareBackend(int width, int height, int threads) {
+        this.threads = threads;
+        surfaceChanged(width, height);
+    }
+
+    // Registers ARGB pixels, width * height of them, and returns the handle
+    // to pass to addTexture or addTextureRegion. The array is drawn from,
+    // not copied.
+    public int addPage(int[] argb, int width, int height) {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("page " + width + "x" + height
+                    + " with " + argb.length + " pixels");
+        }
+        int handle = nextHandle++;
+        pages.put(handle, new Page(argb, width, height));
+        return handle;
+    }
+
+    // Pages stay until removed, like GL textures
+    public void removePage(int handle) {
+        pages.remove(handle);
+    }
+
+    // addPage and addTexture in one
+    public void loadTexture(int id, int[] argb, int width, int height) {
+        addTexture(id, addPage(argb, width, height), width, height);
+    }
+
+    // The last frame, ARGB from the top left, getWidth() pixels per row
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setBackgroundColor(int red, int green, int blue) {
+        background = 0xff000000 | (red & 0xff) << 16 | (green & 0xff) << 8
+                | (blue & 0xff);
+    }
+
+    public void setOrtho(int width, int height) {
+        orthoWidth = width > 0 ? width : 800;
+        orthoHeight = height > 0 ? height : 600;
+        builder.setViewport(orthoWidth, orthoHeight);
+    }
+
+    public void surfaceChanged(int width, int height) {
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        pixels = new int[this.width * this.height];
+        if (orthoWidth == 0) {
+            // until setOrtho, one unit is one pixel as natively
+            orthoWidth = this.width;
+            orthoHeight = this.height;
+            builder.setViewport(orthoWidth, orthoHeight);
+        }
+    }
+
+    public void addTexture(int id, int handle, int width, int height) {
+        textures.add(id, handle, width, height);
+    }
+
+    public void addTextureRegion(int id, int handle, int pageWidth,
+            int pageHeight, int x, int y) {
+        textures.addRegion(id, handle, pageWidth, pageHeight, x, y);
+    }
+
+    public void removeTexture(int id) {
+        textures.remove(id);
+    }
+
+    public int createPage(int width, int height) {
+        return addPage(new int[width * height], width, height);
+    }
+
+    public void updatePage(int handle, int x, int y, int width, int height,
+            ByteBuffer rgba) {
+        Page page = pages.get(handle);
+        if (page == null || x < 0 || y < 0 || x + width > page.width
+                || y + height > page.height) {
+            throw new IllegalArgumentException(width + "x" + height + " at "
+                    + x + "," + y + " is outside page " + handle);
+        }
+        int p = rgba.position();
+        for (int row = 0; row < height; row++) {
+            int out = (y + row) * page.width + x;
+            for (int column = 0; column < width; column++, p += 4) {
+                page.pixels[out + column] = (rgba.get(p + 3) & 0xff) << 24
+                        | (rgba.get(p) & 0xff) << 16
+                        | (rgba.get(p + 1) & 0xff) << 8
+                        | (rgba.get(p + 2) & 0xff);
+            }
+        }
+    }
+
+    public void deletePage(int handle) {
+        removePage(handle);
+    }
+
+    public int getUsedTextures(int[] ids) {
+        System.arraycopy(used, 0, ids, 0, Math.min(usedCount, ids.length));
+        return usedCount;
+    }
+
+    // See FastCanvasJNI.defineFont
+    public void defineFont(int id, float ascent, float descent) {
+        textures.defineFont(id, ascent, descent);
+    }
+
+    // See FastCanvasJNI.addGlyph; pageID is a texture added before
+    public void addGlyph(int fontID, int codePoint, int pageID, int x,
+            int y, int width, int height, float left, float top,
+            float advance) {
+        textures.addGlyph(fontID, codePoint, pageID, x, y, width, height,
+                left, top, advance);
+    }
+
+    public int getMissingGlyphs(int[] glyphs) {
+        if (built == null) {
+            return 0;
+        }
+        int count = built.getMissingGlyphCount();
+        System.arraycopy(built.getMissingGlyphs(), 0, glyphs, 0,
+                Math.min(count, glyphs.length / 2) * 2);
+        return count;
+    }
+
+    public void getFrameStats(int[] stats) {
+        System.arraycopy(frameStats, 0, stats, 0,
+                Math.min(frameStats.length, stats.length));
+    }
+
+    public void render(String renderCommands) {
+        FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+        frame.setCommand(renderCommands);
+        renderFrame(frame);
+    }
+
+    public void renderBuffer(ByteBuffer renderBuffer, int length) {
+        renderFrame(bufferFrame(renderBuffer, length));
+    }
+
+    public void renderBatch(ByteBuffer vertices, int vertexCount,
+            int[] draws, int drawCount, float[] listTransforms, int[] usedIDs,
+            int usedCount) {
+        int ints = vertexCount * FastCanvasFrameBatch.VERTEX_INTS;
+        if (this.vertices.length < ints) {
+            this.vertices = new int[ints];
+        }
+        vertices.duplicate().order(ByteOrder.nativeOrder()).asIntBuffer()
+                .get(this.vertices, 0, ints);
+        int drawInts = drawCount * FastCanvasFrameBatch.DRAW_INTS;
+        if (this.draws.length < drawInts) {
+            this.draws = new int[drawInts];
+        }
+        System.arraycopy(draws, 0, this.draws, 0, drawInts);
+        this.drawCount = drawCount;
+
+        this.usedCount = 0;
+        for (int i = 0; i < usedCount; i++) {
+            use(usedIDs[i]);
+        }
+        buildLists(listTransforms);
+        // built elsewhere, nothing uploaded
+        frameStats[0] = 0;
+        frameStats[1] = 0;
+        frameStats[4] = 0;
+        frameStats[5] = 0;
+        frameStats[6] = 0;
+        built = null;
+        redraw();
+    }
+
+    public void redraw() {
+        buildLayers();
+        if (pixels.length == 0) {
+            return;
+        }
+        int bands = threads <= 1 || pixels.length < PARALLEL_PIXELS ? 1
+                : Math.min(threads * 2, Math.max(1, height / MIN_BAND_ROWS));
+        if (bands == 1) {
+            rasterize(0, height);
+        } else {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
+                    bands);
+            for (int i = 0; i < bands; i++) {
+                final int y0 = height * i / bands;
+                final int y1 = height * (i + 1) / bands;
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        rasterize(y0, y1);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Object> f : executor().invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        int quads = 0;
+        int calls = 0;
+        for (int i = 0; i < drawCount; i++) {
+            int d = i * FastCanvasFrameBatch.DRAW_INTS;
+            if ((draws[d + 3] & FastCanvasFrameBatch.FLAG_LIST) != 0) {
+                FastCanvasFrameBatch list = listBatches.get(draws[d + 1]);
+                calls += list.getDrawCount();
+                quads += list.getQuadCount();
+            } else {
+                calls++;
+                quads += draws[d + 2] / 4;
+            }
+        }
+        for (Layer layer : layers) {
+            if (layer.visible && layer.built != null) {
+                calls += layer.batch.getDrawCount();
+                quads += layer.batch.getQuadCount();
+            }
+        }
+        frameStats[2] = calls;
+        frameStats[3] = quads;
+    }
+
+    public void defineList(int id, String renderCommands) {
+        FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+        frame.setCommand(renderCommands);
+        lists.put(id, frame);
+        listBuilds.put(id, 0);
+    }
+
+    public void defineListBuffer(int id, ByteBuffer renderBuffer, int length) {
+        lists.put(id, bufferFrame(renderBuffer, length));
+        listBuilds.put(id, 0);
+    }
+
+    public void removeList(int id) {
+        lists.remove(id);
+        listBuilds.remove(id);
+    }
+
+    public void setLayer(int listID, int z, boolean visible,
+            float[] transform) {
+        Layer layer = null;
+        int at = -1;
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).listID == listID) {
+                layer = layers.get(i);
+                at = i;
+                break;
+            }
+        }
+        if (layer == null) {
+            layer = new Layer(listID);
+        }
+        for (int i = 0; i < 6; i++) {
+            if (layer.transform[i] != transform[i]) {
+                layer.transform[i] = transform[i];
+                layer.built = null;
+            }
+        }
+        layer.visible = visible;
+        if (at >= 0 && layer.z == z) {
+            return;
+        }
+        if (at >= 0) {
+            layers.remove(at);
+        }
+        // after the layers with the same z
+        at = 0;
+        while (at < layers.size() && layers.get(at).z <= z) {
+            at++;
+        }
+        layer.z = z;
+        layers.add(at, layer);
+    }
+
+    public void removeLayer(int listID) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).listID == listID) {
+                layers.remove(i);
+                return;
+            }
+        }
+    }
+
+    public int getListBuilds(int id) {
+        Integer builds = listBuilds.get(id);
+        return builds != null ? builds : -1;
+    }
+
+    public byte[] captureGLLayerDirect(int width, int height) {
+        int w = Math.min(width, this.width);
+        int h = Math.min(height, this.height);
+        byte[] rgba = new byte[4 * width * height];
+        for (int y = 0; y < h; y++) {
+            int in = (this.height - 1 - y) * this.width;
+            int out = y * width * 4;
+            for (int x = 0; x < w; x++) {
+                int p = pixels[in + x];
+                rgba[out++] = (byte) (p >> 16);
+                rgba[out++] = (byte) (p >> 8);
+                rgba[out++] = (byte) p;
+                rgba[out++] = (byte) (p >> 24);
+            }
+        }
+        return rgba;
+    }
+
+    // Nothing is lost without a context
+    public void contextLost() {
+    }
+
+    public void release() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        pages.clear();
+        lists.clear();
+        listBuilds.clear();
+        layers.clear();
+        textures.clear();
+    }
+
+    // A copy of the first length bytes of buffer, from index 0 whatever its
+    // position, as FastCanvasJNI reads them
+    private static FastCanvasFrameMailbox.Frame bufferFrame(ByteBuffer buffer,
+            int length) {
+        ByteBuffer commands = buffer.duplicate();
+        commands.limit(length).position(0);
+        FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+        frame.prepareBuffer(length).put(commands).flip();
+        return frame;
+    }
+
+    private void renderFrame(FastCanvasFrameMailbox.Frame frame) {
+        builder.build(frame, batch);
+        renderBatch(batch.getVertexBuffer(), batch.getVertexCount(),
+                batch.getDraws(), batch.getDrawCount(),
+                batch.getListTransforms(), batch.getUsedTextures(),
+                batch.getUsedCount());
+        frameStats[0] = (int) Math.max(1, batch.getBuildNanos() / 1000);
+        frameStats[1] = batch.getVertexCount()
+                * FastCanvasFrameBatch.VERTEX_BYTES;
+        frameStats[4] = batch.getCulledCount();
+        frameStats[5] = batch.getGlyphHits();
+        frameStats[6] = batch.getGlyphMisses();
+        built = batch;
+    }
+
+    // Builds each display list drawn with its transform; natively the list
+    // is built once and transformed when drawn, which can round differently
+    private void buildLists(float[] listTransforms) {
+        for (int i = 0; i < drawCount; i++) {
+            int d = i * FastCanvasFrameBatch.DRAW_INTS;
+            if ((draws[d + 3] & FastCanvasFrameBatch.FLAG_LIST) == 0) {
+                continue;
+            }
+            int k = draws[d + 1];
+            while (listBatches.size() <= k) {
+                listBatches.add(new FastCanvasFrameBatch());
+            }
+            FastCanvasFrameBatch list = listBatches.get(k);
+            FastCanvasFrameMailbox.Frame frame = lists.get(draws[d]);
+            if (frame == null) {
+                list.reset(new FastCanvasFrameMailbox.Frame(), 0);
+                continue;
+            }
+            listBuilder.setTransform(listTransforms[k * 6],
+                    listTransforms[k * 6 + 1], listTransforms[k * 6 + 2],
+                    listTransforms[k * 6 + 3], listTransforms[k * 6 + 4],
+                    listTransforms[k * 6 + 5]);
+            listBuilder.build(frame, list);
+            builtList(draws[d]);
+            for (int j = 0; j < list.getUsedCount(); j++) {
+                use(list.getUsedTextures()[j]);
+            }
+        }
+    }
+
+    // Builds the layers whose list, transform or textures changed. All of
+    // the visible ones count as used.
+    private void buildLayers() {
+        for (Layer layer : layers) {
+            FastCanvasFrameMailbox.Frame frame = lists.get(layer.listID);
+            if (frame == null) {
+                layer.built = null;
+                continue;
+            }
+            if (layer.built != frame
+                    || layer.batch.getTableVersion() != textures.getVersion()) {
+                float[] t = layer.transform;
+                listBuilder.setTransform(t[0], t[1], t[2], t[3], t[4], t[5]);
+                listBuilder.build(frame, layer.batch);
+                layer.built = frame;
+                builtList(layer.listID);
+            }
+            if (layer.visible) {
+                for (int j = 0; j < layer.batch.getUsedCount(); j++) {
+                    use(layer.batch.getUsedTextures()[j]);
+                }
+            }
+        }
+    }
+
+    private void builtList(int id) {
+        Integer builds = listBuilds.get(id);
+        listBuilds.put(id, builds != null ? builds + 1 : 1);
+    }
+
+    private void use(int id) {
+        for (int i = 0; i < usedCount; i++) {
+            if (used[i] == id) {
+                return;
+            }
+        }
+        if (usedCount == used.length) {
+            int[] grown = new int[used.length * 2];
+            System.arraycopy(used, 0, grown, 0, usedCount);
+            used = grown;
+        }
+        used[usedCount++] = id;
+    }
+
+    // Draws the whole frame into rows y0 to y1
+    private void rasterize(int y0, int y1) {
+        int[] out = pixels;
+        for (int i = y0 * width; i < y1 * width; i++) {
+            out[i] = background;
+        }
+        drawLayers(false, y0, y1);
+        for (int i = 0; i < drawCount; i++) {
+            int d = i * FastCanvasFrameBatch.DRAW_INTS;
+            if ((draws[d + 3] & FastCanvasFrameBatch.FLAG_LIST) != 0) {
+                drawList(listBatches.get(draws[d + 1]), y0, y1);
+            } else {
+                drawQuads(vertices, draws[d], draws[d + 1], draws[d + 2], y0,
+                        y1);
+            }
+        }
+        drawLayers(true, y0, y1);
+    }
+
+    // The layers under the frame (z < 0), or the ones over it
+    private void drawLayers(boolean above, int y0, int y1) {
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (layer.visible && layer.built != null
+                    && (layer.z >= 0) == above) {
+                drawList(layer.batch, y0, y1);
+            }
+        }
+    }
+
+    private void drawList(FastCanvasFrameBatch list, int y0, int y1) {
+        int[] listDraws = list.getDraws();
+        for (int j = 0; j < list.getDrawCount(); j++) {
+            int ld = j * FastCanvasFrameBatch.DRAW_INTS;
+            if ((listDraws[ld + 3] & FastCanvasFrameBatch.FLAG_LIST) == 0) {
+                drawQuads(list.vertices, listDraws[ld], listDraws[ld + 1],
+                        listDraws[ld + 2], y0, y1);
+            }
+        }
+    }
+
+    private void drawQuads(int[] v, int handle, int first, int count, int y0,
+            int y1) {
+        Page page = pages.get(handle);
+        if (page == null) {
+            return;
+        }
+        for (int i = first; i < first + count; i += 4) {
+            drawQuad(page, v, i * FastCanvasFrameBatch.VERTEX_INTS, y0, y1);
+        }
+    }
+
+    // The quad is the parallelogram spanned by its first, second and last
+    // vertex. Pixels whose center falls inside take the nearest texel.
+    private void drawQuad(Page page, int[] v, int i, int y0, int y1) {
+        final int stride = FastCanvasFrameBatch.VERTEX_INTS;
+        float sx = orthoWidth > 0 ? (float) width / orthoWidth : 1;
+        float sy = orthoHeight > 0 ? (float) height / orthoHeight : 1;
+
+        float x0 = Float.intBitsToFloat(v[i]) * sx;
+        float y0f = Float.intBitsToFloat(v[i + 1]) * sy;
+        float u0 = Float.intBitsToFloat(v[i + 2]);
+        float t0 = Float.intBitsToFloat(v[i + 3]);
+        float x1 = Float.intBitsToFloat(v[i + stride]) * sx;
+        float y1f = Float.intBitsToFloat(v[i + stride + 1]) * sy;
+        float u1 = Float.intBitsToFloat(v[i + stride + 2]);
+        float x2 = Float.intBitsToFloat(v[i + 2 * stride]) * sx;
+        float y2f = Float.intBitsToFloat(v[i + 2 * stride + 1]) * sy;
+        float x3 = Float.intBitsToFloat(v[i + 3 * stride]) * sx;
+        float y3f = Float.intBitsToFloat(v[i + 3 * stride + 1]) * sy;
+        float t3 = Float.intBitsToFloat(v[i + 3 * stride + 3]);
+        int color = v[i + 4];
+        int alpha = LITTLE_ENDIAN ? color >>> 24 : color & 0xff;
+        if (alpha == 0) {
+            return;
+        }
+        // RGB as 0xRRGGBB, white unless tinted
+        int rgb = LITTLE_ENDIAN ? (color & 0xff) << 16 | color & 0xff00
+                | (color >> 16) & 0xff : color >>> 8;
+
+        float e1x = x1 - x0, e1y = y1f - y0f;
+        float e2x = x3 - x0, e2y = y3f - y0f;
+        float det = e1x * e2y - e1y * e2x;
+        if (det == 0) {
+            return;
+        }
+
+        int left = Math.max(0, (int) Math.floor(Math.min(
+                Math.min(x0, x1), Math.min(x2, x3))));
+        int right = Math.min(width, (int) Math.ceil(Math.max(
+                Math.max(x0, x1), Math.max(x2, x3))));
+        int top = Math.max(y0, (int) Math.floor(Math.min(
+                Math.min(y0f, y1f), Math.min(y2f, y3f))));
+        int bottom = Math.min(y1, (int) Math.ceil(Math.max(
+                Math.max(y0f, y1f), Math.max(y2f, y3f))));
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        // s runs along the first edge, t along the last one
+        float dsx = e2y / det, dsy = -e2x / det;
+        float dtx = -e1y / det, dty = e1x / det;
+        float du = (u1 - u0) * page.width;
+        float dv = (t3 - t0) * page.height;
+        float pu = u0 * page.width;
+        float pv = t0 * page.height;
+        int[] src = page.pixels;
+        int[] out = pixels;
+
+        for (int y = top; y < bottom; y++) {
+            float cx = left + 0.5f - x0;
+            float cy = y + 0.5f - y0f;
+            float s = cx * dsx + cy * dsy;
+            float t = cx * dtx + cy * dty;
+            int row = y * width;
+            for (int x = left; x < right; x++, s += dsx, t += dtx) {
+                if (s < 0 || s >= 1 || t < 0 || t >= 1) {
+                    continue;
+                }
+                int tx = clamp((int) (pu + s * du), page.width);
+                int ty = clamp((int) (pv + t * dv), page.height);
+                int texel = src[ty * page.width + tx];
+                if (rgb != 0xffffff) {
+                    texel = modulate(texel, rgb);
+                }
+                int a = ((texel >>> 24) * alpha + 127) / 255;
+                if (a == 0) {
+                    continue;
+                }
+                if (a == 255) {
+                    out[row + x] = texel | 0xff000000;
+                } else {
+                    out[row + x] = blend(texel, out[row + x], a);
+                }
+            }
+        }
+    }
+
+    // GL_MODULATE of the texel's color, alpha is left alone
+    private static int modulate(int texel, int rgb) {
+        int r = (((texel >> 16) & 0xff) * (rgb >>> 16) + 127) / 255;
+        int g = (((texel >> 8) & 0xff) * ((rgb >> 8) & 0xff) + 127) / 255;
+        int b = ((texel & 0xff) * (rgb & 0xff) + 127) / 255;
+        return texel & 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+
+    // GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA over an opaque destination
+    private static int blend(int src, int dst, int a) {
+        int na = 255 - a;
+        int r = (((src >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * na + 127) / 255;
+        int g = (((src >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * na + 127) / 255;
+        int b = ((src & 0xff) * a + (dst & 0xff) * na + 127) / 255;
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "FastCanvasSoftwareBackend");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Per frame timings and counters for the renderer.
+//
+// The last few frames are kept in a ring, one array per metric, and every
+// frame since the last reset goes into a histogram per metric, so recording
+// a frame never allocates. A metric left at -1 for a frame (latency when the
+// frame is a redraw, say) is not recorded. GL thread only.
+public class FastCanvasStats {
+
+    // publish() to the frame being acquired, new frames only
+    public static final int LATENCY = 0;
+    // size of the render commands built, new frames only
+    public static final int COMMAND_BYTES = 1;
+    // native stream building, new frames only
+    public static final int BUILD = 2;
+    // vertex data sent to the GPU
+    public static final int UPLOAD_BYTES = 3;
+    public static final int DRAW_CALLS = 4;
+    public static final int QUADS = 5;
+    // texture uploads done by the frame
+    public static final int TEXTURE_UPLOAD = 6;
+    // time between the end of the previous frame and the start of this one
+    public static final int IDLE = 7;
+    // the whole of onDrawFrame, without the frame rate cap sleep
+    public static final int FRAME = 8;
+    // quads outside the viewport, not built, new frames only
+    public static final int CULLED_QUADS = 9;
+    // fillText glyphs found in the glyph cache and not, new frames only
+    public static final int GLYPH_HITS = 10;
+    public static final int GLYPH_MISSES = 11;
+    public static final int METRICS = 12;
+
+    private static final String[] NAMES = { "latencyMicros", "commandBytes",
+            "buildMicros", "uploadBytes", "drawCalls", "quads",
+            "textureUploadMicros", "idleMicros", "frameMicros", "culledQuads",
+            "glyphHits", "glyphMisses" };
+
+    private final int capacity;
+    private final long[][] recent;
+    private final FastCanvasHistogram[] histograms = new FastCanvasHistogram[METRICS];
+    private final long[] current = new long[METRICS];
+    // next ring slot, and how many slots are filled
+    private int head;
+    private int size;
+    private long frames;
+
+    public FastCanvasStats(int capacity) {
+        this.capacity = capacity;
+        this.recent = new long[METRICS][capacity];
+        for (int i = 0; i < METRICS; i++) {
+            histograms[i] = new FastCanvasHistogram();
+        }
+        beginFrame();
+    }
+
+    public void beginFrame() {
+        for (int i = 0; i < METRICS; i++) {
+            current[i] = -1;
+        }
+    }
+
+    public void set(int metric, long value) {
+        current[metric] = value;
+    }
+
+    public void endFrame() {
+        for (int i = 0; i < METRICS; i++) {
+            recent[i][head] = current[i];
+            histograms[i].record(current[i]);
+        }
+        head = (head + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+        frames++;
+    }
+
+    public void reset() {
+        for (int i = 0; i < METRICS; i++) {
+            histograms[i].reset();
+        }
+        head = 0;
+        size = 0;
+        frames = 0;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    // { frames, <metric>: { p50, p90, p99, max, mean, last, recent: [] } }
+    // with the recent values oldest first
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("frames", frames);
+        int last = (head + capacity - 1) % capacity;
+        for (int i = 0; i < METRICS; i++) {
+            FastCanvasHistogram histogram = histograms[i];
+            JSONObject metric = new JSONObject();
+            metric.put("p50", histogram.getPercentile(50));
+            metric.put("p90", histogram.getPercentile(90));
+            metric.put("p99", histogram.getPercentile(99));
+            metric.put("max", histogram.getMax());
+            metric.put("mean", histogram.getMean());
+            metric.put("last", size > 0 ? recent[i][last] : -1);
+            JSONArray values = new JSONArray();
+            for (int j = size; j > 0; j--) {
+                values.put(recent[i][(head + capacity - j) % capacity]);
+            }
+            metric.put("recent", values);
+            json.put(NAMES[i], metric);
+        }
+        return json;
+    }
+}
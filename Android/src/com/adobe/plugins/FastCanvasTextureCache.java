@@ -0,0 +1,309 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+// Decoded textures on disk, exactly as decode() handed them to the upload,
+// so loading an image again, at the next launch or after a context loss,
+// maps a file instead of decoding it.
+//
+// Each entry is a file named after a hash of its key, holding a header with
+// the full key, the sizes and a CRC32 of the pixels, then the pixels. The
+// key has to change whenever the image could: asset path, APK version and
+// texture policy. A file that doesn't match its key or its checksum is
+// deleted and reported as a miss. Entries are written to a temporary file
+// and renamed, so a crash never leaves half an entry.
+//
+// The total size is kept under maxBytes by deleting the least recently used
+// entries. Any thread.
+public class FastCanvasTextureCache {
+
+    private static final int MAGIC = 0x46435443; // FCTC
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".tex";
+    private static final int CHUNK = 64 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+    // file name to size, least recently used first; guarded by this
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long totalBytes;
+    private int hits;
+    private int misses;
+
+    // Lists the entries already in dir, oldest first, and trims them to
+    // maxBytes; 0 deletes them all
+    public FastCanvasTextureCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = a.lastModified(), tb = b.lastModified();
+                return ta < tb ? -1 : ta > tb ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            } else {
+                // left behind by a crash while writing
+                file.delete();
+            }
+        }
+        trim();
+    }
+
+    // The texture stored under key, mapped read only, or null. The pixels
+    // can go to glTexImage2D as they are; release() doesn't need to free
+    // anything.
+    public FastCanvasDecodedTexture get(String key) {
+        String name = fileName(key);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                misses++;
+                return null;
+            }
+        }
+        File file = new File(dir, name);
+        FastCanvasDecodedTexture decoded = null;
+        try {
+            decoded = read(file, key);
+        } catch (IOException e) {
+            // gone, truncated or unreadable
+        }
+        synchronized (this) {
+            if (decoded == null) {
+                misses++;
+                remove(name);
+                return null;
+            }
+            hits++;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return decoded;
+    }
+
+    // Stores decoded under key, replacing what was there. Reads the pixels
+    // but leaves them be. Failing to write only costs the next load a
+    // decode.
+    public void put(String key, FastCanvasDecodedTexture decoded) {
+        ByteBuffer pixels = decoded.getPixels();
+        if (pixels == null || decoded.getCompressed() != null) {
+            return;
+        }
+        int length = decoded.textureWidth * decoded.textureHeight * 4;
+        if (length > maxBytes / 4) {
+            // would push out several others at once
+            return;
+        }
+        String name = fileName(key);
+        File tmp = null;
+        long size;
+        try {
+            tmp = File.createTempFile(name, ".tmp", dir);
+            size = write(tmp, key, decoded, length);
+        } catch (IOException e) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(new File(dir, name))) {
+                tmp.delete();
+                return;
+            }
+            Long old = entries.put(name, size);
+            totalBytes += size - (old != null ? old : 0);
+            trim();
+        }
+    }
+
+    // Deletes every entry
+    public synchronized void clear() {
+        while (!entries.isEmpty()) {
+            remove(entries.keySet().iterator().next());
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    // guarded by this
+    private void trim() {
+        while (totalBytes > maxBytes && !entries.isEmpty()) {
+            remove(entries.keySet().iterator().next());
+        }
+    }
+
+    // guarded by this
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, name).delete();
+    }
+
+    private static long write(File file, String key,
+            FastCanvasDecodedTexture decoded, int length) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        ByteBuffer pixels = decoded.getPixels().duplicate();
+        pixels.limit(length);
+        pixels.position(0);
+
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(CHUNK, Math.max(length, 1))];
+        ByteBuffer in = pixels.duplicate();
+        while (in.hasRemaining()) {
+            int n = Math.min(chunk.length, in.remaining());
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(36 + keyBytes.length).order(
+                ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(decoded.width)
+                .putInt(decoded.height).putInt(decoded.textureWidth)
+                .putInt(decoded.textureHeight)
+                .putInt(decoded.getUVWidth() != decoded.textureWidth ? 1 : 0)
+                .putInt((int) crc.getValue()).putInt(keyBytes.length)
+                .put(keyBytes);
+        header.flip();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (pixels.hasRemaining()) {
+                channel.write(pixels);
+            }
+        } finally {
+            out.close();
+        }
+        return file.length();
+    }
+
+    private static FastCanvasDecodedTexture read(File file, String key)
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        MappedByteBuffer data;
+        try {
+            // the mapping outlives the file
+            data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+        } finally {
+            in.close();
+        }
+        data.order(ByteOrder.BIG_ENDIAN);
+        if (data.remaining() < 36 || data.getInt(0) != MAGIC
+                || data.getInt(4) != VERSION) {
+            return null;
+        }
+        int width = data.getInt(8);
+        int height = data.getInt(12);
+        int textureWidth = data.getInt(16);
+        int textureHeight = data.getInt(20);
+        boolean scaled = data.getInt(24) != 0;
+        int checksum = data.getInt(28);
+        int keyLength = data.getInt(32);
+        if (keyLength < 0 || keyLength > data.remaining() - 36) {
+            return null;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        data.position(36);
+        data.get(keyBytes);
+        if (!key.equals(new String(keyBytes, "UTF-8"))) {
+            // a hash collision or a stale file
+            return null;
+        }
+        long length = (long) textureWidth * textureHeight * 4;
+        // scaled textures are smaller than the image
+        if (width <= 0 || height <= 0 || textureWidth <= 0
+                || textureHeight <= 0 || data.remaining() != length) {
+            return null;
+        }
+
+        ByteBuffer pixels = data.slice().order(ByteOrder.nativeOrder());
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[(int) Math.min(CHUNK, length)];
+        ByteBuffer check = pixels.duplicate();
+        while (check.hasRemaining()) {
+            int n = Math.min(chunk.length, check.remaining());
+            check.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return FastCanvasDecodedTexture.restore(pixels, width, height,
+                textureWidth, textureHeight, scaled);
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // For callers building keys: the entries of one policy never match
+    // another's
+    public static String key(String path, String version, String policy) {
+        return path + "|" + version + "|" + policy;
+    }}
@@ -15,8 +15,10 @@
 
 package com.adobe.plugins;
 
-// Out param for FastCanvasJNI.addPngTexture
+// Out param for FastCanvasJNI.addPngTexture and decodePngTexture
 public class FastCanvasTextureDimension {
     public int width;
     public int height;
+    // GPU memory the texture takes, after any padding
+    public int gpuBytes;
 }
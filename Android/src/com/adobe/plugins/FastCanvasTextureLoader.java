@@ -0,0 +1,244 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loads textures in two stages so the GL thread never decodes an image.
+//
+// Tasks are decoded (and padded) on a small pool of background threads. The
+// results wait in a ready queue until the GL thread calls uploadPending(),
+// which uploads as many of them as fit in its time and byte budget and leaves
+// the rest for the next frame.
+//
+// Only the last task submitted for a texture ID is uploaded; an older one
+// that is still in flight completes with an error instead, so a slow decode
+// can never overwrite a newer image.
+public class FastCanvasTextureLoader {
+
+    // Does the GL work for a decoded texture. GL thread only.
+    public interface Uploader {
+        void upload(Task task, FastCanvasDecodedTexture texture)
+                throws Exception;
+    }
+
+    // Called on a loader thread whenever a task is ready to upload, so the
+    // GL thread can be woken up
+    public interface Listener {
+        void onTextureReady(Task task);
+    }
+
+    public static abstract class Task {
+        public final int id;
+
+        long submitTime;
+        long decodeStartTime;
+        long decodeEndTime;
+        long uploadStartTime;
+        long uploadEndTime;
+
+        FastCanvasDecodedTexture decoded;
+        Exception error;
+
+        protected Task(int id) {
+            this.id = id;
+        }
+
+        // Loader thread
+        protected abstract FastCanvasDecodedTexture decode() throws Exception;
+
+        // GL thread, once the texture has been uploaded
+        protected abstract void onLoaded();
+
+        // GL thread, if the task failed or was cancelled
+        protected abstract void onError(Exception e);
+
+        // Time between submit() and the start of decoding
+        public long getQueueNanos() {
+            return decodeStartTime - submitTime;
+        }
+
+        public long getDecodeNanos() {
+            return decodeEndTime - decodeStartTime;
+        }
+
+        // Time between the end of decoding and the start of the upload
+        public long getReadyNanos() {
+            return uploadStartTime - decodeEndTime;
+        }
+
+        public long getUploadNanos() {
+            return uploadEndTime - uploadStartTime;
+        }
+    }
+
+    public static class CancelledException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException(String message) {
+            super(message);
+        }
+    }
+
+    private final Uploader uploader;
+    private final ThreadPoolExecutor executor;
+    private final Queue<Task> ready = new ConcurrentLinkedQueue<Task>();
+    // The task that is allowed to upload, per texture ID
+    private final ConcurrentHashMap<Integer, Task> current = new ConcurrentHashMap<Integer, Task>();
+    private volatile Listener listener;
+
+    // One decode thread per spare core, between 1 and 4
+    public FastCanvasTextureLoader(Uploader uploader) {
+        this(uploader, Math.max(1, Math.min(4, Runtime.getRuntime()
+                .availableProcessors() - 1)));
+    }
+
+    public FastCanvasTextureLoader(Uploader uploader, int threads) {
+        this.uploader = uploader;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FastCanvasTextureLoader-"
+                                + count.incrementAndGet());
+                        // decoding must not compete with the GL thread
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Any thread. Supersedes any task for the same ID still in flight.
+    public void submit(final Task task) {
+        task.submitTime = System.nanoTime();
+        current.put(task.id, task);
+        executor.execute(new Runnable() {
+            public void run() {
+                decode(task);
+            }
+        });
+    }
+
+    // Any thread. Tasks for id still in flight complete with an error.
+    public void cancel(int id) {
+        current.remove(id);
+    }
+
+    // True while a task for id has been submitted but not finished
+    public boolean isLoading(int id) {
+        return current.containsKey(id);
+    }
+
+    // True if decoded textures are waiting for uploadPending()
+    public boolean hasReady() {
+        return !ready.isEmpty();
+    }
+
+    // GL thread. Uploads ready textures, at least one, then more until the
+    // time or byte budget is spent. Returns the number of tasks finished.
+    public int uploadPending(long budgetNanos, long budgetBytes) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int finished = 0;
+
+        Task task;
+        while ((task = ready.peek()) != null) {
+            FastCanvasDecodedTexture decoded = task.decoded;
+            int size = decoded != null ? decoded.getByteCount() : 0;
+            if (finished > 0
+                    && (System.nanoTime() - start >= budgetNanos || bytes
+                            + size > budgetBytes)) {
+                break;
+            }
+            ready.poll();
+            finished++;
+
+            if (current.get(task.id) != task) {
+                release(task);
+                task.onError(new CancelledException("texture " + task.id
+                        + " load cancelled"));
+                continue;
+            }
+
+            if (task.error == null) {
+                task.uploadStartTime = System.nanoTime();
+                try {
+                    uploader.upload(task, decoded);
+                } catch (Exception e) {
+                    task.error = e;
+                }
+                task.uploadEndTime = System.nanoTime();
+                bytes += size;
+            }
+            release(task);
+            current.remove(task.id, task);
+
+            if (task.error == null) {
+                task.onLoaded();
+            } else {
+                task.onError(task.error);
+            }
+        }
+        return finished;
+    }
+
+    private void decode(Task task) {
+        task.decodeStartTime = System.nanoTime();
+        // don't decode what would be thrown away
+        if (current.get(task.id) == task) {
+            try {
+                task.decoded = task.decode();
+                if (task.decoded == null) {
+                    task.error = new Exception("texture " + task.id
+                            + " could not be decoded");
+                }
+            } catch (Exception e) {
+                task.error = e;
+            } catch (OutOfMemoryError e) {
+                task.error = new Exception("out of memory decoding texture "
+                        + task.id);
+            }
+        }
+        task.decodeEndTime = System.nanoTime();
+
+        ready.offer(task);
+        Listener l = listener;
+        if (l != null) {
+            l.onTextureReady(task);
+        }
+    }
+
+    private static void release(Task task) {
+        if (task.decoded != null) {
+            task.decoded.release();
+            task.decoded = null;
+        }
+    }
+}
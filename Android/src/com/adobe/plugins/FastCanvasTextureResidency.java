@@ -0,0 +1,253 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Keeps the textures resident on the GPU within a byte budget.
+//
+// Every texture the app loaded has an entry, resident or not. The entries
+// are kept in least recently used order: the textures drawn each frame (as
+// reported by FastCanvasJNI.getUsedTextures) move to the back, and when the
+// resident bytes exceed the budget textures are evicted from the front. An
+// evicted texture is reloaded as soon as a frame draws it again.
+//
+// After a context loss nothing is resident; textures are restored a few per
+// frame, most recently used first, up to the budget. GL thread only.
+public class FastCanvasTextureResidency {
+
+    // Does the actual work for the GL thread
+    public interface Host {
+        // Drop the GPU copy of id, but keep what's needed to reload it.
+        // Returns false if id can't be reloaded and has to stay.
+        boolean evict(int id);
+
+        // Start loading id again; loaded() follows when it's back
+        void reload(int id);
+    }
+
+    private static class Entry {
+        final int id;
+        int bytes;
+        long lastUsed;
+        boolean resident;
+        boolean reloading;
+        boolean failed;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Host host;
+    // access order, eldest (least recently used) first
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(
+            16, 0.75f, true);
+    private final List<Entry> restoreQueue = new ArrayList<Entry>();
+
+    private long budget;
+    private long frame;
+    private long residentBytes;
+    private long reloadingBytes;
+    private long evictions;
+    private long reloads;
+
+    public FastCanvasTextureResidency(Host host) {
+        this.host = host;
+    }
+
+    // 0 for no limit. Takes effect at the next trim().
+    public void setBudget(long bytes) {
+        this.budget = bytes;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void beginFrame() {
+        frame++;
+    }
+
+    // id is on the GPU now, taking bytes
+    public void loaded(int id, int bytes) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entries.put(id, entry);
+        }
+        setResident(entry, false);
+        setReloading(entry, false);
+        entry.bytes = bytes;
+        entry.lastUsed = frame;
+        entry.failed = false;
+        setResident(entry, true);
+    }
+
+    // id was unloaded by the app and is forgotten
+    public void removed(int id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            setResident(entry, false);
+            setReloading(entry, false);
+            restoreQueue.remove(entry);
+        }
+    }
+
+    // A reload of id failed; don't try again until the app loads it
+    public void reloadFailed(int id) {
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.resident) {
+            setReloading(entry, false);
+            entry.failed = true;
+            restoreQueue.remove(entry);
+        }
+    }
+
+    // The frame draws these textures. Evicted ones are reloaded.
+    public void use(int[] ids, int count) {
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(ids[i]);
+            if (entry == null) {
+                continue;
+            }
+            entry.lastUsed = frame;
+            if (!entry.resident && !entry.reloading && !entry.failed) {
+                reload(entry);
+            }
+        }
+    }
+
+    // Evicts least recently used textures not drawn by the current frame
+    // until the resident bytes fit the budget. Returns the number evicted.
+    public int trim() {
+        if (budget <= 0 || residentBytes <= budget) {
+            return 0;
+        }
+        int evicted = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (residentBytes > budget && it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.resident || entry.lastUsed >= frame) {
+                continue;
+            }
+            if (!host.evict(entry.id)) {
+                continue;
+            }
+            setResident(entry, false);
+            evictions++;
+            evicted++;
+        }
+        return evicted;
+    }
+
+    // The GPU copies are gone. Everything is queued for restore()
+    public void contextLost() {
+        restoreQueue.clear();
+        for (Entry entry : entries.values()) {
+            setResident(entry, false);
+            setReloading(entry, false);
+            if (!entry.failed) {
+                restoreQueue.add(entry);
+            }
+        }
+        Collections.sort(restoreQueue, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastUsed > b.lastUsed ? -1
+                        : a.lastUsed < b.lastUsed ? 1 : 0;
+            }
+        });
+    }
+
+    // Reloads up to max textures lost with the context, most recently used
+    // first, while they fit the budget. Those that don't fit wait until a
+    // frame draws them. Returns the number of reloads started.
+    public int restore(int max) {
+        int started = 0;
+        while (started < max && !restoreQueue.isEmpty()) {
+            Entry entry = restoreQueue.get(0);
+            if (entry.resident || entry.reloading) {
+                restoreQueue.remove(0);
+                continue;
+            }
+            if (budget > 0
+                    && residentBytes + reloadingBytes + entry.bytes > budget) {
+                restoreQueue.clear();
+                break;
+            }
+            restoreQueue.remove(0);
+            reload(entry);
+            started++;
+        }
+        return started;
+    }
+
+    // True while textures lost with the context are waiting for restore()
+    public boolean isRestoring() {
+        return !restoreQueue.isEmpty();
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getResidentCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.resident) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getTextureCount() {
+        return entries.size();
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    public long getReloadCount() {
+        return reloads;
+    }
+
+    private void reload(Entry entry) {
+        setReloading(entry, true);
+        reloads++;
+        host.reload(entry.id);
+    }
+
+    private void setResident(Entry entry, boolean resident) {
+        if (entry.resident != resident) {
+            entry.resident = resident;
+            residentBytes += resident ? entry.bytes : -entry.bytes;
+        }
+    }
+
+    private void setReloading(Entry entry, boolean reloading) {
+        if (entry.reloading != reloading) {
+            entry.reloading = reloading;
+            reloadingBytes += reloading ? entry.bytes : -entry.bytes;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Java copy of the native texture list (FastCanvasJNI.addTexture,
+// addTextureRegion and removeTexture), and of the fonts and glyphs fillText
+// draws (defineFont and addGlyph), so frames can be built off the GL
+// thread.
+//
+// The GL thread changes it next to the native calls; every change bumps the
+// version, so a frame built against an older version can be told apart. The
+// frame builder reads immutable snapshots. Any thread.
+public class FastCanvasTextureTable {
+
+    // Same as Canvas::kTextureIndexSize
+    static final int DIRECT_IDS = 8192;
+
+    // What DoPushQuad needs: the GL texture and the size and offset the UVs
+    // are relative to
+    public static class Entry {
+        public final int id;
+        public final int glID;
+        public final int width;
+        public final int height;
+        public final int x;
+        public final int y;
+        // Last build that drew this entry, builder thread only
+        int lastBuild;
+
+        Entry(int id, int glID, int width, int height, int x, int y) {
+            this.id = id;
+            this.glID = glID;
+            this.width = width;
+            this.height = height;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // Same arguments as FastCanvasJNI.addGlyph
+    public static class Glyph {
+        public final int codePoint;
+        public final int pageID;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final float left;
+        public final float top;
+        public final float advance;
+
+        Glyph(int codePoint, int pageID, int x, int y, int width,
+                int height, float left, float top, float advance) {
+            this.codePoint = codePoint;
+            this.pageID = pageID;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.left = left;
+            this.top = top;
+            this.advance = advance;
+        }
+    }
+
+    // A font with its glyphs at one version; as Canvas::Font, code points
+    // below LATIN_GLYPHS by index
+    public static class Font {
+        static final int LATIN_GLYPHS = 256;
+
+        public final int id;
+        public final float ascent;
+        public final float descent;
+        private final Glyph[] latin = new Glyph[LATIN_GLYPHS];
+        private final Map<Integer, Glyph> others = new HashMap<Integer, Glyph>();
+
+        Font(int id, float ascent, float descent, Map<Integer, Glyph> glyphs) {
+            this.id = id;
+            this.ascent = ascent;
+            this.descent = descent;
+            for (Glyph glyph : glyphs.values()) {
+                if (glyph.codePoint >= 0 && glyph.codePoint < LATIN_GLYPHS) {
+                    latin[glyph.codePoint] = glyph;
+                } else {
+                    others.put(glyph.codePoint, glyph);
+                }
+            }
+        }
+
+        // null if the glyph isn't loaded
+        public Glyph glyph(int codePoint) {
+            if (codePoint >= 0 && codePoint < LATIN_GLYPHS) {
+                return latin[codePoint];
+            }
+            return others.isEmpty() ? null : others.get(codePoint);
+        }
+    }
+
+    // The table at one version. IDs below DIRECT_IDS, the ones loadTexture
+    // hands out, are looked up by index, others in sorted order.
+    public static class Snapshot {
+        private final long version;
+        private final Entry[] direct;
+        private final int[] ids;
+        private final Entry[] entries;
+        private final Map<Integer, Font> fonts = new HashMap<Integer, Font>();
+
+        Snapshot(long version, Map<Integer, Entry> map,
+                Map<Integer, FontState> fontStates) {
+            for (FontState state : fontStates.values()) {
+                fonts.put(state.id, new Font(state.id, state.ascent,
+                        state.descent, state.glyphs));
+            }
+            this.version = version;
+            int max = -1;
+            int others = 0;
+            for (Integer id : map.keySet()) {
+                if (id >= 0 && id < DIRECT_IDS) {
+                    max = Math.max(max, id);
+                } else {
+                    others++;
+                }
+            }
+            this.direct = new Entry[max + 1];
+            this.ids = new int[others];
+            int n = 0;
+            for (Map.Entry<Integer, Entry> entry : map.entrySet()) {
+                int id = entry.getKey();
+                if (id >= 0 && id < DIRECT_IDS) {
+                    direct[id] = entry.getValue();
+                } else {
+                    ids[n++] = id;
+                }
+            }
+            Arrays.sort(ids);
+            this.entries = new Entry[n];
+            for (int i = 0; i < n; i++) {
+                entries[i] = map.get(ids[i]);
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        // null if id isn't loaded
+        public Entry get(int id) {
+            if (id >= 0 && id < DIRECT_IDS) {
+                return id < direct.length ? direct[id] : null;
+            }
+            int i = Arrays.binarySearch(ids, id);
+            return i >= 0 ? entries[i] : null;
+        }
+
+        // null if the font isn't defined
+        public Font font(int id) {
+            return fonts.isEmpty() ? null : fonts.get(id);
+        }
+    }
+
+    private static class FontState {
+        final int id;
+        float ascent;
+        float descent;
+        final Map<Integer, Glyph> glyphs = new HashMap<Integer, Glyph>();
+
+        FontState(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private final Map<Integer, FontState> fonts = new HashMap<Integer, FontState>();
+    private long version;
+    private Snapshot snapshot;
+
+    // Same arguments as FastCanvasJNI.addTexture
+    public void add(int id, int glID, int width, int height) {
+        put(new Entry(id, glID, width, height, 0, 0));
+    }
+
+    // Same arguments as FastCanvasJNI.addTextureRegion
+    public void addRegion(int id, int glID, int pageWidth, int pageHeight,
+            int x, int y) {
+        put(new Entry(id, glID, pageWidth, pageHeight, x, y));
+    }
+
+    // Same arguments as FastCanvasJNI.defineFont
+    public synchronized void defineFont(int id, float ascent, float descent) {
+        FontState font = fonts.get(id);
+        if (font == null) {
+            font = new FontState(id);
+            fonts.put(id, font);
+        }
+        font.ascent = ascent;
+        font.descent = descent;
+        changed();
+    }
+
+    // Same arguments as FastCanvasJNI.addGlyph, and likewise ignored for an
+    // undefined font or a page that isn't loaded
+    public synchronized void addGlyph(int fontID, int codePoint, int pageID,
+            int x, int y, int width, int height, float left, float top,
+            float advance) {
+        FontState font = fonts.get(fontID);
+        if (font == null || (pageID != 0 && !entries.containsKey(pageID))) {
+            return;
+        }
+        font.glyphs.put(codePoint, new Glyph(codePoint, pageID, x, y, width,
+                height, left, top, advance));
+        changed();
+    }
+
+    // A glyph page takes its glyphs with it
+    public synchronized void remove(int id) {
+        if (entries.remove(id) != null) {
+            for (FontState font : fonts.values()) {
+                Iterator<Glyph> glyphs = font.glyphs.values().iterator();
+                while (glyphs.hasNext()) {
+                    if (glyphs.next().pageID == id) {
+                        glyphs.remove();
+                    }
+                }
+            }
+            changed();
+        }
+    }
+
+    // Everything went with the GL context, the fonts are still defined
+    public synchronized void clear() {
+        entries.clear();
+        for (FontState font : fonts.values()) {
+            font.glyphs.clear();
+        }
+        changed();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(version, entries, fonts);
+        }
+        return snapshot;
+    }
+
+    private synchronized void put(Entry entry) {
+        entries.put(entry.id, entry);
+        changed();
+    }
+
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+
+// Records what the plugin received, so a session can be replayed elsewhere
+// with FastCanvasTraceReplay: every execute() action with its arguments,
+// and what happened on the render thread that the commands depend on.
+//
+// A trace is a gzip stream of MAGIC, VERSION and then records, each a type
+// byte and the time since the previous record in microseconds as a varint,
+// followed by:
+//   ACTION            the action (writeUTF), the arguments as JSON (varint
+//                     length and UTF-8)
+//   SURFACE_CREATED   nothing, the GL context is new
+//   SURFACE_CHANGED   varint width and height
+//   CONTEXT_LOST      nothing
+//   TEXTURE           varint ID, width and height of a texture that can now
+//                     be drawn
+//   FRAME             varint microseconds the render pass took, for each
+//                     frame drawn from new commands
+//
+// Callers only queue records; a background thread serializes, compresses
+// and writes them. The queue holds MAX_PENDING records, if the writer falls
+// behind further records are dropped and counted rather than stalling the
+// caller. Any thread.
+public class FastCanvasTrace {
+
+    public static final int MAGIC = 0x46435452; // FCTR
+    public static final int VERSION = 1;
+
+    public static final int ACTION = 1;
+    public static final int SURFACE_CREATED = 2;
+    public static final int SURFACE_CHANGED = 3;
+    public static final int CONTEXT_LOST = 4;
+    public static final int TEXTURE = 5;
+    public static final int FRAME = 6;
+
+    static final int MAX_PENDING = 512;
+
+    // Ends the writer thread
+    private static final Record END = new Record();
+
+    public static class Record {
+        public int type;
+        // Microseconds since the trace started
+        public long time;
+        // ACTION
+        public String action;
+        public String args;
+        // TEXTURE
+        public int id;
+        // SURFACE_CHANGED and TEXTURE
+        public int width;
+        public int height;
+        // FRAME, in microseconds
+        public long duration;
+
+        // Serialized by the writer thread, not by whoever records it
+        private JSONArray json;
+        private long nanos;
+    }
+
+    private final BlockingQueue<Record> pending = new ArrayBlockingQueue<Record>(
+            MAX_PENDING);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile long written;
+    private volatile IOException error;
+
+    // Starts the writer thread; out is closed by close()
+    public FastCanvasTrace(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(out, 8192),
+                        65536));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        final long start = System.nanoTime();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write(data, start);
+            }
+        }, "FastCanvasTrace");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        // an unclosed trace doesn't keep the process alive
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // args is kept until written and must not change
+    public void action(String action, JSONArray args) {
+        Record record = new Record();
+        record.type = ACTION;
+        record.action = action;
+        record.json = args;
+        add(record);
+    }
+
+    public void surfaceCreated() {
+        Record record = new Record();
+        record.type = SURFACE_CREATED;
+        add(record);
+    }
+
+    public void surfaceChanged(int width, int height) {
+        Record record = new Record();
+        record.type = SURFACE_CHANGED;
+        record.width = width;
+        record.height = height;
+        add(record);
+    }
+
+    public void contextLost() {
+        Record record = new Record();
+        record.type = CONTEXT_LOST;
+        add(record);
+    }
+
+    public void texture(int id, int width, int height) {
+        Record record = new Record();
+        record.type = TEXTURE;
+        record.id = id;
+        record.width = width;
+        record.height = height;
+        add(record);
+    }
+
+    public void frame(long durationNanos) {
+        Record record = new Record();
+        record.type = FRAME;
+        record.duration = durationNanos / 1000;
+        add(record);
+    }
+
+    // Writes what is queued and closes the stream. Returns the first write
+    // error, if any.
+    public IOException close() {
+        try {
+            pending.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return error;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    // Records lost because the writer fell behind
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void add(Record record) {
+        record.nanos = System.nanoTime();
+        if (!pending.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Writer thread. After a write error records are still taken, so
+    // callers never block, but no longer written.
+    private void write(DataOutputStream out, long start) {
+        long last = 0;
+        Record record;
+        try {
+            while ((record = pending.take()) != END) {
+                if (error != null) {
+                    continue;
+                }
+                // records from different threads can be queued a little out
+                // of order
+                long time = Math.max(last, (record.nanos - start) / 1000);
+                try {
+                    write(out, record, time - last);
+                    written++;
+                } catch (IOException e) {
+                    error = e;
+                }
+                last = time;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Record record, long delta)
+            throws IOException {
+        out.writeByte(record.type);
+        writeVarint(out, delta);
+        switch (record.type) {
+        case ACTION:
+            out.writeUTF(record.action);
+            byte[] args = (record.json != null ? record.json.toString() : "[]")
+                    .getBytes("UTF-8");
+            writeVarint(out, args.length);
+            out.write(args);
+            break;
+        case SURFACE_CHANGED:
+            writeVarint(out, record.width);
+            writeVarint(out, record.height);
+            break;
+        case TEXTURE:
+            writeVarint(out, record.id);
+            writeVarint(out, record.width);
+            writeVarint(out, record.height);
+            break;
+        case FRAME:
+            writeVarint(out, record.duration);
+            break;
+        default:
+            break;
+        }
+    }
+
+    // Unsigned LEB128; IDs can be negative, they take the full ten bytes
+    private static void writeVarint(DataOutputStream out, long value)
+            throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Reads a trace back, one record at a time
+    public static class Reader {
+
+        private final DataInputStream in;
+        private long time;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(in, 8192), 65536));
+            int magic = this.in.readInt();
+            int version = this.in.readShort();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("not a version " + VERSION
+                        + " FastCanvas trace");
+            }
+        }
+
+        // The next record, or null at the end of the trace. A trace cut off
+        // in the middle of a record, because the app was killed while
+        // recording, ends there.
+        public Record next() throws IOException {
+            try {
+                int type = in.read();
+                if (type < 0) {
+                    return null;
+                }
+                Record record = new Record();
+                record.type = type;
+                time += readVarint(in);
+                record.time = time;
+                switch (type) {
+                case ACTION:
+                    record.action = in.readUTF();
+                    byte[] args = new byte[(int) readVarint(in)];
+                    in.readFully(args);
+                    record.args = new String(args, "UTF-8");
+                    break;
+                case SURFACE_CHANGED:
+                    record.width = (int) readVarint(in);
+                    record.height = (int) readVarint(in);
+                    break;
+                case TEXTURE:
+                    record.id = (int) readVarint(in);
+                    record.width = (int) readVarint(in);
+                    record.height = (int) readVarint(in);
+                    break;
+                case FRAME:
+                    record.duration = readVarint(in);
+                    break;
+                case SURFACE_CREATED:
+                case CONTEXT_LOST:
+                    break;
+                default:
+                    throw new IOException("unknown trace record " + type);
+                }
+                return record;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private static long readVarint(DataInputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Feeds a FastCanvasTrace back into a backend, the way FastCanvasView does:
+// frames, display lists, layers, ortho, background and textures, with the
+// same delta frame and base64 handling. Anything that only matters on a
+// device (callbacks, stats, render modes) is skipped.
+//
+// Images aren't in the trace. Textures are added when the trace says they
+// became drawable, at their recorded size, with the texture ID as the
+// handle; a FastCanvasSoftwareBackend gets a grey page for each.
+//
+// At recorded speed each record is replayed at its time in the trace, so
+// frames arrive as they did on the device; otherwise as fast as the backend
+// takes them. The report has the throughput and the time each frame took
+// from its JSON arguments to rendered. Frames always render on the calling
+// thread, no scheduler or pipeline is involved.
+public class FastCanvasTraceReplay {
+
+    private final FastCanvasBackend backend;
+    private final FastCanvasDelta delta = new FastCanvasDelta();
+    private final Map<String, FastCanvasLayer> layers = new HashMap<String, FastCanvasLayer>();
+    private final Map<Integer, Integer> pages = new HashMap<Integer, Integer>();
+    private final FastCanvasBufferPool bufferPool = new FastCanvasBufferPool(
+            16 * 1024 * 1024);
+    private int nextLayerList = Integer.MIN_VALUE;
+    private boolean recordedSpeed;
+
+    public static class Report {
+        public long records;
+        public long actions;
+        // text, delta and binary frames rendered
+        public long frames;
+        // deltas whose base frame wasn't there, as on the device
+        public long missedDeltas;
+        // actions that failed to parse
+        public long errors;
+        public long commandBytes;
+        // wall time of the replay and the time span of the trace
+        public long elapsedNanos;
+        public long traceMicros;
+        // parsing, decoding and rendering each frame, in microseconds
+        public final FastCanvasHistogram frameMicros = new FastCanvasHistogram();
+        // the render passes on the device, from FRAME records
+        public final FastCanvasHistogram recordedFrameMicros = new FastCanvasHistogram();
+
+        public double getFramesPerSecond() {
+            return elapsedNanos == 0 ? 0 : frames * 1e9 / elapsedNanos;
+        }
+
+        // { records, actions, frames, missedDeltas, errors, commandBytes,
+        // elapsedMillis, traceMillis, framesPerSecond, megabytesPerSecond,
+        // frameMicros: { p50, p90, p99, max, mean }, recordedFrameMicros }
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("records", records);
+            json.put("actions", actions);
+            json.put("frames", frames);
+            json.put("missedDeltas", missedDeltas);
+            json.put("errors", errors);
+            json.put("commandBytes", commandBytes);
+            json.put("elapsedMillis", elapsedNanos / 1000000);
+            json.put("traceMillis", traceMicros / 1000);
+            json.put("framesPerSecond", getFramesPerSecond());
+            json.put("megabytesPerSecond", elapsedNanos == 0 ? 0
+                    : commandBytes * 1e3 / elapsedNanos);
+            json.put("frameMicros", summary(frameMicros));
+            json.put("recordedFrameMicros", summary(recordedFrameMicros));
+            return json;
+        }
+
+        private static JSONObject summary(FastCanvasHistogram histogram)
+                throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("p50", histogram.getPercentile(50));
+            json.put("p90", histogram.getPercentile(90));
+            json.put("p99", histogram.getPercentile(99));
+            json.put("max", histogram.getMax());
+            json.put("mean", histogram.getMean());
+            return json;
+        }
+    }
+
+    public FastCanvasTraceReplay(FastCanvasBackend backend) {
+        this.backend = backend;
+    }
+
+    // True to replay at the pace the trace was recorded at, false (the
+    // default) to replay as fast as possible
+    public void setRecordedSpeed(boolean recordedSpeed) {
+        this.recordedSpeed = recordedSpeed;
+    }
+
+    // Replays the rest of the trace. The reader is left open.
+    public Report replay(FastCanvasTrace.Reader reader) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        FastCanvasTrace.Record record;
+        while ((record = reader.next()) != null) {
+            if (recordedSpeed) {
+                long wait = record.time * 1000 - (System.nanoTime() - start);
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            report.records++;
+            report.traceMicros = record.time;
+            switch (record.type) {
+            case FastCanvasTrace.ACTION:
+                report.actions++;
+                try {
+                    // Cordova parses the arguments before execute() too
+                    long begin = System.nanoTime();
+                    execute(record.action, new JSONArray(record.args), begin,
+                            report);
+                } catch (JSONException e) {
+                    report.errors++;
+                }
+                break;
+            case FastCanvasTrace.SURFACE_CHANGED:
+                backend.surfaceChanged(record.width, record.height);
+                break;
+            case FastCanvasTrace.CONTEXT_LOST:
+                backend.contextLost();
+                break;
+            case FastCanvasTrace.SURFACE_CREATED:
+                // the lists are gone with a new context, the view defines
+                // the layers again
+                for (FastCanvasLayer layer : layers.values()) {
+                    layer.restore(backend);
+                }
+                break;
+            case FastCanvasTrace.TEXTURE:
+                addTexture(record.id, record.width, record.height);
+                break;
+            case FastCanvasTrace.FRAME:
+                report.recordedFrameMicros.record(record.duration);
+                break;
+            default:
+                break;
+            }
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void execute(String action, JSONArray args, long begin,
+            Report report) throws JSONException {
+        if (action.equals("render")) {
+            String commands = args.getString(0);
+            if (args.optInt(1, 0) > 0) {
+                delta.setKeyframe(args.getInt(1), commands);
+            }
+            backend.render(commands);
+            frame(report, begin, commands.length());
+
+        } else if (action.equals("renderDelta")) {
+            String commands = delta.apply(args.getInt(0), args.getInt(1),
+                    args.getJSONArray(2));
+            if (commands == null) {
+                report.missedDeltas++;
+                return;
+            }
+            backend.render(commands);
+            frame(report, begin, commands.length());
+
+        } else if (action.equals("renderBuffer")) {
+            ByteBuffer commands = decode(args.getString(0));
+            try {
+                backend.renderBuffer(commands, commands.limit());
+                frame(report, begin, commands.limit());
+            } finally {
+                bufferPool.release(commands);
+            }
+
+        } else if (action.equals("defineList")) {
+            backend.defineList(args.getInt(0), args.getString(1));
+
+        } else if (action.equals("defineListBuffer")) {
+            ByteBuffer commands = decode(args.getString(1));
+            try {
+                backend.defineListBuffer(args.getInt(0), commands,
+                        commands.limit());
+            } finally {
+                bufferPool.release(commands);
+            }
+
+        } else if (action.equals("removeList")) {
+            backend.removeList(args.getInt(0));
+
+        } else if (action.equals("setLayer")) {
+            float[] transform = new float[6];
+            for (int i = 0; i < 6; i++) {
+                transform[i] = (float) args.getDouble(3 + i);
+            }
+            layer(args.getString(0)).set(backend, args.getInt(1),
+                    args.getBoolean(2), transform);
+
+        } else if (action.equals("renderLayer")) {
+            layer(args.getString(0)).submit(backend, args.getString(1));
+
+        } else if (action.equals("renderLayerBuffer")) {
+            // the layer keeps the buffer
+            layer(args.getString(0)).submit(backend,
+                    decode(args.getString(1)), bufferPool);
+
+        } else if (action.equals("removeLayer")) {
+            FastCanvasLayer layer = layers.remove(args.getString(0));
+            if (layer != null) {
+                layer.remove(backend);
+            }
+
+        } else if (action.equals("setDeltaFrames")) {
+            delta.reset();
+
+        } else if (action.equals("setBackgroundColor")) {
+            String color = args.getString(0);
+            try {
+                backend.setBackgroundColor(
+                        Integer.valueOf(color.substring(0, 2), 16),
+                        Integer.valueOf(color.substring(2, 4), 16),
+                        Integer.valueOf(color.substring(4, 6), 16));
+            } catch (RuntimeException e) {
+                report.errors++;
+            }
+
+        } else if (action.equals("setOrtho")) {
+            backend.setOrtho(args.getInt(0), args.getInt(1));
+
+        } else if (action.equals("unloadTexture")) {
+            int id = args.getInt(0);
+            backend.removeTexture(id);
+            Integer page = pages.remove(id);
+            if (page != null) {
+                ((FastCanvasSoftwareBackend) backend).removePage(page);
+            }
+        }
+    }
+
+    private void frame(Report report, long begin, int bytes) {
+        report.frameMicros.record((System.nanoTime() - begin) / 1000);
+        report.frames++;
+        report.commandBytes += bytes;
+    }
+
+    private void addTexture(int id, int width, int height) {
+        if (!(backend instanceof FastCanvasSoftwareBackend)) {
+            backend.addTexture(id, id, width, height);
+            return;
+        }
+        FastCanvasSoftwareBackend software = (FastCanvasSoftwareBackend) backend;
+        Integer previous = pages.remove(id);
+        if (previous != null) {
+            software.removePage(previous);
+        }
+        int[] grey = new int[Math.max(width, 1) * Math.max(height, 1)];
+        Arrays.fill(grey, 0xff808080);
+        int page = software.addPage(grey, Math.max(width, 1),
+                Math.max(height, 1));
+        pages.put(id, page);
+        software.addTexture(id, page, width, height);
+    }
+
+    private FastCanvasLayer layer(String name) {
+        FastCanvasLayer layer = layers.get(name);
+        if (layer == null) {
+            layer = new FastCanvasLayer(name, nextLayerList++);
+            layers.put(name, layer);
+        }
+        return layer;
+    }
+
+    // Into a pooled buffer, with position 0 and limit the decoded size
+    private ByteBuffer decode(String base64) throws JSONException {
+        ByteBuffer buffer = bufferPool.acquire(FastCanvasBase64
+                .decodedLength(base64, 0));
+        try {
+            FastCanvasBase64.decode(base64, 0, buffer);
+        } catch (IllegalArgumentException e) {
+            bufferPool.release(buffer);
+            throw new JSONException(e.getMessage());
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -16,14 +16,23 @@
  */
 package com.adobe.plugins;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -32,16 +41,20 @@ import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.opengl.ETC1;
 import android.opengl.GLES10;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
 import android.os.Environment;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -50,9 +63,90 @@ import android.view.SurfaceHolder;
 public class FastCanvasView extends GLSurfaceView {
 
     private FastCanvas plugin;
-    private LinkedList<Command> queue = new LinkedList<Command>();
+    // Commands are queued by the Cordova thread and run on the GL thread
+    private Queue<Command> queue = new ConcurrentLinkedQueue<Command>();
     private Map<Integer, Texture> textures = new HashMap<Integer, Texture>();
-    private String renderCommand;
+    // GL thread only
+    private Map<String, FastCanvasAtlas> atlases = new HashMap<String, FastCanvasAtlas>();
+    // draws the frames, the native GL canvas
+    private final FastCanvasBackend backend = new FastCanvasGLBackend();
+    private FastCanvasFrameMailbox frames = new FastCanvasFrameMailbox();
+    // what the native texture list holds, for building frames off the GL
+    // thread
+    private final FastCanvasTextureTable textureTable = new FastCanvasTextureTable();
+    // fillText glyphs, rasterized as frames miss them; GL thread only
+    private final FastCanvasGlyphCache glyphs = new FastCanvasGlyphCache(
+            textureTable);
+    // null unless frames are built on a worker thread, set on the GL thread
+    private volatile FastCanvasFramePipeline pipeline;
+    // Named layers in the order they were created, GL thread only. Their
+    // display lists take ids from LAYER_LISTS up.
+    private Map<String, FastCanvasLayer> layers = new LinkedHashMap<String, FastCanvasLayer>();
+    private int nextLayerList = LAYER_LISTS;
+    private FastCanvasRenderScheduler scheduler;
+    private FastCanvasTextureLoader loader;
+    // Pixel buffers shared by the loader threads and the GL thread
+    private FastCanvasBufferPool bufferPool = new FastCanvasBufferPool(
+            16 * 1024 * 1024);
+    // Per frame limits for texture uploads, so a burst of loads is spread
+    // over several frames instead of stalling one
+    private volatile long uploadBudgetNanos = 4000000;
+    private volatile long uploadBudgetBytes = 8 * 1024 * 1024;
+    // Whether the driver takes non power of two textures, set once the GL
+    // context exists, and what to do with them if it doesn't
+    private volatile boolean npotSupported;
+    private volatile int maxTextureSize;
+    private volatile boolean scaleNpot;
+    // glCompressedTexImage2D formats the driver takes, also set once the GL
+    // context exists
+    private volatile int[] compressedFormats = new int[0];
+    // Decoded asset images from earlier loads and launches, null if off.
+    // Entries are only valid for the APK they were decoded from.
+    private volatile FastCanvasTextureCache textureCache;
+    private final String appVersion;
+    // GL thread only
+    private FastCanvasTextureResidency residency;
+    private boolean placeholderEnabled;
+    private int placeholderColor;
+    private int placeholderGlID;
+    // Frame stats, off unless the app asks for them. When a callback is
+    // set, a summary is pushed to it every statsIntervalNanos.
+    private volatile boolean statsEnabled;
+    private FastCanvasStats stats = new FastCanvasStats(STATS_FRAMES);
+    private CallbackContext statsCallback;
+    private long statsIntervalNanos;
+    private long statsPushTime;
+    // Captures waiting for the next frame to be drawn, GL thread only
+    private FastCanvasCapture capture = new FastCanvasCapture();
+    private FastCanvasCaptureQueue<FastCanvasCapture.Request> captures =
+            new FastCanvasCaptureQueue<FastCanvasCapture.Request>();
+    // Frame begin events sent to the app every vsync it keeps up with, off
+    // unless it sets a callback, GL thread only
+    private final FastCanvasFramePacer pacer = new FastCanvasFramePacer();
+    private CallbackContext frameCallback;
+    // Records everything received while set, see startTrace
+    private volatile FastCanvasTrace trace;
+    private File traceFile;
+    // Touches, and keys if asked for, sent to the app once per frame
+    // instead of going through the WebView; off unless it sets a callback.
+    // Only touches starting in inputRegion (x, y, width, height in canvas
+    // units, null for all) are taken.
+    private final FastCanvasInput input = new FastCanvasInput();
+    private volatile CallbackContext inputCallback;
+    private volatile boolean inputKeys;
+    private volatile float[] inputRegion;
+    // UI thread only: whether the current gesture goes to the app
+    private boolean capturing;
+    // Set by setOrtho, to map view pixels to canvas units
+    private volatile int orthoWidth;
+    private volatile int orthoHeight;
+    // What the ortho projection shows in canvas units, quads outside are
+    // culled. Set on the GL thread.
+    private volatile int viewportWidth;
+    private volatile int viewportHeight;
+    // Last text frame, for delta frames; the callback asks for keyframes
+    private final FastCanvasDelta delta = new FastCanvasDelta();
+    private CallbackContext deltaCallback;
 
     public FastCanvasView(Context context, FastCanvas plugin) {
         super(context);
@@ -60,11 +154,164 @@ public class FastCanvasView extends GLSurfaceView {
         this.setEGLConfigChooser(false);// turn off the depth buffer
         this.setRenderer(new FastCanvasRenderer());
         this.setRenderMode(RENDERMODE_CONTINUOUSLY);
+        this.scheduler = new FastCanvasRenderScheduler(
+                new FastCanvasRenderScheduler.Target() {
+                    public void setContinuous(boolean continuous) {
+                        setRenderMode(continuous ? RENDERMODE_CONTINUOUSLY
+                                : RENDERMODE_WHEN_DIRTY);
+                    }
+
+                    public void requestRender() {
+                        FastCanvasView.this.requestRender();
+                    }
+                });
+        this.loader = new FastCanvasTextureLoader(
+                new FastCanvasTextureLoader.Uploader() {
+                    public void upload(FastCanvasTextureLoader.Task task,
+                            FastCanvasDecodedTexture decoded) {
+                        ((Texture) task).upload(decoded);
+                    }
+                });
+        this.loader.setListener(new FastCanvasTextureLoader.Listener() {
+            public void onTextureReady(FastCanvasTextureLoader.Task task) {
+                // dirty mode has to draw a frame to get the upload done
+                scheduler.invalidate();
+            }
+        });
+        this.glyphs.setListener(new FastCanvasGlyphCache.Listener() {
+            public void onGlyphsReady() {
+                // the frames missing them are built again with them
+                scheduler.invalidate();
+            }
+        });
+        this.residency = new FastCanvasTextureResidency(
+                new FastCanvasTextureResidency.Host() {
+                    public boolean evict(int id) {
+                        return evictTexture(id);
+                    }
+
+                    public void reload(int id) {
+                        Texture texture = textures.get(id);
+                        if (texture != null && !loader.isLoading(id)) {
+                            Log.i(TAG, "reload texture: " + texture);
+                            loader.submit(texture.reloadCopy());
+                        }
+                    }
+                });
+
+        this.appVersion = appVersion(context);
+        this.textureCache = new FastCanvasTextureCache(new File(
+                context.getCacheDir(), TEXTURE_CACHE_DIR),
+                TEXTURE_CACHE_BYTES);
 
         this.setFocusableInTouchMode(true);
         this.requestFocus();
     }
 
+    // Changes with every install or update of the APK
+    private static String appVersion(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // our own package; never happens
+            return "0";
+        }
+    }
+
+    // UI thread, before the WebView sees the event. Takes it for the input
+    // channel if a gesture starts in the input region, and keeps taking
+    // the gesture's events until its last pointer is up.
+    boolean captureTouch(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (inputCallback == null) {
+            capturing = false;
+            return false;
+        }
+        float sx = orthoWidth > 0 && getWidth() > 0 ? (float) orthoWidth
+                / getWidth() : 1;
+        float sy = orthoHeight > 0 && getHeight() > 0 ? (float) orthoHeight
+                / getHeight() : 1;
+        float left = getLeft();
+        float top = getTop();
+        if (action == MotionEvent.ACTION_DOWN) {
+            float[] region = inputRegion;
+            float x = (event.getX() - left) * sx;
+            float y = (event.getY() - top) * sy;
+            capturing = region == null
+                    || (x >= region[0] && y >= region[1]
+                            && x < region[0] + region[2] && y < region[1]
+                            + region[3]);
+        }
+        if (!capturing) {
+            return false;
+        }
+
+        // event times are uptimeMillis, frame callbacks use nanoTime
+        double offset = System.nanoTime() / 1e6 - SystemClock.uptimeMillis();
+        switch (action) {
+        case MotionEvent.ACTION_DOWN:
+        case MotionEvent.ACTION_POINTER_DOWN:
+        case MotionEvent.ACTION_UP:
+        case MotionEvent.ACTION_POINTER_UP: {
+            int down = action == MotionEvent.ACTION_DOWN
+                    || action == MotionEvent.ACTION_POINTER_DOWN ? FastCanvasInput.DOWN
+                    : FastCanvasInput.UP;
+            int p = event.getActionIndex();
+            input.touch(down, event.getPointerId(p), (event.getX(p) - left)
+                    * sx, (event.getY(p) - top) * sy, event.getEventTime()
+                    + offset);
+            break;
+        }
+        case MotionEvent.ACTION_MOVE:
+            // samples batched by the system since the last event first
+            for (int h = 0; h < event.getHistorySize(); h++) {
+                double time = event.getHistoricalEventTime(h) + offset;
+                for (int p = 0; p < event.getPointerCount(); p++) {
+                    input.touch(FastCanvasInput.MOVE, event.getPointerId(p),
+                            (event.getHistoricalX(p, h) - left) * sx,
+                            (event.getHistoricalY(p, h) - top) * sy, time);
+                }
+            }
+            // fall through
+        case MotionEvent.ACTION_CANCEL: {
+            int kind = action == MotionEvent.ACTION_MOVE ? FastCanvasInput.MOVE
+                    : FastCanvasInput.CANCEL;
+            double time = event.getEventTime() + offset;
+            for (int p = 0; p < event.getPointerCount(); p++) {
+                input.touch(kind, event.getPointerId(p), (event.getX(p) - left)
+                        * sx, (event.getY(p) - top) * sy, time);
+            }
+            break;
+        }
+        default:
+            break;
+        }
+        if (action == MotionEvent.ACTION_UP
+                || action == MotionEvent.ACTION_CANCEL) {
+            capturing = false;
+        }
+        scheduler.invalidate();
+        return true;
+    }
+
+    // UI thread, before the WebView sees the event. System keys such as
+    // back and volume always go on to the WebView.
+    boolean captureKey(KeyEvent event) {
+        int action = event.getAction();
+        if (inputCallback == null || !inputKeys || event.isSystem()
+                || (action != KeyEvent.ACTION_DOWN && action != KeyEvent.ACTION_UP)) {
+            return false;
+        }
+        double offset = System.nanoTime() / 1e6 - SystemClock.uptimeMillis();
+        input.key(action == KeyEvent.ACTION_DOWN ? FastCanvasInput.DOWN
+                : FastCanvasInput.UP, event.getKeyCode(), event.getMetaState(),
+                event.getUnicodeChar(), event.getEventTime() + offset);
+        scheduler.invalidate();
+        return true;
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         return plugin.webView.onKeyDown(keyCode, event);
@@ -89,7 +336,12 @@ public class FastCanvasView extends GLSurfaceView {
     @Override
     public void onPause() {
         Log.i(TAG, "onPause");
-        FastCanvasJNI.contextLost();
+        FastCanvasTrace trace = this.trace;
+        if (trace != null) {
+            trace.contextLost();
+        }
+        backend.contextLost();
+        textureTable.clear();
         super.onPause();
     }
 
@@ -107,7 +359,8 @@ public class FastCanvasView extends GLSurfaceView {
     public void surfaceDestroyed(SurfaceHolder holder) {
         Log.i(TAG, "surfaceDestroyed");
         onPause();
-        FastCanvasJNI.release();
+        backend.release();
+        textureTable.clear();
         super.surfaceDestroyed(holder);
     }
 
@@ -132,23 +385,104 @@ public class FastCanvasView extends GLSurfaceView {
             Log.i(TAG, "onSurfaceCreated R: " + red + " G: " + green + " B: "
                     + blue + " DEPETH: " + depth + " STENCIL: " + stencil);
 
-            for (final Texture texture : textures.values()) {
-                Log.i(TAG, "queue reload texture: " + texture);
-                queue.offer(new Command() {
-                    @Override
-                    public void exec() {
-                        loadTexture(texture, null);
-                    }
-                });
+            String extensions = GLES10.glGetString(GLES10.GL_EXTENSIONS);
+            npotSupported = supportsNonPowerOfTwo(extensions);
+            GLES10.glGetIntegerv(GLES10.GL_MAX_TEXTURE_SIZE, ib);
+            maxTextureSize = ib.get(0);
+            compressedFormats = queryCompressedFormats(extensions);
+            Log.i(TAG, "onSurfaceCreated NPOT: " + npotSupported
+                    + " compressed formats: " + compressedFormats.length);
+
+            // streams, textures and atlas pages were lost with the context
+            frames.invalidate();
+            textureTable.clear();
+            for (FastCanvasAtlas atlas : atlases.values()) {
+                atlas.contextLost();
+            }
+            glyphs.contextLost();
+            for (Texture texture : textures.values()) {
+                texture.contextLost();
+            }
+            placeholderGlID = 0;
+            // gone with the canvas if it was released, rebuilt anyway
+            for (FastCanvasLayer layer : layers.values()) {
+                layer.restore(backend);
+            }
+
+            // reloaded a few per frame, most recently used first
+            residency.contextLost();
+            scheduler.invalidate();
+
+            FastCanvasTrace trace = FastCanvasView.this.trace;
+            if (trace != null) {
+                trace.surfaceCreated();
             }
         }
 
         public void onSurfaceChanged(GL10 gl, int width, int height) {
             Log.i(TAG, "onSurfaceChanged");
-            FastCanvasJNI.surfaceChanged(width, height);
+            FastCanvasTrace trace = FastCanvasView.this.trace;
+            if (trace != null) {
+                trace.surfaceChanged(width, height);
+            }
+            backend.surfaceChanged(width, height);
+            if (orthoWidth <= 0) {
+                // the projection follows the surface until setOrtho
+                setViewport(width, height);
+            }
+            scheduler.invalidate();
         }
 
+        // IDs drawn by the last stream build
+        private int[] usedIDs = new int[64];
+        private int usedCount;
+        private int[] frameStats = new int[7];
+        // font ID and code point pairs the last frame didn't find
+        private int[] missingGlyphs = new int[64];
+        private long latestSequence;
+        private long latestPublishTime;
+        private long lastFrameEnd;
+
         public void onDrawFrame(GL10 gl) {
+            long now = System.nanoTime();
+            long delay = scheduler.frameDelay(now);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                now += delay;
+            }
+            residency.beginFrame();
+            CallbackContext inputCallback = FastCanvasView.this.inputCallback;
+            if (inputCallback != null) {
+                // before the frame begin, so the app has it for the frame
+                byte[] events = input.drain();
+                if (events != null) {
+                    PluginResult result = new PluginResult(
+                            PluginResult.Status.OK, events);
+                    result.setKeepCallback(true);
+                    inputCallback.sendPluginResult(result);
+                }
+            }
+            if (frameCallback != null) {
+                // first, so the app produces the next frame while this one
+                // draws
+                long begin = pacer.vsync();
+                if (begin != 0) {
+                    beginFrame(begin);
+                }
+            }
+
+            boolean measure = statsEnabled;
+            if (measure) {
+                stats.beginFrame();
+                if (lastFrameEnd != 0) {
+                    stats.set(FastCanvasStats.IDLE, (now - lastFrameEnd) / 1000);
+                }
+            }
+
             if (!queue.isEmpty()) {
                 Log.i(TAG, "dump command queue");
                 Command cmd;
@@ -159,111 +493,837 @@ public class FastCanvasView extends GLSurfaceView {
                         Log.e(TAG, "", e);
                     }
                 }
+
+                // texture changes invalidate the streams using them
+                frames.invalidate();
             }
 
-            if (renderCommand != null) {
-                FastCanvasJNI.render(renderCommand);
-                checkError();
+            if (loader.hasReady()) {
+                long uploadStart = measure ? System.nanoTime() : 0;
+                if (loader.uploadPending(uploadBudgetNanos, uploadBudgetBytes) > 0) {
+                    frames.invalidate();
+                }
+                if (measure) {
+                    stats.set(FastCanvasStats.TEXTURE_UPLOAD,
+                            (System.nanoTime() - uploadStart) / 1000);
+                }
+                if (loader.hasReady()) {
+                    // over budget, carry on next frame
+                    scheduler.invalidate();
+                }
+            }
+
+            if (residency.restore(RESTORE_PER_FRAME) > 0
+                    || residency.isRestoring()) {
+                scheduler.invalidate();
+            }
+
+            if (glyphs.update() > 0) {
+                // the text that was left out for want of them
+                frames.invalidate();
+            }
+
+            long sequence;
+            long publishTime;
+            long frameNumber = 0;
+            if (pipeline != null) {
+                // frames are built on the pipeline's thread
+                FastCanvasFrameBatch batch = pipeline.take(latestSequence != 0
+                        && frames.needsBuild(latestSequence));
+                if (batch != null
+                        && batch.getTableVersion() != textureTable.getVersion()) {
+                    // textures changed while it was built
+                    pipeline.release(batch);
+                    batch = pipeline.take(true);
+                }
+                if (batch == null) {
+                    if (latestSequence == 0 && layers.isEmpty()
+                            && captures.isEmpty()) {
+                        return;
+                    }
+                    // the last frame again, or the background if none was
+                    // published yet
+                    sequence = latestSequence;
+                    publishTime = latestPublishTime;
+                    backend.redraw();
+                    requestGlyphs(null);
+                } else {
+                    sequence = batch.getSequence();
+                    publishTime = batch.getPublishTime();
+                    frameNumber = batch.getFrameNumber();
+                    drawBatch(batch, measure);
+                    pipeline.release(batch);
+                }
+            } else {
+                FastCanvasFrameMailbox.Frame frame = frames.acquire();
+                if (frame.isEmpty()) {
+                    if (layers.isEmpty() && captures.isEmpty()) {
+                        return;
+                    }
+                    // only layers so far, or the background for a capture
+                    sequence = latestSequence;
+                    publishTime = latestPublishTime;
+                    backend.redraw();
+                } else {
+                    sequence = frame.getSequence();
+                    publishTime = frame.getPublishTime();
+                    frameNumber = frame.getFrameNumber();
+                    drawFrame(frame, measure);
+                }
+                requestGlyphs(null);
+            }
+            if (!layers.isEmpty()) {
+                // the frame's textures and the layers'
+                queryUsedTextures();
+            }
+            boolean fresh = sequence != latestSequence;
+            latestSequence = sequence;
+            latestPublishTime = publishTime;
+            checkError();
+            long drawn = System.nanoTime();
+            scheduler.frameDrawn(drawn);
+            if (fresh && frameNumber != 0) {
+                pacer.present(frameNumber);
+            }
+            FastCanvasTrace trace = FastCanvasView.this.trace;
+            if (fresh && trace != null) {
+                trace.frame(drawn - now);
+            }
+
+            // only the readback happens here, encoding is done elsewhere
+            captures.readAll(capture);
+
+            if (measure) {
+                if (fresh) {
+                    stats.set(FastCanvasStats.LATENCY,
+                            (now - publishTime) / 1000);
+                }
+                backend.getFrameStats(frameStats);
+                // 0 when the streams were reused or built by the pipeline
+                if (frameStats[0] > 0) {
+                    stats.set(FastCanvasStats.BUILD, frameStats[0]);
+                    stats.set(FastCanvasStats.CULLED_QUADS, frameStats[4]);
+                    stats.set(FastCanvasStats.GLYPH_HITS, frameStats[5]);
+                    stats.set(FastCanvasStats.GLYPH_MISSES, frameStats[6]);
+                }
+                stats.set(FastCanvasStats.UPLOAD_BYTES, frameStats[1]);
+                stats.set(FastCanvasStats.DRAW_CALLS, frameStats[2]);
+                stats.set(FastCanvasStats.QUADS, frameStats[3]);
+            }
+
+            // reloads whatever was evicted but is drawn again, and evicts
+            // what wasn't drawn if over budget
+            residency.use(usedIDs, usedCount);
+            glyphs.use(usedIDs, usedCount);
+            if (residency.trim() > 0) {
+                frames.invalidate();
+                scheduler.invalidate();
+            }
+
+            if (measure) {
+                lastFrameEnd = System.nanoTime();
+                stats.set(FastCanvasStats.FRAME, (lastFrameEnd - now) / 1000);
+                stats.endFrame();
+                if (statsCallback != null
+                        && lastFrameEnd - statsPushTime >= statsIntervalNanos) {
+                    statsPushTime = lastFrameEnd;
+                    pushStats();
+                }
+            } else {
+                lastFrameEnd = 0;
+            }
+        }
+
+        private void drawFrame(FastCanvasFrameMailbox.Frame frame,
+                boolean measure) {
+            if (!frames.needsBuild(frame)) {
+                // nothing new since the last frame, draw the same streams
+                backend.redraw();
+            } else {
+                if (frame.isBinary()) {
+                    ByteBuffer buffer = frame.getBuffer();
+                    backend.renderBuffer(buffer, buffer.limit());
+                } else {
+                    backend.render(frame.getCommand());
+                }
+                frames.markBuilt(frame);
+                if (measure) {
+                    stats.set(FastCanvasStats.COMMAND_BYTES,
+                            frame.isBinary() ? frame.getBuffer().limit()
+                                    : frame.getCommand().length());
+                }
+
+                queryUsedTextures();
+            }
+        }
+
+        private void queryUsedTextures() {
+            usedCount = backend.getUsedTextures(usedIDs);
+            if (usedCount > usedIDs.length) {
+                usedIDs = new int[usedCount * 2];
+                usedCount = backend.getUsedTextures(usedIDs);
+            }
+        }
+
+        // Only uploads and draws, the vertices were built by the pipeline
+        private void drawBatch(FastCanvasFrameBatch batch, boolean measure) {
+            backend.renderBatch(batch.getVertexBuffer(),
+                    batch.getVertexCount(), batch.getDraws(),
+                    batch.getDrawCount(), batch.getListTransforms(),
+                    batch.getUsedTextures(), batch.getUsedCount());
+            frames.markBuilt(batch.getSequence());
+            if (measure) {
+                stats.set(FastCanvasStats.BUILD, batch.getBuildNanos() / 1000);
+                stats.set(FastCanvasStats.COMMAND_BYTES,
+                        batch.getCommandBytes());
+                stats.set(FastCanvasStats.CULLED_QUADS,
+                        batch.getCulledCount());
+                stats.set(FastCanvasStats.GLYPH_HITS, batch.getGlyphHits());
+                stats.set(FastCanvasStats.GLYPH_MISSES,
+                        batch.getGlyphMisses());
+            }
+            requestGlyphs(batch);
+
+            usedCount = batch.getUsedCount();
+            if (usedCount > usedIDs.length) {
+                usedIDs = new int[usedCount * 2];
+            }
+            System.arraycopy(batch.getUsedTextures(), 0, usedIDs, 0, usedCount);
+        }
+
+        // Counts the glyphs the frame looked up, the batch's and those of
+        // the native builds (display lists, or the whole frame without a
+        // pipeline), and asks for the missing ones
+        private void requestGlyphs(FastCanvasFrameBatch batch) {
+            backend.getFrameStats(frameStats);
+            int hits = frameStats[5];
+            int misses = frameStats[6];
+            if (batch != null) {
+                hits += batch.getGlyphHits();
+                misses += batch.getGlyphMisses();
+                glyphs.request(batch.getMissingGlyphs(),
+                        batch.getMissingGlyphCount());
+            }
+            glyphs.record(hits, misses);
+            if (frameStats[6] > 0) {
+                int count = backend.getMissingGlyphs(missingGlyphs);
+                if (count * 2 > missingGlyphs.length) {
+                    missingGlyphs = new int[count * 4];
+                    count = backend.getMissingGlyphs(missingGlyphs);
+                }
+                glyphs.request(missingGlyphs, count);
             }
         }
 
         private static final String TAG = "FastCanvasRenderer";
     }
 
-    private void unloadTexture(int id) {
-        Log.i(TAG, "unload texture: " + id);
-        Texture old = textures.get(id);
-        if (old != null && old.loaded) {
-            Log.i(TAG, "unload texture: " + old);
-            old.unload();
-            textures.remove(id);
+    // GL thread. Sends the stats since the last push, keeping the callback.
+    private void pushStats() {
+        try {
+            PluginResult result = new PluginResult(PluginResult.Status.OK,
+                    stats.toJSON());
+            result.setKeepCallback(true);
+            statsCallback.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "stats", e);
         }
+        stats.reset();
     }
 
-    private void loadTexture(Texture texture, CallbackContext callback) {
+    // GL thread. Tells the app to produce frame, keeping the callback:
+    // [frame, predicted present time, vsync period], in microseconds
+    private void beginFrame(long frame) {
+        JSONArray begin = new JSONArray();
+        begin.put(frame);
+        begin.put(pacer.getPredictedPresentTime() / 1000);
+        begin.put(pacer.getPeriod() / 1000);
+        PluginResult result = new PluginResult(PluginResult.Status.OK, begin);
+        result.setKeepCallback(true);
+        frameCallback.sendPluginResult(result);
+    }
 
-        Log.i(TAG, "load texture: " + texture);
+    // Producer side, after a frame was published
+    private void frameAvailable() {
+        FastCanvasFramePipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            // drawn once the worker has built it
+            pipeline.frameAvailable();
+        } else {
+            scheduler.invalidate();
+        }
+    }
 
-        unloadTexture(texture.id);
+    private FastCanvasFramePipeline newPipeline() {
+        FastCanvasFramePipeline pipeline = new FastCanvasFramePipeline(
+                frames, textureTable,
+                new FastCanvasFramePipeline.Listener() {
+                    public void batchReady() {
+                        scheduler.invalidate();
+                    }
 
-        try {
-            FastCanvasTextureDimension dim = texture.load();
-            textures.put(texture.id, texture);
+                    public void buildFailed(RuntimeException e) {
+                        Log.e(TAG, "frame build", e);
+                    }
+                });
+        pipeline.setViewport(viewportWidth, viewportHeight);
+        return pipeline;
+    }
 
-            Log.i(TAG, "loaded texture: " + texture);
+    // GL thread. The last frame was culled against the old viewport and is
+    // built again.
+    private void setViewport(int width, int height) {
+        viewportWidth = width;
+        viewportHeight = height;
+        FastCanvasFramePipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.setViewport(width, height);
+        }
+        frames.invalidate();
+    }
 
-            if (callback != null) {
-                JSONArray args = new JSONArray();
-                args.put(dim.width);
-                args.put(dim.height);
-                callback.success(args);
+    // Asks the client to send its next frame whole
+    private void requestKeyframe() {
+        synchronized (delta) {
+            if (deltaCallback != null) {
+                PluginResult result = new PluginResult(
+                        PluginResult.Status.OK, "keyframe");
+                result.setKeepCallback(true);
+                deltaCallback.sendPluginResult(result);
             }
+        }
+    }
 
-        } catch (Exception e) {
-            Log.i(TAG, "load texture error: ", e);
-            if (callback != null) {
-                callback.error(e.getMessage());
+    // Captures the frame after the next one is drawn
+    private void queueCapture(final FastCanvasCapture.Request request) {
+        queue.offer(new Command() {
+            @Override
+            public void exec() {
+                captures.add(request);
+            }
+        });
+        scheduler.invalidate();
+    }
+
+    // path is relative to external storage. Null if its directory can't
+    // be created.
+    private static File captureFile(String path) {
+        File file = new File(Environment.getExternalStorageDirectory(), path);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+        return file;
+    }
+
+    // Decodes base64 from start on into a pooled buffer, with position 0
+    // and limit the decoded size. If expected isn't -1 the data must decode
+    // to exactly that many bytes.
+    private ByteBuffer decodeBase64(String base64, int start, int expected)
+            throws IOException {
+        int length = FastCanvasBase64.decodedLength(base64, start);
+        ByteBuffer buffer = bufferPool.acquire(Math.max(length, expected));
+        try {
+            int decoded = FastCanvasBase64.decode(base64, start, buffer);
+            if (expected >= 0 && decoded != expected) {
+                throw new IOException("expected " + expected
+                        + " bytes of pixel data, got " + decoded);
+            }
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        } catch (IllegalArgumentException e) {
+            bufferPool.release(buffer);
+            throw new IOException(e.getMessage());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // GL thread. Replaces a rectangle of a loaded texture with RGBA pixels.
+    private void updateTexture(int id, int x, int y, int width, int height,
+            ByteBuffer pixels) throws IOException {
+        Texture texture = textures.get(id);
+        if (texture == null || !texture.loaded) {
+            throw new IOException("texture " + id + " is not loaded");
+        }
+        if (x < 0 || y < 0 || x + width > texture.dim.width
+                || y + height > texture.dim.height) {
+            throw new IOException(width + "x" + height + " at " + x + ","
+                    + y + " is outside texture " + id + " ("
+                    + texture.dim.width + "x" + texture.dim.height + ")");
+        }
+        if (texture.atlas != null) {
+            texture.atlas.update(id, x, y, width, height, pixels);
+        } else if (texture.scaled) {
+            throw new IOException("texture " + id
+                    + " was scaled to a power of two and can't be updated");
+        } else {
+            GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, texture.glID);
+            GLES10.glTexSubImage2D(GLES10.GL_TEXTURE_2D, 0, x, y, width,
+                    height, GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, pixels);
+        }
+        checkError();
+        texture.updated = true;
+        // the streams don't change, but what they draw does
+        scheduler.invalidate();
+    }
+
+    private void unloadTexture(int id) {
+        Log.i(TAG, "unload texture: " + id);
+        Texture old = textures.remove(id);
+        if (old != null) {
+            Log.i(TAG, "unload texture: " + old);
+            if (old.loaded) {
+                old.unload();
+            } else {
+                // evicted, drop its placeholder
+                backend.removeTexture(id);
+                textureTable.remove(id);
             }
+            residency.removed(id);
+        }
+    }
+
+    // Frees the GPU copy of a texture but keeps it in textures, so it can
+    // be reloaded when drawn again
+    private boolean evictTexture(int id) {
+        Texture texture = textures.get(id);
+        if (texture == null || !texture.loaded) {
+            return true;
+        }
+        if (texture.updated) {
+            // a reload would lose the updates
+            return false;
         }
+        Log.i(TAG, "evict texture: " + texture);
+        texture.unload();
+        if (placeholderEnabled) {
+            // a single color, so any texture coordinates will do
+            backend.addTextureRegion(id, placeholderTexture(), 2, 2, 0,
+                    0);
+            textureTable.addRegion(id, placeholderGlID, 2, 2, 0, 0);
+        }
+        return true;
+    }
+
+    private int placeholderTexture() {
+        if (placeholderGlID == 0) {
+            int[] glID = new int[1];
+            GLES10.glGenTextures(1, glID, 0);
+            placeholderGlID = glID[0];
+            GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, placeholderGlID);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_LINEAR);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_WRAP_S, GLES10.GL_CLAMP_TO_EDGE);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_WRAP_T, GLES10.GL_CLAMP_TO_EDGE);
+            fillPlaceholder();
+        }
+        return placeholderGlID;
+    }
+
+    private void fillPlaceholder() {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(2 * 2 * 4);
+        for (int i = 0; i < 4; i++) {
+            pixels.putInt(placeholderColor);
+        }
+        pixels.clear();
+        GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, placeholderGlID);
+        GLES10.glTexImage2D(GLES10.GL_TEXTURE_2D, 0, GLES10.GL_RGBA, 2, 2, 0,
+                GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, pixels);
     }
 
     interface Command {
         void exec();
     }
 
-    class Texture {
+    class Texture extends FastCanvasTextureLoader.Task {
+        // Either url or data is set
         public final String url;
-        public final int id;
+        // Base64 pixels from loadTextureData: RGBA when dataWidth and
+        // dataHeight are set, an encoded image otherwise
+        public final String data;
+        public final int dataWidth;
+        public final int dataHeight;
+        // Atlas to pack the texture into, or null
+        public final String atlasName;
         public boolean loaded;
+        private final CallbackContext callback;
+        private FastCanvasTextureDimension dim;
+        private FastCanvasAtlas atlas;
+        private int glID;
+        private boolean scaled;
+        // Loads a texture the residency manager evicted or the context lost
+        private boolean reload;
+        // Changed by updateTextureData since it was loaded, so it can't be
+        // evicted and reloaded
+        private boolean updated;
+
+        public Texture(String url, int id, String atlasName,
+                CallbackContext callback) {
+            this(url, null, 0, 0, id, atlasName, callback);
+        }
 
-        public Texture(String url, int id) {
+        public Texture(String url, String data, int dataWidth,
+                int dataHeight, int id, String atlasName,
+                CallbackContext callback) {
+            super(id);
             this.url = url;
-            this.id = id;
+            this.data = data;
+            this.dataWidth = dataWidth;
+            this.dataHeight = dataHeight;
+            this.atlasName = atlasName;
+            this.callback = callback;
         }
 
         @Override
         public String toString() {
-            return url.substring(0,30) + "#" + id + "@" + hashCode();
+            String source = url != null ? url : "data[" + data.length() + "]";
+            return source.substring(0, Math.min(30, source.length())) + "#"
+                    + id + "@" + hashCode();
+        }
+
+        private Texture reloadCopy() {
+            Texture copy = new Texture(url, data, dataWidth, dataHeight, id,
+                    atlasName, null);
+            copy.reload = true;
+            return copy;
+        }
+
+        // The GPU copy is gone, nothing to free
+        private void contextLost() {
+            this.loaded = false;
+            this.atlas = null;
         }
 
         private void unload() {
-            FastCanvasJNI.removeTexture(this.id);
+            backend.removeTexture(this.id);
+            textureTable.remove(this.id);
+            if (this.atlas != null) {
+                this.atlas.remove(this.id);
+                this.atlas = null;
+            }
             this.loaded = false;
             checkError();
         }
 
-        private FastCanvasTextureDimension load() throws IOException {
-
-            FastCanvasTextureDimension dim = new FastCanvasTextureDimension();
-            Bitmap bmp;
-
-            if (this.url.startsWith ("data:")) {
-                Log.i(TAG, "DataURL[" + this.url.length () + "] = " + this.url);
-                String encodedData = this.url.replaceFirst ("^data:image/(png|jpg|jpeg);base64,", "");
-                Log.i(TAG, "EncodedData[" + encodedData.length () + "] = " + encodedData);
+        // Loader thread
+        @Override
+        protected FastCanvasDecodedTexture decode() throws IOException {
+            FastCanvasTextureCache cache = textureCache;
+            String key = cache != null ? cacheKey() : null;
+            if (key != null) {
+                FastCanvasDecodedTexture cached = cache.get(key);
+                if (cached != null) {
+                    Log.i(TAG, "load texture " + this + " from cache");
+                    return cached;
+                }
+            }
+            FastCanvasDecodedTexture decoded = decodeSource();
+            if (key != null) {
+                cache.put(key, decoded);
+            }
+            return decoded;
+        }
 
-                byte [] decodedData = Base64.decode (encodedData, Base64.DEFAULT);
-                Log.i(TAG, "DecodedData[" + decodedData.length + "] = " + decodedData);
+        // Asset images only: data can't be named, compressed ones aren't
+        // decoded. Everything decodeSource() depends on besides the file is
+        // part of the key.
+        private String cacheKey() {
+            if (this.url == null || this.url.startsWith("data:")
+                    || FastCanvasCompressedTexture.accepts(this.url)) {
+                return null;
+            }
+            String policy = npotSupported ? "npot" : scaleNpot ? "scale"
+                    : "pad";
+            if (atlasName != null) {
+                policy += ",atlas";
+            }
+            return FastCanvasTextureCache.key("www/" + this.url, appVersion,
+                    policy);
+        }
 
-                bmp = BitmapFactory.decodeByteArray (decodedData, 0, decodedData.length);
-                Log.i(TAG, "bmp = " + bmp);
+        private FastCanvasDecodedTexture decodeSource() throws IOException {
+            FastCanvasDecodedTexture decoded = null;
+            Bitmap bmp = null;
+
+            if (this.data != null) {
+                decoded = dataWidth > 0 ? decodeRGBA(data, dataWidth,
+                        dataHeight) : decodeImage(data, 0);
+            } else if (this.url.startsWith ("data:")) {
+                int comma = this.url.indexOf(',');
+                if (comma < 0 || !this.url.substring(0, comma).endsWith(";base64")) {
+                    throw new IOException("unsupported data URL " + this);
+                }
+                decoded = decodeImage(this.url, comma + 1);
             } else {
                 String path = "www/" + this.url;
 
                 AssetManager assets = getContext().getAssets();
 
+                if (FastCanvasCompressedTexture.accepts(path)) {
+                    decoded = decodeCompressed(assets, path);
+                    if (decoded != null && decoded.getCompressed() != null) {
+                        // uploaded as it is, never packed, padded or scaled
+                        return decoded;
+                    }
+                    if (decoded == null) {
+                        // a PNG next to it, for drivers without the format
+                        path = path.substring(0, path.lastIndexOf('.'))
+                                + ".png";
+                        Log.i(TAG, "load texture " + this
+                                + " falling back to " + path);
+                    }
+                }
+
                 // PNG files with premultiplied
                 // alpha and GLUtils don't get along
                 // http://stackoverflow.com/questions/3921685
-                if (path.toLowerCase(Locale.US).endsWith(".png")) {
-                    if (FastCanvasJNI.addPngTexture(assets, path, this.id, dim)) {
-                        this.loaded = true;
-                        return dim;
+                if (decoded == null
+                        && path.toLowerCase(Locale.US).endsWith(".png")) {
+                    FastCanvasTextureDimension dim = new FastCanvasTextureDimension();
+                    ByteBuffer pixels = FastCanvasJNI.decodePngTexture(assets, path, dim);
+                    if (pixels != null) {
+                        decoded = new FastCanvasDecodedTexture(pixels,
+                                dim.width, dim.height, true);
+                    } else {
+                        Log.i(TAG, "native PNG decode failed, falling back to BitmapFactory");
                     }
-                    Log.i(TAG, "native PNG load filaed, falling back to GLUtils");
                 }
 
-                bmp = BitmapFactory.decodeStream(assets.open(path));
+                bmp = decoded == null ? BitmapFactory.decodeStream(assets.open(path)) : null;
+            }
+
+            if (bmp != null) {
+                Log.i(TAG, "bitmap = " + bmp.getWidth () + "x" + bmp.getHeight ());
+                decoded = decodeBitmap(bmp);
+            }
+            if (decoded == null) {
+                throw new IOException("could not decode " + this);
+            }
+
+            if (atlasName != null
+                    && FastCanvasAtlas.accepts(decoded.width, decoded.height)) {
+                // packed as is into a page
+                return decoded;
+            }
+
+            if (decoded.isPowerOfTwo() || npotSupported) {
+                return decoded;
+            }
+            if (scaleNpot) {
+                Log.i(TAG, "load texture scaling texture " + this
+                        + " down to power of 2");
+                return decoded.scaleToPowerOfTwo();
+            }
+            Log.i(TAG, "load texture padding texture " + this
+                    + " to power of 2");
+            return decoded.padToPowerOfTwo();
+        }
+
+        // A KTX or PKM asset. Mapped straight from the APK if it is stored
+        // uncompressed there, otherwise read into a pooled buffer. A format
+        // the driver can't take is decoded to RGBA if it is ETC1; for others
+        // this returns null and the caller looks for a PNG instead.
+        private FastCanvasDecodedTexture decodeCompressed(AssetManager assets,
+                String path) throws IOException {
+            ByteBuffer pooled = null;
+            ByteBuffer file;
+            try {
+                AssetFileDescriptor fd = assets.openFd(path);
+                FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+                try {
+                    // the mapping outlives the descriptor
+                    file = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            fd.getStartOffset(), fd.getLength());
+                } finally {
+                    in.close();
+                    fd.close();
+                }
+            } catch (FileNotFoundException e) {
+                // openFd only works on assets stored uncompressed
+                pooled = file = readAsset(assets, path);
+            }
+
+            try {
+                FastCanvasCompressedTexture compressed = FastCanvasCompressedTexture
+                        .parse(file);
+                boolean npot = compressed.textureWidth != FastCanvasDecodedTexture
+                        .nextPowerOfTwo(compressed.textureWidth)
+                        || compressed.textureHeight != FastCanvasDecodedTexture
+                                .nextPowerOfTwo(compressed.textureHeight);
+                if (supportsCompressedFormat(compressed.format)
+                        && (npotSupported || !npot)) {
+                    FastCanvasDecodedTexture decoded = new FastCanvasDecodedTexture(
+                            compressed, pooled, bufferPool);
+                    pooled = null;
+                    return decoded;
+                }
+                Log.i(TAG, "load texture " + this + " format 0x"
+                        + Integer.toHexString(compressed.format) + " "
+                        + compressed.textureWidth + "x"
+                        + compressed.textureHeight + " not supported");
+                if (compressed.format == FastCanvasCompressedTexture.GL_ETC1_RGB8_OES) {
+                    return decodeETC1(compressed);
+                }
+                return null;
+            } finally {
+                if (pooled != null) {
+                    bufferPool.release(pooled);
+                }
+            }
+        }
+
+        private FastCanvasDecodedTexture decodeETC1(
+                FastCanvasCompressedTexture compressed) {
+            int width = compressed.width, height = compressed.height;
+            ByteBuffer rgb = bufferPool.acquire(width * height * 3);
+            ByteBuffer pixels = null;
+            boolean decoded = false;
+            try {
+                pixels = bufferPool.acquire(width * height * 4);
+                ETC1.decodeImage(compressed.getLevel(0), rgb, width, height,
+                        3, width * 3);
+                for (int i = 0, n = width * height; i < n; i++) {
+                    pixels.put(rgb.get());
+                    pixels.put(rgb.get());
+                    pixels.put(rgb.get());
+                    pixels.put((byte) 0xff);
+                }
+                pixels.rewind();
+                decoded = true;
+            } finally {
+                bufferPool.release(rgb);
+                // the texture owns pixels from here, unless the decode failed
+                if (!decoded && pixels != null) {
+                    bufferPool.release(pixels);
+                }
+            }
+            return new FastCanvasDecodedTexture(pixels, width, height,
+                    bufferPool);
+        }
+
+        // A whole asset in a pooled buffer, for the ones that can't be mapped
+        private ByteBuffer readAsset(AssetManager assets, String path)
+                throws IOException {
+            InputStream in = assets.open(path);
+            ByteBuffer buffer = null;
+            try {
+                ReadableByteChannel channel = Channels.newChannel(in);
+                // the size of what is left, for assets
+                buffer = bufferPool.acquire(Math.max(in.available(), 1));
+                while (channel.read(buffer) >= 0) {
+                    if (!buffer.hasRemaining()) {
+                        ByteBuffer larger = bufferPool.acquire(buffer
+                                .capacity() * 2);
+                        buffer.flip();
+                        larger.put(buffer);
+                        bufferPool.release(buffer);
+                        buffer = larger;
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            } catch (IOException e) {
+                if (buffer != null) {
+                    bufferPool.release(buffer);
+                }
+                throw e;
+            } finally {
+                in.close();
+            }
+        }
+
+        // Base64 RGBA pixels, decoded straight into a pooled buffer
+        private FastCanvasDecodedTexture decodeRGBA(String base64, int width,
+                int height) throws IOException {
+            ByteBuffer pixels = decodeBase64(base64, 0, width * height * 4);
+            return new FastCanvasDecodedTexture(pixels, width, height,
+                    bufferPool);
+        }
+
+        // A base64 PNG, JPEG or WebP from start on. PNGs are decoded
+        // natively from the buffer, the others need a byte[] for
+        // BitmapFactory.
+        private FastCanvasDecodedTexture decodeImage(String base64, int start)
+                throws IOException {
+            ByteBuffer encoded = decodeBase64(base64, start, -1);
+            try {
+                int length = encoded.limit();
+                if (length > 4 && (encoded.get(0) & 0xff) == 0x89
+                        && encoded.get(1) == 'P' && encoded.get(2) == 'N'
+                        && encoded.get(3) == 'G') {
+                    FastCanvasTextureDimension dim = new FastCanvasTextureDimension();
+                    ByteBuffer pixels = FastCanvasJNI.decodePngData(encoded,
+                            length, dim);
+                    if (pixels != null) {
+                        return new FastCanvasDecodedTexture(pixels,
+                                dim.width, dim.height, true);
+                    }
+                    Log.i(TAG, "native PNG decode failed, falling back to BitmapFactory");
+                }
+                byte[] bytes = new byte[length];
+                encoded.get(bytes);
+                Bitmap bmp = BitmapFactory.decodeByteArray(bytes, 0, length);
+                return bmp != null ? decodeBitmap(bmp) : null;
+            } finally {
+                bufferPool.release(encoded);
+            }
+        }
+
+        private FastCanvasDecodedTexture decodeBitmap(Bitmap bmp) {
+            if (bmp.getConfig() != Bitmap.Config.ARGB_8888) {
+                Bitmap converted = bmp.copy(Bitmap.Config.ARGB_8888, false);
+                bmp.recycle();
+                bmp = converted;
+            }
+            int width = bmp.getWidth(), height = bmp.getHeight();
+            // ARGB_8888 is stored as RGBA bytes, which is what GL wants
+            ByteBuffer pixels = bufferPool.acquire(width * height * 4);
+            bmp.copyPixelsToBuffer(pixels);
+            pixels.rewind();
+            bmp.recycle();
+            return new FastCanvasDecodedTexture(pixels, width, height,
+                    bufferPool);
+        }
+
+        // GL thread
+        private void upload(FastCanvasDecodedTexture decoded) {
+            Log.i(TAG, "load texture: " + this);
+
+            unloadTexture(this.id);
+
+            if (decoded.getCompressed() != null) {
+                uploadCompressed(decoded, decoded.getCompressed());
+                return;
+            }
+
+            if (decoded.textureWidth == decoded.width
+                    && decoded.textureHeight == decoded.height
+                    && atlasName != null
+                    && FastCanvasAtlas.accepts(decoded.width, decoded.height)) {
+                FastCanvasAtlas atlas = atlases.get(atlasName);
+                if (atlas == null) {
+                    atlas = new FastCanvasAtlas(atlasName, backend,
+                            textureTable, maxTextureSize);
+                    atlases.put(atlasName, atlas);
+                }
+                atlas.add(this.id, decoded);
+                checkError();
+                this.atlas = atlas;
+                this.glID = 0;
+                this.scaled = false;
+                loaded(decoded);
+                return;
+            }
+
+            if (!decoded.isPowerOfTwo() && !npotSupported) {
+                // decoded before the context said it can't take it
+                decoded = decoded.padToPowerOfTwo();
             }
 
             int[] glID = new int[1];
@@ -273,38 +1333,119 @@ public class FastCanvasView extends GLSurfaceView {
                     GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_LINEAR);
             GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
                     GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
-
-            int width = bmp.getWidth(), height = bmp.getHeight();
-            int p2width = 2, p2height = 2;
-            while (p2width < width)
-                p2width *= 2;
-            while (p2height < height)
-                p2height *= 2;
-
-            if (width == p2width && height == p2height) {
-                GLUtils.texImage2D(GLES10.GL_TEXTURE_2D, 0, bmp, 0);
-            } else {
-                Log.i(TAG, "load texture scaling texture " + this
-                        + " to power of 2");
-                GLES10.glTexImage2D(GLES10.GL_TEXTURE_2D, 0, GLES10.GL_RGBA,
-                        p2width, p2height, 0, GLES10.GL_RGBA,
-                        GLES10.GL_UNSIGNED_BYTE, null);
-                GLUtils.texSubImage2D(GLES10.GL_TEXTURE_2D, 0, 0, 0, bmp);
-                width = p2width;
-                height = p2height;
+            if (!decoded.isPowerOfTwo()) {
+                // NPOT textures can't repeat in GL ES
+                GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                        GLES10.GL_TEXTURE_WRAP_S, GLES10.GL_CLAMP_TO_EDGE);
+                GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                        GLES10.GL_TEXTURE_WRAP_T, GLES10.GL_CLAMP_TO_EDGE);
             }
+            GLES10.glTexImage2D(GLES10.GL_TEXTURE_2D, 0, GLES10.GL_RGBA,
+                    decoded.textureWidth, decoded.textureHeight, 0,
+                    GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE,
+                    decoded.getPixels());
 
             checkError();
 
-            FastCanvasJNI.addTexture(this.id, glID[0], width, height);
-            Log.i(TAG, "load texture done: " + this);
+            backend.addTexture(this.id, glID[0], decoded.getUVWidth(),
+                    decoded.getUVHeight());
+            textureTable.add(this.id, glID[0], decoded.getUVWidth(),
+                    decoded.getUVHeight());
+            this.glID = glID[0];
+            this.scaled = decoded.getUVWidth() != decoded.textureWidth;
+            Log.i(TAG, "load texture done: " + this + " "
+                    + decoded.textureWidth + "x" + decoded.textureHeight);
+            loaded(decoded);
+        }
 
-            dim.width = bmp.getWidth();
-            dim.height = bmp.getHeight();
-            Log.i(TAG, "bitmap = " + bmp.getWidth () + "x" + bmp.getHeight ());
+        // GL thread. Each level as it is, mipmapped if the file has them all.
+        private void uploadCompressed(FastCanvasDecodedTexture decoded,
+                FastCanvasCompressedTexture compressed) {
+            int[] glID = new int[1];
+            GLES10.glGenTextures(1, glID, 0);
+            GLES10.glBindTexture(GLES10.GL_TEXTURE_2D, glID[0]);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_MIN_FILTER,
+                    compressed.hasAllLevels() ? GLES10.GL_LINEAR_MIPMAP_LINEAR
+                            : GLES10.GL_LINEAR);
+            GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                    GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
+            if (!decoded.isPowerOfTwo()) {
+                GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                        GLES10.GL_TEXTURE_WRAP_S, GLES10.GL_CLAMP_TO_EDGE);
+                GLES10.glTexParameterf(GLES10.GL_TEXTURE_2D,
+                        GLES10.GL_TEXTURE_WRAP_T, GLES10.GL_CLAMP_TO_EDGE);
+            }
+            int levels = compressed.hasAllLevels() ? compressed
+                    .getLevelCount() : 1;
+            for (int level = 0; level < levels; level++) {
+                ByteBuffer data = compressed.getLevel(level);
+                GLES10.glCompressedTexImage2D(GLES10.GL_TEXTURE_2D, level,
+                        compressed.format, compressed.getLevelWidth(level),
+                        compressed.getLevelHeight(level), 0, data.remaining(),
+                        data);
+            }
+
+            checkError();
+
+            backend.addTexture(this.id, glID[0], decoded.getUVWidth(),
+                    decoded.getUVHeight());
+            textureTable.add(this.id, glID[0], decoded.getUVWidth(),
+                    decoded.getUVHeight());
+            this.glID = glID[0];
+            this.scaled = false;
+            Log.i(TAG, "load texture done: " + this + " format 0x"
+                    + Integer.toHexString(compressed.format) + " "
+                    + decoded.textureWidth + "x" + decoded.textureHeight
+                    + " " + levels + " levels");
+            loaded(decoded);
+        }
 
+        private void loaded(FastCanvasDecodedTexture decoded) {
+            this.dim = new FastCanvasTextureDimension();
+            this.dim.width = decoded.width;
+            this.dim.height = decoded.height;
+            // an atlas region only accounts for its own pixels
+            this.dim.gpuBytes = this.atlas != null ? decoded.width
+                    * decoded.height * 4 : decoded.getByteCount();
             this.loaded = true;
-            return dim;
+            textures.put(this.id, this);
+            residency.loaded(this.id, this.dim.gpuBytes);
+            FastCanvasTrace trace = FastCanvasView.this.trace;
+            if (trace != null) {
+                trace.texture(this.id, dim.width, dim.height);
+            }
+        }
+
+        @Override
+        protected void onLoaded() {
+            Log.i(TAG, "loaded texture: " + this + " queue "
+                    + getQueueNanos() / 1000000 + "ms decode "
+                    + getDecodeNanos() / 1000000 + "ms upload "
+                    + getUploadNanos() / 1000000 + "ms");
+
+            if (callback != null) {
+                JSONArray args = new JSONArray();
+                args.put(dim.width);
+                args.put(dim.height);
+                args.put(getQueueNanos() / 1000000);
+                args.put(getDecodeNanos() / 1000000);
+                args.put(getUploadNanos() / 1000000);
+                args.put(dim.gpuBytes);
+                callback.success(args);
+            }
+        }
+
+        @Override
+        protected void onError(Exception e) {
+            Log.i(TAG, "load texture error: ", e);
+            if (reload
+                    && !(e instanceof FastCanvasTextureLoader.CancelledException)) {
+                residency.reloadFailed(this.id);
+            }
+            if (callback != null) {
+                callback.error(e.getMessage());
+            }
         }
 
         private static final String TAG = "FastCanvasTexture";
@@ -313,11 +1454,246 @@ public class FastCanvasView extends GLSurfaceView {
     public boolean execute(String action, JSONArray args,
             final CallbackContext callbackContext) throws JSONException {
         Log.i(TAG, "execute: " + action);
+        FastCanvasTrace tracing = trace;
+        if (tracing != null) {
+            tracing.action(action, args);
+        }
 
         try {
 
             if (action.equals("render")) {
-                renderCommand = args.getString(0);
+                String commands = args.getString(0);
+                if (args.optInt(1, 0) > 0) {
+                    // a keyframe for delta frames
+                    delta.setKeyframe(args.getInt(1), commands);
+                }
+                long frameNumber = args.optLong(2, 0);
+                FastCanvasFrameMailbox.Frame frame = frames.beginWrite();
+                frame.setCommand(commands);
+                frame.setFrameNumber(frameNumber);
+                frames.publish();
+                pacer.submitted(frameNumber);
+                frameAvailable();
+                return true;
+
+            } else if (action.equals("renderDelta")) {
+                String commands;
+                try {
+                    commands = delta.apply(args.getInt(0), args.getInt(1),
+                            args.getJSONArray(2));
+                } catch (JSONException e) {
+                    Log.e(TAG, "renderDelta: bad patch", e);
+                    delta.reset();
+                    commands = null;
+                }
+                if (commands == null) {
+                    // keep showing the last frame until the keyframe
+                    requestKeyframe();
+                    return true;
+                }
+                long frameNumber = args.optLong(3, 0);
+                FastCanvasFrameMailbox.Frame frame = frames.beginWrite();
+                frame.setCommand(commands);
+                frame.setFrameNumber(frameNumber);
+                frames.publish();
+                pacer.submitted(frameNumber);
+                frameAvailable();
+                return true;
+
+            } else if (action.equals("setDeltaFrames")) {
+                boolean enabled = args.getBoolean(0);
+                Log.i(TAG, "setDeltaFrames: " + enabled);
+                delta.reset();
+                synchronized (delta) {
+                    if (deltaCallback != null) {
+                        deltaCallback.sendPluginResult(new PluginResult(
+                                PluginResult.Status.NO_RESULT));
+                    }
+                    deltaCallback = enabled ? callbackContext : null;
+                }
+                return true;
+
+            } else if (action.equals("renderBuffer")) {
+                // ArrayBuffer arguments arrive base64 encoded, decoded
+                // straight into the slot
+                String commands = args.getString(0);
+                long frameNumber = args.optLong(1, 0);
+                FastCanvasFrameMailbox.Frame frame = frames.beginWrite();
+                try {
+                    frame.setBase64(commands);
+                } catch (IllegalArgumentException e) {
+                    // nothing published, the last frame stays up
+                    callbackContext.error("bad renderBuffer payload: "
+                            + e.getMessage());
+                    return true;
+                }
+                frame.setFrameNumber(frameNumber);
+                frames.publish();
+                pacer.submitted(frameNumber);
+                frameAvailable();
+                return true;
+
+            } else if (action.equals("setFramePipeline")) {
+                final boolean enabled = args.getBoolean(0);
+                Log.i(TAG, "setFramePipeline: " + enabled);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        // the mailbox has one consumer, so the GL thread
+                        // and the worker hand it over here
+                        if (enabled && pipeline == null) {
+                            pipeline = newPipeline();
+                            pipeline.start();
+                        } else if (!enabled && pipeline != null) {
+                            pipeline.stop();
+                            pipeline = null;
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("defineList")) {
+                final int id = args.getInt(0);
+                final String commands = args.getString(1);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        backend.defineList(id, commands);
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("defineListBuffer")) {
+                final int id = args.getInt(0);
+                final ByteBuffer commands;
+                try {
+                    commands = decodeBase64(args.getString(1), 0, -1);
+                } catch (IOException e) {
+                    callbackContext.error(e.getMessage());
+                    return true;
+                }
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            backend.defineListBuffer(id, commands,
+                                    commands.limit());
+                        } finally {
+                            bufferPool.release(commands);
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("removeList")) {
+                final int id = args.getInt(0);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        backend.removeList(id);
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setLayer")) {
+                final String name = args.getString(0);
+                final int z = args.getInt(1);
+                final boolean visible = args.getBoolean(2);
+                final float[] transform = new float[6];
+                for (int i = 0; i < 6; i++) {
+                    transform[i] = (float) args.getDouble(3 + i);
+                }
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        layer(name).set(backend, z, visible, transform);
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("renderLayer")) {
+                final String name = args.getString(0);
+                final String commands = args.getString(1);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        layer(name).submit(backend, commands);
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("renderLayerBuffer")) {
+                final String name = args.getString(0);
+                final ByteBuffer commands;
+                try {
+                    commands = decodeBase64(args.getString(1), 0, -1);
+                } catch (IOException e) {
+                    callbackContext.error(e.getMessage());
+                    return true;
+                }
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        // the layer keeps the buffer
+                        layer(name).submit(backend, commands, bufferPool);
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("removeLayer")) {
+                final String name = args.getString(0);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        FastCanvasLayer layer = layers.remove(name);
+                        if (layer != null) {
+                            layer.remove(backend);
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("getLayerStats")) {
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            JSONObject stats = new JSONObject();
+                            for (FastCanvasLayer layer : layers.values()) {
+                                JSONObject entry = new JSONObject();
+                                entry.put("z", layer.getZ());
+                                entry.put("visible", layer.isVisible());
+                                entry.put("submissions",
+                                        layer.getSubmissions());
+                                entry.put("builds", Math.max(0,
+                                        backend.getListBuilds(layer.listID)));
+                                stats.put(layer.name, entry);
+                            }
+                            callbackContext.success(stats);
+                        } catch (JSONException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setRenderMode")) {
+                String mode = args.getString(0);
+                int maxFps = args.optInt(1, 0);
+                Log.i(TAG, "setRenderMode: " + mode + " maxFps: " + maxFps);
+                scheduler.setMode(
+                        "dirty".equals(mode) ? FastCanvasRenderScheduler.MODE_DIRTY
+                                : FastCanvasRenderScheduler.MODE_CONTINUOUS,
+                        maxFps);
                 return true;
 
             } else if (action.equals("setBackgroundColor")) {
@@ -327,7 +1703,8 @@ public class FastCanvasView extends GLSurfaceView {
                     int red = Integer.valueOf(color.substring(0, 2), 16);
                     int green = Integer.valueOf(color.substring(2, 4), 16);
                     int blue = Integer.valueOf(color.substring(4, 6), 16);
-                    FastCanvasJNI.setBackgroundColor(red, green, blue);
+                    backend.setBackgroundColor(red, green, blue);
+                    scheduler.invalidate();
                 } catch (Exception e) {
                     Log.e(TAG, "Invalid background color: " + color, e);
                 }
@@ -335,30 +1712,378 @@ public class FastCanvasView extends GLSurfaceView {
                 return true;
 
             } else if (action.equals("loadTexture")) {
-                final Texture texture = new Texture(args.getString(0),
-                        args.getInt(1));
+                Texture texture = new Texture(args.getString(0),
+                        args.getInt(1), args.isNull(2) ? null
+                                : args.getString(2), callbackContext);
                 Log.i(TAG, "loadTexture " + texture);
+                // decoded in the background, uploaded by a later frame
+                loader.submit(texture);
+                return true;
+
+            } else if (action.equals("loadTextureData")) {
+                // an ArrayBuffer, so base64; RGBA if a size is given
+                Texture texture = new Texture(null, args.getString(0),
+                        args.optInt(2, 0), args.optInt(3, 0), args.getInt(1),
+                        args.isNull(4) ? null : args.getString(4),
+                        callbackContext);
+                Log.i(TAG, "loadTextureData " + texture);
+                loader.submit(texture);
+                return true;
+
+            } else if (action.equals("updateTextureData")) {
+                final int id = args.getInt(1);
+                final int x = args.getInt(2);
+                final int y = args.getInt(3);
+                final int width = args.getInt(4);
+                final int height = args.getInt(5);
+                final ByteBuffer pixels;
+                try {
+                    // decoded here rather than on the GL thread
+                    pixels = decodeBase64(args.getString(0), 0, width
+                            * height * 4);
+                } catch (IOException e) {
+                    callbackContext.error(e.getMessage());
+                    return true;
+                }
                 queue.offer(new Command() {
                     @Override
                     public void exec() {
-                        loadTexture(texture, callbackContext);
+                        try {
+                            updateTexture(id, x, y, width, height, pixels);
+                            callbackContext.success();
+                        } catch (IOException e) {
+                            callbackContext.error(e.getMessage());
+                        } finally {
+                            bufferPool.release(pixels);
+                        }
                     }
                 });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setTexturePolicy")) {
+                String policy = args.getString(0);
+                Log.i(TAG, "setTexturePolicy: " + policy);
+                // only used when the driver can't take NPOT textures
+                scaleNpot = "scale".equals(policy);
+                return true;
+
+            } else if (action.equals("setTextureBudget")) {
+                final long bytes = args.optLong(0, 0);
+                final String placeholder = args.isNull(1) ? null : args
+                        .getString(1);
+                Log.i(TAG, "setTextureBudget: " + bytes + " placeholder: "
+                        + placeholder);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        residency.setBudget(bytes);
+                        placeholderEnabled = placeholder != null;
+                        if (placeholder != null) {
+                            // RRGGBB or RRGGBBAA, stored as RGBA bytes
+                            long rgba = Long.parseLong(placeholder, 16);
+                            placeholderColor = (int) (placeholder.length() > 6 ? rgba
+                                    : (rgba << 8) | 0xff);
+                            if (placeholderGlID != 0) {
+                                fillPlaceholder();
+                            }
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setTextureCache")) {
+                long bytes = args.optLong(0, 0);
+                Log.i(TAG, "setTextureCache: " + bytes);
+                // trims, or with 0 empties, what the old one left
+                FastCanvasTextureCache cache = new FastCanvasTextureCache(
+                        new File(getContext().getCacheDir(),
+                                TEXTURE_CACHE_DIR), Math.max(bytes, 0));
+                textureCache = bytes > 0 ? cache : null;
+                return true;
+
+            } else if (action.equals("getTextureStats")) {
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            JSONObject stats = new JSONObject();
+                            stats.put("budget", residency.getBudget());
+                            stats.put("residentBytes",
+                                    residency.getResidentBytes());
+                            stats.put("residentCount",
+                                    residency.getResidentCount());
+                            stats.put("textureCount",
+                                    residency.getTextureCount());
+                            stats.put("evictions",
+                                    residency.getEvictionCount());
+                            stats.put("reloads", residency.getReloadCount());
+                            FastCanvasTextureCache cache = textureCache;
+                            stats.put("cacheBytes",
+                                    cache != null ? cache.getTotalBytes() : 0);
+                            stats.put("cacheHits",
+                                    cache != null ? cache.getHits() : 0);
+                            stats.put("cacheMisses",
+                                    cache != null ? cache.getMisses() : 0);
+                            callbackContext.success(stats);
+                        } catch (JSONException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("defineFont")) {
+                final int id = args.getInt(0);
+                final float size = (float) args.getDouble(1);
+                final String family = args.optString(2, "");
+                final int style = args.optInt(3, 0);
+                Log.i(TAG, "defineFont: " + id + " " + size + "px " + family
+                        + " style " + style);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            glyphs.defineFont(id, size,
+                                    family.length() > 0 ? family : null,
+                                    style);
+                            callbackContext.success();
+                        } catch (IllegalArgumentException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("getGlyphStats")) {
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            callbackContext.success(glyphs.toJSON());
+                        } catch (JSONException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("getStats")) {
+                final boolean reset = args.optBoolean(0, false);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            callbackContext.success(stats.toJSON());
+                        } catch (JSONException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                        if (reset) {
+                            stats.reset();
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setFrameCallback")) {
+                final boolean enabled = args.getBoolean(0);
+                Log.i(TAG, "setFrameCallback: " + enabled);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        if (frameCallback != null) {
+                            // close the previous subscription
+                            frameCallback.sendPluginResult(new PluginResult(
+                                    PluginResult.Status.NO_RESULT));
+                        }
+                        frameCallback = enabled ? callbackContext : null;
+                        pacer.reset();
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setInputCallback")) {
+                boolean enabled = args.getBoolean(0);
+                JSONObject options = args.optJSONObject(1);
+                Log.i(TAG, "setInputCallback: " + enabled);
+                float[] region = null;
+                JSONArray rect = options != null ? options.optJSONArray("region")
+                        : null;
+                if (rect != null && rect.length() == 4) {
+                    region = new float[4];
+                    for (int i = 0; i < 4; i++) {
+                        region[i] = (float) rect.getDouble(i);
+                    }
+                }
+                synchronized (input) {
+                    if (inputCallback != null) {
+                        // close the previous subscription
+                        inputCallback.sendPluginResult(new PluginResult(
+                                PluginResult.Status.NO_RESULT));
+                    }
+                    input.clear();
+                    input.setHistory(options == null
+                            || options.optBoolean("history", true));
+                    inputKeys = options != null && options.optBoolean("keys");
+                    inputRegion = region;
+                    inputCallback = enabled ? callbackContext : null;
+                }
+                return true;
+
+            } else if (action.equals("startTrace")) {
+                // relative to external storage, like capture
+                File file = captureFile(args.optString(0,
+                        "FastCanvas/trace.fctrace"));
+                if (file == null) {
+                    callbackContext.error("Could not create directory");
+                    return true;
+                }
+                Log.i(TAG, "startTrace: " + file);
+                final FastCanvasTrace started;
+                synchronized (this) {
+                    stopTrace();
+                    try {
+                        started = new FastCanvasTrace(new FileOutputStream(
+                                file));
+                    } catch (IOException e) {
+                        callbackContext.error("Could not write "
+                                + file.getAbsolutePath() + ": "
+                                + e.getMessage());
+                        return true;
+                    }
+                    traceFile = file;
+                    // the state the frames that follow depend on
+                    started.surfaceChanged(getWidth(), getHeight());
+                    if (orthoWidth > 0) {
+                        JSONArray ortho = new JSONArray();
+                        ortho.put(orthoWidth);
+                        ortho.put(orthoHeight);
+                        started.action("setOrtho", ortho);
+                    }
+                    trace = started;
+                }
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        for (Texture texture : textures.values()) {
+                            if (texture.dim != null) {
+                                started.texture(texture.id, texture.dim.width,
+                                        texture.dim.height);
+                            }
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                callbackContext.success(file.getAbsolutePath());
+                return true;
+
+            } else if (action.equals("stopTrace")) {
+                JSONObject result;
+                synchronized (this) {
+                    result = stopTrace();
+                }
+                if (result == null) {
+                    callbackContext.error("not tracing");
+                } else {
+                    callbackContext.success(result);
+                }
+                return true;
+
+            } else if (action.equals("getPacingStats")) {
+                final boolean reset = args.optBoolean(0, false);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        try {
+                            JSONObject stats = pacer.toJSON();
+                            stats.put("inputDropped", input.getDropped());
+                            callbackContext.success(stats);
+                        } catch (JSONException e) {
+                            callbackContext.error(e.getMessage());
+                        }
+                        if (reset) {
+                            pacer.reset();
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setStatsEnabled")) {
+                final boolean enabled = args.getBoolean(0);
+                final long intervalMs = args.optLong(1, 0);
+                Log.i(TAG, "setStatsEnabled: " + enabled + " interval: "
+                        + intervalMs + "ms");
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        if (statsCallback != null) {
+                            // close the previous subscription
+                            statsCallback.sendPluginResult(new PluginResult(
+                                    PluginResult.Status.NO_RESULT));
+                            statsCallback = null;
+                        }
+                        stats.reset();
+                        statsEnabled = enabled;
+                        if (enabled && intervalMs > 0) {
+                            statsCallback = callbackContext;
+                            statsIntervalNanos = intervalMs * 1000000;
+                            statsPushTime = System.nanoTime();
+                        }
+                    }
+                });
+                scheduler.invalidate();
+                return true;
+
+            } else if (action.equals("setTextureUploadBudget")) {
+                double ms = args.getDouble(0);
+                long bytes = args.optLong(1, 0);
+                Log.i(TAG, "setTextureUploadBudget: " + ms + "ms " + bytes
+                        + " bytes");
+                uploadBudgetNanos = ms > 0 ? (long) (ms * 1000000)
+                        : Long.MAX_VALUE;
+                uploadBudgetBytes = bytes > 0 ? bytes : Long.MAX_VALUE;
                 return true;
 
             } else if (action.equals("unloadTexture")) {
                 Log.i(TAG, "unload texture");
-                int id = args.getInt(0);
-                unloadTexture(id);
+                final int id = args.getInt(0);
+                // a load still in flight must not bring it back
+                loader.cancel(id);
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        unloadTexture(id);
+                    }
+                });
+                scheduler.invalidate();
 
                 return true;
 
             } else if (action.equals("setOrtho")) {
-                int width = args.getInt(0);
-                int height = args.getInt(1);
+                final int width = args.getInt(0);
+                final int height = args.getInt(1);
 
                 Log.i(TAG, "setOrtho: " + width + ", " + height);
-                FastCanvasJNI.setOrtho(width, height);
+                orthoWidth = width;
+                orthoHeight = height;
+                // the projection has to be set on the GL thread
+                queue.offer(new Command() {
+                    @Override
+                    public void exec() {
+                        backend.setOrtho(width, height);
+                        // as natively, 0 means the default size
+                        setViewport(width > 0 ? width : 800,
+                                height > 0 ? height : 600);
+                    }
+                });
+                scheduler.invalidate();
 
                 return true;
 
@@ -366,47 +2091,45 @@ public class FastCanvasView extends GLSurfaceView {
                 Log.i(TAG, "capture");
 
                 // set the root path to /mnt/sdcard/
-                String file = Environment.getExternalStorageDirectory()
-                        + args.getString(4);
-                File dir = new File(file).getParentFile();
-                if (!dir.isDirectory() && !dir.mkdirs()) {
+                File file = captureFile(args.getString(4));
+                if (file == null) {
                     callbackContext.sendPluginResult(new PluginResult(
                             PluginResult.Status.ERROR,
                             "Could not create directory"));
                     return true;
                 }
 
-                int x = args.optInt(0, 0);
-                int y = args.optInt(1, 0);
-                int width = args.optInt(2, -1);
-                int height = args.optInt(3, -1);
-
-                FastCanvasJNI.captureGLLayer(callbackContext.getCallbackId(),
-                        x, y, width, height, file);
-
+                FastCanvasCapture.Request request = new FastCanvasCapture.Request();
+                request.x = args.optInt(0, 0);
+                request.y = args.optInt(1, 0);
+                request.width = args.optInt(2, -1);
+                request.height = args.optInt(3, -1);
+                request.mimeType = "image/png";
+                request.file = file;
+                request.callback = callbackContext;
+                queueCapture(request);
                 return true;
 
             } else if (action.equals("toDataURL")) {
-                Log.i(TAG, "toDataURL");
-
-                String mimeType = args.getString(0);
-                int quality = args.getInt(1);
-                int width = args.getInt(2);
-                int height = args.getInt(3);
-                Log.i(TAG, "toDataURL[" + mimeType + "][" + quality + "] = " + width + "x" + height);
-                // toDataURL(mimeType, quality);
-
-                byte[] pixels = FastCanvasJNI.captureGLLayerDirect(width, height);
-                Log.i(TAG, "toDataURL::pixels = " + pixels + " = " + pixels.length);
-
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                Bitmap bmp = BitmapFactory.decodeByteArray(pixels, 0, pixels.length);
-                bmp.compress(Bitmap.CompressFormat.JPEG, quality, out);
-
-                String dataURL = "data:" + mimeType + ";base64," + Base64.encodeToString(out.toByteArray(), 0);
-
-                callbackContext.sendPluginResult(new PluginResult(
-                        PluginResult.Status.OK, dataURL));
+                FastCanvasCapture.Request request = new FastCanvasCapture.Request();
+                request.mimeType = args.isNull(0) ? null : args.getString(0);
+                request.quality = args.optInt(1, 100);
+                request.outWidth = args.optInt(2, 0);
+                request.outHeight = args.optInt(3, 0);
+                if (!args.isNull(4)) {
+                    request.file = captureFile(args.getString(4));
+                    if (request.file == null) {
+                        callbackContext.sendPluginResult(new PluginResult(
+                                PluginResult.Status.ERROR,
+                                "Could not create directory"));
+                        return true;
+                    }
+                }
+                request.callback = callbackContext;
+                Log.i(TAG, "toDataURL[" + request.mimeType + "]["
+                        + request.quality + "] = " + request.outWidth + "x"
+                        + request.outHeight + " file: " + request.file);
+                queueCapture(request);
                 return true;
 
             } else if (action.equals("isAvailable")) {
@@ -426,6 +2149,79 @@ public class FastCanvasView extends GLSurfaceView {
         return false;
     }
 
+    // Texture size restrictions are lifted by any of these. The limited ones
+    // rule out mipmaps and repeat, which FastCanvas doesn't use.
+    private static boolean supportsNonPowerOfTwo(String extensions) {
+        if (extensions == null) {
+            return false;
+        }
+        return extensions.contains("GL_OES_texture_npot")
+                || extensions.contains("GL_ARB_texture_non_power_of_two")
+                || extensions.contains("GL_IMG_texture_npot")
+                || extensions.contains("GL_APPLE_texture_2D_limited_npot")
+                || extensions.contains("GL_NV_texture_npot_2D_mipmap");
+    }
+
+    // Writes the rest of the trace, if there is one, and reports what it
+    // holds as { file, records, dropped }. Holding the view's lock.
+    private JSONObject stopTrace() throws JSONException {
+        FastCanvasTrace trace = this.trace;
+        if (trace == null) {
+            return null;
+        }
+        this.trace = null;
+        IOException error = trace.close();
+        if (error != null) {
+            Log.e(TAG, "trace incomplete: " + traceFile, error);
+        }
+        JSONObject result = new JSONObject();
+        result.put("file", traceFile.getAbsolutePath());
+        result.put("records", trace.getWritten());
+        result.put("dropped", trace.getDropped());
+        if (error != null) {
+            result.put("error", error.getMessage());
+        }
+        return result;
+    }
+
+    // GL thread. The layer called name, created with the defaults if new.
+    private FastCanvasLayer layer(String name) {
+        FastCanvasLayer layer = layers.get(name);
+        if (layer == null) {
+            layer = new FastCanvasLayer(name, nextLayerList++);
+            layers.put(name, layer);
+        }
+        return layer;
+    }
+
+    // GL thread. The formats the driver lists, plus ETC1 if only the
+    // extension string mentions it, as some drivers do.
+    private static int[] queryCompressedFormats(String extensions) {
+        int[] count = new int[1];
+        GLES10.glGetIntegerv(GLES10.GL_NUM_COMPRESSED_TEXTURE_FORMATS, count,
+                0);
+        int[] formats = new int[Math.max(count[0], 0) + 1];
+        if (count[0] > 0) {
+            GLES10.glGetIntegerv(GLES10.GL_COMPRESSED_TEXTURE_FORMATS,
+                    formats, 0);
+        }
+        if (extensions != null
+                && extensions.contains("GL_OES_compressed_ETC1_RGB8_texture")) {
+            formats[formats.length - 1] = FastCanvasCompressedTexture.GL_ETC1_RGB8_OES;
+        }
+        return formats;
+    }
+
+    private boolean supportsCompressedFormat(int format) {
+        int[] formats = compressedFormats;
+        for (int i = 0; i < formats.length; i++) {
+            if (formats[i] == format && format != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void checkError() {
         int error = GLES10.glGetError();
         if (error != GLES10.GL_NO_ERROR) {
@@ -434,5 +2230,15 @@ public class FastCanvasView extends GLSurfaceView {
         assert error == GLES10.GL_NO_ERROR;
     }
 
+    // Textures lost with the context that start reloading per frame
+    private static final int RESTORE_PER_FRAME = 2;
+    // frames kept for the recent arrays of getStats
+    private static final int STATS_FRAMES = 120;
+    // display list ids reserved for layers, far from any the app picks
+    private static final int LAYER_LISTS = Integer.MIN_VALUE;
+    // decoded images kept between launches, under the app's cache dir
+    private static final String TEXTURE_CACHE_DIR = "fastcanvas-textures";
+    private static final long TEXTURE_CACHE_BYTES = 64 * 1024 * 1024;
+
     private static final String TAG = "FastCanvasView";
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasAtlasPacker;
+
+// Filling a 1024x1024 atlas page, as FastCanvasAtlas does, with images of
+// random sizes up to maxSize until one doesn't fit. The time is per page;
+// at the end of a trial the images and occupancy of an average page are
+// printed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtlasBenchmark {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int PADDING = 2;
+    private static final int IMAGES = 8192;
+
+    // largest image side, FastCanvasAtlas.MAX_REGION_SIZE packs up to 256
+    @Param({ "32", "64", "256" })
+    public int maxSize;
+
+    private final int[] sizes = new int[IMAGES * 2];
+    private FastCanvasAtlasPacker packer;
+    private long pages;
+    private long regions;
+    private double occupancy;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 4 + random.nextInt(maxSize - 3);
+        }
+        packer = new FastCanvasAtlasPacker(PAGE_SIZE, PAGE_SIZE, PADDING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pages > 0) {
+            System.out.println();
+            System.out.println("per page: " + regions / pages + " images, "
+                    + Math.round(occupancy / pages * 100) + "% occupied");
+        }
+    }
+
+    @Benchmark
+    public int fillPage() {
+        packer.reset();
+        for (int i = 0; i < sizes.length; i += 2) {
+            if (packer.insert(sizes[i], sizes[i + 1]) == null) {
+                break;
+            }
+        }
+        pages++;
+        regions += packer.getRegionCount();
+        occupancy += packer.getOccupancy();
+        return packer.getRegionCount();
+    }
+}
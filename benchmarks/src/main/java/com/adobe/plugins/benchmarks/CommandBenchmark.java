@@ -0,0 +1,72 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+
+// Producing one frame of commands: the text FastContext2D concatenates, or
+// the binary format FastCanvasCommandEncoder packs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    @Param({ "100", "500", "2000" })
+    public int sprites;
+
+    // sprites in a row sharing a texture
+    @Param({ "1", "10", "1000" })
+    public int textureSwitch;
+
+    private Scene scene;
+    private FastCanvasCommandEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        scene = new Scene(sprites, textureSwitch);
+        encoder = new FastCanvasCommandEncoder();
+    }
+
+    @Benchmark
+    public String text() {
+        scene.step();
+        return scene.text();
+    }
+
+    @Benchmark
+    public int binary() {
+        scene.step();
+        encoder.reset();
+        scene.replay(encoder);
+        return encoder.length();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasDelta;
+import com.adobe.plugins.FastCanvasTrace;
+
+// Delta frames against keyframes on a recorded session: FRAMES steps of a
+// Scene are traced, read back, and each frame is sent either whole, as
+// 'render' arguments, or as a patch against the one before, as
+// 'renderDelta' arguments. The time is per frame and includes building the
+// JSON the bridge carries; at the end of a trial the bytes per frame of
+// both are printed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaBenchmark {
+
+    // frames in the recorded session
+    private static final int FRAMES = 120;
+
+    @Param({ "500", "2000" })
+    public int sprites;
+
+    private String[] frames;
+    private JSONArray[] patches;
+    private FastCanvasDelta delta;
+    private int next;
+    private long keyframeBytes;
+    private long deltaBytes;
+    private int keyframes;
+
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        frames = record(new Scene(sprites, 10));
+        patches = new JSONArray[frames.length];
+        delta = new FastCanvasDelta();
+        for (int i = 1; i < frames.length; i++) {
+            patches[i] = diff(frames[i - 1], frames[i]);
+            String keyframe = new JSONArray().put(frames[i]).put(i + 1)
+                    .toString();
+            keyframeBytes += keyframe.length();
+            if (patches[i] == null) {
+                keyframes++;
+                deltaBytes += keyframe.length();
+                continue;
+            }
+            deltaBytes += new JSONArray().put(i).put(i + 1).put(patches[i])
+                    .toString().length();
+            if (!FastCanvasDelta.apply(frames[i - 1], patches[i]).equals(
+                    frames[i])) {
+                throw new IllegalStateException("patch " + i
+                        + " doesn't rebuild its frame");
+            }
+        }
+        next = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        int sent = frames.length - 1;
+        System.out.println();
+        System.out.println("per frame: keyframe " + keyframeBytes / sent
+                + " bytes, delta " + deltaBytes / sent + " bytes ("
+                + keyframes + " of " + sent + " sent whole), "
+                + String.format("%.1fx", (double) keyframeBytes / deltaBytes)
+                + " smaller");
+    }
+
+    // The next frame, cycling through the session
+    private int step() {
+        int frame = next;
+        next = next + 1 < frames.length ? next + 1 : 1;
+        return frame;
+    }
+
+    // What the client sends without delta frames
+    @Benchmark
+    public int keyframe() {
+        int frame = step();
+        return new JSONArray().put(frames[frame]).put(frame + 1).toString()
+                .length();
+    }
+
+    // What the client sends with delta frames, diffing included
+    @Benchmark
+    public int delta() throws JSONException {
+        int frame = step();
+        JSONArray patch = diff(frames[frame - 1], frames[frame]);
+        if (patch == null) {
+            return new JSONArray().put(frames[frame]).put(frame + 1)
+                    .toString().length();
+        }
+        return new JSONArray().put(frame).put(frame + 1).put(patch)
+                .toString().length();
+    }
+
+    // What the plugin does with a patch before the frame is published
+    @Benchmark
+    public int apply() throws JSONException {
+        int frame = step();
+        if (frame == 1) {
+            // back to the start of the session
+            delta.setKeyframe(1, frames[0]);
+        }
+        if (patches[frame] == null) {
+            delta.setKeyframe(frame + 1, frames[frame]);
+            return frames[frame].length();
+        }
+        return delta.apply(frame, frame + 1, patches[frame]).length();
+    }
+
+    private static String[] record(Scene scene) throws IOException,
+            JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastCanvasTrace trace = new FastCanvasTrace(out);
+        for (int i = 0; i < FRAMES; i++) {
+            trace.action("render", new JSONArray().put(scene.text()));
+            scene.step();
+        }
+        trace.close();
+
+        List<String> frames = new ArrayList<String>();
+        FastCanvasTrace.Reader reader = new FastCanvasTrace.Reader(
+                new ByteArrayInputStream(out.toByteArray()));
+        for (FastCanvasTrace.Record record = reader.next(); record != null;
+                record = reader.next()) {
+            if (record.type == FastCanvasTrace.ACTION
+                    && record.action.equals("render")) {
+                frames.add(new JSONArray(record.args).getString(0));
+            }
+        }
+        reader.close();
+        return frames.toArray(new String[frames.size()]);
+    }
+
+    // FastCanvasDelta.diff in FastCanvas.js, with the same limit of half
+    // the frame
+    static JSONArray diff(String previousFrame, String currentFrame) {
+        String[] previous = commands(previousFrame);
+        String[] current = commands(currentFrame);
+        int maxChars = currentFrame.length() / 2;
+        int n = previous.length;
+        int m = current.length;
+        int start = 0;
+        int offset = 0;
+        while (start < n && start < m && previous[start].equals(
+                current[start])) {
+            offset += previous[start].length() + 1;
+            start++;
+        }
+        int end = 0;
+        while (end < n - start && end < m - start
+                && previous[n - 1 - end].equals(current[m - 1 - end])) {
+            end++;
+        }
+
+        JSONArray patch = new JSONArray();
+        int size = 0;
+        if (n == m) {
+            int i = start;
+            while (i < n - end) {
+                if (previous[i].equals(current[i])) {
+                    offset += previous[i].length() + 1;
+                    i++;
+                    continue;
+                }
+                int run = i;
+                int removed = 0;
+                while (i < n - end && !previous[i].equals(current[i])) {
+                    removed += previous[i].length() + 1;
+                    i++;
+                }
+                String inserted = join(current, run, i);
+                patch.put(offset).put(removed).put(inserted);
+                size += inserted.length() + 16;
+                if (size > maxChars) {
+                    return null;
+                }
+                offset += removed;
+            }
+        } else {
+            int removed = 0;
+            for (int i = start; i < n - end; i++) {
+                removed += previous[i].length() + 1;
+            }
+            String inserted = join(current, start, m - end);
+            patch.put(offset).put(removed).put(inserted);
+            size = inserted.length() + 16;
+        }
+        return size > maxChars ? null : patch;
+    }
+
+    // Every command ends with ';'
+    private static String[] commands(String frame) {
+        String[] split = frame.split(";", -1);
+        return Arrays.copyOf(split, split.length - 1);
+    }
+
+    private static String join(String[] commands, int from, int to) {
+        StringBuilder s = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            s.append(commands[i]).append(';');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasFrameBatch;
+import com.adobe.plugins.FastCanvasFrameBuilder;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+import com.adobe.plugins.FastCanvasTextureTable;
+
+// The same sprites drawn one drawImage at a time (save, translate, rotate,
+// drawImage, restore) and as drawImages batches: encoding them, and
+// building the frame from text and from binary commands.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawImagesBenchmark {
+
+    @Param({ "500", "2000", "10000" })
+    public int sprites;
+
+    // sprites in a row sharing a texture, one drawImages each
+    @Param({ "100", "10000" })
+    public int textureSwitch;
+
+    private Scene scene;
+    private FastCanvasCommandEncoder encoder;
+    private FastCanvasFrameMailbox.Frame spriteText;
+    private FastCanvasFrameMailbox.Frame spriteBinary;
+    private FastCanvasFrameMailbox.Frame batchText;
+    private FastCanvasFrameMailbox.Frame batchBinary;
+    private FastCanvasFrameBuilder builder;
+    private FastCanvasFrameBatch batch;
+
+    @Setup
+    public void setUp() {
+        scene = new Scene(sprites, textureSwitch);
+        encoder = new FastCanvasCommandEncoder();
+
+        spriteText = new FastCanvasFrameMailbox.Frame();
+        spriteText.setCommand(scene.text());
+        batchText = new FastCanvasFrameMailbox.Frame();
+        batchText.setCommand(scene.textBatched());
+
+        scene.replay(encoder);
+        spriteBinary = binaryFrame(encoder);
+        encoder.reset();
+        scene.replayBatched(encoder);
+        batchBinary = binaryFrame(encoder);
+
+        FastCanvasTextureTable textures = new FastCanvasTextureTable();
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            textures.add(id, 100 + id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        builder = new FastCanvasFrameBuilder(textures);
+        batch = new FastCanvasFrameBatch();
+    }
+
+    private static FastCanvasFrameMailbox.Frame binaryFrame(
+            FastCanvasCommandEncoder encoder) {
+        byte[] bytes = new byte[encoder.length()];
+        ByteBuffer encoded = encoder.getBuffer().duplicate();
+        encoded.flip();
+        encoded.get(bytes);
+        FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+        frame.setBuffer(bytes, bytes.length);
+        return frame;
+    }
+
+    @Benchmark
+    public int encodeSprites() {
+        encoder.reset();
+        scene.replay(encoder);
+        return encoder.length();
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        encoder.reset();
+        scene.replayBatched(encoder);
+        return encoder.length();
+    }
+
+    @Benchmark
+    public int buildSpritesText() {
+        builder.build(spriteText, batch);
+        return batch.getVertexCount();
+    }
+
+    @Benchmark
+    public int buildBatchText() {
+        builder.build(batchText, batch);
+        return batch.getVertexCount();
+    }
+
+    @Benchmark
+    public int buildSpritesBinary() {
+        builder.build(spriteBinary, batch);
+        return batch.getVertexCount();
+    }
+
+    @Benchmark
+    public int buildBatchBinary() {
+        builder.build(batchBinary, batch);
+        return batch.getVertexCount();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasDelta;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+
+// What FastCanvasView.execute does with a frame before the GL thread sees
+// it: parse the arguments Cordova passes as a JSON string, find the action,
+// decode the payload and publish it to the mailbox.
+//
+// The view itself needs Android and Cordova, so the action lookup is the
+// same chain of equals() over the same actions in the same order.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteBenchmark {
+
+    // FastCanvasView.execute, in order
+    private static final String[] ACTIONS = { "render", "renderDelta",
+            "setDeltaFrames", "renderBuffer", "setFramePipeline",
+            "defineList", "defineListBuffer", "removeList", "setRenderMode",
+            "setBackgroundColor", "loadTexture", "loadTextureData",
+            "updateTextureData", "setTexturePolicy", "setTextureBudget",
+            "getTextureStats", "getStats", "setStatsEnabled",
+            "setTextureUploadBudget", "unloadTexture", "setOrtho", "capture",
+            "toDataURL", "isAvailable" };
+
+    @Param({ "100", "500", "2000" })
+    public int sprites;
+
+    // sprites in a row sharing a texture
+    @Param({ "1", "10", "1000" })
+    public int textureSwitch;
+
+    private String renderArgs;
+    private String renderBufferArgs;
+    private String renderDeltaArgs;
+    private String keyframe;
+    private FastCanvasFrameMailbox frames;
+
+    @Setup
+    public void setUp() {
+        Scene scene = new Scene(sprites, textureSwitch);
+        keyframe = scene.text();
+        renderArgs = new JSONArray().put(keyframe).toString();
+
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        scene.replay(encoder);
+        byte[] bytes = new byte[encoder.length()];
+        ByteBuffer encoded = encoder.getBuffer().duplicate();
+        encoded.flip();
+        encoded.get(bytes);
+        renderBufferArgs = new JSONArray().put(
+                java.util.Base64.getEncoder().encodeToString(bytes))
+                .toString();
+
+        scene.step();
+        renderDeltaArgs = new JSONArray().put(1).put(2)
+                .put(patch(keyframe, scene.text())).toString();
+
+        frames = new FastCanvasFrameMailbox();
+    }
+
+    @Benchmark
+    public long dispatchFirst() {
+        return dispatch("render");
+    }
+
+    @Benchmark
+    public long dispatchLast() {
+        return dispatch("isAvailable");
+    }
+
+    @Benchmark
+    public long render() throws JSONException {
+        JSONArray args = new JSONArray(renderArgs);
+        dispatch("render");
+        frames.beginWrite().setCommand(args.getString(0));
+        return frames.publish();
+    }
+
+    @Benchmark
+    public long renderBuffer() throws JSONException {
+        JSONArray args = new JSONArray(renderBufferArgs);
+        dispatch("renderBuffer");
+        // android.util.Base64 decodes into a new array just the same
+        byte[] commands = java.util.Base64.getDecoder().decode(
+                args.getString(0));
+        frames.beginWrite().setBuffer(commands, commands.length);
+        return frames.publish();
+    }
+
+    @Benchmark
+    public long renderDelta() throws JSONException {
+        JSONArray args = new JSONArray(renderDeltaArgs);
+        dispatch("renderDelta");
+        String commands = FastCanvasDelta.apply(keyframe, args
+                .getJSONArray(2));
+        frames.beginWrite().setCommand(commands);
+        return frames.publish();
+    }
+
+    private static int dispatch(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (action.equals(ACTIONS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // One (offset, removed, inserted) triple per changed command, as the
+    // client sends them
+    private static JSONArray patch(String previous, String current) {
+        String[] before = previous.split(";");
+        String[] after = current.split(";");
+        JSONArray patch = new JSONArray();
+        int offset = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!before[i].equals(after[i])) {
+                patch.put(offset).put(before[i].length()).put(after[i]);
+            }
+            offset += before[i].length() + 1;
+        }
+        return patch;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.adobe.plugins.FastCanvasCommandDecoder;
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasCommandHandler;
+import com.adobe.plugins.FastCanvasFrameBatch;
+import com.adobe.plugins.FastCanvasFrameBuilder;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+import com.adobe.plugins.FastCanvasTextureTable;
+
+// Consuming one frame: parsing alone, and parsing plus the transform math
+// and quad emission of Canvas::BuildStreams as done by
+// FastCanvasFrameBuilder.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({ "100", "500", "2000" })
+    public int sprites;
+
+    // sprites in a row sharing a texture
+    @Param({ "1", "10", "1000" })
+    public int textureSwitch;
+
+    private String text;
+    private ByteBuffer binary;
+    private int binaryLength;
+    private FastCanvasFrameMailbox.Frame textFrame;
+    private FastCanvasFrameMailbox.Frame binaryFrame;
+    private FastCanvasFrameBuilder builder;
+    private FastCanvasFrameBatch batch;
+
+    @Setup
+    public void setUp() {
+        Scene scene = new Scene(sprites, textureSwitch);
+        text = scene.text();
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        scene.replay(encoder);
+        binaryLength = encoder.length();
+        byte[] bytes = new byte[binaryLength];
+        ByteBuffer encoded = encoder.getBuffer().duplicate();
+        encoded.flip();
+        encoded.get(bytes, 0, binaryLength);
+
+        textFrame = new FastCanvasFrameMailbox.Frame();
+        textFrame.setCommand(text);
+        binaryFrame = new FastCanvasFrameMailbox.Frame();
+        binaryFrame.setBuffer(bytes, binaryLength);
+        binary = binaryFrame.getBuffer();
+
+        FastCanvasTextureTable textures = new FastCanvasTextureTable();
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            textures.add(id, 100 + id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        builder = new FastCanvasFrameBuilder(textures);
+        batch = new FastCanvasFrameBatch();
+    }
+
+    @Benchmark
+    public int parseText(Blackhole blackhole) {
+        return FastCanvasCommandDecoder.decodeText(text, new Sink(blackhole));
+    }
+
+    @Benchmark
+    public int parseBinary(Blackhole blackhole) {
+        return FastCanvasCommandDecoder.decode(binary, binaryLength, new Sink(
+                blackhole));
+    }
+
+    @Benchmark
+    public int buildText() {
+        builder.build(textFrame, batch);
+        return batch.getVertexCount();
+    }
+
+    @Benchmark
+    public int buildBinary() {
+        builder.build(binaryFrame, batch);
+        return batch.getVertexCount();
+    }
+
+    // Keeps the decoded operands alive without doing anything with them
+    private static final class Sink implements FastCanvasCommandHandler {
+        private final Blackhole blackhole;
+
+        Sink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        public void setTransform(float a, float b, float c, float d,
+                float tx, float ty) {
+            blackhole.consume(a + b + c + d + tx + ty);
+        }
+
+        public void transform(float a, float b, float c, float d, float tx,
+                float ty) {
+            blackhole.consume(a + b + c + d + tx + ty);
+        }
+
+        public void resetTransform() {
+        }
+
+        public void scale(float sx, float sy) {
+            blackhole.consume(sx + sy);
+        }
+
+        public void rotate(float angle) {
+            blackhole.consume(angle);
+        }
+
+        public void translate(float tx, float ty) {
+            blackhole.consume(tx + ty);
+        }
+
+        public void save() {
+        }
+
+        public void restore() {
+        }
+
+        public void setGlobalAlpha(float alpha) {
+            blackhole.consume(alpha);
+        }
+
+        public void drawImage(int textureID, float cx, float cy, float cw,
+                float ch, float px, float py, float pw, float ph) {
+            blackhole.consume(textureID + cx + cy + cw + ch + px + py + pw
+                    + ph);
+        }
+
+        public void drawImages(int textureID, int flags, FloatBuffer frames,
+                int frameCount, FloatBuffer sprites, int spriteCount) {
+            blackhole.consume(textureID + flags + frameCount + spriteCount);
+            blackhole.consume(frames);
+            blackhole.consume(sprites);
+        }
+
+        public void drawList(int listID, float x, float y) {
+            blackhole.consume(listID + x + y);
+        }
+
+        public void fillText(int fontID, int color, int flags, float x,
+                float y, IntBuffer codePoints, int count) {
+            blackhole.consume(fontID + color + flags + x + y + count);
+            blackhole.consume(codePoints);
+        }
+    }
+}
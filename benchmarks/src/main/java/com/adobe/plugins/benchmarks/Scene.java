@@ -0,0 +1,172 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasCommandHandler;
+
+// A frame of sprites as a game would draw it: each sprite saves, moves,
+// optionally rotates, draws a cell of a sprite sheet and restores.
+//
+// textureSwitch is how many sprites in a row use the same texture before
+// the next one, so 1 changes texture on every sprite and sprites doesn't
+// change it at all. Sprites move a little on every step().
+final class Scene {
+
+    static final int TEXTURES = 8;
+    static final int SHEET_SIZE = 512;
+    static final int CELL_SIZE = 64;
+
+    final int sprites;
+    private final int textureSwitch;
+    private final float[] x;
+    private final float[] y;
+    private final float[] angle;
+    private final int[] cell;
+    private final Random random = new Random(42);
+
+    Scene(int sprites, int textureSwitch) {
+        this.sprites = sprites;
+        this.textureSwitch = Math.max(1, textureSwitch);
+        x = new float[sprites];
+        y = new float[sprites];
+        angle = new float[sprites];
+        cell = new int[sprites];
+        for (int i = 0; i < sprites; i++) {
+            x[i] = random.nextInt(960 * 4) / 4f;
+            y[i] = random.nextInt(640 * 4) / 4f;
+            // a quarter of the sprites rotate
+            angle[i] = i % 4 == 0 ? random.nextFloat() * 6.28f : 0;
+            cell[i] = random.nextInt((SHEET_SIZE / CELL_SIZE)
+                    * (SHEET_SIZE / CELL_SIZE));
+        }
+    }
+
+    int texture(int sprite) {
+        return 1 + (sprite / textureSwitch) % TEXTURES;
+    }
+
+    // Moves a tenth of the sprites by a quarter pixel
+    void step() {
+        for (int i = random.nextInt(10); i < sprites; i += 10) {
+            x[i] += 0.25f;
+            y[i] -= 0.25f;
+        }
+    }
+
+    // The frame as text commands, concatenated the way FastContext2D does
+    String text() {
+        StringBuilder s = new StringBuilder(sprites * 64);
+        int perRow = SHEET_SIZE / CELL_SIZE;
+        for (int i = 0; i < sprites; i++) {
+            s.append("v;");
+            s.append('l').append(number(x[i])).append(',')
+                    .append(number(y[i])).append(';');
+            if (angle[i] != 0) {
+                s.append('r').append(fixed(angle[i])).append(';');
+            }
+            s.append('d').append(texture(i)).append(',')
+                    .append((cell[i] % perRow) * CELL_SIZE).append(',')
+                    .append((cell[i] / perRow) * CELL_SIZE).append(',')
+                    .append(CELL_SIZE).append(',').append(CELL_SIZE)
+                    .append(',').append(-CELL_SIZE / 2).append(',')
+                    .append(-CELL_SIZE / 2).append(',').append(CELL_SIZE)
+                    .append(',').append(CELL_SIZE).append(';');
+            s.append("e;");
+        }
+        return s.toString();
+    }
+
+    // The same frame as handler calls, e.g. into FastCanvasCommandEncoder
+    void replay(FastCanvasCommandHandler handler) {
+        int perRow = SHEET_SIZE / CELL_SIZE;
+        for (int i = 0; i < sprites; i++) {
+            handler.save();
+            handler.translate(x[i], y[i]);
+            if (angle[i] != 0) {
+                handler.rotate(angle[i]);
+            }
+            handler.drawImage(texture(i), (cell[i] % perRow) * CELL_SIZE,
+                    (cell[i] / perRow) * CELL_SIZE, CELL_SIZE, CELL_SIZE,
+                    -CELL_SIZE / 2, -CELL_SIZE / 2, CELL_SIZE, CELL_SIZE);
+            handler.restore();
+        }
+    }
+
+    // The same frame as drawImages commands, one per run of sprites sharing
+    // a texture, with every cell of the sheet as a frame and a rotation per
+    // sprite
+    void replayBatched(FastCanvasCommandHandler handler) {
+        int perRow = SHEET_SIZE / CELL_SIZE;
+        FloatBuffer frames = FloatBuffer.allocate(perRow * perRow * 4);
+        for (int i = 0; i < perRow * perRow; i++) {
+            frames.put((i % perRow) * CELL_SIZE).put((i / perRow) * CELL_SIZE)
+                    .put(CELL_SIZE).put(CELL_SIZE);
+        }
+        FloatBuffer run = FloatBuffer.allocate(textureSwitch * 4);
+        for (int first = 0; first < sprites; first += textureSwitch) {
+            int count = Math.min(textureSwitch, sprites - first);
+            run.clear();
+            for (int i = first; i < first + count; i++) {
+                run.put(x[i]).put(y[i]).put(cell[i]).put(angle[i]);
+            }
+            handler.drawImages(texture(first),
+                    FastCanvasCommandEncoder.SPRITE_ROTATION, frames,
+                    perRow * perRow, run, count);
+        }
+    }
+
+    // replayBatched as text commands, as FastContext2D.drawImages writes
+    // them
+    String textBatched() {
+        int perRow = SHEET_SIZE / CELL_SIZE;
+        StringBuilder s = new StringBuilder(sprites * 32);
+        for (int first = 0; first < sprites; first += textureSwitch) {
+            int count = Math.min(textureSwitch, sprites - first);
+            s.append('D').append(texture(first)).append(',')
+                    .append(FastCanvasCommandEncoder.SPRITE_ROTATION)
+                    .append(',').append(perRow * perRow).append(',')
+                    .append(count);
+            for (int i = 0; i < perRow * perRow; i++) {
+                s.append(',').append((i % perRow) * CELL_SIZE).append(',')
+                        .append((i / perRow) * CELL_SIZE).append(',')
+                        .append(CELL_SIZE).append(',').append(CELL_SIZE);
+            }
+            for (int i = first; i < first + count; i++) {
+                s.append(',').append(number(x[i])).append(',')
+                        .append(number(y[i])).append(',').append(cell[i])
+                        .append(',').append(number(angle[i]));
+            }
+            s.append(';');
+        }
+        return s.toString();
+    }
+
+    // JavaScript's number to string for the values used here: integers
+    // without a fraction
+    private static String number(float f) {
+        return f == (int) f ? Integer.toString((int) f) : Float.toString(f);
+    }
+
+    // Number.toFixed(6)
+    private static String fixed(float f) {
+        return String.format(Locale.US, "%.6f", f);
+    }
+}
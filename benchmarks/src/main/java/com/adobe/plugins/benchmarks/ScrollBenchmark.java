@@ -0,0 +1,148 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasFrameBatch;
+import com.adobe.plugins.FastCanvasFrameBuilder;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+import com.adobe.plugins.FastCanvasTextureTable;
+
+// A tile map much larger than the screen, scrolled under a 960x640
+// viewport: every frame draws all tiles, as a naive game would, and the
+// builder culls what is off screen or not. The time is per frame; at the
+// end of a trial the vertex bytes and culled quads of an average frame are
+// printed, which is what culling saves in uploads.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScrollBenchmark {
+
+    private static final int VIEWPORT_WIDTH = 960;
+    private static final int VIEWPORT_HEIGHT = 640;
+    private static final int TILE_SIZE = 32;
+    // frames of scrolling, played in a loop
+    private static final int FRAMES = 32;
+    // tile rows in a row sharing a texture
+    private static final int ROWS_PER_TEXTURE = 16;
+
+    // tiles per side of the map
+    @Param({ "64", "256" })
+    public int tiles;
+
+    @Param({ "true", "false" })
+    public boolean cull;
+
+    private final FastCanvasFrameMailbox.Frame[] frames = new FastCanvasFrameMailbox.Frame[FRAMES];
+    private FastCanvasFrameBuilder builder;
+    private FastCanvasFrameBatch batch;
+    private int next;
+    private long built;
+    private long vertexBytes;
+    private long culledQuads;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        int[] cells = new int[tiles * tiles];
+        int cellsPerRow = Scene.SHEET_SIZE / TILE_SIZE;
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = random.nextInt(cellsPerRow * cellsPerRow);
+        }
+
+        // scrolls diagonally across the map and back
+        int range = Math.max(1, tiles * TILE_SIZE - VIEWPORT_HEIGHT);
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        for (int f = 0; f < FRAMES; f++) {
+            float scroll = (float) Math.abs(Math.sin(f * Math.PI / FRAMES))
+                    * range;
+            encoder.reset();
+            encoder.save();
+            encoder.translate(-scroll, -scroll);
+            for (int row = 0; row < tiles; row++) {
+                int texture = 1 + (row / ROWS_PER_TEXTURE) % Scene.TEXTURES;
+                for (int column = 0; column < tiles; column++) {
+                    int cell = cells[row * tiles + column];
+                    encoder.drawImage(texture, (cell % cellsPerRow)
+                            * TILE_SIZE, (cell / cellsPerRow) * TILE_SIZE,
+                            TILE_SIZE, TILE_SIZE, column * TILE_SIZE, row
+                                    * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                }
+            }
+            encoder.restore();
+
+            int length = encoder.length();
+            byte[] bytes = new byte[length];
+            ByteBuffer encoded = encoder.getBuffer().duplicate();
+            encoded.flip();
+            encoded.get(bytes, 0, length);
+            frames[f] = new FastCanvasFrameMailbox.Frame();
+            frames[f].setBuffer(bytes, length);
+        }
+
+        FastCanvasTextureTable textures = new FastCanvasTextureTable();
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            textures.add(id, 100 + id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        builder = new FastCanvasFrameBuilder(textures);
+        if (cull) {
+            builder.setViewport(VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+        }
+        batch = new FastCanvasFrameBatch();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (built > 0) {
+            System.out.println();
+            System.out.println("per frame: " + vertexBytes / built
+                    + " vertex bytes, " + culledQuads / built
+                    + " quads culled");
+        }
+    }
+
+    @Benchmark
+    public int build() {
+        builder.build(frames[next], batch);
+        next = (next + 1) % FRAMES;
+        built++;
+        vertexBytes += batch.getVertexCount()
+                * FastCanvasFrameBatch.VERTEX_BYTES;
+        culledQuads += batch.getCulledCount();
+        return batch.getDrawCount();
+    }
+}
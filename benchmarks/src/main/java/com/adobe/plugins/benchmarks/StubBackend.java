@@ -0,0 +1,136 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+
+import com.adobe.plugins.FastCanvasBackend;
+import com.adobe.plugins.FastCanvasFrameBatch;
+import com.adobe.plugins.FastCanvasFrameBuilder;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+import com.adobe.plugins.FastCanvasTextureTable;
+
+// Stands in for the native layer: frames are parsed and their vertices
+// built with FastCanvasFrameBuilder, the Java copy of Canvas::BuildStreams,
+// but nothing is drawn. Display lists and layers are accepted and ignored.
+final class StubBackend implements FastCanvasBackend {
+
+    private final FastCanvasTextureTable textures = new FastCanvasTextureTable();
+    private final FastCanvasFrameBuilder builder = new FastCanvasFrameBuilder(
+            textures);
+    private final FastCanvasFrameBatch batch = new FastCanvasFrameBatch();
+    private final FastCanvasFrameMailbox.Frame frame = new FastCanvasFrameMailbox.Frame();
+    private long vertices;
+
+    // Vertices built since the backend was made
+    long getVertices() {
+        return vertices;
+    }
+
+    public void setBackgroundColor(int red, int green, int blue) {
+    }
+
+    public void setOrtho(int width, int height) {
+    }
+
+    public void surfaceChanged(int width, int height) {
+    }
+
+    public void addTexture(int id, int handle, int width, int height) {
+        textures.add(id, handle, width, height);
+    }
+
+    public void addTextureRegion(int id, int handle, int pageWidth,
+            int pageHeight, int x, int y) {
+        textures.addRegion(id, handle, pageWidth, pageHeight, x, y);
+    }
+
+    public void removeTexture(int id) {
+        textures.remove(id);
+    }
+
+    public int createPage(int width, int height) {
+        return 0;
+    }
+
+    public void updatePage(int handle, int x, int y, int width, int height,
+            ByteBuffer rgba) {
+    }
+
+    public void deletePage(int handle) {
+    }
+
+    public int getUsedTextures(int[] ids) {
+        return 0;
+    }
+
+    public int getMissingGlyphs(int[] glyphs) {
+        return 0;
+    }
+
+    public void getFrameStats(int[] stats) {
+    }
+
+    public void render(String renderCommands) {
+        frame.setCommand(renderCommands);
+        builder.build(frame, batch);
+        vertices += batch.getVertexCount();
+    }
+
+    public void renderBuffer(ByteBuffer renderBuffer, int length) {
+        byte[] commands = new byte[length];
+        renderBuffer.duplicate().get(commands, 0, length);
+        frame.setBuffer(commands, length);
+        builder.build(frame, batch);
+        vertices += batch.getVertexCount();
+    }
+
+    public void renderBatch(ByteBuffer vertices, int vertexCount,
+            int[] draws, int drawCount, float[] listTransforms, int[] usedIDs,
+            int usedCount) {
+    }
+
+    public void redraw() {
+    }
+
+    public void defineList(int id, String renderCommands) {
+    }
+
+    public void defineListBuffer(int id, ByteBuffer renderBuffer, int length) {
+    }
+
+    public void removeList(int id) {
+    }
+
+    public void setLayer(int listID, int z, boolean visible, float[] transform) {
+    }
+
+    public void removeLayer(int listID) {
+    }
+
+    public int getListBuilds(int id) {
+        return -1;
+    }
+
+    public byte[] captureGLLayerDirect(int width, int height) {
+        return new byte[width * height * 4];
+    }
+
+    public void contextLost() {
+    }
+
+    public void release() {
+    }
+}
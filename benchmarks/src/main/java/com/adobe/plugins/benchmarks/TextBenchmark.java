@@ -0,0 +1,134 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasFrameBatch;
+import com.adobe.plugins.FastCanvasFrameBuilder;
+import com.adobe.plugins.FastCanvasFrameMailbox;
+import com.adobe.plugins.FastCanvasTextureTable;
+
+// A screen of labels over a sprite scene, as a game HUD or a list would
+// draw them: every frame has `labels` strings of changing digits, drawn
+// with fillText from one glyph page, over the sprites of a Scene.
+// The time is per frame built; at the end of a trial the draw calls of an
+// average frame are printed, which shows that text batches with itself.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBenchmark {
+
+    private static final int FONT = 1;
+    private static final int GLYPH_PAGE = -2;
+    private static final int GLYPH_SIZE = 16;
+    // frames of text, played in a loop
+    private static final int FRAMES = 16;
+    private static final String CHARACTERS = "0123456789 Score:Level";
+
+    @Param({ "16", "256" })
+    public int labels;
+
+    @Param({ "100" })
+    public int sprites;
+
+    private final FastCanvasFrameMailbox.Frame[] frames = new FastCanvasFrameMailbox.Frame[FRAMES];
+    private FastCanvasFrameBuilder builder;
+    private FastCanvasFrameBatch batch;
+    private int next;
+    private long built;
+    private long drawCalls;
+
+    @Setup
+    public void setUp() {
+        Scene scene = new Scene(sprites, sprites);
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        IntBuffer codePoints = IntBuffer.allocate(32);
+        for (int f = 0; f < FRAMES; f++) {
+            encoder.reset();
+            scene.replay(encoder);
+            for (int i = 0; i < labels; i++) {
+                String text = "Score: " + (f * 7919 + i * 104729);
+                codePoints.clear();
+                for (int c = 0; c < text.length(); c++) {
+                    codePoints.put(text.charAt(c));
+                }
+                encoder.fillText(FONT, 0xffffffff, 0, (i % 8) * 120,
+                        20 + (i / 8) * 20, codePoints, text.length());
+            }
+
+            int length = encoder.length();
+            byte[] bytes = new byte[length];
+            ByteBuffer encoded = encoder.getBuffer().duplicate();
+            encoded.flip();
+            encoded.get(bytes, 0, length);
+            frames[f] = new FastCanvasFrameMailbox.Frame();
+            frames[f].setBuffer(bytes, length);
+        }
+
+        FastCanvasTextureTable textures = new FastCanvasTextureTable();
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            textures.add(id, 100 + id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        textures.add(GLYPH_PAGE, 99, 512, 512);
+        textures.defineFont(FONT, 13, 3);
+        for (int i = 0; i < CHARACTERS.length(); i++) {
+            textures.addGlyph(FONT, CHARACTERS.charAt(i), GLYPH_PAGE,
+                    i * GLYPH_SIZE, 0, GLYPH_SIZE - 4, GLYPH_SIZE, 0, 13,
+                    GLYPH_SIZE - 5);
+        }
+        builder = new FastCanvasFrameBuilder(textures);
+        batch = new FastCanvasFrameBatch();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (built > 0) {
+            System.out.println();
+            System.out.println("per frame: " + drawCalls / built
+                    + " draw calls");
+        }
+    }
+
+    @Benchmark
+    public int build() {
+        builder.build(frames[next], batch);
+        next = (next + 1) % FRAMES;
+        built++;
+        drawCalls += batch.getDrawCount();
+        return batch.getVertexCount();
+    }
+}
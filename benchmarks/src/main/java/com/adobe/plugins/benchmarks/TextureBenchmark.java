@@ -0,0 +1,88 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasBase64;
+import com.adobe.plugins.FastCanvasBufferPool;
+import com.adobe.plugins.FastCanvasDecodedTexture;
+
+// The Java side of loading a texture: decoding the base64 RGBA pixels of
+// loadTextureData into a pooled buffer, and making a non power of two
+// image fit GPUs that need it. PNG decoding itself is native.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureBenchmark {
+
+    // square image sizes, none a power of two
+    @Param({ "100", "300", "1000" })
+    public int size;
+
+    private ByteBuffer pixels;
+    private String base64;
+    private FastCanvasBufferPool pool;
+
+    @Setup
+    public void setUp() {
+        byte[] rgba = new byte[size * size * 4];
+        new Random(42).nextBytes(rgba);
+        pixels = ByteBuffer.allocateDirect(rgba.length).order(
+                ByteOrder.nativeOrder());
+        pixels.put(rgba).clear();
+        base64 = java.util.Base64.getEncoder().encodeToString(rgba);
+        pool = new FastCanvasBufferPool(64 * 1024 * 1024);
+    }
+
+    @Benchmark
+    public int decodeBase64() {
+        ByteBuffer buffer = pool.acquire(FastCanvasBase64.decodedLength(
+                base64, 0));
+        int n = FastCanvasBase64.decode(base64, 0, buffer);
+        pool.release(buffer);
+        return n;
+    }
+
+    @Benchmark
+    public int pad() {
+        return new FastCanvasDecodedTexture(pixels.duplicate(), size, size,
+                false).padToPowerOfTwo().getByteCount();
+    }
+
+    @Benchmark
+    public int scale() {
+        return new FastCanvasDecodedTexture(pixels.duplicate(), size, size,
+                false).scaleToPowerOfTwo().getByteCount();
+    }
+}
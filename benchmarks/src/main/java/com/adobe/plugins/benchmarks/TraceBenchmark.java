@@ -0,0 +1,108 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.plugins.FastCanvasTrace;
+import com.adobe.plugins.FastCanvasTraceReplay;
+
+// Tracing a render: what execute() pays to record it, which must stay
+// small next to the render itself, and replaying a recorded session
+// against StubBackend as fast as it goes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+    // frames in the replayed session
+    private static final int FRAMES = 60;
+
+    @Param({ "500", "2000" })
+    public int sprites;
+
+    private JSONArray renderArgs;
+    private FastCanvasTrace trace;
+    private byte[] session;
+
+    @Setup
+    public void setUp() throws IOException {
+        Scene scene = new Scene(sprites, 10);
+        renderArgs = new JSONArray().put(scene.text());
+        // the writer keeps compressing, whatever it can't keep up with is
+        // dropped
+        trace = new FastCanvasTrace(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastCanvasTrace recording = new FastCanvasTrace(out);
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            recording.texture(id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        for (int i = 0; i < FRAMES; i++) {
+            recording.action("render", new JSONArray().put(scene.text()));
+            scene.step();
+        }
+        recording.close();
+        session = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        trace.close();
+    }
+
+    @Benchmark
+    public long record() {
+        trace.action("render", renderArgs);
+        return trace.getDropped();
+    }
+
+    @Benchmark
+    public long replay() throws IOException {
+        FastCanvasTraceReplay replay = new FastCanvasTraceReplay(
+                new StubBackend());
+        return replay.replay(
+                new FastCanvasTrace.Reader(new ByteArrayInputStream(session))).frames;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.adobe.plugins.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import com.adobe.plugins.FastCanvasBackend;
+import com.adobe.plugins.FastCanvasCommandEncoder;
+import com.adobe.plugins.FastCanvasSoftwareBackend;
+import com.adobe.plugins.FastCanvasTrace;
+import com.adobe.plugins.FastCanvasTraceReplay;
+
+// Replays a trace recorded with FastCanvas.startTrace and prints the report
+// as JSON:
+//
+//   java -cp target/benchmarks.jar com.adobe.plugins.benchmarks.TraceReplay \
+//       [--recorded] [--software WIDTHxHEIGHT] [trace]
+//
+// --recorded replays at the speed the trace was recorded at, --software
+// rasterizes with FastCanvasSoftwareBackend instead of only building the
+// vertices (StubBackend). Without a trace, one is recorded first from
+// FRAMES steps of a Scene, alternating text and binary frames.
+public final class TraceReplay {
+
+    private static final int FRAMES = 600;
+    private static final int SPRITES = 2000;
+
+    private TraceReplay() {
+    }
+
+    public static void main(String[] args) throws IOException, JSONException {
+        boolean recorded = false;
+        FastCanvasBackend backend = new StubBackend();
+        File file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--recorded")) {
+                recorded = true;
+            } else if (args[i].equals("--software") && i + 1 < args.length) {
+                String[] size = args[++i].split("x");
+                backend = new FastCanvasSoftwareBackend(
+                        Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            } else {
+                file = new File(args[i]);
+            }
+        }
+        if (file == null) {
+            file = File.createTempFile("scene", ".fctrace");
+            file.deleteOnExit();
+            record(file);
+        }
+
+        FastCanvasTraceReplay replay = new FastCanvasTraceReplay(backend);
+        replay.setRecordedSpeed(recorded);
+        InputStream in = new FileInputStream(file);
+        try {
+            FastCanvasTrace.Reader reader = new FastCanvasTrace.Reader(in);
+            System.out.println(replay.replay(reader).toJSON().toString(2));
+        } finally {
+            in.close();
+            backend.release();
+        }
+    }
+
+    // A 60fps session: the surface, ortho and textures, then the frames
+    private static void record(File file) throws IOException {
+        Scene scene = new Scene(SPRITES, 10);
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        FastCanvasTrace trace = new FastCanvasTrace(new FileOutputStream(file));
+        trace.surfaceChanged(960, 640);
+        trace.action("setOrtho", new JSONArray().put(960).put(640));
+        for (int id = 1; id <= Scene.TEXTURES; id++) {
+            trace.texture(id, Scene.SHEET_SIZE, Scene.SHEET_SIZE);
+        }
+        long next = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            if (i % 2 == 0) {
+                trace.action("render", new JSONArray().put(scene.text()));
+            } else {
+                encoder.reset();
+                scene.replay(encoder);
+                byte[] bytes = new byte[encoder.length()];
+                ByteBuffer encoded = encoder.getBuffer().duplicate();
+                encoded.flip();
+                encoded.get(bytes);
+                trace.action("renderBuffer", new JSONArray().put(Base64
+                        .getEncoder().encodeToString(bytes)));
+            }
+            scene.step();
+            // paced, so the trace has frame times to replay at
+            next += 1000000000L / 60;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        IOException error = trace.close();
+        if (error != null) {
+            throw error;
+        }
+        System.err.println(file + ": " + trace.getWritten() + " records, "
+                + trace.getDropped() + " dropped, " + file.length()
+                + " bytes");
+    }
+}
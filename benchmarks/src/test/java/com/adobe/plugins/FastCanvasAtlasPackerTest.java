@@ -0,0 +1,175 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Placement and density of the skyline packer. Every page filled here is
+// checked for regions that overlap, leave the page or crowd into each
+// other's padding.
+public class FastCanvasAtlasPackerTest {
+
+    // Packs w x h rectangles until one doesn't fit
+    private static List<FastCanvasAtlasPacker.Region> fill(
+            FastCanvasAtlasPacker packer, int[] sizes) {
+        List<FastCanvasAtlasPacker.Region> regions =
+                new ArrayList<FastCanvasAtlasPacker.Region>();
+        for (int i = 0; i < sizes.length; i += 2) {
+            FastCanvasAtlasPacker.Region region = packer.insert(sizes[i],
+                    sizes[i + 1]);
+            if (region == null) {
+                break;
+            }
+            assertEquals(sizes[i], region.width);
+            assertEquals(sizes[i + 1], region.height);
+            regions.add(region);
+        }
+        return regions;
+    }
+
+    private static int[] randomSizes(long seed, int count, int min, int max) {
+        Random random = new Random(seed);
+        int[] sizes = new int[count * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = min + random.nextInt(max - min + 1);
+        }
+        return sizes;
+    }
+
+    private static void assertDisjoint(FastCanvasAtlasPacker packer,
+            List<FastCanvasAtlasPacker.Region> regions, int padding) {
+        for (int i = 0; i < regions.size(); i++) {
+            FastCanvasAtlasPacker.Region a = regions.get(i);
+            assertTrue(a + " outside the page", a.x >= 0 && a.y >= 0
+                    && a.x + a.width <= packer.getWidth()
+                    && a.y + a.height <= packer.getHeight());
+            for (int j = i + 1; j < regions.size(); j++) {
+                FastCanvasAtlasPacker.Region b = regions.get(j);
+                boolean apart = a.x + a.width + padding <= b.x
+                        || b.x + b.width + padding <= a.x
+                        || a.y + a.height + padding <= b.y
+                        || b.y + b.height + padding <= a.y;
+                assertTrue(a + " and " + b + " overlap", apart);
+            }
+        }
+    }
+
+    @Test
+    public void equalTilesFillThePage() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(256, 256, 0);
+        int[] sizes = new int[65 * 2];
+        Arrays.fill(sizes, 32);
+
+        List<FastCanvasAtlasPacker.Region> regions = fill(packer, sizes);
+        assertEquals(64, regions.size());
+        assertEquals(64, packer.getRegionCount());
+        assertEquals(1f, packer.getOccupancy(), 0f);
+        assertDisjoint(packer, regions, 0);
+    }
+
+    @Test
+    public void paddingIsNotNeededAgainstThePageEdge() {
+        // 4 tiles of 126 plus 2 padding make 510 of 512: the last column
+        // fits without the padding after it
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(512, 512, 2);
+        int[] sizes = new int[16 * 2];
+        Arrays.fill(sizes, 126);
+
+        List<FastCanvasAtlasPacker.Region> regions = fill(packer, sizes);
+        assertEquals(16, regions.size());
+        assertDisjoint(packer, regions, 2);
+        assertNull(packer.insert(4, 4));
+    }
+
+    @Test
+    public void mixedSpritesPackDensely() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(1024, 1024,
+                2);
+        List<FastCanvasAtlasPacker.Region> regions = fill(packer,
+                randomSizes(42, 5000, 8, 64));
+
+        assertDisjoint(packer, regions, 2);
+        // small, mixed images: a fifth goes to padding and to space left
+        // under the skyline
+        assertTrue("occupancy " + packer.getOccupancy(),
+                packer.getOccupancy() > 0.75f);
+    }
+
+    @Test
+    public void mixedLargeImagesPackDensely() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(1024, 1024,
+                2);
+        List<FastCanvasAtlasPacker.Region> regions = fill(packer,
+                randomSizes(7, 500, 16, 256));
+
+        assertDisjoint(packer, regions, 2);
+        // larger images leave larger gaps under the skyline
+        assertTrue("occupancy " + packer.getOccupancy(),
+                packer.getOccupancy() > 0.7f);
+    }
+
+    @Test
+    public void usedAreaExcludesPadding() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(64, 64, 4);
+        assertNotNull(packer.insert(10, 20));
+        assertNotNull(packer.insert(5, 5));
+        assertEquals(10 * 20 + 5 * 5, packer.getUsedArea());
+    }
+
+    @Test
+    public void resetEmptiesThePage() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(64, 64, 0);
+        assertNotNull(packer.insert(64, 64));
+        assertNull(packer.insert(1, 1));
+
+        packer.reset();
+        assertEquals(0, packer.getRegionCount());
+        assertEquals(0f, packer.getOccupancy(), 0f);
+        FastCanvasAtlasPacker.Region region = packer.insert(64, 64);
+        assertEquals(0, region.x);
+        assertEquals(0, region.y);
+    }
+
+    @Test
+    public void tooLargeDoesNotFit() {
+        FastCanvasAtlasPacker packer = new FastCanvasAtlasPacker(128, 64, 1);
+        assertNull(packer.insert(129, 1));
+        assertNull(packer.insert(1, 65));
+        assertEquals(0, packer.getRegionCount());
+        assertFalse(packer.getUsedArea() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRegionIsRejected() {
+        new FastCanvasAtlasPacker(64, 64, 0).insert(0, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPageIsRejected() {
+        new FastCanvasAtlasPacker(0, 64, 0);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Captures read by a render pass shaped like FastCanvasView's, without a
+// pipeline, drawn with the software backend. A request is answered with
+// the pixels read back, in RGBA bottom row first like glReadPixels.
+public class FastCanvasCaptureQueueTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+
+    private static class Request {
+        byte[] rgba;
+        int answers;
+    }
+
+    private FastCanvasFrameMailbox mailbox;
+    private FastCanvasSoftwareBackend backend;
+    private FastCanvasCaptureQueue<Request> captures;
+    private final List<Request> read = new ArrayList<Request>();
+    private final FastCanvasCaptureQueue.Reader<Request> reader =
+            new FastCanvasCaptureQueue.Reader<Request>() {
+                public void read(Request request) {
+                    request.rgba = backend.captureGLLayerDirect(WIDTH, HEIGHT);
+                    request.answers++;
+                    read.add(request);
+                }
+            };
+    private int passes;
+
+    @Before
+    public void setUp() {
+        mailbox = new FastCanvasFrameMailbox();
+        backend = new FastCanvasSoftwareBackend(WIDTH, HEIGHT, 1);
+        backend.setBackgroundColor(20, 30, 40);
+        backend.loadTexture(1, new int[] { 0xffff0000 }, 1, 1);
+        captures = new FastCanvasCaptureQueue<Request>();
+    }
+
+    @After
+    public void tearDown() {
+        backend.release();
+    }
+
+    // onDrawFrame's frame and capture steps
+    private void pass() {
+        FastCanvasFrameMailbox.Frame frame = mailbox.acquire();
+        if (frame.isEmpty()) {
+            if (captures.isEmpty()) {
+                return;
+            }
+            backend.redraw();
+        } else {
+            backend.render(frame.getCommand());
+        }
+        passes++;
+        captures.readAll(reader);
+    }
+
+    private void publish(String commands) {
+        mailbox.beginWrite().setCommand(commands);
+        mailbox.publish();
+    }
+
+    private static void assertPixel(Request request, int x, int y, int red,
+            int green, int blue) {
+        int i = (y * WIDTH + x) * 4;
+        assertEquals(red, request.rgba[i] & 0xff);
+        assertEquals(green, request.rgba[i + 1] & 0xff);
+        assertEquals(blue, request.rgba[i + 2] & 0xff);
+        assertEquals(255, request.rgba[i + 3] & 0xff);
+    }
+
+    @Test
+    public void nothingToDrawSkipsThePass() {
+        pass();
+        assertEquals(0, passes);
+    }
+
+    @Test
+    public void captureBeforeTheFirstFrameGetsTheBackground() {
+        Request first = new Request();
+        Request second = new Request();
+        captures.add(first);
+        captures.add(second);
+        pass();
+
+        assertEquals(1, passes);
+        assertEquals(1, first.answers);
+        assertEquals(1, second.answers);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertPixel(first, x, y, 20, 30, 40);
+            }
+        }
+        assertTrue(captures.isEmpty());
+        // answered once, and the empty canvas goes back to waiting
+        pass();
+        assertEquals(1, passes);
+        assertEquals(1, first.answers);
+    }
+
+    @Test
+    public void captureSeesTheFrameDrawn() {
+        Request request = new Request();
+        captures.add(request);
+        publish("d1,0,0,1,1,0,0,2,2;");
+        pass();
+        assertEquals(1, request.answers);
+        // the top left 2x2, which is the top rows read back
+        assertPixel(request, 0, HEIGHT - 1, 255, 0, 0);
+        assertPixel(request, 1, HEIGHT - 2, 255, 0, 0);
+        assertPixel(request, 2, HEIGHT - 1, 20, 30, 40);
+        assertPixel(request, 0, 0, 20, 30, 40);
+    }
+
+    @Test
+    public void requestsAddedWhileReadingWaitForTheNextPass() {
+        final Request later = new Request();
+        Request request = new Request();
+        captures.add(request);
+        captures.readAll(new FastCanvasCaptureQueue.Reader<Request>() {
+            public void read(Request request) {
+                captures.add(later);
+                reader.read(request);
+            }
+        });
+        assertEquals(1, read.size());
+        assertFalse(captures.isEmpty());
+        pass();
+        assertEquals(2, read.size());
+        assertEquals(1, later.answers);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+
+// Commands encoded by FastCanvasCommandEncoder decode to the same calls
+// with the same arguments, whatever the buffer had to grow to, and a
+// stream cut short is rejected rather than read past its end.
+public class FastCanvasCommandCodecTest {
+
+    // One of every command, with values that don't survive a wrong offset
+    private static void everyCommand(FastCanvasCommandHandler handler) {
+        handler.setTransform(1.5f, -0.25f, 0.125f, 2f, 10.75f, -20.5f);
+        handler.transform(0.5f, 0.5f, -0.5f, 0.5f, 3f, 4f);
+        handler.resetTransform();
+        handler.scale(2.5f, -1f);
+        handler.rotate(3.14159f);
+        handler.translate(-7.25f, 8.5f);
+        handler.save();
+        handler.setGlobalAlpha(0.375f);
+        handler.drawImage(42, 1f, 2f, 3f, 4f, 5.5f, 6.5f, 7.5f, 8.5f);
+        handler.drawList(-3, 12.5f, -13.5f);
+        int flags = FastCanvasCommandEncoder.SPRITE_ROTATION
+                | FastCanvasCommandEncoder.SPRITE_ALPHA;
+        FloatBuffer frames = FloatBuffer.wrap(new float[] { 0, 0, 16, 16,
+                16, 0, 16, 16 });
+        FloatBuffer sprites = FloatBuffer.wrap(new float[] { 1, 2, 0, 0.5f,
+                1, 3, 4, 1, -0.5f, 0.25f });
+        handler.drawImages(7, flags, frames, 2, sprites, 2);
+        handler.fillText(3, 0xff8040c0,
+                FastCanvasCommandEncoder.TEXT_ALIGN_CENTER
+                        | FastCanvasCommandEncoder.TEXT_BASELINE_MIDDLE,
+                100.5f, -20f, IntBuffer.wrap(new int[] { 'H', 'i', 0x1f600 }),
+                3);
+        handler.restore();
+    }
+
+    private static RecordingHandler decode(FastCanvasCommandEncoder encoder) {
+        RecordingHandler decoded = new RecordingHandler();
+        int count = FastCanvasCommandDecoder.decode(encoder.getBuffer(),
+                encoder.length(), decoded);
+        assertEquals(decoded.calls.size(), count);
+        return decoded;
+    }
+
+    @Test
+    public void everyOpcodeRoundTrips() {
+        RecordingHandler expected = new RecordingHandler();
+        everyCommand(expected);
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        everyCommand(encoder);
+
+        assertEquals(expected.calls, decode(encoder).calls);
+    }
+
+    @Test
+    public void emptyCommandsRoundTrip() {
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        encoder.drawImages(1, 0, FloatBuffer.allocate(0), 0,
+                FloatBuffer.allocate(0), 0);
+        encoder.fillText(1, -1, 0, 0, 0, IntBuffer.allocate(0), 0);
+
+        assertEquals(2, decode(encoder).calls.size());
+    }
+
+    @Test
+    public void bufferGrowsAndKeepsEarlierCommands() {
+        RecordingHandler expected = new RecordingHandler();
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder(1);
+        int capacity = encoder.getBuffer().capacity();
+        for (int i = 0; i < 200; i++) {
+            everyCommand(expected);
+            everyCommand(encoder);
+        }
+        // a single command larger than the doubled buffer
+        float[] many = new float[4 * 10000];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = i;
+        }
+        expected.drawImages(2, 0, FloatBuffer.wrap(many), 10000,
+                FloatBuffer.allocate(0), 0);
+        encoder.drawImages(2, 0, FloatBuffer.wrap(many), 10000,
+                FloatBuffer.allocate(0), 0);
+
+        assertTrue(encoder.getBuffer().capacity() > capacity);
+        assertEquals(expected.calls, decode(encoder).calls);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        everyCommand(encoder);
+        encoder.reset();
+        encoder.save();
+
+        assertEquals(1, encoder.length());
+        assertEquals("save []", decode(encoder).calls.get(0));
+    }
+
+    @Test
+    public void truncatedCommandsAreRejected() {
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        everyCommand(encoder);
+        int length = encoder.length();
+        int whole = 0;
+        for (int cut = 0; cut < length; cut++) {
+            RecordingHandler decoded = new RecordingHandler();
+            try {
+                FastCanvasCommandDecoder.decode(encoder.getBuffer(), cut,
+                        decoded);
+                whole++;
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(
+                        "truncated command"));
+            }
+        }
+        // only cuts on a command boundary decode: the empty stream and
+        // after each command but the last
+        assertEquals(13, whole);
+    }
+
+    @Test
+    public void hugeCountsAreRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(64).order(
+                ByteOrder.LITTLE_ENDIAN);
+        buffer.put(FastCanvasCommandEncoder.DRAW_IMAGES).putInt(1).putInt(0)
+                .putInt(Integer.MAX_VALUE).putInt(1);
+        buffer.put(new byte[8]);
+        try {
+            FastCanvasCommandDecoder.decode(buffer, buffer.position(),
+                    new RecordingHandler());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        buffer.clear();
+        buffer.put(FastCanvasCommandEncoder.FILL_TEXT).putInt(1).putInt(0)
+                .putInt(0).putFloat(0).putFloat(0).putInt(-1);
+        try {
+            FastCanvasCommandDecoder.decode(buffer, buffer.position(),
+                    new RecordingHandler());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOpcodeIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.put(FastCanvasCommandEncoder.SAVE).put((byte) '?');
+        FastCanvasCommandDecoder.decode(buffer, 2, new RecordingHandler());
+    }
+
+    @Test
+    public void textCommandsDecodeToTheSameCalls() {
+        RecordingHandler expected = new RecordingHandler();
+        expected.setTransform(1, 0, 0, 1, 10.5f, -20);
+        expected.drawImage(3, 0, 0, 32, 32, -16, -16, 32, 32);
+        expected.drawList(5, 1, 2);
+        expected.drawImages(4, 0, FloatBuffer.wrap(new float[] { 0, 0, 8,
+                8 }), 1, FloatBuffer.wrap(new float[] { 5, 6, 0 }), 1);
+        expected.fillText(2, -16777216, 6, 7.5f, 8, IntBuffer.wrap(new int[] {
+                65, 66 }), 2);
+
+        RecordingHandler decoded = new RecordingHandler();
+        FastCanvasCommandDecoder.decodeText("t1,0,0,1,10.5,-20;"
+                + "d3,0,0,32,32,-16,-16,32,32;L5,1,2;D4,0,1,1,0,0,8,8,5,6,0;"
+                + "T2,-16777216,6,7.5,8,65,66;", decoded);
+
+        assertEquals(expected.calls, decoded.calls);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+// KTX and PKM headers made up here, the good ones and the ways a file can be
+// broken. The block data is only filler: each level is its number plus one,
+// so the slices can be told apart.
+public class FastCanvasCompressedTextureTest {
+
+    private static final int ETC1 =
+            FastCanvasCompressedTexture.GL_ETC1_RGB8_OES;
+    private static final int RGBA8_ETC2 =
+            FastCanvasCompressedTexture.GL_COMPRESSED_RGBA8_ETC2_EAC;
+    // not one whose block size is known
+    private static final int PVRTC_4BPP = 0x8C02;
+
+    private static final byte[] KTX_IDENTIFIER = { (byte) 0xAB, 'K', 'T',
+            'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n', 0x1A, '\n' };
+
+    // A KTX file with a level of each size, in order, and keyValueBytes of
+    // key and value data ahead of them. The header can be changed afterwards
+    // with putInt, in the file's byte order.
+    private static ByteBuffer ktx(ByteOrder order, int format, int width,
+            int height, int keyValueBytes, int... sizes) {
+        int bytes = 64 + keyValueBytes;
+        for (int size : sizes) {
+            bytes += 4 + ((size + 3) & ~3);
+        }
+        ByteBuffer file = ByteBuffer.allocate(bytes).order(order);
+        file.put(KTX_IDENTIFIER);
+        file.putInt(0x04030201);
+        // glType, glTypeSize, glFormat
+        file.putInt(0).putInt(1).putInt(0);
+        // glInternalFormat, glBaseInternalFormat
+        file.putInt(format).putInt(0x1908);
+        file.putInt(width).putInt(height);
+        // depth, array elements, faces
+        file.putInt(0).putInt(0).putInt(1);
+        file.putInt(sizes.length).putInt(keyValueBytes);
+        file.position(file.position() + keyValueBytes);
+        for (int i = 0; i < sizes.length; i++) {
+            file.putInt(sizes[i]);
+            for (int j = 0; j < sizes[i]; j++) {
+                file.put((byte) (i + 1));
+            }
+            file.position((file.position() + 3) & ~3);
+        }
+        file.flip();
+        return file;
+    }
+
+    private static ByteBuffer ktx(int format, int width, int height,
+            int... sizes) {
+        return ktx(ByteOrder.LITTLE_ENDIAN, format, width, height, 0, sizes);
+    }
+
+    // A PKM file of the given version, "10" or "20", with dataBytes of
+    // block data
+    private static ByteBuffer pkm(String version, int type, int textureWidth,
+            int textureHeight, int width, int height, int dataBytes) {
+        ByteBuffer file = ByteBuffer.allocate(16 + dataBytes);
+        file.put((byte) 'P').put((byte) 'K').put((byte) 'M').put((byte) ' ');
+        file.put((byte) version.charAt(0)).put((byte) version.charAt(1));
+        file.putShort((short) type);
+        file.putShort((short) textureWidth).putShort((short) textureHeight);
+        file.putShort((short) width).putShort((short) height);
+        while (file.hasRemaining()) {
+            file.put((byte) 1);
+        }
+        file.flip();
+        return file;
+    }
+
+    private static void assertLevel(FastCanvasCompressedTexture texture,
+            int level, int width, int height, int bytes) {
+        assertEquals("width of " + level, width,
+                texture.getLevelWidth(level));
+        assertEquals("height of " + level, height,
+                texture.getLevelHeight(level));
+        ByteBuffer data = texture.getLevel(level);
+        assertEquals("bytes of " + level, bytes, data.remaining());
+        while (data.hasRemaining()) {
+            assertEquals("data of " + level, level + 1, data.get());
+        }
+    }
+
+    private static void assertRejected(String message, ByteBuffer file) {
+        try {
+            FastCanvasCompressedTexture.parse(file);
+            fail("parsed, expected: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static FastCanvasCompressedTexture parse(ByteBuffer file)
+            throws IOException {
+        return FastCanvasCompressedTexture.parse(file);
+    }
+
+    @Test
+    public void ktxLevelsAreSlicedDownTo1x1() throws IOException {
+        FastCanvasCompressedTexture texture = parse(ktx(ETC1, 8, 8, 32, 8, 8,
+                8));
+        assertEquals(ETC1, texture.format);
+        assertEquals(8, texture.width);
+        assertEquals(8, texture.textureWidth);
+        assertEquals(4, texture.getLevelCount());
+        assertTrue(texture.hasAllLevels());
+        assertLevel(texture, 0, 8, 8, 32);
+        assertLevel(texture, 1, 4, 4, 8);
+        assertLevel(texture, 2, 2, 2, 8);
+        assertLevel(texture, 3, 1, 1, 8);
+        assertEquals(56, texture.getByteCount());
+    }
+
+    @Test
+    public void levelsShareTheFileBuffer() throws IOException {
+        ByteBuffer file = ktx(ETC1, 4, 4, 8);
+        FastCanvasCompressedTexture texture = parse(file);
+        file.put(68, (byte) 9);
+        assertEquals(9, texture.getLevel(0).get(0));
+        // each call is a view of its own
+        texture.getLevel(0).position(8);
+        assertEquals(8, texture.getLevel(0).remaining());
+    }
+
+    @Test
+    public void bigEndianKtx() throws IOException {
+        // 16x8 blocks of 16 bytes: 4x2, 2x1, then one block down to 1x1
+        FastCanvasCompressedTexture texture = parse(ktx(ByteOrder.BIG_ENDIAN,
+                RGBA8_ETC2, 16, 8, 0, 128, 32, 16, 16, 16));
+        assertEquals(RGBA8_ETC2, texture.format);
+        assertEquals(16, texture.width);
+        assertEquals(8, texture.height);
+        assertTrue(texture.hasAllLevels());
+        assertLevel(texture, 0, 16, 8, 128);
+        assertLevel(texture, 3, 2, 1, 16);
+        assertLevel(texture, 4, 1, 1, 16);
+    }
+
+    @Test
+    public void keyValueDataIsSkipped() throws IOException {
+        FastCanvasCompressedTexture texture = parse(ktx(
+                ByteOrder.LITTLE_ENDIAN, ETC1, 8, 4, 20, 16, 8));
+        assertEquals(2, texture.getLevelCount());
+        assertLevel(texture, 0, 8, 4, 16);
+        assertLevel(texture, 1, 4, 2, 8);
+    }
+
+    @Test
+    public void partialChainUploadsLevelZeroOnly() throws IOException {
+        FastCanvasCompressedTexture texture = parse(ktx(ETC1, 8, 8, 32, 8));
+        assertEquals(2, texture.getLevelCount());
+        assertFalse(texture.hasAllLevels());
+        assertEquals(32, texture.getByteCount());
+
+        // a level count of 0 asks for mipmaps to be generated: one level
+        ByteBuffer file = ktx(ETC1, 8, 8, 32);
+        file.putInt(56, 0);
+        texture = parse(file);
+        assertEquals(1, texture.getLevelCount());
+        assertFalse(texture.hasAllLevels());
+        assertEquals(32, texture.getByteCount());
+    }
+
+    @Test
+    public void unknownFormatsAreTakenAsTheyAre() throws IOException {
+        FastCanvasCompressedTexture texture = parse(ktx(PVRTC_4BPP, 8, 8,
+                34));
+        assertEquals(PVRTC_4BPP, texture.format);
+        assertLevel(texture, 0, 8, 8, 34);
+    }
+
+    @Test
+    public void fileIsReadFromItsPosition() throws IOException {
+        ByteBuffer inner = ktx(ETC1, 4, 4, 8);
+        ByteBuffer file = ByteBuffer.allocate(10 + inner.remaining());
+        file.put(new byte[10]).put(inner).flip();
+        file.position(10);
+        FastCanvasCompressedTexture texture = parse(file);
+        assertLevel(texture, 0, 4, 4, 8);
+        assertEquals(10, file.position());
+    }
+
+    @Test
+    public void pkmRoundsTheTextureUpToBlocks() throws IOException {
+        FastCanvasCompressedTexture texture = parse(pkm("10", 0, 8, 8, 6, 5,
+                32));
+        assertEquals(ETC1, texture.format);
+        assertEquals(6, texture.width);
+        assertEquals(5, texture.height);
+        assertEquals(8, texture.textureWidth);
+        assertEquals(8, texture.textureHeight);
+        assertEquals(1, texture.getLevelCount());
+        assertFalse(texture.hasAllLevels());
+        assertLevel(texture, 0, 8, 8, 32);
+    }
+
+    @Test
+    public void pkm2Formats() throws IOException {
+        FastCanvasCompressedTexture texture = parse(pkm("20", 3, 8, 4, 8, 4,
+                32));
+        assertEquals(RGBA8_ETC2, texture.format);
+        assertLevel(texture, 0, 8, 4, 32);
+        assertEquals(FastCanvasCompressedTexture.GL_COMPRESSED_RGB8_ETC2,
+                parse(pkm("20", 1, 4, 4, 4, 4, 8)).format);
+        assertEquals(FastCanvasCompressedTexture.GL_COMPRESSED_RG11_EAC,
+                parse(pkm("20", 6, 4, 4, 4, 4, 16)).format);
+    }
+
+    @Test
+    public void levelBytesCountsWholeBlocks() {
+        assertEquals(8, FastCanvasCompressedTexture.levelBytes(ETC1, 1, 1));
+        assertEquals(32, FastCanvasCompressedTexture.levelBytes(ETC1, 5, 5));
+        assertEquals(64, FastCanvasCompressedTexture.levelBytes(
+                FastCanvasCompressedTexture.GL_COMPRESSED_RG11_EAC, 8, 8));
+        int astc4x4 =
+                FastCanvasCompressedTexture.GL_COMPRESSED_RGBA_ASTC_4x4_KHR;
+        assertEquals(144, FastCanvasCompressedTexture.levelBytes(astc4x4, 10,
+                10));
+        // 12x12, the last of them
+        assertEquals(64, FastCanvasCompressedTexture.levelBytes(
+                astc4x4 + 13, 13, 13));
+        // sRGB 6x6
+        int srgb4x4 =
+                FastCanvasCompressedTexture.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4_KHR;
+        assertEquals(64, FastCanvasCompressedTexture.levelBytes(srgb4x4 + 4,
+                12, 12));
+        assertEquals(-1, FastCanvasCompressedTexture.levelBytes(astc4x4 + 14,
+                4, 4));
+        assertEquals(-1, FastCanvasCompressedTexture.levelBytes(PVRTC_4BPP,
+                4, 4));
+        assertEquals(Integer.MAX_VALUE, FastCanvasCompressedTexture
+                .levelBytes(RGBA8_ETC2, 1 << 20, 1 << 20));
+    }
+
+    @Test
+    public void acceptsKtxAndPkmNames() {
+        assertTrue(FastCanvasCompressedTexture.accepts("a/b.ktx"));
+        assertTrue(FastCanvasCompressedTexture.accepts("B.PKM"));
+        assertFalse(FastCanvasCompressedTexture.accepts("b.png"));
+        assertFalse(FastCanvasCompressedTexture.accepts("ktx"));
+    }
+
+    @Test
+    public void otherFilesAreRejected() {
+        assertRejected("not a KTX or PKM", ByteBuffer.allocate(0));
+        assertRejected("not a KTX or PKM", ByteBuffer.wrap("GIF89a......"
+                .getBytes()));
+        // the identifier of KTX 2
+        ByteBuffer file = ktx(ETC1, 4, 4, 8);
+        file.put(5, (byte) '2').put(6, (byte) '0');
+        assertRejected("not a KTX or PKM", file);
+    }
+
+    @Test
+    public void malformedKtxHeaders() {
+        ByteBuffer file = ktx(ETC1, 4, 4, 8);
+        file.limit(40);
+        assertRejected("KTX header truncated", file);
+
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(12, 0x01020403);
+        assertRejected("KTX endianness", file);
+
+        file = ktx(ETC1, 4, 4, 8);
+        // GL_UNSIGNED_BYTE, GL_RGBA
+        file.putInt(16, 0x1401).putInt(24, 0x1908);
+        assertRejected("KTX is not compressed", file);
+
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(52, 6);
+        assertRejected("KTX is not a 2D texture", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(44, 4);
+        assertRejected("KTX is not a 2D texture", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(48, 2);
+        assertRejected("KTX is not a 2D texture", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(36, 0);
+        assertRejected("KTX is not a 2D texture", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(40, -4);
+        assertRejected("KTX is not a 2D texture", file);
+
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(56, 33);
+        assertRejected("KTX header is corrupt", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(60, -4);
+        assertRejected("KTX header is corrupt", file);
+    }
+
+    @Test
+    public void malformedKtxLevels() {
+        assertRejected("KTX level 0 is 30 bytes", ktx(ETC1, 8, 8, 30));
+        assertRejected("KTX level 1 is 16 bytes", ktx(ETC1, 8, 8, 32, 16));
+        // a size this large doesn't fit in an int
+        assertRejected("KTX level 0 is 8 bytes", ktx(ETC1, 1 << 30, 1 << 30,
+                8));
+
+        // more levels in the header than in the file
+        ByteBuffer file = ktx(ETC1, 8, 8, 32, 8);
+        file.putInt(56, 3);
+        assertRejected("KTX level 2 truncated", file);
+        file = ktx(ETC1, 8, 8, 32, 8);
+        file.limit(file.limit() - 1);
+        assertRejected("KTX level 1 truncated", file);
+        file = ktx(PVRTC_4BPP, 8, 8, 8);
+        file.putInt(64, -8);
+        assertRejected("KTX level 0 is -8 bytes", file);
+        file = ktx(PVRTC_4BPP, 8, 8, 8);
+        file.putInt(64, Integer.MAX_VALUE);
+        assertRejected("KTX level 0 truncated", file);
+        file = ktx(ETC1, 4, 4, 8);
+        file.putInt(60, Integer.MAX_VALUE);
+        assertRejected("KTX level 0 truncated", file);
+    }
+
+    @Test
+    public void malformedPkmHeaders() {
+        ByteBuffer file = pkm("10", 0, 4, 4, 4, 4, 8);
+        file.limit(12);
+        assertRejected("PKM header truncated", file);
+
+        assertRejected("PKM version 30", pkm("30", 0, 4, 4, 4, 4, 8));
+        assertRejected("PKM 1.0 type 1", pkm("10", 1, 4, 4, 4, 4, 8));
+        assertRejected("PKM 2.0 type 2", pkm("20", 2, 4, 4, 4, 4, 8));
+
+        assertRejected("PKM size", pkm("10", 0, 6, 4, 6, 4, 8));
+        assertRejected("PKM size", pkm("10", 0, 4, 4, 8, 4, 8));
+        assertRejected("PKM size", pkm("10", 0, 4, 4, 0, 4, 8));
+        assertRejected("PKM data truncated", pkm("10", 0, 8, 8, 8, 8, 24));
+        // 65532 squared blocks of 16 bytes don't fit in an int
+        assertRejected("PKM data truncated", pkm("20", 3, 65532, 65532, 4,
+                4, 16));
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// Known text frames built into a batch: the vertices and draws they must
+// come out as, the same as Canvas::BuildStreams would make.
+public class FastCanvasFrameBuilderTest {
+
+    private FastCanvasTextureTable table;
+    private FastCanvasFrameBuilder builder;
+    private FastCanvasFrameBatch batch;
+
+    @Before
+    public void setUp() {
+        table = new FastCanvasTextureTable();
+        // two 64x64 images on their own, two regions of one 256x256 page
+        table.add(1, 101, 64, 64);
+        table.add(2, 102, 64, 64);
+        table.addRegion(3, 103, 256, 256, 0, 0);
+        table.addRegion(4, 103, 256, 256, 128, 64);
+        builder = new FastCanvasFrameBuilder(table);
+        batch = new FastCanvasFrameBatch();
+    }
+
+    private void build(String commands) {
+        builder.build(commands, batch);
+    }
+
+    // x and y of each corner of quad, clockwise from the top left
+    private float[] corners(int quad) {
+        float[] xy = new float[8];
+        for (int i = 0; i < 4; i++) {
+            int v = (quad * 4 + i) * FastCanvasFrameBatch.VERTEX_INTS;
+            xy[i * 2] = Float.intBitsToFloat(batch.vertices[v]);
+            xy[i * 2 + 1] = Float.intBitsToFloat(batch.vertices[v + 1]);
+        }
+        return xy;
+    }
+
+    // u and v of the top left and bottom right corners of quad
+    private float[] uvs(int quad) {
+        int v = quad * 4 * FastCanvasFrameBatch.VERTEX_INTS;
+        int last = v + 2 * FastCanvasFrameBatch.VERTEX_INTS;
+        return new float[] { Float.intBitsToFloat(batch.vertices[v + 2]),
+                Float.intBitsToFloat(batch.vertices[v + 3]),
+                Float.intBitsToFloat(batch.vertices[last + 2]),
+                Float.intBitsToFloat(batch.vertices[last + 3]) };
+    }
+
+    private void assertDraw(int draw, int glID, int first, int count,
+            int flags) {
+        int i = draw * FastCanvasFrameBatch.DRAW_INTS;
+        int[] draws = batch.getDraws();
+        assertArrayEquals("draw " + draw, new int[] { glID, first, count,
+                flags }, new int[] { draws[i], draws[i + 1], draws[i + 2],
+                draws[i + 3] });
+    }
+
+    @Test
+    public void oneImageIsOneQuad() {
+        build("d1,16,0,32,32,10.5,20.5,32,32;");
+        assertEquals(4, batch.getVertexCount());
+        assertEquals(1, batch.getQuadCount());
+        assertEquals(1, batch.getDrawCount());
+        assertDraw(0, 101, 0, 4, 0);
+        // floored like DoPushQuad
+        assertArrayEquals(new float[] { 10, 20, 42, 20, 42, 52, 10, 52 },
+                corners(0), 0);
+        assertArrayEquals(new float[] { 0.25f, 0, 0.75f, 0.5f }, uvs(0), 0);
+        assertEquals(-1, batch.vertices[4]);
+        assertEquals(batch.getVertexCount() * FastCanvasFrameBatch.VERTEX_BYTES,
+                batch.getVertexBuffer().limit());
+    }
+
+    @Test
+    public void emptyFrameHasNoDraws() {
+        build("");
+        assertEquals(0, batch.getVertexCount());
+        assertEquals(0, batch.getDrawCount());
+        assertEquals(0, batch.getUsedCount());
+    }
+
+    @Test
+    public void textureChangesStartNewDraws() {
+        build("d1,0,0,8,8,0,0,8,8;d1,0,0,8,8,8,0,8,8;d2,0,0,8,8,0,0,8,8;"
+                + "d1,0,0,8,8,0,0,8,8;");
+        assertEquals(16, batch.getVertexCount());
+        assertEquals(3, batch.getDrawCount());
+        assertDraw(0, 101, 0, 8, 0);
+        assertDraw(1, 102, 8, 4, 0);
+        assertDraw(2, 101, 12, 4, 0);
+        assertEquals(2, batch.getUsedCount());
+    }
+
+    @Test
+    public void regionsOfOnePageShareADraw() {
+        build("d3,0,0,16,16,0,0,16,16;d4,0,0,16,16,0,0,16,16;"
+                + "d3,0,0,16,16,0,0,16,16;");
+        assertEquals(1, batch.getDrawCount());
+        assertDraw(0, 103, 0, 12, 0);
+        assertEquals(2, batch.getUsedCount());
+        // texture 4 is offset into the page
+        assertArrayEquals(new float[] { 0.5f, 0.25f, 0.5625f, 0.3125f },
+                uvs(1), 0);
+    }
+
+    @Test
+    public void unloadedImagesAreUsedButNotDrawn() {
+        build("d9,0,0,8,8,0,0,8,8;d1,0,0,8,8,0,0,8,8;d9,0,0,8,8,0,0,8,8;");
+        assertEquals(4, batch.getVertexCount());
+        assertEquals(1, batch.getDrawCount());
+        assertEquals(2, batch.getUsedCount());
+        assertEquals(9, batch.getUsedTextures()[0]);
+        assertEquals(1, batch.getUsedTextures()[1]);
+    }
+
+    @Test
+    public void saveAndRestoreNestTransforms() {
+        build("l100,50;v;l10,10;d1,0,0,8,8,0,0,8,8;v;k2,2;"
+                + "d1,0,0,8,8,0,0,8,8;e;d1,0,0,8,8,0,0,8,8;e;"
+                + "d1,0,0,8,8,0,0,8,8;");
+        assertEquals(4, batch.getQuadCount());
+        assertArrayEquals(new float[] { 110, 60, 118, 60, 118, 68, 110, 68 },
+                corners(0), 0);
+        assertArrayEquals(new float[] { 110, 60, 126, 60, 126, 76, 110, 76 },
+                corners(1), 0);
+        assertArrayEquals(corners(0), corners(2), 0);
+        assertArrayEquals(new float[] { 100, 50, 108, 50, 108, 58, 100, 58 },
+                corners(3), 0);
+        assertEquals(1, batch.getDrawCount());
+    }
+
+    @Test
+    public void rotationTurnsTheCorners() {
+        // a quarter turn about the origin, then 100 to the right
+        build("l100,0;r1.5707964;d1,0,0,8,8,0,0,20,10;");
+        float[] xy = corners(0);
+        // (20, 0) goes to (0, 20) and (0, 10) to (-10, 0); the floor of a
+        // near zero sine can land one below
+        assertEquals(100, xy[0], 1);
+        assertEquals(0, xy[1], 1);
+        assertEquals(100, xy[2], 1);
+        assertEquals(20, xy[3], 1);
+        assertEquals(90, xy[4], 1);
+        assertEquals(20, xy[5], 1);
+        assertEquals(90, xy[6], 1);
+        assertEquals(0, xy[7], 1);
+    }
+
+    @Test
+    public void setTransformReplacesTheCurrentOne() {
+        build("l500,500;t2,0,0,3,10,20;d1,0,0,8,8,1,1,4,4;m;"
+                + "d1,0,0,8,8,1,1,4,4;");
+        assertArrayEquals(new float[] { 12, 23, 20, 23, 20, 35, 12, 35 },
+                corners(0), 0);
+        assertArrayEquals(new float[] { 1, 1, 5, 1, 5, 5, 1, 5 }, corners(1),
+                0);
+    }
+
+    @Test
+    public void transformCarriesOverToTheNextFrame() {
+        // as natively, only restore or a reset undoes it
+        build("l10,20;");
+        build("d1,0,0,8,8,0,0,8,8;");
+        assertArrayEquals(new float[] { 10, 20, 18, 20, 18, 28, 10, 28 },
+                corners(0), 0);
+    }
+
+    @Test
+    public void alphaColorsTheDraw() {
+        build("d1,0,0,8,8,0,0,8,8;a0.5;d1,0,0,8,8,0,0,8,8;");
+        assertEquals(1, batch.getDrawCount());
+        assertDraw(0, 101, 0, 8, FastCanvasFrameBatch.FLAG_COLOR);
+        assertEquals(-1, batch.vertices[4]);
+        int color = batch.vertices[4 * FastCanvasFrameBatch.VERTEX_INTS + 4];
+        // white at half alpha, as RGBA bytes in native order
+        assertTrue(color == (128 << 24 | 0xffffff)
+                || color == (0xffffff00 | 128));
+
+        // and is back to opaque on the next frame
+        build("d1,0,0,8,8,0,0,8,8;");
+        assertDraw(0, 101, 0, 4, 0);
+    }
+
+    @Test
+    public void spritesAreOneDraw() {
+        // two frames, three sprites with no extras, one of them with a
+        // frame that doesn't exist
+        build("D1,0,2,3,0,0,16,16,16,0,16,8,10,10,0,40,40,1,70,70,5;");
+        assertEquals(8, batch.getVertexCount());
+        assertEquals(1, batch.getDrawCount());
+        assertDraw(0, 101, 0, 8, 0);
+        // centered on x, y
+        assertArrayEquals(new float[] { 2, 2, 18, 2, 18, 18, 2, 18 },
+                corners(0), 0);
+        assertArrayEquals(new float[] { 32, 36, 48, 36, 48, 44, 32, 44 },
+                corners(1), 0);
+        assertArrayEquals(new float[] { 0.25f, 0, 0.5f, 0.125f }, uvs(1), 0);
+    }
+
+    @Test
+    public void longRunsAreSplitForTheIndexBuffer() {
+        int sprites = FastCanvasFrameBuilder.MAX_DRAW_QUADS + 10;
+        StringBuilder s = new StringBuilder("D1,0,1," + sprites + ",0,0,4,4");
+        for (int i = 0; i < sprites; i++) {
+            s.append(",8,8,0");
+        }
+        build(s.append(';').toString());
+        assertEquals(sprites * 4, batch.getVertexCount());
+        assertEquals(2, batch.getDrawCount());
+        assertDraw(0, 101, 0, FastCanvasFrameBuilder.MAX_DRAW_QUADS * 4, 0);
+        assertDraw(1, 101, FastCanvasFrameBuilder.MAX_DRAW_QUADS * 4, 40, 0);
+    }
+
+    @Test
+    public void quadsOutsideTheViewportAreCulled() {
+        builder.setViewport(100, 100);
+        build("d1,0,0,8,8,-8,0,8,8;d1,0,0,8,8,96,96,8,8;"
+                + "d1,0,0,8,8,100,0,8,8;D1,0,1,2,0,0,8,8,50,50,0,50,200,0;");
+        assertEquals(2, batch.getQuadCount());
+        assertEquals(3, batch.getCulledCount());
+        assertEquals(1, batch.getDrawCount());
+    }
+
+    @Test
+    public void displayListsBreakTheDrawsAndKeepTheirTransform() {
+        build("d1,0,0,8,8,0,0,8,8;l10,20;k2,2;L7,5,5;d1,0,0,8,8,0,0,8,8;");
+        assertEquals(3, batch.getDrawCount());
+        assertDraw(0, 101, 0, 4, 0);
+        assertDraw(1, 7, 0, 0, FastCanvasFrameBatch.FLAG_LIST);
+        assertDraw(2, 101, 4, 4, 0);
+        float[] t = new float[6];
+        System.arraycopy(batch.getListTransforms(), 0, t, 0, 6);
+        assertArrayEquals(new float[] { 2, 0, 0, 2, 20, 30 }, t, 0);
+    }
+
+    @Test
+    public void textIsAQuadPerGlyph() {
+        table.defineFont(1, 10, 3);
+        // 'A' and 'B' on page 3, space without a quad
+        table.addGlyph(1, 'A', 3, 0, 0, 8, 10, 0, 10, 8);
+        table.addGlyph(1, 'B', 3, 8, 0, 8, 10, 1, 10, 9);
+        table.addGlyph(1, ' ', 0, 0, 0, 0, 0, 0, 0, 4);
+        build("T1,-1,0,10,50,65,32,66;T1,-1,0,0,0,65,67;");
+        assertEquals(2, batch.getQuadCount());
+        assertEquals(1, batch.getDrawCount());
+        assertDraw(0, 103, 0, 8, 0);
+        // pen at 10, then 8 + 4 along, each glyph top at y - top
+        assertArrayEquals(new float[] { 10, 40, 18, 40, 18, 50, 10, 50 },
+                corners(0), 0);
+        assertArrayEquals(new float[] { 23, 40, 31, 40, 31, 50, 23, 50 },
+                corners(1), 0);
+        // the second string is left out for its missing 'C'
+        assertEquals(1, batch.getMissingGlyphCount());
+        assertEquals(1, batch.getMissingGlyphs()[0]);
+        assertEquals('C', batch.getMissingGlyphs()[1]);
+        assertEquals(4, batch.getGlyphHits());
+        assertEquals(1, batch.getGlyphMisses());
+    }
+
+    @Test
+    public void batchRecordsTheTableVersion() {
+        build("d1,0,0,8,8,0,0,8,8;");
+        long version = batch.getTableVersion();
+        table.remove(1);
+        build("d1,0,0,8,8,0,0,8,8;");
+        assertTrue(batch.getTableVersion() > version);
+        assertEquals(0, batch.getVertexCount());
+        assertEquals(1, batch.getUsedCount());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+// The triple buffer on its own, and under a producer and a consumer thread
+// running flat out.
+public class FastCanvasFrameMailboxTest {
+
+    private static final int STRESS_FRAMES = 200000;
+
+    @Test
+    public void startsEmpty() {
+        FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        assertFalse(mailbox.hasNewFrame());
+        FastCanvasFrameMailbox.Frame frame = mailbox.acquire();
+        assertTrue(frame.isEmpty());
+        assertEquals(0, frame.getSequence());
+        assertEquals(0, mailbox.getDuplicatedCount());
+    }
+
+    @Test
+    public void unacquiredFramesAreDropped() {
+        FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        for (int i = 1; i <= 3; i++) {
+            mailbox.beginWrite().setCommand("frame " + i);
+            assertEquals(i, mailbox.publish());
+        }
+        assertTrue(mailbox.hasNewFrame());
+
+        FastCanvasFrameMailbox.Frame frame = mailbox.acquire();
+        assertEquals("frame 3", frame.getCommand());
+        assertEquals(3, frame.getSequence());
+        assertEquals(2, mailbox.getDroppedCount());
+        assertFalse(mailbox.hasNewFrame());
+
+        // the same frame again until a newer one arrives
+        assertSame(frame, mailbox.acquire());
+        assertEquals(1, mailbox.getDuplicatedCount());
+    }
+
+    @Test
+    public void buildsOnceUntilInvalidated() {
+        FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        mailbox.beginWrite().setCommand("v;e;");
+        mailbox.publish();
+        FastCanvasFrameMailbox.Frame frame = mailbox.acquire();
+        assertTrue(mailbox.needsBuild(frame));
+        mailbox.markBuilt(frame);
+        assertFalse(mailbox.needsBuild(mailbox.acquire()));
+        mailbox.invalidate();
+        assertTrue(mailbox.needsBuild(frame));
+    }
+
+    @Test
+    public void preparedBufferReplacesText() {
+        FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        FastCanvasFrameMailbox.Frame frame = mailbox.beginWrite();
+        frame.setCommand("v;");
+        ByteBuffer buffer = frame.prepareBuffer(10000);
+        assertTrue(buffer.remaining() >= 10000);
+        buffer.put(FastCanvasCommandEncoder.SAVE).flip();
+        mailbox.publish();
+
+        frame = mailbox.acquire();
+        assertTrue(frame.isBinary());
+        assertNull(frame.getCommand());
+        assertEquals(1, frame.getBuffer().limit());
+    }
+
+    @Test
+    public void malformedBase64LeavesTheSlotEmpty() {
+        FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        FastCanvasFrameMailbox.Frame frame = mailbox.beginWrite();
+        frame.setBase64("AAECAwQF");
+        assertTrue(frame.isBinary());
+        assertEquals(6, frame.getBuffer().limit());
+
+        try {
+            frame.setBase64("AAECAwQF!AAA");
+            fail("malformed base64 was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(frame.isEmpty());
+        assertEquals(0, frame.getBuffer().limit());
+        assertFalse(mailbox.hasNewFrame());
+
+        // the slot is written again by the next frame
+        assertSame(frame, mailbox.beginWrite());
+        frame.setBase64("AAEC");
+        mailbox.publish();
+        frame = mailbox.acquire();
+        assertTrue(frame.isBinary());
+        assertEquals(3, frame.getBuffer().limit());
+        assertEquals(2, frame.getBuffer().get(2));
+    }
+
+    // One thread publishes as fast as it can while another acquires as
+    // fast as it can. Every frame is filled with its own sequence number
+    // and a length that changes from frame to frame, so a frame that was
+    // written to while it was read shows as a mix of numbers or a wrong
+    // length.
+    @Test
+    public void producerAndConsumerNeverShareAFrame() throws Exception {
+        final FastCanvasFrameMailbox mailbox = new FastCanvasFrameMailbox();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    start.await();
+                    for (int sequence = 1; sequence <= STRESS_FRAMES;
+                            sequence++) {
+                        int ints = 1 + sequence % 97;
+                        ByteBuffer buffer = mailbox.beginWrite()
+                                .prepareBuffer(4 + ints * 4);
+                        buffer.putInt(ints);
+                        for (int i = 0; i < ints; i++) {
+                            buffer.putInt(sequence);
+                        }
+                        buffer.flip();
+                        mailbox.publish();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        }, "producer");
+
+        final long[] acquired = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    start.await();
+                    long last = 0;
+                    boolean finished = false;
+                    while (!finished) {
+                        // one more pass after the producer is done, for
+                        // its last frame
+                        finished = done.get();
+                        FastCanvasFrameMailbox.Frame frame =
+                                mailbox.acquire();
+                        long sequence = frame.getSequence();
+                        assertTrue("sequence went from " + last + " to "
+                                + sequence, sequence >= last);
+                        if (sequence == last) {
+                            continue;
+                        }
+                        acquired[0]++;
+                        last = sequence;
+                        check(frame);
+                    }
+                    assertEquals(STRESS_FRAMES, last);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }, "consumer");
+
+        producer.start();
+        consumer.start();
+        start.countDown();
+        producer.join(60000);
+        consumer.join(60000);
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertFalse(producer.isAlive() || consumer.isAlive());
+
+        assertEquals(STRESS_FRAMES, mailbox.getPublishedCount());
+        assertEquals(mailbox.getPublishedCount(), acquired[0]
+                + mailbox.getDroppedCount());
+        assertFalse(mailbox.hasNewFrame());
+    }
+
+    private static void check(FastCanvasFrameMailbox.Frame frame) {
+        assertTrue(frame.isBinary());
+        ByteBuffer buffer = frame.getBuffer();
+        int sequence = (int) frame.getSequence();
+        int ints = buffer.getInt(0);
+        assertEquals("length of frame " + sequence, 1 + sequence % 97, ints);
+        assertEquals(4 + ints * 4, buffer.limit());
+        for (int i = 0; i < ints; i++) {
+            assertEquals("torn frame", sequence, buffer.getInt(4 + i * 4));
+        }
+    }
+}
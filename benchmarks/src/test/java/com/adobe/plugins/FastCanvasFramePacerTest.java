@@ -0,0 +1,211 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+// The pacer against a simulated clock that only moves when a vsync is
+// made up, one display period at a time unless a test says otherwise.
+public class FastCanvasFramePacerTest {
+
+    private static final long FRAME_60 = 1000000000L / 60;
+    private static final long FRAME_90 = 1000000000L / 90;
+
+    private static class FakeClock implements FastCanvasFramePacer.Clock {
+        long now = 1000000000L;
+
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private FastCanvasFramePacer pacer;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        pacer = new FastCanvasFramePacer(clock);
+    }
+
+    private long vsync() {
+        return vsync(FRAME_60);
+    }
+
+    private long vsync(long after) {
+        clock.now += after;
+        return pacer.vsync();
+    }
+
+    private long stat(String name) throws JSONException {
+        return pacer.toJSON().getLong(name);
+    }
+
+    private long stat(String summary, String name) throws JSONException {
+        return pacer.toJSON().getJSONObject(summary).getLong(name);
+    }
+
+    @Test
+    public void framesAreNumberedOnceSubmitted() throws JSONException {
+        assertEquals(0, pacer.getFrame());
+        assertEquals(1, vsync());
+        assertEquals(1, pacer.getFrame());
+        assertEquals(clock.now + 2 * FRAME_60,
+                pacer.getPredictedPresentTime());
+        // still being produced
+        assertEquals(0, vsync());
+        assertEquals(1, pacer.getFrame());
+
+        pacer.submitted(1);
+        assertEquals(2, vsync());
+        // an old number coming back doesn't release frame 2
+        pacer.submitted(1);
+        assertEquals(0, vsync());
+        pacer.submitted(2);
+        assertEquals(3, vsync());
+
+        assertEquals(3, stat("frames"));
+        assertEquals(2, stat("waits"));
+        assertEquals(0, stat("stalls"));
+    }
+
+    @Test
+    public void stalledFrameIsAskedForAgain() throws JSONException {
+        assertEquals(1, vsync());
+        for (int i = 1; i < FastCanvasFramePacer.STALL_VSYNCS; i++) {
+            assertEquals("vsync " + i, 0, vsync());
+        }
+        // STALL_VSYNCS after frame 1 began
+        assertEquals(2, vsync());
+        assertEquals(1, stat("stalls"));
+        assertEquals(FastCanvasFramePacer.STALL_VSYNCS - 1, stat("waits"));
+
+        // frame 1 turning up after all doesn't stand for frame 2
+        pacer.submitted(1);
+        assertEquals(0, vsync());
+        pacer.submitted(2);
+        assertEquals(3, vsync());
+        assertEquals(1, stat("stalls"));
+    }
+
+    @Test
+    public void stallsRepeatWhileTheAppIsSilent() throws JSONException {
+        long frame = vsync();
+        for (int i = 0; i < 3 * FastCanvasFramePacer.STALL_VSYNCS; i++) {
+            long begun = vsync();
+            if (begun != 0) {
+                assertEquals(frame + 1, begun);
+                frame = begun;
+            }
+        }
+        assertEquals(4, frame);
+        assertEquals(3, stat("stalls"));
+    }
+
+    @Test
+    public void lateFramesAreCounted() throws JSONException {
+        assertEquals(1, vsync());
+        pacer.submitted(1);
+        assertEquals(2, vsync());
+        // drawn at the vsync after its begin: on time
+        pacer.present(1);
+
+        // frame 2 misses a vsync
+        assertEquals(0, vsync());
+        pacer.submitted(2);
+        assertEquals(3, vsync());
+        pacer.present(2);
+
+        assertEquals(2, stat("presented"));
+        assertEquals(1, stat("late"));
+        assertEquals(0, stat("dropped"));
+        assertEquals(1, stat("lateVsyncs", "max"));
+        assertEquals(2 * FRAME_60 / 1000, stat("latencyMicros", "max"));
+    }
+
+    @Test
+    public void supersededFramesAreDropped() throws JSONException {
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, vsync());
+            pacer.submitted(i);
+        }
+        pacer.present(1);
+        pacer.present(3);
+        // older, drawn again, not begun yet, and from before pacing
+        pacer.present(2);
+        pacer.present(3);
+        pacer.present(4);
+        pacer.present(0);
+
+        assertEquals(2, stat("presented"));
+        assertEquals(1, stat("dropped"));
+    }
+
+    @Test
+    public void periodFollowsTheDisplay() {
+        for (int i = 0; i < 300; i++) {
+            vsync(FRAME_90);
+            pacer.submitted(pacer.getFrame());
+        }
+        assertEquals(FRAME_90, pacer.getPeriod(), 1000);
+
+        // a skipped vsync, or the render thread idling, isn't a period
+        long period = pacer.getPeriod();
+        vsync(2 * FRAME_90);
+        pacer.submitted(pacer.getFrame());
+        vsync(10 * FRAME_90);
+        assertEquals(period, pacer.getPeriod());
+        assertEquals(clock.now + 2 * period, pacer.getPredictedPresentTime());
+    }
+
+    @Test
+    public void resetClearsStatsButNotPacing() throws JSONException {
+        assertEquals(1, vsync());
+        pacer.submitted(1);
+        assertEquals(2, vsync());
+        pacer.present(1);
+        assertEquals(0, vsync());
+        long period = pacer.getPeriod();
+
+        pacer.reset();
+        JSONObject stats = pacer.toJSON();
+        assertEquals(0, stats.getLong("frames"));
+        assertEquals(0, stats.getLong("presented"));
+        assertEquals(0, stats.getLong("waits"));
+        assertEquals(0, stats.getLong("stalls"));
+        assertEquals(0, stats.getJSONObject("latencyMicros").getLong("max"));
+        assertEquals(period / 1000, stats.getLong("periodMicros"));
+
+        // frame 2 is still awaited, and the numbers go on
+        assertEquals(0, vsync());
+        pacer.submitted(2);
+        assertEquals(3, vsync());
+        pacer.submitted(3);
+        assertEquals(4, vsync());
+        // 2 was never drawn, which counts against frame 1 drawn before
+        pacer.present(3);
+        assertEquals(2, stat("frames"));
+        assertEquals(1, stat("presented"));
+        assertEquals(1, stat("dropped"));
+        assertEquals(0, stat("late"));
+        assertEquals(1, stat("waits"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// The worker thread building published frames, with this thread playing the
+// GL thread.
+public class FastCanvasFramePipelineTest {
+
+    private final Semaphore ready = new Semaphore(0);
+    private FastCanvasFrameMailbox mailbox;
+    private FastCanvasTextureTable table;
+    private FastCanvasFramePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        mailbox = new FastCanvasFrameMailbox();
+        table = new FastCanvasTextureTable();
+        table.add(1, 101, 64, 64);
+        pipeline = new FastCanvasFramePipeline(mailbox, table,
+                new FastCanvasFramePipeline.Listener() {
+                    public void batchReady() {
+                        ready.release();
+                    }
+
+                    public void buildFailed(RuntimeException e) {
+                        throw new AssertionError(e);
+                    }
+                });
+        pipeline.start();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.stop();
+    }
+
+    private void publish(String commands) {
+        mailbox.beginWrite().setCommand(commands);
+        mailbox.publish();
+        pipeline.frameAvailable();
+    }
+
+    private void awaitReady() throws InterruptedException {
+        assertTrue("no batch built", ready.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    // quads of sprites drawn at 0, 0 with texture 1
+    private static String sprites(int count) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            s.append("d1,0,0,8,8,0,0,8,8;");
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void publishedFramesAreBuilt() throws Exception {
+        assertNull(pipeline.take(false));
+        publish(sprites(3));
+        awaitReady();
+
+        FastCanvasFrameBatch batch = pipeline.take(false);
+        assertNotNull(batch);
+        assertEquals(1, batch.getSequence());
+        assertEquals(3, batch.getQuadCount());
+        assertEquals(1, batch.getDrawCount());
+        assertNull(pipeline.take(false));
+        pipeline.release(batch);
+    }
+
+    @Test
+    public void workerStaysOneFrameAhead() throws Exception {
+        publish(sprites(1));
+        awaitReady();
+        // the batch waiting holds the worker back: 2 and 3 meet in the
+        // mailbox and only 3 is built
+        publish(sprites(2));
+        publish(sprites(3));
+        assertFalse(ready.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+        FastCanvasFrameBatch first = pipeline.take(false);
+        assertEquals(1, first.getQuadCount());
+        awaitReady();
+        // built into the other batch while the first is drawn
+        FastCanvasFrameBatch second = pipeline.take(false);
+        assertNotSame(first, second);
+        assertEquals(3, second.getSequence());
+        assertEquals(3, second.getQuadCount());
+        assertEquals(1, mailbox.getDroppedCount());
+        pipeline.release(first);
+        pipeline.release(second);
+    }
+
+    @Test
+    public void rebuildWaitsForTheLatestFrame() throws Exception {
+        publish(sprites(2));
+        awaitReady();
+        FastCanvasFrameBatch batch = pipeline.take(false);
+        long version = batch.getTableVersion();
+        pipeline.release(batch);
+
+        // the texture went away, e.g. with the GL context
+        table.remove(1);
+        batch = pipeline.take(true);
+        assertNotNull(batch);
+        assertEquals(1, batch.getSequence());
+        assertTrue(batch.getTableVersion() > version);
+        assertEquals(0, batch.getQuadCount());
+        pipeline.release(batch);
+    }
+
+    @Test
+    public void viewportAppliesFromTheNextBuild() throws Exception {
+        pipeline.setViewport(100, 100);
+        publish(sprites(1) + "d1,0,0,8,8,200,0,8,8;");
+        awaitReady();
+
+        FastCanvasFrameBatch batch = pipeline.take(false);
+        assertEquals(1, batch.getQuadCount());
+        assertEquals(1, batch.getCulledCount());
+        pipeline.release(batch);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// Batches as the app reads them, with and without history. Pointers 1 and
+// 2 are A and B; times are in whole milliseconds.
+public class FastCanvasInputTest {
+
+    private static final int A = 1;
+    private static final int B = 2;
+
+    private FastCanvasInput input;
+
+    @Before
+    public void setUp() {
+        input = new FastCanvasInput();
+    }
+
+    // The drained batch, one row of STRIDE values per event
+    private double[][] drain() {
+        byte[] bytes = input.drain();
+        if (bytes == null) {
+            return new double[0][];
+        }
+        DoubleBuffer in = ByteBuffer.wrap(bytes)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        double[][] events = new double[in.remaining()
+                / FastCanvasInput.STRIDE][FastCanvasInput.STRIDE];
+        for (double[] event : events) {
+            in.get(event);
+        }
+        return events;
+    }
+
+    private static double[] touch(int action, int pointerID, double x,
+            double y, double time) {
+        return new double[] { FastCanvasInput.TOUCH, action, pointerID, x, y,
+                time };
+    }
+
+    private void move(int pointerID, float x, double time) {
+        input.touch(FastCanvasInput.MOVE, pointerID, x, 0, time);
+    }
+
+    private static void assertInTimeOrder(double[][] events) {
+        for (int i = 1; i < events.length; i++) {
+            assertTrue("event " + i + " is older than " + (i - 1),
+                    events[i][5] >= events[i - 1][5]);
+        }
+    }
+
+    @Test
+    public void emptyBatchIsNull() {
+        assertNull(input.drain());
+        input.key(FastCanvasInput.DOWN, 29, 0, 'a', 1);
+        input.clear();
+        assertNull(input.drain());
+    }
+
+    @Test
+    public void eventsAreDrainedOnce() {
+        input.touch(FastCanvasInput.DOWN, A, 10, 20, 1);
+        input.key(FastCanvasInput.UP, 29, 1, 'A', 2);
+        double[][] events = drain();
+        assertEquals(2, events.length);
+        assertArrayEquals(touch(FastCanvasInput.DOWN, A, 10, 20, 1),
+                events[0], 0);
+        assertArrayEquals(new double[] { FastCanvasInput.KEY,
+                FastCanvasInput.UP, 29, 1, 'A', 2 }, events[1], 0);
+        assertNull(input.drain());
+    }
+
+    @Test
+    public void historyKeepsEveryMove() {
+        move(A, 1, 1);
+        move(A, 2, 2);
+        move(B, 3, 3);
+        move(A, 4, 4);
+        assertEquals(4, drain().length);
+    }
+
+    @Test
+    public void movesOfOnePointerAreCoalesced() {
+        input.setHistory(false);
+        input.touch(FastCanvasInput.DOWN, A, 0, 0, 1);
+        move(A, 1, 2);
+        move(A, 2, 3);
+        move(A, 3, 4);
+        double[][] events = drain();
+        assertEquals(2, events.length);
+        assertArrayEquals(touch(FastCanvasInput.MOVE, A, 3, 0, 4), events[1],
+                0);
+    }
+
+    @Test
+    public void coalescedMovesStayInTimeOrder() {
+        input.setHistory(false);
+        input.touch(FastCanvasInput.DOWN, A, 0, 0, 1);
+        input.touch(FastCanvasInput.DOWN, B, 0, 0, 2);
+        move(A, 1, 3);
+        move(B, 2, 4);
+        move(A, 3, 5);
+        move(B, 4, 6);
+        move(A, 5, 7);
+        double[][] events = drain();
+        assertEquals(4, events.length);
+        assertInTimeOrder(events);
+        // B's latest move, then A's
+        assertArrayEquals(touch(FastCanvasInput.MOVE, B, 4, 0, 6), events[2],
+                0);
+        assertArrayEquals(touch(FastCanvasInput.MOVE, A, 5, 0, 7), events[3],
+                0);
+    }
+
+    @Test
+    public void movesAreNotCoalescedAcrossOtherEvents() {
+        input.setHistory(false);
+        move(A, 1, 1);
+        input.touch(FastCanvasInput.UP, B, 0, 0, 2);
+        move(A, 2, 3);
+        input.key(FastCanvasInput.DOWN, 29, 0, 'a', 4);
+        move(A, 3, 5);
+        double[][] events = drain();
+        assertEquals(5, events.length);
+        assertInTimeOrder(events);
+    }
+
+    @Test
+    public void fullBatchCoalescesThenDrops() {
+        int time = 0;
+        input.touch(FastCanvasInput.DOWN, A, 0, 0, time++);
+        for (int i = 1; i < FastCanvasInput.MAX_EVENTS; i++) {
+            move(i % 2 == 0 ? A : B, i, time++);
+        }
+        // full: moves still replace their pointer's last one
+        move(A, -1, time++);
+        move(B, -2, time++);
+        assertEquals(0, input.getDropped());
+        input.touch(FastCanvasInput.UP, A, 0, 0, time++);
+        input.key(FastCanvasInput.DOWN, 29, 0, 'a', time++);
+        assertEquals(2, input.getDropped());
+
+        double[][] events = drain();
+        assertEquals(FastCanvasInput.MAX_EVENTS, events.length);
+        assertInTimeOrder(events);
+        int last = events.length - 1;
+        assertArrayEquals(touch(FastCanvasInput.MOVE, A, -1, 0, time - 4),
+                events[last - 1], 0);
+        assertArrayEquals(touch(FastCanvasInput.MOVE, B, -2, 0, time - 3),
+                events[last], 0);
+    }
+}
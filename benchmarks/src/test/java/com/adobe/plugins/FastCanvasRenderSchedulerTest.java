@@ -0,0 +1,130 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// Render modes against a fake surface, and the frame rate cap against
+// made up frame times.
+public class FastCanvasRenderSchedulerTest {
+
+    private static final long MS = 1000000;
+    private static final long FRAME_60 = 1000000000L / 60;
+
+    private static class FakeTarget implements
+            FastCanvasRenderScheduler.Target {
+        boolean continuous = true;
+        int renders;
+
+        public void setContinuous(boolean continuous) {
+            this.continuous = continuous;
+        }
+
+        public void requestRender() {
+            renders++;
+        }
+    }
+
+    private FakeTarget target;
+    private FastCanvasRenderScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        target = new FakeTarget();
+        scheduler = new FastCanvasRenderScheduler(target);
+    }
+
+    @Test
+    public void dirtyModeOnlyDrawsWhenInvalidated() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_DIRTY, 0);
+        assertFalse(target.continuous);
+        // once for the switch
+        assertEquals(1, target.renders);
+
+        scheduler.invalidate();
+        scheduler.invalidate();
+        assertEquals(3, target.renders);
+        assertEquals(0, scheduler.frameDelay(0));
+    }
+
+    @Test
+    public void continuousModeIgnoresInvalidate() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_DIRTY, 0);
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_CONTINUOUS, 0);
+        assertTrue(target.continuous);
+        int renders = target.renders;
+
+        scheduler.invalidate();
+        assertEquals(renders, target.renders);
+    }
+
+    @Test
+    public void uncappedFramesNeverWait() {
+        scheduler.frameDrawn(100 * MS);
+        assertEquals(0, scheduler.frameDelay(101 * MS));
+    }
+
+    @Test
+    public void capSpacesFramesFromTheLastDrawn() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_CONTINUOUS, 60);
+        scheduler.frameDrawn(0);
+        // a frame starting 4ms after the last one waits out the rest
+        assertEquals(FRAME_60 - 4 * MS, scheduler.frameDelay(4 * MS));
+        assertEquals(0, scheduler.frameDelay(FRAME_60));
+    }
+
+    @Test
+    public void capKeepsASteadyCadence() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_CONTINUOUS, 30);
+        long period = 1000000000L / 30;
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            time += scheduler.frameDelay(time);
+            // 5ms of drawing
+            time += 5 * MS;
+            scheduler.frameDrawn(time);
+        }
+        // the draw time doesn't add to the period
+        long start = time + scheduler.frameDelay(time);
+        assertEquals(period * 10, start, MS);
+    }
+
+    @Test
+    public void capDoesNotCatchUpAfterALongFrame() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_CONTINUOUS, 60);
+        scheduler.frameDrawn(0);
+        // a 100ms frame: the next one still waits half a period
+        scheduler.frameDrawn(100 * MS);
+        assertEquals(FRAME_60 / 2, scheduler.frameDelay(100 * MS));
+    }
+
+    @Test
+    public void capOnlyAppliesToContinuousMode() {
+        scheduler.setMode(FastCanvasRenderScheduler.MODE_DIRTY, 60);
+        scheduler.frameDrawn(0);
+        assertEquals(0, scheduler.frameDelay(MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownModeIsRejected() {
+        scheduler.setMode(7, 0);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Small scenes rendered with the software backend and compared with the
+// golden images in src/test/resources/golden. Textures and glyphs are made
+// up here, so the scenes don't depend on any image decoder or font.
+//
+// After a deliberate change to the rasterizer, look at the images written
+// to target/golden for the failing scenes, then regenerate the goldens
+// with:
+//
+//   mvn test -Dtest=FastCanvasSoftwareBackendTest -Dgolden.update=true
+public class FastCanvasSoftwareBackendTest {
+
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+    private static final String GOLDEN = "src/test/resources/golden";
+    // per channel, for the odd pixel whose rounding depends on Math.cos
+    private static final int TOLERANCE = 2;
+    private static final int MAX_OFF_PIXELS = 4;
+
+    private FastCanvasSoftwareBackend backend;
+
+    @Before
+    public void setUp() {
+        // one thread, the banded path is covered by the scenes being the
+        // same either way
+        backend = new FastCanvasSoftwareBackend(WIDTH, HEIGHT, 1);
+        backend.setBackgroundColor(20, 30, 40);
+        // texture 1: four opaque quadrants inside a half transparent white
+        // border
+        backend.loadTexture(1, quadrants(16), 16, 16);
+    }
+
+    @After
+    public void tearDown() {
+        backend.release();
+    }
+
+    private static int[] quadrants(int size) {
+        int[] argb = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int color;
+                if (x == 0 || y == 0 || x == size - 1 || y == size - 1) {
+                    color = 0x80ffffff;
+                } else if (y < size / 2) {
+                    color = x < size / 2 ? 0xffe04040 : 0xff40e040;
+                } else {
+                    color = x < size / 2 ? 0xff4040e0 : 0xffe0e040;
+                }
+                argb[y * size + x] = color;
+            }
+        }
+        return argb;
+    }
+
+    // A 64x64 RGBA sheet of 16x16 cells, each a color of its own crossed
+    // by a darker diagonal
+    private static ByteBuffer sheet() {
+        ByteBuffer rgba = ByteBuffer.allocate(64 * 64 * 4);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                int cell = (y / 16) * 4 + x / 16;
+                boolean line = x % 16 == y % 16;
+                int shade = line ? 2 : 1;
+                rgba.put((byte) ((cell * 40 % 256) / shade));
+                rgba.put((byte) ((255 - cell * 15) / shade));
+                rgba.put((byte) ((80 + cell * 10) / shade));
+                rgba.put((byte) 255);
+            }
+        }
+        rgba.flip();
+        return rgba;
+    }
+
+    @Test
+    public void images() throws IOException {
+        backend.render("d1,0,0,16,16,4,4,16,16;"
+                + "v;l24,4;k2,2;d1,0,0,16,16,0,0,16,16;e;"
+                + "v;l72,20;r0.785398;d1,0,0,16,16,-8,-8,16,16;e;"
+                // a part of the texture, stretched
+                + "d1,4,4,8,8,4,24,24,16;"
+                + "a0.5;d1,0,0,16,16,4,44,16,16;a1;"
+                // partly off the canvas
+                + "d1,0,0,16,16,88,56,16,16;");
+        assertGolden("images");
+    }
+
+    @Test
+    public void sprites() throws IOException {
+        int page = backend.createPage(64, 64);
+        backend.updatePage(page, 0, 0, 64, 64, sheet());
+        backend.addTexture(2, page, 64, 64);
+        // and two cells again as atlas regions
+        backend.addTextureRegion(10, page, 64, 64, 16, 0);
+        backend.addTextureRegion(11, page, 64, 64, 32, 48);
+
+        FastCanvasCommandEncoder encoder = new FastCanvasCommandEncoder();
+        FloatBuffer frames = FloatBuffer.allocate(16 * 4);
+        for (int i = 0; i < 16; i++) {
+            frames.put((i % 4) * 16).put((i / 4) * 16).put(16).put(16);
+        }
+        frames.flip();
+        int flags = FastCanvasCommandEncoder.SPRITE_ROTATION
+                | FastCanvasCommandEncoder.SPRITE_SCALE
+                | FastCanvasCommandEncoder.SPRITE_ALPHA;
+        FloatBuffer sprites = FloatBuffer.allocate(6 * 6);
+        for (int i = 0; i < 6; i++) {
+            // x, y, frame, rotation, scale, alpha
+            sprites.put(12 + i * 14).put(14).put(i * 3).put(i * 0.3f)
+                    .put(0.75f + i * 0.1f).put(1 - i * 0.15f);
+        }
+        sprites.flip();
+        encoder.drawImages(2, flags, frames, 16, sprites, 6);
+        encoder.drawImage(10, 0, 0, 16, 16, 8, 36, 24, 24);
+        encoder.translate(48, 40);
+        encoder.scale(1.5f, 1);
+        encoder.drawImage(11, 0, 0, 16, 16, 0, 0, 16, 16);
+        backend.renderBuffer(encoder.getBuffer(), encoder.length());
+        assertGolden("sprites");
+    }
+
+    @Test
+    public void text() throws IOException {
+        // glyph page: 'A' a hollow box, 'B' horizontal stripes, both 6x10
+        // white with alpha coverage
+        int[] glyphs = new int[16 * 16];
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 6; x++) {
+                boolean box = x == 0 || x == 5 || y == 0 || y == 9;
+                glyphs[y * 16 + x] = box ? 0xffffffff : 0x40ffffff;
+                glyphs[y * 16 + 8 + x] = y % 3 == 0 ? 0xffffffff : 0;
+            }
+        }
+        backend.loadTexture(20, glyphs, 16, 16);
+        backend.defineFont(1, 8, 2);
+        backend.addGlyph(1, 'A', 20, 0, 0, 6, 10, 0, 8, 7);
+        backend.addGlyph(1, 'B', 20, 8, 0, 6, 10, 0, 8, 7);
+        backend.addGlyph(1, ' ', 0, 0, 0, 0, 0, 0, 0, 4);
+
+        String ab = ",65,66,32,65";
+        backend.render("T1," + (int) 0xffffffffL + ",0,4,12" + ab + ";"
+                + "T1," + (int) 0xff4040ffL + ","
+                + (FastCanvasCommandEncoder.TEXT_ALIGN_CENTER
+                        | FastCanvasCommandEncoder.TEXT_BASELINE_TOP)
+                + ",48,20" + ab + ";"
+                + "T1," + (int) 0x40ff40ffL + ","
+                + (FastCanvasCommandEncoder.TEXT_ALIGN_RIGHT
+                        | FastCanvasCommandEncoder.TEXT_BASELINE_BOTTOM)
+                + ",92,60" + ab + ";"
+                + "a0.5;v;l20,44;r-0.3;T1," + (int) 0xffff00ffL
+                + ",0,0,0" + ab + ";e;");
+        assertGolden("text");
+    }
+
+    @Test
+    public void layers() throws IOException {
+        backend.defineList(1, "d1,0,0,16,16,0,0,32,32;");
+        backend.defineList(2, "a0.75;d1,0,0,16,16,0,0,16,16;");
+        // under the frame, unchanged, and over it, turned and moved
+        backend.setLayer(1, -1, true, new float[] { 1, 0, 0, 1, 8, 8 });
+        backend.setLayer(2, 1, true, new float[] { 0, 1, -1, 0, 72, 24 });
+        backend.render("d1,0,0,16,16,24,16,32,32;");
+        assertGolden("layers");
+    }
+
+    private void assertGolden(String name) throws IOException {
+        BufferedImage actual = new BufferedImage(backend.getWidth(),
+                backend.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        actual.setRGB(0, 0, backend.getWidth(), backend.getHeight(),
+                backend.getPixels(), 0, backend.getWidth());
+        if (Boolean.getBoolean("golden.update")) {
+            write(actual, new File(GOLDEN, name + ".png"));
+            return;
+        }
+
+        InputStream in = getClass().getResourceAsStream(
+                "/golden/" + name + ".png");
+        assertNotNull("no golden image for " + name, in);
+        BufferedImage expected;
+        try {
+            expected = ImageIO.read(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(name + " width", expected.getWidth(), actual.getWidth());
+        assertEquals(name + " height", expected.getHeight(),
+                actual.getHeight());
+
+        int off = 0;
+        String first = null;
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                int a = actual.getRGB(x, y);
+                int e = expected.getRGB(x, y);
+                if (!close(a, e)) {
+                    off++;
+                    if (first == null) {
+                        first = String.format("%08x instead of %08x at %d, %d",
+                                a, e, x, y);
+                    }
+                }
+            }
+        }
+        if (off > MAX_OFF_PIXELS) {
+            File file = new File("target/golden", name + ".png");
+            write(actual, file);
+            fail(name + ": " + off + " pixels differ, the first " + first
+                    + "; see " + file);
+        }
+    }
+
+    private static boolean close(int a, int b) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            if (Math.abs((a >>> shift & 0xff) - (b >>> shift & 0xff))
+                    > TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(BufferedImage image, File file)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("no PNG writer");
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// The loader with a stub uploader that only writes down what it was given,
+// so no GL is needed. Decoding runs on one thread, which makes the order
+// tasks become ready in the order they were submitted.
+public class FastCanvasTextureLoaderTest {
+
+    // bytes of a 64x64 RGBA texture
+    private static final int TEXTURE_BYTES = 64 * 64 * 4;
+
+    private final List<Integer> uploaded = new ArrayList<Integer>();
+    private final Semaphore ready = new Semaphore(0);
+    private FastCanvasTextureLoader loader;
+
+    private class StubTask extends FastCanvasTextureLoader.Task {
+        final CountDownLatch release;
+        boolean decoded;
+        boolean loaded;
+        Exception error;
+
+        StubTask(int id) {
+            this(id, null);
+        }
+
+        // Decoding waits for release if it isn't null
+        StubTask(int id, CountDownLatch release) {
+            super(id);
+            this.release = release;
+        }
+
+        protected FastCanvasDecodedTexture decode() throws Exception {
+            if (release != null) {
+                release.await();
+            }
+            decoded = true;
+            return new FastCanvasDecodedTexture(
+                    ByteBuffer.allocate(TEXTURE_BYTES), 64, 64, false);
+        }
+
+        protected void onLoaded() {
+            loaded = true;
+        }
+
+        protected void onError(Exception e) {
+            error = e;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        loader = new FastCanvasTextureLoader(
+                new FastCanvasTextureLoader.Uploader() {
+                    public void upload(FastCanvasTextureLoader.Task task,
+                            FastCanvasDecodedTexture texture) {
+                        uploaded.add(task.id);
+                    }
+                }, 1);
+        loader.setListener(new FastCanvasTextureLoader.Listener() {
+            public void onTextureReady(FastCanvasTextureLoader.Task task) {
+                ready.release();
+            }
+        });
+    }
+
+    private void awaitReady(int tasks) throws InterruptedException {
+        assertTrue("tasks not ready",
+                ready.tryAcquire(tasks, 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void uploadsInSubmitOrder() throws Exception {
+        StubTask[] tasks = new StubTask[8];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new StubTask(10 + i);
+            loader.submit(tasks[i]);
+        }
+        awaitReady(tasks.length);
+
+        assertTrue(loader.hasReady());
+        assertEquals(8, loader.uploadPending(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17), uploaded);
+        for (StubTask task : tasks) {
+            assertTrue(task.loaded);
+            assertNull(task.error);
+            assertFalse(loader.isLoading(task.id));
+        }
+        assertFalse(loader.hasReady());
+    }
+
+    @Test
+    public void byteBudgetLimitsUploadsPerFrame() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            loader.submit(new StubTask(i));
+        }
+        awaitReady(5);
+
+        // two textures fit, the rest waits for the next frames
+        assertEquals(2, loader.uploadPending(Long.MAX_VALUE,
+                2 * TEXTURE_BYTES));
+        assertEquals(Arrays.asList(0, 1), uploaded);
+        assertTrue(loader.hasReady());
+        assertEquals(2, loader.uploadPending(Long.MAX_VALUE,
+                2 * TEXTURE_BYTES + TEXTURE_BYTES / 2));
+        assertEquals(1, loader.uploadPending(Long.MAX_VALUE,
+                2 * TEXTURE_BYTES));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), uploaded);
+        assertFalse(loader.hasReady());
+    }
+
+    @Test
+    public void overBudgetStillUploadsOne() throws Exception {
+        loader.submit(new StubTask(1));
+        loader.submit(new StubTask(2));
+        awaitReady(2);
+
+        // a texture larger than the budget must not wait forever
+        assertEquals(1, loader.uploadPending(0, 0));
+        assertEquals(1, loader.uploadPending(0, 0));
+        assertEquals(Arrays.asList(1, 2), uploaded);
+    }
+
+    @Test
+    public void timeBudgetLimitsUploadsPerFrame() throws Exception {
+        loader = new FastCanvasTextureLoader(
+                new FastCanvasTextureLoader.Uploader() {
+                    public void upload(FastCanvasTextureLoader.Task task,
+                            FastCanvasDecodedTexture texture)
+                            throws Exception {
+                        uploaded.add(task.id);
+                        Thread.sleep(5);
+                    }
+                }, 1);
+        for (int i = 0; i < 3; i++) {
+            loader.submit(new StubTask(i));
+        }
+        while (uploaded.size() < 3) {
+            // each 5ms upload spends the 1ms budget
+            if (loader.hasReady()) {
+                int count = uploaded.size();
+                assertEquals(1, loader.uploadPending(1000000, Long.MAX_VALUE));
+                assertEquals(count + 1, uploaded.size());
+            } else {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void cancelledTasksAreNeitherDecodedNorUploaded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        // holds the only decode thread while the others are queued
+        StubTask first = new StubTask(1, release);
+        StubTask cancelled = new StubTask(2);
+        StubTask kept = new StubTask(3);
+        loader.submit(first);
+        loader.submit(cancelled);
+        loader.submit(kept);
+        loader.cancel(2);
+        assertFalse(loader.isLoading(2));
+        release.countDown();
+        awaitReady(3);
+
+        assertEquals(3, loader.uploadPending(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(1, 3), uploaded);
+        assertFalse(cancelled.decoded);
+        assertFalse(cancelled.loaded);
+        assertTrue(cancelled.error instanceof
+                FastCanvasTextureLoader.CancelledException);
+        assertTrue(first.loaded);
+        assertTrue(kept.loaded);
+    }
+
+    @Test
+    public void newerTaskSupersedesOlderOne() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        StubTask older = new StubTask(7, release);
+        StubTask newer = new StubTask(7);
+        loader.submit(older);
+        loader.submit(newer);
+        release.countDown();
+        awaitReady(2);
+
+        assertEquals(2, loader.uploadPending(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(7), uploaded);
+        assertTrue(older.error instanceof
+                FastCanvasTextureLoader.CancelledException);
+        assertTrue(newer.loaded);
+        assertFalse(loader.isLoading(7));
+    }
+
+    @Test
+    public void uploadErrorsReachTheTask() throws Exception {
+        loader = new FastCanvasTextureLoader(
+                new FastCanvasTextureLoader.Uploader() {
+                    public void upload(FastCanvasTextureLoader.Task task,
+                            FastCanvasDecodedTexture texture)
+                            throws Exception {
+                        throw new Exception("no GL");
+                    }
+                }, 1);
+        StubTask task = new StubTask(1);
+        loader.submit(task);
+        while (!loader.hasReady()) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(1, loader.uploadPending(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertFalse(task.loaded);
+        assertEquals("no GL", task.error.getMessage());
+        assertFalse(loader.isLoading(1));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ Copyright 2013 Adobe Systems Inc.;
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+ http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.adobe.plugins;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Writes down every call as a line of text, with the contents of the
+// buffers copied out while they are valid, so two command streams can be
+// compared with assertEquals.
+class RecordingHandler implements FastCanvasCommandHandler {
+
+    final List<String> calls = new ArrayList<String>();
+
+    public void setTransform(float a, float b, float c, float d, float tx,
+            float ty) {
+        record("setTransform", a, b, c, d, tx, ty);
+    }
+
+    public void transform(float a, float b, float c, float d, float tx,
+            float ty) {
+        record("transform", a, b, c, d, tx, ty);
+    }
+
+    public void resetTransform() {
+        record("resetTransform");
+    }
+
+    public void scale(float sx, float sy) {
+        record("scale", sx, sy);
+    }
+
+    public void rotate(float angle) {
+        record("rotate", angle);
+    }
+
+    public void translate(float tx, float ty) {
+        record("translate", tx, ty);
+    }
+
+    public void save() {
+        record("save");
+    }
+
+    public void restore() {
+        record("restore");
+    }
+
+    public void setGlobalAlpha(float alpha) {
+        record("setGlobalAlpha", alpha);
+    }
+
+    public void drawImage(int textureID, float cx, float cy, float cw,
+            float ch, float px, float py, float pw, float ph) {
+        record("drawImage " + textureID, cx, cy, cw, ch, px, py, pw, ph);
+    }
+
+    public void drawImages(int textureID, int flags, FloatBuffer frames,
+            int frameCount, FloatBuffer sprites, int spriteCount) {
+        float[] f = new float[frameCount * 4];
+        float[] s = new float[spriteCount
+                * FastCanvasCommandEncoder.spriteStride(flags)];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = frames.get(i);
+        }
+        for (int i = 0; i < s.length; i++) {
+            s[i] = sprites.get(i);
+        }
+        calls.add("drawImages " + textureID + " " + flags + " "
+                + frameCount + " " + spriteCount + " " + Arrays.toString(f)
+                + " " + Arrays.toString(s));
+    }
+
+    public void drawList(int listID, float x, float y) {
+        record("drawList " + listID, x, y);
+    }
+
+    public void fillText(int fontID, int color, int flags, float x, float y,
+            IntBuffer codePoints, int count) {
+        int[] text = new int[count];
+        for (int i = 0; i < count; i++) {
+            text[i] = codePoints.get(i);
+        }
+        calls.add("fillText " + fontID + " " + color + " " + flags + " " + x
+                + " " + y + " " + Arrays.toString(text));
+    }
+
+    private void record(String call, float... values) {
+        calls.add(call + " " + Arrays.toString(values));
+    }
+}
@@ -38,6 +38,22 @@ FastCanvasUtils._toNative = function(success, fail, service, action, args){
 	}
 };
 
+/**
+ * Returns the ArrayBuffer holding exactly the bytes of data, an
+ * ArrayBuffer or a typed array, as cordova.exec only sends ArrayBuffers
+ * as binary.
+ * @private
+ */
+FastCanvasUtils._toArrayBuffer = function(data){
+	if (data instanceof ArrayBuffer){
+		return data;
+	}
+	if (data.byteOffset === 0 && data.byteLength === data.buffer.byteLength){
+		return data.buffer;
+	}
+	return data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+};
+
 /**
  * Defines getter/setter properties in objects.
  * @private
@@ -110,6 +126,36 @@ function FastCanvasImage(){
 	this._id = this.id; // public facing "id" but _id used to internally track image
 	this._src = ""; // image source path
 	this._complete = true; // "is loading" identifier for complete property
+
+	/**
+	 * Name of the atlas to pack this image into, set before
+	 * {@link FastCanvasImage#src}. Small images (up to 256x256) in the
+	 * same atlas share GL textures, so drawImage calls mixing them are
+	 * still drawn in a single batch. Null to give the image its own
+	 * texture.
+	 * @type {string}
+	 * @example
+	 * var coin = FastCanvas.createImage();
+	 * coin.atlas = "sprites";
+	 * coin.src = "images/coin.png";
+	 */
+	this.atlas = null;
+
+	/**
+	 * How long the last load took, in milliseconds, once it has loaded:
+	 * queue is the wait for a decoder thread, decode the decoding of
+	 * the file, and upload the transfer to the GPU.
+	 * Null if not loaded by the plugin.
+	 * @type {{queue: number, decode: number, upload: number}}
+	 */
+	this.loadTimes = null;
+
+	/**
+	 * GPU memory used by the loaded texture in bytes, including any
+	 * padding to a power of two. 0 if not loaded by the plugin.
+	 * @type {number}
+	 */
+	this.gpuBytes = 0;
 }
 
 /**
@@ -163,7 +209,74 @@ FastCanvasImage.prototype.setSrc = function(value){
 		return;
 	}
 
-	// Loading
+	var callbacks = this._loading();
+	context.loadTexture(this, callbacks.onload, callbacks.onerror);
+};
+FastCanvasImage.prototype.getSrc = function(value){
+	return this._src;
+};
+
+FastCanvasUtils._defProp(FastCanvasImage.prototype, "src",
+	FastCanvasImage.prototype.getSrc,
+	FastCanvasImage.prototype.setSrc
+);
+
+/**
+ * Loads the image from pixels generated at runtime instead of a URL.
+ * The data is decoded straight into the texture, without going through
+ * a data URL. onload and onerror are called as when setting
+ * {@link FastCanvasImage#src}, and src is not changed.
+ * @param {ArrayBuffer|ArrayBufferView} data Either RGBA pixels, 4 bytes
+ * per pixel from the top left row by row, or an encoded PNG, JPEG or
+ * WebP image.
+ * @param {number} [width] Width of the RGBA pixels. Omit both width and
+ * height for an encoded image.
+ * @param {number} [height] Height of the RGBA pixels.
+ * @example
+ * var pixels = new Uint8Array(64 * 64 * 4);
+ * // ... fill pixels
+ * var avatar = FastCanvas.createImage();
+ * avatar.onload = function(){ ... };
+ * avatar.loadData(pixels, 64, 64);
+ */
+FastCanvasImage.prototype.loadData = function(data, width, height){
+	var context = FastCanvas._instance.getContext("2d");
+	var callbacks = this._loading();
+	context.loadTextureData(this, FastCanvasUtils._toArrayBuffer(data),
+		width || 0, height || 0, callbacks.onload, callbacks.onerror);
+};
+
+/**
+ * Replaces a rectangle of the loaded image with RGBA pixels, in place,
+ * without reloading it. The image keeps the new pixels until it is
+ * loaded again, and is never evicted by FastCanvas.setTextureBudget
+ * after an update. If the GL context is lost the image comes back with
+ * the pixels it was loaded with.
+ * @param {ArrayBuffer|ArrayBufferView} data RGBA pixels, width * height
+ * * 4 bytes.
+ * @param {number} x Left of the rectangle within the image.
+ * @param {number} y Top of the rectangle within the image.
+ * @param {number} width Width of the rectangle.
+ * @param {number} height Height of the rectangle.
+ * @param {function} [successCallback] Called once the texture is updated.
+ * @param {function} [errorCallback] Called with an error message if the
+ * image isn't loaded or the rectangle is outside of it.
+ * @example
+ * // redraw a 32x32 tile of a dynamic texture
+ * canvasImage.updateData(tilePixels, 32, 64, 32, 32);
+ */
+FastCanvasImage.prototype.updateData = function(data, x, y, width, height, successCallback, errorCallback){
+	var context = FastCanvas._instance.getContext("2d");
+	context.updateTextureData(this, FastCanvasUtils._toArrayBuffer(data),
+		x, y, width, height, successCallback, errorCallback);
+};
+
+/**
+ * Marks the image as loading and returns the onload and onerror
+ * wrappers to pass to the plugin.
+ * @private
+ */
+FastCanvasImage.prototype._loading = function(){
 	this.complete = false;
 
 	// callback wrappers
@@ -179,23 +292,21 @@ FastCanvasImage.prototype.setSrc = function(value){
 		me.complete = true;
 		me.width = Math.floor( metrics[0] );
 		me.height = Math.floor( metrics[1] );
+		if (metrics.length >= 5){
+			me.loadTimes = {queue: metrics[2], decode: metrics[3], upload: metrics[4]};
+		}
+		if (metrics.length >= 6){
+			me.gpuBytes = metrics[5];
+		}
 
 		if (typeof me.onload === 'function'){
 			me.onload();
 		}
 	}
 
-	context.loadTexture(this, onload, onerror);
-};
-FastCanvasImage.prototype.getSrc = function(value){
-	return this._src;
+	return {onload: onload, onerror: onerror};
 };
 
-FastCanvasUtils._defProp(FastCanvasImage.prototype, "src",
-	FastCanvasImage.prototype.getSrc,
-	FastCanvasImage.prototype.setSrc
-);
-
 
 /**
  * False when the image is in the process of loading an
@@ -220,6 +331,191 @@ FastCanvasUtils._defProp(FastCanvasImage.prototype, "complete",
 );
 
 
+/**
+ * Growable buffer of binary render commands. Each command is a one byte
+ * opcode (the same letter used by the text commands) followed by
+ * little-endian float32 operands; drawImage starts with an int32 texture id,
+ * drawList with an int32 list id. drawImages has four int32 (texture id,
+ * flags, frame count, sprite count) followed by its frames and sprites.
+ * fillText has three int32 (font id, RGBA color, flags), float32 x and y,
+ * then an int32 count and the int32 code points.
+ * The format is read natively by Canvas::BuildStreamsBinary.
+ * @private
+ */
+function FastCanvasCommandBuffer(){
+	this._bytes = new ArrayBuffer(4096);
+	this._view = new DataView(this._bytes);
+	this.length = 0;
+}
+
+FastCanvasCommandBuffer.SET_TRANSFORM = "t".charCodeAt(0);
+FastCanvasCommandBuffer.TRANSFORM = "f".charCodeAt(0);
+FastCanvasCommandBuffer.RESET_TRANSFORM = "m".charCodeAt(0);
+FastCanvasCommandBuffer.SCALE = "k".charCodeAt(0);
+FastCanvasCommandBuffer.ROTATE = "r".charCodeAt(0);
+FastCanvasCommandBuffer.TRANSLATE = "l".charCodeAt(0);
+FastCanvasCommandBuffer.SAVE = "v".charCodeAt(0);
+FastCanvasCommandBuffer.RESTORE = "e".charCodeAt(0);
+FastCanvasCommandBuffer.GLOBAL_ALPHA = "a".charCodeAt(0);
+FastCanvasCommandBuffer.DRAW_IMAGE = "d".charCodeAt(0);
+FastCanvasCommandBuffer.DRAW_LIST = "L".charCodeAt(0);
+FastCanvasCommandBuffer.DRAW_IMAGES = "D".charCodeAt(0);
+FastCanvasCommandBuffer.FILL_TEXT = "T".charCodeAt(0);
+
+FastCanvasCommandBuffer._littleEndian = new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;
+
+/**
+ * Writes an opcode, making room for it and operandBytes more bytes.
+ * @private
+ */
+FastCanvasCommandBuffer.prototype.op = function(opcode, operandBytes){
+	var needed = this.length + 1 + operandBytes;
+	var capacity = this._bytes.byteLength;
+	if (needed > capacity){
+		while (capacity < needed){
+			capacity *= 2;
+		}
+		var grown = new ArrayBuffer(capacity);
+		new Uint8Array(grown).set(new Uint8Array(this._bytes, 0, this.length));
+		this._bytes = grown;
+		this._view = new DataView(grown);
+	}
+	this._view.setUint8(this.length, opcode);
+	this.length += 1;
+};
+
+FastCanvasCommandBuffer.prototype.f32 = function(value){
+	this._view.setFloat32(this.length, value, true);
+	this.length += 4;
+};
+
+FastCanvasCommandBuffer.prototype.i32 = function(value){
+	this._view.setInt32(this.length, value, true);
+	this.length += 4;
+};
+
+/**
+ * Writes the first count values of an array as float32. Float32Arrays are
+ * copied as they are on little-endian devices.
+ * @private
+ */
+FastCanvasCommandBuffer.prototype.floats = function(values, count){
+	if (values instanceof Float32Array && FastCanvasCommandBuffer._littleEndian){
+		new Uint8Array(this._bytes, this.length, count * 4).set(
+			new Uint8Array(values.buffer, values.byteOffset, count * 4));
+		this.length += count * 4;
+		return;
+	}
+	for (var i = 0; i < count; i++){
+		this._view.setFloat32(this.length, values[i], true);
+		this.length += 4;
+	}
+};
+
+/**
+ * Returns a copy of the commands written so far and empties the buffer.
+ * @private
+ */
+FastCanvasCommandBuffer.prototype.take = function(){
+	var commands = this._bytes.slice(0, this.length);
+	this.length = 0;
+	return commands;
+};
+
+/**
+ * Sends text frames as patches against the previous frame, see
+ * {@link FastCanvas.setDeltaFrames}. The frames are compared command by
+ * command; each run of changed commands becomes an
+ * (offset, removed, inserted) triple in characters of the previous frame,
+ * applied natively by FastCanvasDelta.
+ * @private
+ */
+function FastCanvasDelta(){
+	this._sequence = 0;
+	this._commands = null; // previous frame split into commands, null for a keyframe
+}
+
+FastCanvasDelta.prototype.send = function(commands){
+	var current = commands.split(";");
+	current.pop(); // every command ends with ';'
+	var previous = this._commands;
+	var sequence = ++this._sequence;
+	this._commands = current;
+	// not worth it once the patch is about as big as the frame
+	var patch = previous ? FastCanvasDelta.diff(previous, current, commands.length / 2) : null;
+	if (patch){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'renderDelta', [sequence - 1, sequence, patch, FastCanvas._frame]);
+	}else{
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'render', [commands, sequence, FastCanvas._frame]);
+	}
+};
+
+/**
+ * Makes the next frame a keyframe.
+ * @private
+ */
+FastCanvasDelta.prototype.keyframe = function(){
+	this._commands = null;
+};
+
+/**
+ * Returns the patch turning the previous commands into the current ones,
+ * or null if it would take more than maxChars.
+ * @private
+ */
+FastCanvasDelta.diff = function(previous, current, maxChars){
+	var n = previous.length;
+	var m = current.length;
+	var start = 0;
+	var offset = 0;
+	while (start < n && start < m && previous[start] === current[start]){
+		offset += previous[start].length + 1;
+		start++;
+	}
+	var end = 0;
+	while (end < n - start && end < m - start && previous[n - 1 - end] === current[m - 1 - end]){
+		end++;
+	}
+
+	var patch = [];
+	var size = 0;
+	var removed, inserted, i;
+	if (n === m){
+		// same number of commands: replace each changed run in place
+		i = start;
+		while (i < n - end){
+			if (previous[i] === current[i]){
+				offset += previous[i].length + 1;
+				i++;
+				continue;
+			}
+			var run = i;
+			removed = 0;
+			while (i < n - end && previous[i] !== current[i]){
+				removed += previous[i].length + 1;
+				i++;
+			}
+			inserted = current.slice(run, i).join(";") + ";";
+			patch.push(offset, removed, inserted);
+			// the offsets and JSON punctuation cost a few characters too
+			size += inserted.length + 16;
+			if (size > maxChars){
+				return null;
+			}
+			offset += removed;
+		}
+	}else{
+		removed = 0;
+		for (i = start; i < n - end; i++){
+			removed += previous[i].length + 1;
+		}
+		inserted = m - end > start ? current.slice(start, m - end).join(";") + ";" : "";
+		patch.push(offset, removed, inserted);
+		size = inserted.length + 16;
+	}
+	return size > maxChars ? null : patch;
+};
+
 /**
  * <b>Invalid constructor</b>: Obtain a FastContext2D instance
  * through <code>FastCanvas.getContext("2d")</code>,
@@ -238,8 +534,21 @@ FastCanvasUtils._defProp(FastCanvasImage.prototype, "complete",
 function FastContext2D(){
 	this._drawCommands = "";
 	this._globalAlpha = 1.0;
+	this._buffer = null; // FastCanvasCommandBuffer when sending binary commands
+	this._list = null; // saved frame state while recording a display list
+	this._delta = null; // FastCanvasDelta when sending delta frames
+	this._font = "10px sans-serif";
+	this._fontID = 0; // defined on first use
+	this._textAlign = "start";
+	this._textBaseline = "alphabetic";
+	this._fillStyle = "#000000";
+	this._fillColor = 0x000000ff; // RGBA
 }
 
+// Font ids by size, family and style, shared by every context
+FastContext2D._fontIDs = {};
+FastContext2D._nextFontID = 1;
+
 /**
  * Represents the alpha value to be used with drawing commands
  * where 1 is completely visible and 0 is fully transparent.
@@ -248,6 +557,12 @@ function FastContext2D(){
  */
 FastContext2D.prototype.setGlobalAlpha = function(value){
 	this._globalAlpha = value;
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.GLOBAL_ALPHA, 4);
+		buf.f32(value);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("a" + value.toFixed(6) + ";" );
 };
 FastContext2D.prototype.getGlobalAlpha = function(){
@@ -287,7 +602,26 @@ FastContext2D.prototype.loadTexture = function (image, successCallback, errorCal
 		throw new Error('FastContext2D.loadTexture failure: errorCallback parameter not a function');
 	}
 
-	FastCanvasUtils._toNative( successCallback, errorCallback, 'FastCanvas', 'loadTexture', [image.src, image._id]);
+	FastCanvasUtils._toNative( successCallback, errorCallback, 'FastCanvas', 'loadTexture', [image.src, image._id, image.atlas || null]);
+};
+
+/**
+ * Loads an image from an ArrayBuffer of RGBA pixels (width and height
+ * set) or an encoded image (width and height 0). Called by
+ * {@link FastCanvasImage#loadData}.
+ * @private
+ */
+FastContext2D.prototype.loadTextureData = function (image, data, width, height, successCallback, errorCallback) {
+	FastCanvasUtils._toNative( successCallback, errorCallback, 'FastCanvas', 'loadTextureData', [data, image._id, width, height, image.atlas || null]);
+};
+
+/**
+ * Replaces a rectangle of a loaded image with RGBA pixels. Called by
+ * {@link FastCanvasImage#updateData}.
+ * @private
+ */
+FastContext2D.prototype.updateTextureData = function (image, data, x, y, width, height, successCallback, errorCallback) {
+	FastCanvasUtils._toNative( successCallback || null, errorCallback || null, 'FastCanvas', 'updateTextureData', [data, image._id, x, y, width, height]);
 };
 
 /**
@@ -323,6 +657,12 @@ FastContext2D.prototype.unloadTexture = function (image) {
  * @param {number} ty The distance by which to translate the context along the y axis.
  */
 FastContext2D.prototype.setTransform = function(a, b, c, d, tx, ty) {
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.SET_TRANSFORM, 24);
+		buf.f32(a); buf.f32(b); buf.f32(c); buf.f32(d); buf.f32(tx); buf.f32(ty);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("t" + (a===1 ? "1" : a.toFixed(6)) + "," + (b===0 ? "0" : b.toFixed(6)) + "," + (c===0 ? "0" : c.toFixed(6)) + "," + (d===1 ? "1" : d.toFixed(6)) + "," + tx + "," + ty + ";");
 };
 
@@ -343,6 +683,12 @@ FastContext2D.prototype.setTransform = function(a, b, c, d, tx, ty) {
  * context along the y axis.
  */
 FastContext2D.prototype.transform = function(a, b, c, d, tx, ty) {
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.TRANSFORM, 24);
+		buf.f32(a); buf.f32(b); buf.f32(c); buf.f32(d); buf.f32(tx); buf.f32(ty);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("f" + (a===1 ? "1" : a.toFixed(6)) + "," + (b===0 ? "0" : b.toFixed(6)) + "," + (c===0 ? "0" : c.toFixed(6)) + "," + (d===1 ? "1" : d.toFixed(6)) + "," + tx + "," + ty + ";");
 };
 
@@ -351,6 +697,10 @@ FastContext2D.prototype.transform = function(a, b, c, d, tx, ty) {
  * equivalent to calling <code>context.setTransform(1,0,0,1,0,0)</code>.
  */
 FastContext2D.prototype.resetTransform = function() {
+	if (this._buffer){
+		this._buffer.op(FastCanvasCommandBuffer.RESET_TRANSFORM, 0);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("m;");
 };
 
@@ -362,6 +712,12 @@ FastContext2D.prototype.resetTransform = function() {
  * pixels along the y axis when scaling or rotating the context.
  */
 FastContext2D.prototype.scale = function( a, d ) {
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.SCALE, 8);
+		buf.f32(a); buf.f32(d);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("k" + a.toFixed(6) + "," + d.toFixed(6) + ";");
 };
 
@@ -370,6 +726,12 @@ FastContext2D.prototype.scale = function( a, d ) {
  * @param {number} angle The value in radians to rotate the context.
  */
 FastContext2D.prototype.rotate = function( angle ) {
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.ROTATE, 4);
+		buf.f32(angle);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("r" + angle.toFixed(6) + ";");
 };
 
@@ -381,6 +743,12 @@ FastContext2D.prototype.rotate = function( angle ) {
  * context along the y axis.
  */
 FastContext2D.prototype.translate = function( tx, ty ) {
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.TRANSLATE, 8);
+		buf.f32(tx); buf.f32(ty);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("l" + tx + "," + ty + ";");
 };
 
@@ -391,6 +759,10 @@ FastContext2D.prototype.translate = function( tx, ty ) {
  * @see FastContext2D#restore
  */
 FastContext2D.prototype.save = function() {
+	if (this._buffer){
+		this._buffer.op(FastCanvasCommandBuffer.SAVE, 0);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("v;");
 };
 
@@ -400,6 +772,10 @@ FastContext2D.prototype.save = function() {
  * @see FastContext2D#save
  */
 FastContext2D.prototype.restore = function() {
+	if (this._buffer){
+		this._buffer.op(FastCanvasCommandBuffer.RESTORE, 0);
+		return;
+	}
 	this._drawCommands = this._drawCommands.concat("e;");
 };
 
@@ -445,6 +821,26 @@ FastContext2D.prototype.drawImage = function(
 	dx, dy, dw, dh) {	// destination
 
 	var numArgs = arguments.length;
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.DRAW_IMAGE, 36);
+		buf.i32(image._id);
+		if (numArgs <= 5){
+			// source is the whole image, (sx,sy[,sw,sh]) is the destination
+			buf.f32(0); buf.f32(0); buf.f32(image.width); buf.f32(image.height);
+			buf.f32(sx); buf.f32(sy);
+			if (numArgs <= 3){
+				buf.f32(image.width); buf.f32(image.height);
+			}else{
+				buf.f32(sw); buf.f32(sh);
+			}
+		}else{
+			buf.f32(sx); buf.f32(sy); buf.f32(sw); buf.f32(sh);
+			buf.f32(dx); buf.f32(dy); buf.f32(dw); buf.f32(dh);
+		}
+		return;
+	}
+
 	if (numArgs <= 3){
 		// drawImage(image, dx,dy); position only (s becomes d)
 		this._drawCommands = this._drawCommands.concat("d" + image._id + ",0,0," + image.width + "," + image.height + "," + sx + "," + sy + "," + image.width + "," + image.height + ";");
@@ -458,6 +854,287 @@ FastContext2D.prototype.drawImage = function(
 	}
 };
 
+/**
+ * The font of {@link FastContext2D#fillText}, as a CSS font shorthand:
+ * optional style and weight, a size in px and a family, e.g.
+ * <code>"bold 24px sans-serif"</code>. Only the first family is used;
+ * bold (600 and up) and italic select the typeface style, small-caps and
+ * line heights are ignored. Values that don't parse are ignored, as in
+ * the HTML 2D context. Defaults to <code>"10px sans-serif"</code>.
+ * <p>Every distinct font is rasterized separately, so use a few fonts at
+ * a few sizes rather than animating the size.</p>
+ * @type {string}
+ * @name FastContext2D#font
+ */
+FastContext2D.prototype.setFont = function(value){
+	var font = FastContext2D._parseFont(value);
+	if (!font){
+		return;
+	}
+	var key = font.size + "px " + font.style + " " + font.family;
+	var id = FastContext2D._fontIDs[key];
+	if (!id){
+		id = FastContext2D._nextFontID++;
+		FastContext2D._fontIDs[key] = id;
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'defineFont', [id, font.size, font.family, font.style]);
+	}
+	this._font = value;
+	this._fontID = id;
+};
+FastContext2D.prototype.getFont = function(){
+		return this._font;
+};
+FastCanvasUtils._defProp(FastContext2D.prototype, "font",
+	FastContext2D.prototype.getFont,
+	FastContext2D.prototype.setFont
+);
+
+/**
+ * Size, family and typeface style (0 normal, 1 bold, 2 italic, 3 both) of
+ * a CSS font shorthand, or null if it isn't one.
+ * @private
+ */
+FastContext2D._parseFont = function(value){
+	var match = /^\s*((?:[\w-]+\s+)*?)(\d*\.?\d+)px(?:\/\S+)?\s+(.+?)\s*$/.exec(String(value));
+	if (!match || !(parseFloat(match[2]) > 0)){
+		return null;
+	}
+	var style = 0;
+	var words = match[1].split(/\s+/);
+	for (var i = 0; i < words.length; i++){
+		var word = words[i];
+		if (word === "bold" || word === "bolder" || parseInt(word, 10) >= 600){
+			style |= 1;
+		}else if (word === "italic" || word === "oblique"){
+			style |= 2;
+		}
+	}
+	var family = match[3].split(",")[0].replace(/^\s*["']?|["']?\s*$/g, "");
+	return { size: parseFloat(match[2]), family: family, style: style };
+};
+
+/**
+ * Where {@link FastContext2D#fillText} puts the text relative to its x:
+ * <code>"start"</code> (the default) or <code>"left"</code>,
+ * <code>"center"</code>, <code>"end"</code> or <code>"right"</code>.
+ * Text is always laid out left to right.
+ * @type {string}
+ * @name FastContext2D#textAlign
+ */
+FastContext2D.prototype.setTextAlign = function(value){
+	if (FastContext2D._textAligns.hasOwnProperty(value)){
+		this._textAlign = value;
+	}
+};
+FastContext2D.prototype.getTextAlign = function(){
+		return this._textAlign;
+};
+FastCanvasUtils._defProp(FastContext2D.prototype, "textAlign",
+	FastContext2D.prototype.getTextAlign,
+	FastContext2D.prototype.setTextAlign
+);
+FastContext2D._textAligns = { start: 0, left: 0, center: 1, end: 2, right: 2 };
+
+/**
+ * Where {@link FastContext2D#fillText} puts the text relative to its y:
+ * <code>"alphabetic"</code> (the default, also used for
+ * <code>"ideographic"</code>), <code>"top"</code> (also for
+ * <code>"hanging"</code>), <code>"middle"</code> or
+ * <code>"bottom"</code>. Top and bottom are the font's ascent and
+ * descent.
+ * @type {string}
+ * @name FastContext2D#textBaseline
+ */
+FastContext2D.prototype.setTextBaseline = function(value){
+	if (FastContext2D._textBaselines.hasOwnProperty(value)){
+		this._textBaseline = value;
+	}
+};
+FastContext2D.prototype.getTextBaseline = function(){
+		return this._textBaseline;
+};
+FastCanvasUtils._defProp(FastContext2D.prototype, "textBaseline",
+	FastContext2D.prototype.getTextBaseline,
+	FastContext2D.prototype.setTextBaseline
+);
+FastContext2D._textBaselines = { alphabetic: 0, ideographic: 0, top: 4, hanging: 4, middle: 8, bottom: 12 };
+
+/**
+ * The color of {@link FastContext2D#fillText}: <code>"#rgb"</code>,
+ * <code>"#rrggbb"</code>, <code>"rgb(r, g, b)"</code> or
+ * <code>"rgba(r, g, b, a)"</code>. It is multiplied by globalAlpha.
+ * Gradients and patterns aren't supported and, like values that don't
+ * parse, are ignored. Defaults to black.
+ * @type {string}
+ * @name FastContext2D#fillStyle
+ */
+FastContext2D.prototype.setFillStyle = function(value){
+	var color = FastContext2D._parseColor(value);
+	if (color !== null){
+		this._fillStyle = value;
+		this._fillColor = color;
+	}
+};
+FastContext2D.prototype.getFillStyle = function(){
+		return this._fillStyle;
+};
+FastCanvasUtils._defProp(FastContext2D.prototype, "fillStyle",
+	FastContext2D.prototype.getFillStyle,
+	FastContext2D.prototype.setFillStyle
+);
+
+/**
+ * A CSS color as a signed RGBA int, or null if it isn't one of the
+ * supported forms.
+ * @private
+ */
+FastContext2D._parseColor = function(value){
+	if (typeof value !== "string"){
+		return null;
+	}
+	var s = value.replace(/\s+/g, "").toLowerCase();
+	var r, g, b, a = 255;
+	var match;
+	if ((match = /^#([0-9a-f]{3})$/.exec(s))){
+		r = parseInt(match[1].charAt(0), 16) * 17;
+		g = parseInt(match[1].charAt(1), 16) * 17;
+		b = parseInt(match[1].charAt(2), 16) * 17;
+	}else if ((match = /^#([0-9a-f]{6})$/.exec(s))){
+		r = parseInt(match[1].substring(0, 2), 16);
+		g = parseInt(match[1].substring(2, 4), 16);
+		b = parseInt(match[1].substring(4, 6), 16);
+	}else if ((match = /^rgba?\((\d+),(\d+),(\d+)(?:,(\d*\.?\d+))?\)$/.exec(s))){
+		r = Math.min(255, parseInt(match[1], 10));
+		g = Math.min(255, parseInt(match[2], 10));
+		b = Math.min(255, parseInt(match[3], 10));
+		if (match[4] !== undefined){
+			a = Math.round(Math.min(1, parseFloat(match[4])) * 255);
+		}
+	}else{
+		return null;
+	}
+	return ((r << 24) | (g << 16) | (b << 8) | a) | 0;
+};
+
+/**
+ * Draws a line of text in the current font, fillStyle and globalAlpha,
+ * with the current 2D matrix transform.
+ * <p>The glyphs are rasterized by the plugin the first time they are
+ * drawn and cached on the GPU, after which a string costs one textured
+ * quad per glyph, batched with everything else drawn from the same glyph
+ * page. Until all of its glyphs are cached, which takes a frame or two, a
+ * string isn't drawn. Kerning isn't applied, and there is no measureText;
+ * see {@link FastCanvas.getGlyphStats} for the cache.</p>
+ * @param {string} text The text to draw.
+ * @param {number} x Where the text goes along the x axis, see
+ * {@link FastContext2D#textAlign}.
+ * @param {number} y Where the text goes along the y axis, see
+ * {@link FastContext2D#textBaseline}.
+ * @example
+ * myContext.font = "bold 24px sans-serif";
+ * myContext.fillStyle = "#fff";
+ * myContext.textAlign = "center";
+ * myContext.fillText("Score: " + score, 400, 40);
+ */
+FastContext2D.prototype.fillText = function(text, x, y){
+	if (!this._fontID){
+		this.setFont(this._font);
+	}
+	text = String(text);
+	var codePoints = [];
+	for (var i = 0; i < text.length; i++){
+		var c = text.charCodeAt(i);
+		if (c >= 0xd800 && c < 0xdc00 && i + 1 < text.length){
+			var low = text.charCodeAt(i + 1);
+			if (low >= 0xdc00 && low < 0xe000){
+				c = 0x10000 + ((c - 0xd800) << 10) + (low - 0xdc00);
+				i++;
+			}
+		}
+		codePoints.push(c);
+	}
+	if (!codePoints.length){
+		return;
+	}
+	var flags = FastContext2D._textAligns[this._textAlign] | FastContext2D._textBaselines[this._textBaseline];
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.FILL_TEXT, 24 + codePoints.length * 4);
+		buf.i32(this._fontID); buf.i32(this._fillColor); buf.i32(flags);
+		buf.f32(x); buf.f32(y); buf.i32(codePoints.length);
+		for (var j = 0; j < codePoints.length; j++){
+			buf.i32(codePoints[j]);
+		}
+		return;
+	}
+	this._drawCommands = this._drawCommands.concat("T" + this._fontID + "," + this._fillColor + "," + flags + "," + x + "," + y + "," + codePoints.join(",") + ";");
+};
+
+/**
+ * Draws many sprites of one image in a single command, for particles and
+ * sprite heavy scenes. The plugin generates all their vertices in one
+ * loop instead of handling a drawImage, save, translate and restore for
+ * each sprite.
+ * <p>Each sprite is a frame of the image centered on its x, y, rotated
+ * and scaled about its center and drawn with the current 2D matrix
+ * transform; its alpha multiplies globalAlpha. Sprites whose frame index
+ * is out of range are skipped.</p>
+ * <p>Pass Float32Arrays and reuse them from frame to frame: with
+ * {@link FastCanvas.setBinaryCommands} they are copied into the command
+ * buffer as they are. Plain arrays work too.</p>
+ * <p>This method is unique to FastContext2D and does not exist within the
+ * HTML 2D context.</p>
+ * @param {FastCanvasImage} image The image the frames are cut from.
+ * @param {Float32Array|Array} frames Source rectangles of the image, four
+ * values each: sx, sy, sw, sh.
+ * @param {Float32Array|Array} sprites The sprites, each x, y, frame
+ * index, then its rotation in radians, scale and alpha if flags asks for
+ * them, in that order.
+ * @param {number} [flags] Sum of {@link FastCanvas.SPRITE_ROTATION},
+ * {@link FastCanvas.SPRITE_SCALE} and {@link FastCanvas.SPRITE_ALPHA};
+ * 0 if omitted.
+ * @param {number} [count] Number of sprites to draw, by default as many
+ * as sprites holds.
+ * @example
+ * var frames = new Float32Array([0,0,16,16, 16,0,16,16]);
+ * var sprites = new Float32Array(1000 * 4);
+ * // every frame
+ * for (var i = 0; i < particles.length; i++){
+ *     sprites[i*4] = particles[i].x;
+ *     sprites[i*4+1] = particles[i].y;
+ *     sprites[i*4+2] = particles[i].age > 30 ? 1 : 0;
+ *     sprites[i*4+3] = particles[i].life;
+ * }
+ * myContext.drawImages(sparkImage, frames, sprites, FastCanvas.SPRITE_ALPHA, particles.length);
+ */
+FastContext2D.prototype.drawImages = function(image, frames, sprites, flags, count){
+	flags = flags || 0;
+	var stride = 3 + (flags & FastCanvas.SPRITE_ROTATION ? 1 : 0) +
+		(flags & FastCanvas.SPRITE_SCALE ? 1 : 0) +
+		(flags & FastCanvas.SPRITE_ALPHA ? 1 : 0);
+	var frameCount = Math.floor(frames.length / 4);
+	var maxCount = Math.floor(sprites.length / stride);
+	if (count === undefined || count > maxCount){
+		count = maxCount;
+	}
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.DRAW_IMAGES, 16 + (frameCount * 4 + count * stride) * 4);
+		buf.i32(image._id); buf.i32(flags); buf.i32(frameCount); buf.i32(count);
+		buf.floats(frames, frameCount * 4);
+		buf.floats(sprites, count * stride);
+		return;
+	}
+	var command = "D" + image._id + "," + flags + "," + frameCount + "," + count;
+	if (frameCount > 0){
+		command += "," + Array.prototype.join.call(Array.prototype.slice.call(frames, 0, frameCount * 4), ",");
+	}
+	if (count > 0){
+		command += "," + Array.prototype.join.call(Array.prototype.slice.call(sprites, 0, count * stride), ",");
+	}
+	this._drawCommands = this._drawCommands.concat(command + ";");
+};
+
 /**
  * Informs the drawing context that drawing commands have
  * completed for the current frame and the should be sent
@@ -483,9 +1160,105 @@ FastContext2D.prototype.drawImage = function(
  * FastCanvas.render(); // calls FastContext2D.render()
  */
 FastContext2D.prototype.render = function () {
+	if (this._buffer){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'renderBuffer', [this._buffer.take(), FastCanvas._frame]);
+		return;
+	}
 	var commands = this._drawCommands;
 	this._drawCommands = "";
-	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'render', [commands]);
+	if (this._delta){
+		this._delta.send(commands);
+		return;
+	}
+	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'render', [commands, 0, FastCanvas._frame]);
+};
+
+/**
+ * Starts recording a display list: a block of drawing commands kept on
+ * the GPU by the plugin and drawn by {@link FastContext2D#drawList} as many
+ * times as needed, without being sent or rebuilt again. Use it for static
+ * parts of a scene such as backgrounds or tile maps.
+ * <p>Commands up to {@link FastContext2D#endList} go into the list instead
+ * of the current frame. The list starts with the identity transform and a
+ * globalAlpha of 1; the frame's state is left as it was.</p>
+ * <p>This method is unique to FastContext2D and does not exist within the
+ * HTML 2D context.</p>
+ * @param {number} id Integer naming the list. Recording an id again
+ * replaces the list.
+ * @example
+ * var myContext = FastCanvas.create().getContext("2d");
+ * myContext.beginList(1);
+ * for (var i = 0; i < tiles.length; i++){
+ *     myContext.drawImage(tileImage, tiles[i].x, tiles[i].y);
+ * }
+ * myContext.endList();
+ *
+ * // every frame
+ * myContext.drawList(1, -scrollX, 0);
+ * myContext.drawImage(player, playerX, playerY);
+ * FastCanvas.render();
+ */
+FastContext2D.prototype.beginList = function(id){
+	if (this._list){
+		throw new Error('beginList called while recording list ' + this._list.id);
+	}
+	this._list = {
+		id: id,
+		drawCommands: this._drawCommands,
+		buffer: this._buffer,
+		globalAlpha: this._globalAlpha
+	};
+	this._drawCommands = "";
+	this._buffer = this._buffer ? new FastCanvasCommandBuffer() : null;
+	this._globalAlpha = 1.0;
+};
+
+/**
+ * Ends the display list started by {@link FastContext2D#beginList} and
+ * sends it to the plugin. It can be drawn from the next render on.
+ */
+FastContext2D.prototype.endList = function(){
+	var list = this._list;
+	if (!list){
+		throw new Error('endList called without beginList');
+	}
+	if (this._buffer){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'defineListBuffer', [list.id, this._buffer.take()]);
+	}else{
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'defineList', [list.id, this._drawCommands]);
+	}
+	this._list = null;
+	this._drawCommands = list.drawCommands;
+	this._buffer = list.buffer;
+	this._globalAlpha = list.globalAlpha;
+};
+
+/**
+ * Draws a display list recorded with {@link FastContext2D#beginList}
+ * using the current 2D matrix transform, offset by x and y. Lists are
+ * drawn with full alpha, and can't draw other lists.
+ * @param {number} id The list to draw. Unknown ids draw nothing.
+ * @param {number} [x] Distance along the x axis to offset the list by.
+ * @param {number} [y] Distance along the y axis to offset the list by.
+ */
+FastContext2D.prototype.drawList = function(id, x, y){
+	x = x || 0;
+	y = y || 0;
+	var buf = this._buffer;
+	if (buf){
+		buf.op(FastCanvasCommandBuffer.DRAW_LIST, 12);
+		buf.i32(id); buf.f32(x); buf.f32(y);
+		return;
+	}
+	this._drawCommands = this._drawCommands.concat("L" + id + "," + x + "," + y + ";");
+};
+
+/**
+ * Frees a display list recorded with {@link FastContext2D#beginList}.
+ * @param {number} id The list to delete.
+ */
+FastContext2D.prototype.deleteList = function(id){
+	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'removeList', [id]);
 };
 
 /**
@@ -503,7 +1276,11 @@ FastContext2D.prototype.capture = function(x,y,w,h,fileName, successCallback, er
 	FastCanvasUtils._toNative(successCallback, errorCallback, 'FastCanvas', 'capture', [x,y,w,h,fileName]);
 };
 
-FastContext2D.prototype.toDataURL = function(mimeType, quality, successCallback, errorCallback) {
+/**
+ * Implementation of FastCanvas.toDataURL.
+ * @private
+ */
+FastContext2D.prototype.toDataURL = function(mimeType, quality, successCallback, errorCallback, options) {
 	if (successCallback && typeof successCallback !== 'function') {
 		throw new Error('successCallback parameter not a function');
 	}
@@ -517,7 +1294,117 @@ FastContext2D.prototype.toDataURL = function(mimeType, quality, successCallback,
 		quality = 100;
 	}
 
-	FastCanvasUtils._toNative(successCallback, errorCallback, 'FastCanvas', 'toDataURL', [mimeType, quality, FastCanvas._instance._width, FastCanvas._instance._height]);
+	options = options || {};
+	FastCanvasUtils._toNative(successCallback, errorCallback, 'FastCanvas', 'toDataURL', [mimeType || null, quality, options.width || 0, options.height || 0, options.file || null]);
+};
+
+/**
+ * <b>Invalid constructor</b>: Obtain layers through {@link FastCanvas.createLayer}.
+ * @classdesc A named layer of the FastCanvas with drawing commands of its
+ * own. A layer is drawn on every frame with its own transform, under the
+ * frame's commands if its z is negative and over them otherwise, but is
+ * only rebuilt by the plugin when its own commands are sent again with
+ * {@link FastCanvasLayer#render}. Put parts of a scene that change at
+ * different rates, such as a background, the world and a HUD, in layers
+ * of their own, and render each only when it changes.
+ * @param {string} name Name of the layer.
+ * @param {number} z Drawing order.
+ * @class
+ * @example
+ * var hud = FastCanvas.createLayer("hud", 1);
+ * var hudContext = hud.getContext("2d");
+ * hudContext.drawImage(scoreImage, 10, 10);
+ * hud.render(); // sent once, drawn on every frame
+ */
+function FastCanvasLayer(name, z){
+	this.name = name;
+	this._z = z || 0;
+	this._visible = true;
+	this._transform = [1, 0, 0, 1, 0, 0];
+	this._context = new FastContext2D();
+	if (FastCanvas._instance.getContext("2d")._buffer){
+		// same command format as the canvas
+		this._context._buffer = new FastCanvasCommandBuffer();
+	}
+	this._update();
+}
+
+/**
+ * Returns the context recording this layer's commands. It works like
+ * the canvas context, but its commands only reach the screen with
+ * {@link FastCanvasLayer#render}, not {@link FastCanvas.render}.
+ * @param {string} [contextID] Ignored, always "2d".
+ * @return {FastContext2D} The layer's context.
+ */
+FastCanvasLayer.prototype.getContext = function(contextID){
+	return this._context;
+};
+
+/**
+ * Sends the commands recorded since the last call, replacing what the
+ * layer drew before. Each call starts from the identity transform and a
+ * globalAlpha of 1.
+ */
+FastCanvasLayer.prototype.render = function(){
+	var context = this._context;
+	context._globalAlpha = 1.0;
+	if (context._buffer){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'renderLayerBuffer', [this.name, context._buffer.take()]);
+		return;
+	}
+	var commands = context._drawCommands;
+	context._drawCommands = "";
+	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'renderLayer', [this.name, commands]);
+};
+
+/**
+ * Sets the transform the whole layer is drawn with, e.g. to scroll it,
+ * without sending or rebuilding its commands.
+ * @param {number} a The horizontal scale.
+ * @param {number} b The vertical skew.
+ * @param {number} c The horizontal skew.
+ * @param {number} d The vertical scale.
+ * @param {number} tx The horizontal translation.
+ * @param {number} ty The vertical translation.
+ */
+FastCanvasLayer.prototype.setTransform = function(a, b, c, d, tx, ty){
+	this._transform = [a, b, c, d, tx, ty];
+	this._update();
+};
+
+/**
+ * Moves the layer in the drawing order. Layers with a negative z are
+ * drawn under the commands sent with {@link FastCanvas.render}, the
+ * others over them; layers with the same z are drawn in the order they
+ * got it.
+ * @param {number} z Integer drawing order.
+ */
+FastCanvasLayer.prototype.setZ = function(z){
+	this._z = z;
+	this._update();
+};
+
+/**
+ * Shows or hides the layer. A hidden layer keeps its commands.
+ * @param {boolean} visible False to hide the layer.
+ */
+FastCanvasLayer.prototype.setVisible = function(visible){
+	this._visible = !!visible;
+	this._update();
+};
+
+/**
+ * Deletes the layer and its commands.
+ */
+FastCanvasLayer.prototype.remove = function(){
+	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'removeLayer', [this.name]);
+};
+
+/**
+ * @private
+ */
+FastCanvasLayer.prototype._update = function(){
+	FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setLayer', [this.name, this._z, this._visible].concat(this._transform));
 };
 
 /**
@@ -566,6 +1453,13 @@ function FastCanvas(){
  */
 FastCanvas._instance = null;
 
+/**
+ * Frame number of the last frame callback, sent along with each render so
+ * the plugin can match frames to vsyncs. 0 when not paced.
+ * @private
+ */
+FastCanvas._frame = 0;
+
 /**
  * Identifies whether or not the FastCanvas implementation of
  * canvas is being used.  This will be true if so, false if
@@ -774,6 +1668,592 @@ FastCanvas.render = function(){
 	}
 };
 
+/**
+ * {@link FastContext2D#drawImages} flag: every sprite has a rotation, in
+ * radians.
+ * @type {number}
+ */
+FastCanvas.SPRITE_ROTATION = 1;
+
+/**
+ * {@link FastContext2D#drawImages} flag: every sprite has a scale.
+ * @type {number}
+ */
+FastCanvas.SPRITE_SCALE = 2;
+
+/**
+ * {@link FastContext2D#drawImages} flag: every sprite has an alpha
+ * between 0 and 1.
+ * @type {number}
+ */
+FastCanvas.SPRITE_ALPHA = 4;
+
+/**
+ * {@link FastCanvas.setInputCallback} event kind: a touch, with the
+ * pointer ID, x and y in canvas units.
+ * @type {number}
+ */
+FastCanvas.INPUT_TOUCH = 1;
+
+/**
+ * {@link FastCanvas.setInputCallback} event kind: a key, with the Android
+ * key code, meta state and unicode character.
+ * @type {number}
+ */
+FastCanvas.INPUT_KEY = 2;
+
+/**
+ * {@link FastCanvas.setInputCallback} action: a pointer touched down or a
+ * key was pressed.
+ * @type {number}
+ */
+FastCanvas.INPUT_DOWN = 0;
+
+/**
+ * {@link FastCanvas.setInputCallback} action: a pointer lifted or a key
+ * was released.
+ * @type {number}
+ */
+FastCanvas.INPUT_UP = 1;
+
+/**
+ * {@link FastCanvas.setInputCallback} action: a pointer moved.
+ * @type {number}
+ */
+FastCanvas.INPUT_MOVE = 2;
+
+/**
+ * {@link FastCanvas.setInputCallback} action: the gesture was taken away,
+ * by the system for instance. Sent for every pointer still down.
+ * @type {number}
+ */
+FastCanvas.INPUT_CANCEL = 3;
+
+/**
+ * Numbers per event in a {@link FastCanvas.setInputCallback} batch.
+ * @type {number}
+ */
+FastCanvas.INPUT_STRIDE = 6;
+
+/**
+ * Render mode where the FastCanvas redraws on every display refresh.
+ * This is the default.
+ * @type {string}
+ */
+FastCanvas.RENDER_CONTINUOUSLY = "continuous";
+
+/**
+ * Render mode where the FastCanvas only redraws when something changed:
+ * a new frame was rendered, a texture was loaded or unloaded, or the
+ * surface changed. Use it for mostly static scenes to save battery.
+ * @type {string}
+ */
+FastCanvas.RENDER_WHEN_DIRTY = "dirty";
+
+/**
+ * Selects when the FastCanvas surface redraws.
+ * @param {string} mode {@link FastCanvas.RENDER_CONTINUOUSLY} or
+ * {@link FastCanvas.RENDER_WHEN_DIRTY}.
+ * @param {number} [maxFps] For continuous rendering, the maximum number
+ * of frames drawn per second, for example 30. No cap if omitted or 0.
+ * @example
+ * // menu screen, only redraw on changes
+ * FastCanvas.setRenderMode(FastCanvas.RENDER_WHEN_DIRTY);
+ *
+ * // gameplay, redraw continuously at 30 fps
+ * FastCanvas.setRenderMode(FastCanvas.RENDER_CONTINUOUSLY, 30);
+ */
+FastCanvas.setRenderMode = function(mode, maxFps){
+	if (mode !== FastCanvas.RENDER_CONTINUOUSLY && mode !== FastCanvas.RENDER_WHEN_DIRTY){
+		throw new TypeError("Render mode must be FastCanvas.RENDER_CONTINUOUSLY or FastCanvas.RENDER_WHEN_DIRTY");
+	}
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setRenderMode', [mode, maxFps || 0]);
+	}
+};
+
+/**
+ * Texture policy padding images whose size isn't a power of two with
+ * transparent pixels. Keeps full detail, but a 1100x700 image takes
+ * as much memory as a 2048x1024 one.
+ * @type {string}
+ */
+FastCanvas.TEXTURE_PAD = "pad";
+
+/**
+ * Texture policy scaling images whose size isn't a power of two down
+ * to the next smaller power of two, e.g. 1100x700 to 1024x512. Uses a
+ * quarter or less of the memory of padding, at the cost of detail.
+ * @type {string}
+ */
+FastCanvas.TEXTURE_SCALE = "scale";
+
+/**
+ * Selects what happens to images whose width or height isn't a power
+ * of two, on devices whose GPU can't use them as they are. Most
+ * current GPUs can, and then images are always uploaded unchanged.
+ * Applies to images loaded afterwards.
+ * @param {string} policy {@link FastCanvas.TEXTURE_PAD} (default) or
+ * {@link FastCanvas.TEXTURE_SCALE}.
+ * @example
+ * // low memory devices: trade detail for memory
+ * FastCanvas.setTexturePolicy(FastCanvas.TEXTURE_SCALE);
+ */
+FastCanvas.setTexturePolicy = function(policy){
+	if (policy !== FastCanvas.TEXTURE_PAD && policy !== FastCanvas.TEXTURE_SCALE){
+		throw new TypeError("Texture policy must be FastCanvas.TEXTURE_PAD or FastCanvas.TEXTURE_SCALE");
+	}
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setTexturePolicy', [policy]);
+	}
+};
+
+/**
+ * Limits the GPU memory used by textures. When loaded textures take
+ * more than the budget, the ones drawn least recently are evicted from
+ * the GPU. An evicted texture is reloaded automatically the next time
+ * it is drawn; until then it is drawn with the placeholder color, or
+ * not at all. After the app is resumed, textures are restored a few
+ * per frame, most recently used first, up to the budget.
+ * @param {number} bytes GPU memory budget in bytes, 0 for no limit
+ * (the default). Compare with {@link FastCanvasImage#gpuBytes}.
+ * @param {string} [placeholder] Color drawn in place of evicted
+ * textures while they reload, as a 6 (RRGGBB) or 8 (RRGGBBAA)
+ * character hexadecimal string. Omit to skip drawing them.
+ * @example
+ * FastCanvas.setTextureBudget(64 * 1024 * 1024, "80808080");
+ */
+FastCanvas.setTextureBudget = function(bytes, placeholder){
+	if (placeholder){
+		if (placeholder.charAt(0) === "#"){
+			placeholder = placeholder.substring(1);
+		}
+		if (!/^([0-9a-fA-F]{6}|[0-9a-fA-F]{8})$/.test(placeholder)){
+			throw new TypeError("Placeholder color must be a 6 or 8 character hexadecimal string");
+		}
+	}
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setTextureBudget', [bytes || 0, placeholder || null]);
+	}
+};
+
+/**
+ * Reports texture memory use.
+ * @param {function} callback Called with an object holding
+ * <code>budget</code>, <code>residentBytes</code> (GPU memory used
+ * by textures now), <code>residentCount</code>, <code>textureCount</code>
+ * (loaded by the app, resident or not), <code>evictions</code> and
+ * <code>reloads</code> (totals since start), and for the decoded
+ * image cache <code>cacheBytes</code> (on disk), <code>cacheHits</code>
+ * and <code>cacheMisses</code>.
+ * @example
+ * FastCanvas.getTextureStats(function(stats){
+ *     console.log(stats.residentBytes + " of " + stats.budget);
+ * });
+ */
+FastCanvas.getTextureStats = function(callback){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback, null, 'FastCanvas', 'getTextureStats', []);
+	}
+};
+
+/**
+ * Sets how much app cache storage decoded images may take. Images loaded
+ * from the app's assets are kept there as decoded, so loading them again,
+ * at the next launch or after the GL context is lost, reads them back
+ * instead of decoding them. The least recently loaded are deleted when
+ * over the limit; those from before an app update are never used again
+ * and go first. Defaults to 64MB.
+ * @param {number} bytes Storage limit, 0 to turn the cache off and delete
+ * it.
+ * @example
+ * FastCanvas.setTextureCache(128 * 1024 * 1024);
+ */
+FastCanvas.setTextureCache = function(bytes){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setTextureCache', [bytes || 0]);
+	}
+};
+
+/**
+ * Reports the glyph cache of {@link FastContext2D#fillText}.
+ * @param {function} callback Called with an object holding
+ * <code>fonts</code> (defined so far), <code>pages</code>,
+ * <code>maxPages</code> and <code>pageSize</code> of the glyph
+ * textures, <code>occupancy</code> (the share of the pages taken, 0 to
+ * 1), <code>glyphs</code> (cached now), and as totals since start
+ * <code>hits</code> and <code>misses</code> (glyphs drawn found in the
+ * cache and not), <code>hitRate</code>, <code>evictions</code> (pages
+ * cleared to make room), <code>dropped</code> (glyphs that didn't fit),
+ * as well as <code>pending</code> (glyphs being rasterized).
+ * @example
+ * FastCanvas.getGlyphStats(function(stats){
+ *     console.log(stats.glyphs + " glyphs, hit rate " + stats.hitRate);
+ * });
+ */
+FastCanvas.getGlyphStats = function(callback){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback, null, 'FastCanvas', 'getGlyphStats', []);
+	}
+};
+
+/**
+ * Turns frame stats on or off. While on, the render thread times every
+ * frame; see FastCanvas.getStats for what is measured. Turning stats on
+ * or off resets them.
+ * @param {boolean} enabled True to collect stats.
+ * @param {number} [intervalMs] If set along with callback, a summary of
+ * the frames drawn since the previous one is passed to callback every
+ * intervalMs, and the stats are reset each time.
+ * @param {function} [callback] Called with the same object as
+ * FastCanvas.getStats.
+ * @example
+ * FastCanvas.setStatsEnabled(true, 1000, function(stats){
+ *     console.log("p99 frame: " + stats.frameMicros.p99 + "us");
+ * });
+ */
+FastCanvas.setStatsEnabled = function(enabled, intervalMs, callback){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback || null, null, 'FastCanvas', 'setStatsEnabled', [!!enabled, callback ? intervalMs || 0 : 0]);
+	}
+};
+
+/**
+ * Reports frame stats collected since they were enabled or last reset.
+ * The callback gets an object with <code>frames</code> and, for each of
+ * <code>latencyMicros</code>, <code>commandBytes</code>,
+ * <code>buildMicros</code>, <code>uploadBytes</code>,
+ * <code>drawCalls</code>, <code>quads</code>,
+ * <code>textureUploadMicros</code>, <code>idleMicros</code>,
+ * <code>frameMicros</code>, <code>culledQuads</code>,
+ * <code>glyphHits</code> and <code>glyphMisses</code> (fillText glyphs
+ * found in and missing from the glyph cache), an object with
+ * <code>p50</code>, <code>p90</code>, <code>p99</code>, <code>max</code>,
+ * <code>mean</code>, <code>last</code> and <code>recent</code> (the last
+ * 120 frames, oldest first, -1 where the metric didn't apply).
+ * @param {function} callback Receives the stats.
+ * @param {boolean} [reset] True to reset the stats after reporting.
+ * @example
+ * FastCanvas.getStats(function(stats){
+ *     console.log(stats.drawCalls.last + " draw calls");
+ * }, true);
+ */
+FastCanvas.getStats = function(callback, reset){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback, null, 'FastCanvas', 'getStats', [!!reset]);
+	}
+};
+
+/**
+ * Lets the plugin drive the animation loop from the render thread's
+ * vsync, in place of requestAnimationFrame. The callback is called once
+ * per frame to draw and render it; the next call only comes once that
+ * frame was rendered, so frames never queue up behind a slow one. Frames
+ * rendered from the callback are matched to their vsync, see
+ * {@link FastCanvas.getPacingStats}.
+ * <p>Animate with <code>time</code>, the time the frame is predicted to
+ * reach the screen, rather than the time of the call: it advances by
+ * whole vsync intervals, which keeps motion smooth.</p>
+ * <p>With {@link FastCanvas.RENDER_WHEN_DIRTY} the callback stops when a
+ * call doesn't render, and resumes after the next render. On an HTML
+ * canvas the callback is driven by requestAnimationFrame.</p>
+ * @param {function} callback Called with the frame number, the predicted
+ * present time and the vsync interval, both in milliseconds. The times
+ * are only meaningful relative to each other. Null stops the callbacks.
+ * @example
+ * var start = null;
+ * FastCanvas.setFrameCallback(function(frame, time, interval){
+ *     if (start === null){
+ *         start = time;
+ *     }
+ *     drawScene((time - start) / 1000);
+ *     FastCanvas.render();
+ * });
+ */
+FastCanvas.setFrameCallback = function(callback){
+	FastCanvas._frameCallback = callback || null;
+	if (!FastCanvas.isFast){
+		FastCanvas._frame = 0;
+		var frame = 0;
+		var last = 0;
+		var tick = function(now){
+			if (FastCanvas._frameCallback !== callback || !callback){
+				return;
+			}
+			var interval = last ? now - last : 1000 / 60;
+			last = now;
+			callback(++frame, now, interval);
+			window.requestAnimationFrame(tick);
+		};
+		if (callback){
+			window.requestAnimationFrame(tick);
+		}
+		return;
+	}
+	if (!callback){
+		FastCanvas._frame = 0;
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setFrameCallback', [false]);
+		return;
+	}
+	FastCanvasUtils._toNative(function(begin){
+		FastCanvas._frame = begin[0];
+		callback(begin[0], begin[1] / 1000, begin[2] / 1000);
+	}, null, 'FastCanvas', 'setFrameCallback', [true]);
+};
+
+/**
+ * Callback set with {@link FastCanvas.setFrameCallback}.
+ * @private
+ */
+FastCanvas._frameCallback = null;
+
+/**
+ * Reports how well frames rendered from {@link FastCanvas.setFrameCallback}
+ * kept up with the vsync since the callback was set or the stats were
+ * last reset. The callback gets an object with <code>frames</code>
+ * (frame number of the last callback), <code>presented</code>,
+ * <code>late</code> (drawn one or more vsyncs after the one they were
+ * meant for), <code>dropped</code> (replaced by a newer frame before
+ * being drawn), <code>waits</code> (vsyncs spent waiting for a frame),
+ * <code>stalls</code> (callbacks that never rendered),
+ * <code>periodMicros</code> (the measured vsync interval), and
+ * <code>latencyMicros</code> and <code>lateVsyncs</code>, each with
+ * <code>p50</code>, <code>p90</code>, <code>p99</code>, <code>max</code>
+ * and <code>mean</code>, and <code>inputDropped</code> (events lost
+ * from full {@link FastCanvas.setInputCallback} batches).
+ * @param {function} callback Receives the stats.
+ * @param {boolean} [reset] True to reset the stats after reporting.
+ * @example
+ * FastCanvas.getPacingStats(function(stats){
+ *     console.log(stats.late + " of " + stats.presented + " frames late");
+ * }, true);
+ */
+FastCanvas.getPacingStats = function(callback, reset){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback, null, 'FastCanvas', 'getPacingStats', [!!reset]);
+	}
+};
+
+/**
+ * Takes touches, and optionally keys, away from the WebView and delivers
+ * them in one batch per frame, just before the frame callback of
+ * {@link FastCanvas.setFrameCallback}. Touches skip the WebView's event
+ * dispatch entirely and carry their precise time, including the samples
+ * the system batched between two events.
+ * <p>The batch is a Float64Array of {@link FastCanvas.INPUT_STRIDE}
+ * numbers per event: the kind ({@link FastCanvas.INPUT_TOUCH} or
+ * {@link FastCanvas.INPUT_KEY}), the action ({@link FastCanvas.INPUT_DOWN},
+ * {@link FastCanvas.INPUT_UP}, {@link FastCanvas.INPUT_MOVE} or
+ * {@link FastCanvas.INPUT_CANCEL}), the pointer ID or key code, x or the
+ * meta state, y or the unicode character, and the time in milliseconds
+ * on the clock of the frame callback's present time.</p>
+ * <p>Only gestures starting inside <code>region</code> are taken; the
+ * rest, like taps on HTML controls over the canvas, still reach the
+ * WebView. Does nothing on an HTML canvas.</p>
+ * @param {function} callback Receives each batch. Null gives input back
+ * to the WebView.
+ * @param {Object} [options] <code>history</code>: false to coalesce each
+ * pointer's moves into its latest position, <code>keys</code>: true to
+ * take key events too (system keys such as back still go to the
+ * WebView), <code>region</code>: [x, y, width, height] in canvas units.
+ * @example
+ * FastCanvas.setInputCallback(function(events){
+ *     for (var i = 0; i < events.length; i += FastCanvas.INPUT_STRIDE){
+ *         if (events[i] === FastCanvas.INPUT_TOUCH &&
+ *                 events[i + 1] === FastCanvas.INPUT_DOWN){
+ *             fire(events[i + 3], events[i + 4]);
+ *         }
+ *     }
+ * }, { history: false });
+ */
+FastCanvas.setInputCallback = function(callback, options){
+	if (!FastCanvas.isFast){
+		return;
+	}
+	if (!callback){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setInputCallback', [false]);
+		return;
+	}
+	options = options || {};
+	FastCanvasUtils._toNative(function(batch){
+		callback(new Float64Array(batch));
+	}, null, 'FastCanvas', 'setInputCallback', [true, {
+		history: options.history !== false,
+		keys: !!options.keys,
+		region: options.region || null
+	}]);
+};
+
+/**
+ * Starts recording everything the plugin receives into a trace file: each
+ * call from FastCanvas.js with its arguments and arrival time, plus surface
+ * changes, context losses and texture loads on the render thread. The file
+ * is written and compressed on a background thread; if it falls behind,
+ * records are dropped rather than holding up rendering. Replay it on a
+ * desktop JVM with <code>TraceReplay</code> from the benchmarks module.
+ * Starting again ends the previous trace.
+ * @param {string} [fileName] Path relative to the storage root, as with
+ * {@link FastCanvas.capture}. The default is
+ * <code>FastCanvas/trace.fctrace</code>.
+ * @param {function} [successCallback] Receives the full path of the file.
+ * @param {function} [errorCallback] Receives an error message.
+ * @example
+ * FastCanvas.startTrace("traces/level3.fctrace");
+ * // ... play through the slow part ...
+ * FastCanvas.stopTrace(function(trace){
+ *     console.log(trace.records + " records in " + trace.file);
+ * });
+ */
+FastCanvas.startTrace = function(fileName, successCallback, errorCallback){
+	if (FastCanvas.isFast){
+		var args = fileName ? [fileName] : [];
+		FastCanvasUtils._toNative(successCallback, errorCallback, 'FastCanvas', 'startTrace', args);
+	}
+};
+
+/**
+ * Ends the trace started with {@link FastCanvas.startTrace} once the rest
+ * of it is written.
+ * @param {function} [successCallback] Receives <code>file</code>,
+ * <code>records</code> (written) and <code>dropped</code>.
+ * @param {function} [errorCallback] Called if no trace was being recorded.
+ */
+FastCanvas.stopTrace = function(successCallback, errorCallback){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(successCallback, errorCallback, 'FastCanvas', 'stopTrace', []);
+	}
+};
+
+/**
+ * Limits how much texture data is sent to the GPU per frame. Images are
+ * decoded in the background; once decoded, each frame uploads at least
+ * one of them and then keeps going until either limit is reached, so
+ * loading many images at once doesn't stall a frame.
+ * @param {number} ms Upload time per frame in milliseconds, 0 for no
+ * limit. The default is 4.
+ * @param {number} [bytes] Upload size per frame in bytes, 0 or omitted
+ * for no limit. The default is 8MB.
+ * @example
+ * // keep loading during gameplay from dropping frames
+ * FastCanvas.setTextureUploadBudget(2, 1024 * 1024);
+ */
+FastCanvas.setTextureUploadBudget = function(ms, bytes){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setTextureUploadBudget', [ms, bytes || 0]);
+	}
+};
+
+/**
+ * Switches the context between the text and the binary render command
+ * formats. Binary commands are packed into an ArrayBuffer instead of
+ * being concatenated into a string, which is much cheaper to build,
+ * send and parse for scenes with many drawImage calls. Commands issued
+ * since the last render are discarded when switching.
+ * @param {boolean} enabled True to send binary commands.
+ * @return {boolean} True if binary commands are now in use. This is
+ * false if typed arrays are not available in this browser.
+ * @example
+ * var myCanvas = FastCanvas.create();
+ * FastCanvas.setBinaryCommands(true);
+ */
+FastCanvas.setBinaryCommands = function(enabled){
+	if (!FastCanvas.isFast){
+		return false;
+	}
+
+	var context = FastCanvas._instance.getContext("2d");
+	context._drawCommands = "";
+	if (enabled && typeof DataView !== "undefined" && typeof ArrayBuffer.prototype.slice === "function"){
+		context._buffer = new FastCanvasCommandBuffer();
+	}else{
+		context._buffer = null;
+	}
+	return context._buffer !== null;
+};
+
+/**
+ * Sends text render commands as changes to the previous frame instead of
+ * whole frames. Scenes where most commands stay the same from frame to
+ * frame (sprites that don't move, or only some of them) then send a
+ * fraction of the data across the bridge. A frame that changed too much
+ * is sent whole, and so is the frame after a delta the plugin couldn't
+ * apply. Binary commands are always sent whole.
+ * @param {boolean} enabled True to send delta frames.
+ * @example
+ * var myCanvas = FastCanvas.create();
+ * FastCanvas.setDeltaFrames(true);
+ */
+FastCanvas.setDeltaFrames = function(enabled){
+	if (!FastCanvas.isFast){
+		return;
+	}
+
+	var context = FastCanvas._instance.getContext("2d");
+	var delta = enabled ? new FastCanvasDelta() : null;
+	context._delta = delta;
+	FastCanvasUtils._toNative(delta ? function(){
+		// the plugin lost track of the frames, start over
+		delta.keyframe();
+	} : null, null, 'FastCanvas', 'setDeltaFrames', [!!enabled]);
+};
+
+/**
+ * Builds frames on a separate thread. The vertices for the next frame
+ * are then generated while the current one draws, and the render thread
+ * only uploads and draws them. Helps scenes with many drawImage calls on
+ * multi-core devices, at the cost of up to one frame of extra latency
+ * when drawing can't keep up.
+ * @param {boolean} enabled True to build frames on a separate thread.
+ * @example
+ * var myCanvas = FastCanvas.create();
+ * FastCanvas.setFramePipeline(true);
+ */
+FastCanvas.setFramePipeline = function(enabled){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(null, null, 'FastCanvas', 'setFramePipeline', [!!enabled]);
+	}
+};
+
+/**
+ * Creates a layer, or gets a handle on an existing one, with drawing
+ * commands, a transform and a place in the drawing order of its own.
+ * See {@link FastCanvasLayer}.
+ * @param {string} name Name of the layer.
+ * @param {number} [z] Integer drawing order, 0 by default: negative
+ * layers are drawn under the commands of {@link FastCanvas.render},
+ * the others over them.
+ * @return {FastCanvasLayer} The layer, or null if FastCanvas isn't in
+ * use; draw on the HTML canvas directly then.
+ * @example
+ * var background = FastCanvas.createLayer("background", -1);
+ * background.getContext("2d").drawImage(sky, 0, 0);
+ * background.render();
+ */
+FastCanvas.createLayer = function(name, z){
+	if (!FastCanvas.isFast){
+		return null;
+	}
+	return new FastCanvasLayer(name, z);
+};
+
+/**
+ * Reports what the layers cost.
+ * @param {function} callback Called with an object holding, for each
+ * layer name, <code>z</code>, <code>visible</code>,
+ * <code>submissions</code> (calls to render) and <code>builds</code>
+ * (times the plugin built the layer; more than submissions means its
+ * textures changed or the GL context was lost).
+ * @example
+ * FastCanvas.getLayerStats(function(stats){
+ *     console.log("hud built " + stats.hud.builds + " times");
+ * });
+ */
+FastCanvas.getLayerStats = function(callback){
+	if (FastCanvas.isFast){
+		FastCanvasUtils._toNative(callback, null, 'FastCanvas', 'getLayerStats', []);
+	}
+};
+
 /**
  * Identifies whether or not the FastCanvas plugin is
  * installed and available for use in this application.
@@ -965,8 +2445,8 @@ FastCanvas._getBackgroundColor = function(){
  * If width or height equal -1 then the entire canvas is captured. On Android the
  * root directory is /mnt/sdcard/. Any sub folders can be supplied in the fileName
  * parameter like so: '/MyFolder/testScreenshot.png'.
- * Calls to capture() must be made prior to a render call, otherwise the behavior is
- * undefined. The successCallback is executed when the file is saved, and provides
+ * The pixels are read once the next frame has been drawn, and the PNG is written on a
+ * background thread. The successCallback is executed when the file is saved, and provides
  * the location as the callback parameter, otherwise errorCallback is executed with
  * an error message.
  * @param {number} x The x location of the capture rectangle.
@@ -984,9 +2464,31 @@ FastCanvas.capture = function(x,y,w,h,fileName, successCallback, errorCallback)
 	}
 };
 
-FastCanvas.toDataURL = function(mimeType, quality){
+/**
+ * Encodes the canvas as an image, like HTMLCanvasElement.toDataURL but
+ * asynchronous. The pixels are read once the next frame has been drawn;
+ * scaling and encoding happen on a background thread, so the render
+ * thread isn't held up.
+ * @param {string} [mimeType] <code>"image/png"</code> (default),
+ * <code>"image/jpeg"</code> or <code>"image/webp"</code>. Other types
+ * produce PNG.
+ * @param {number} [quality] 0 to 1 for JPEG and WebP.
+ * @param {function} successCallback Receives the data URL, or the full
+ * path of the file when <code>options.file</code> is set.
+ * @param {function} [errorCallback] Receives an error message.
+ * @param {object} [options] <code>width</code> and <code>height</code>
+ * to scale the image to (set one to keep the aspect ratio), and
+ * <code>file</code>, a path relative to the storage root as with
+ * FastCanvas.capture, to write the image to instead of making a data URL.
+ * @example
+ * // 160 pixel wide thumbnail
+ * FastCanvas.toDataURL("image/jpeg", 0.8, function(url){
+ *     thumbnail.src = url;
+ * }, null, { width: 160 });
+ */
+FastCanvas.toDataURL = function(mimeType, quality, successCallback, errorCallback, options){
 	if (FastCanvas.isFast){
-		FastCanvas._instance.getContext().toDataURL(mimeType, quality);
+		FastCanvas._instance.getContext().toDataURL(mimeType, quality, successCallback, errorCallback, options);
 	}
 };
 